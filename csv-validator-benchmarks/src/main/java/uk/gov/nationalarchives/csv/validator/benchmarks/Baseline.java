@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator.benchmarks;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+
+/**
+ * The scores, and the allocations per operation, of a run of the benchmarks,
+ * which the results of a later build can be compared against.
+ *
+ * All of the benchmarks measure the average time of an operation,
+ * so a lower score is better.
+ */
+final class Baseline {
+
+    private static final String ALLOCATION_SUFFIX = ".alloc";
+
+    private final Map<String, Double> values;
+
+    private Baseline(final Map<String, Double> values) {
+        this.values = values;
+    }
+
+    static Baseline of(final Collection<RunResult> results) {
+        final Map<String, Double> values = new TreeMap<>();
+        for (final RunResult result : results) {
+            final String key = key(result.getParams());
+            values.put(key, result.getPrimaryResult().getScore());
+            final Double allocation = allocationPerOperation(result);
+            if (allocation != null) {
+                values.put(key + ALLOCATION_SUFFIX, allocation);
+            }
+        }
+        return new Baseline(values);
+    }
+
+    static Baseline load(final Path file) throws IOException {
+        final Properties properties = new Properties();
+        try (final Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        final Map<String, Double> values = new TreeMap<>();
+        for (final String key : properties.stringPropertyNames()) {
+            values.put(key, Double.parseDouble(properties.getProperty(key)));
+        }
+        return new Baseline(values);
+    }
+
+    void save(final Path file) throws IOException {
+        final Properties properties = new Properties();
+        for (final Map.Entry<String, Double> value : values.entrySet()) {
+            properties.setProperty(value.getKey(), Double.toString(value.getValue()));
+        }
+        try (final Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            properties.store(writer, "csv-validator benchmark baseline");
+        }
+    }
+
+    /**
+     * Compares the results against the baseline, benchmarks
+     * which are not in the baseline are ignored.
+     *
+     * @param tolerance the fraction by which a score may be worse
+     *                  than the baseline before it is a regression
+     *
+     * @return the number of benchmarks whose score has regressed
+     */
+    int compare(final Collection<RunResult> results, final double tolerance, final PrintStream out) {
+        int regressions = 0;
+        out.println();
+        out.println(String.format("%-90s %14s %14s %9s %14s", "Benchmark", "Baseline", "Score", "Change", "Alloc B/op"));
+        for (final RunResult result : results) {
+            final String key = key(result.getParams());
+            final Double baseline = values.get(key);
+            if (baseline == null) {
+                continue;
+            }
+
+            final double score = result.getPrimaryResult().getScore();
+            final double change = (score - baseline) / baseline;
+            final boolean regressed = change > tolerance;
+            if (regressed) {
+                regressions++;
+            }
+
+            final Double allocation = allocationPerOperation(result);
+            final Double baselineAllocation = values.get(key + ALLOCATION_SUFFIX);
+            final String allocationChange = allocation == null || baselineAllocation == null
+                    ? "" : String.format("%.0f -> %.0f", baselineAllocation, allocation);
+
+            out.println(String.format("%-90s %14.3f %14.3f %+8.1f%% %14s%s", key, baseline, score, change * 100, allocationChange, regressed ? "  REGRESSED" : ""));
+        }
+        out.println();
+        out.println(regressions + " benchmark(s) regressed by more than " + Math.round(tolerance * 100) + "%");
+        return regressions;
+    }
+
+    private static String key(final BenchmarkParams params) {
+        final StringBuilder key = new StringBuilder(params.getBenchmark());
+        for (final String param : params.getParamsKeys()) {
+            key.append(':').append(param).append('=').append(params.getParam(param));
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return the bytes allocated per operation, as reported by the GC profiler
+     */
+    private static Double allocationPerOperation(final RunResult result) {
+        for (final Map.Entry<String, Result> secondary : result.getSecondaryResults().entrySet()) {
+            // the name is prefixed with a '·' by older versions of JMH
+            if (secondary.getKey().endsWith("gc.alloc.rate.norm")) {
+                return secondary.getValue().getScore();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator.benchmarks;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so that the allocation rate
+ * of each benchmark is reported alongside its score.
+ *
+ * Accepts the usual JMH command line options, e.g. a regular expression
+ * selecting the benchmarks to run, and the following system properties:
+ * <ul>
+ *     <li>{@code baseline.save} a file to save the results to, as a baseline</li>
+ *     <li>{@code baseline.compare} a baseline file to compare the results against,
+ *     the exit code is 1 if any benchmark has regressed</li>
+ *     <li>{@code baseline.tolerance} the fraction by which a score may be worse
+ *     than the baseline before it is a regression, 0.1 by default</li>
+ * </ul>
+ *
+ * The full JMH results are written as JSON to {@code target/jmh-result.json}.
+ */
+public final class BenchmarkRunner {
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+        final Options options = new OptionsBuilder()
+                .parent(commandLineOptions)
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(commandLineOptions.getResult().orElse("target/jmh-result.json"))
+                .build();
+
+        final Collection<RunResult> results = new Runner(options).run();
+
+        final String save = System.getProperty("baseline.save");
+        if (save != null) {
+            final Path baselineFile = Paths.get(save);
+            Baseline.of(results).save(baselineFile);
+            System.out.println("Saved the baseline to " + baselineFile.toAbsolutePath());
+        }
+
+        final String compare = System.getProperty("baseline.compare");
+        if (compare != null) {
+            final double tolerance = Double.parseDouble(System.getProperty("baseline.tolerance", "0.1"));
+            final int regressions = Baseline.load(Paths.get(compare)).compare(results, tolerance, System.out);
+            if (regressions > 0) {
+                System.exit(1);
+            }
+        }
+    }
+}
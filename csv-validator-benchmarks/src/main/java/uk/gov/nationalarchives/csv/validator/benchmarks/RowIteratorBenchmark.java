@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import uk.gov.nationalarchives.csv.validator.api.CsvValidator;
+import uk.gov.nationalarchives.csv.validator.schema.Schema;
+
+/**
+ * Parses a CSV file into rows with a {@code RowIterator}, without validating them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RowIteratorBenchmark {
+
+    /**
+     * The number of columns
+     */
+    @Param({"10", "50"})
+    public int width;
+
+    /**
+     * The number of rows
+     */
+    @Param({"100000"})
+    public int length;
+
+    private Path csv;
+    private CsvValidator validator;
+    private Schema schema;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        csv = Files.createTempFile("csv-validator-row-iterator-benchmark", ".csv");
+        SyntheticCsv.write(csv, width, length, 0.0, 42L);
+        validator = Fixtures.validator(false, 1);
+        schema = Fixtures.parseSchema(validator, SyntheticCsv.schema(width));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(csv);
+    }
+
+    @Benchmark
+    public int parse() {
+        return Fixtures.countRows(validator, csv, schema);
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import uk.gov.nationalarchives.csv.validator.metadata.Row;
+
+/**
+ * Evaluates a single family of rules against a cell, the score is per cell.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RuleBenchmark {
+
+    private static final int ROWS = 10000;
+
+    /**
+     * One of {@code RuleFixture.Families}
+     */
+    @Param({"regex", "uuid4", "xDate", "xDateRange", "unique", "checksum", "fileExists"})
+    public String family;
+
+    private Path dir;
+    private RuleFixture fixture;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("csv-validator-rule-benchmark");
+        fixture = new RuleFixture(family, ROWS, dir);
+    }
+
+    // a stateful rule, i.e. unique, would otherwise only see duplicates after the first invocation
+    @Setup(Level.Invocation)
+    public void reset() {
+        fixture.reset();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Fixtures.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public int evaluate() {
+        int passed = 0;
+        for (final Row row : fixture.rowsToEvaluate()) {
+            if (fixture.evaluate(row)) {
+                passed++;
+            }
+        }
+        return passed;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import uk.gov.nationalarchives.csv.validator.api.CsvValidator;
+import uk.gov.nationalarchives.csv.validator.schema.Schema;
+
+/**
+ * Parses, validates and compiles a schema through {@code SchemaParser.parseAndValidate}.
+ *
+ * With {@code directives}, every column also has a few column directives, in a different
+ * order on each column, to show how the parsing of the unordered directives scales.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SchemaParserBenchmark {
+
+    /**
+     * The number of columns defined by the schema
+     */
+    @Param({"10", "100", "400", "1000"})
+    public int width;
+
+    /**
+     * Whether the columns have column directives
+     */
+    @Param({"false", "true"})
+    public boolean directives;
+
+    private CsvValidator validator;
+    private String schema;
+
+    @Setup
+    public void setup() {
+        validator = Fixtures.validator(false, 1);
+        schema = SyntheticCsv.schema(width, directives);
+    }
+
+    @Benchmark
+    public Schema parseAndValidate() {
+        return Fixtures.parseSchema(validator, schema);
+    }
+}
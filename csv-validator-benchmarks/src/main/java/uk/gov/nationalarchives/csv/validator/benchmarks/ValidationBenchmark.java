@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import uk.gov.nationalarchives.csv.validator.api.CsvValidator;
+import uk.gov.nationalarchives.csv.validator.schema.Schema;
+
+/**
+ * Validates a whole synthetic CSV file through {@code validateCsvFile},
+ * including the validation of its UTF-8 encoding.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ValidationBenchmark {
+
+    /**
+     * The number of columns
+     */
+    @Param({"10", "50"})
+    public int width;
+
+    /**
+     * The number of rows
+     */
+    @Param({"100000"})
+    public int length;
+
+    /**
+     * The probability of a cell having an invalid value
+     */
+    @Param({"0.0", "0.01"})
+    public double errorDensity;
+
+    @Param({"false"})
+    public boolean failFast;
+
+    /**
+     * The number of threads used to validate the rows
+     */
+    @Param({"1"})
+    public int parallelism;
+
+    private Path csv;
+    private CsvValidator validator;
+    private String schemaText;
+    private Schema schema;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        csv = Files.createTempFile("csv-validator-validation-benchmark", ".csv");
+        SyntheticCsv.write(csv, width, length, errorDensity, 42L);
+        validator = Fixtures.validator(failFast, parallelism);
+        schemaText = SyntheticCsv.schema(width);
+    }
+
+    // the unique rule remembers the values it has seen, so each validation needs a freshly parsed schema
+    @Setup(Level.Invocation)
+    public void parseSchema() {
+        schema = Fixtures.parseSchema(validator, schemaText);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(csv);
+    }
+
+    @Benchmark
+    public int validateCsvFile() {
+        return Fixtures.validate(validator, csv, schema);
+    }
+}
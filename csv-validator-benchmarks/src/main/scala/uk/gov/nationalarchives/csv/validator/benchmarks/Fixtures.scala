@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator.benchmarks
+
+import cats.data.Validated
+import uk.gov.nationalarchives.csv.validator.api.{CsvValidator, TextFile}
+import uk.gov.nationalarchives.csv.validator.metadata.Row
+import uk.gov.nationalarchives.csv.validator.schema.{Rule, Schema}
+import uk.gov.nationalarchives.csv.validator.{ChecksumEngine, MetaDataValidator, RowIterator}
+
+import java.io.StringReader
+import java.nio.charset.StandardCharsets
+import java.nio.file.{Files, Path}
+import java.util.{Comparator, UUID}
+import scala.util.{Random, Using}
+
+/**
+  * Helpers for the benchmarks, which hide the parts of
+  * the Scala API that are awkward to use from Java
+  */
+object Fixtures {
+
+  type Validator = CsvValidator with MetaDataValidator
+
+  val MaxCharsPerCell = 4096
+
+  def validator(failFast: Boolean, parallelism: Int): Validator =
+    CsvValidator.createValidator(failFast, Nil, enforceCaseSensitivePathChecksSwitch = false, traceSwitch = false, skipFileChecksSwitch = false, maxCharsPerCellLimit = MaxCharsPerCell, parallelismLevel = parallelism)
+
+  /**
+    * @throws IllegalArgumentException if the schema is not valid
+    */
+  def parseSchema(validator: Validator, schema: String): Schema =
+    validator.parseSchema(new StringReader(schema)) match {
+      case Validated.Valid(s) => s
+      case Validated.Invalid(failures) => throw new IllegalArgumentException(failures.toList.map(_.message).mkString(System.lineSeparator()))
+    }
+
+  /**
+    * Validates the CSV file
+    *
+    * @return the number of errors and warnings reported
+    */
+  def validate(validator: Validator, csv: Path, schema: Schema): Int = {
+    var failures = 0
+    validator.validateCsvFile(TextFile(csv), schema, None, {
+      case Validated.Invalid(f) => failures += f.toList.size
+      case _ =>
+    })
+    failures
+  }
+
+  /**
+    * Parses the CSV file with a [[RowIterator]], without validating it
+    *
+    * @return the number of rows, including the header
+    */
+  def countRows(validator: Validator, csv: Path, schema: Schema): Int =
+    Using.resource(Files.newBufferedReader(csv, StandardCharsets.UTF_8)) { reader =>
+      val parser = validator.createCsvParser(schema, MaxCharsPerCell)
+      parser.beginParsing(reader)
+      try {
+        val rows = new RowIterator(parser, None, MaxCharsPerCell)
+        var count = 0
+        while(rows.hasNext) {
+          rows.next()
+          count += 1
+        }
+        count
+      } finally {
+        parser.stopParsing()
+      }
+    }
+
+  def deleteRecursively(path: Path): Unit =
+    if(Files.exists(path)) {
+      Using.resource(Files.walk(path)) { paths =>
+        paths.sorted(Comparator.reverseOrder[Path]()).forEach(p => Files.delete(p))
+      }
+    }
+
+  private[benchmarks] def lowerCaseLetters(random: Random, length: Int): String =
+    Array.fill(length)(('a' + random.nextInt(26)).toChar).mkString
+
+  private[benchmarks] def xsdDate(random: Random): String =
+    f"${1900 + random.nextInt(200)}%04d-${1 + random.nextInt(12)}%02d-${1 + random.nextInt(28)}%02d"
+
+  private[benchmarks] def uuid4(random: Random): String = {
+    val msb = (random.nextLong() & ~0xF000L) | 0x4000L
+    val lsb = (random.nextLong() & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L
+    new UUID(msb, lsb).toString
+  }
+}
+
+/**
+  * A rule, and the rows to evaluate it against,
+  * for benchmarking a single family of rules
+  *
+  * @param family one of [[RuleFixture.Families]]
+  * @param rows the number of rows
+  * @param dir a directory for any files that the rule checks
+  */
+final class RuleFixture(family: String, rows: Int, dir: Path) {
+  import RuleFixture._
+
+  private val validator = Fixtures.validator(failFast = false, parallelism = 1)
+
+  private val definition: Definition = {
+    val random = new Random(Seed)
+    family match {
+      case "regex" =>
+        Definition(singleColumn("""regex("[a-z]{8}")"""), 0, Array.fill(rows)(Array(Fixtures.lowerCaseLetters(random, 8))))
+      case "uuid4" =>
+        Definition(singleColumn("uuid4"), 0, Array.fill(rows)(Array(Fixtures.uuid4(random))))
+      case "xDate" =>
+        Definition(singleColumn("xDate"), 0, Array.fill(rows)(Array(Fixtures.xsdDate(random))))
+      case "xDateRange" =>
+        Definition(singleColumn("xDate(1900-01-01,2099-12-31)"), 0, Array.fill(rows)(Array(Fixtures.xsdDate(random))))
+      case "unique" =>
+        Definition(singleColumn("unique"), 0, Array.tabulate(rows)(i => Array(s"value-$i")))
+      case "fileExists" =>
+        val files = createFiles(dir, random)
+        Definition(singleColumn(s"""fileExists("${pathOf(dir)}")"""), 0, Array.tabulate(rows)(i => Array(files(i % files.length).getFileName.toString)))
+      case "checksum" =>
+        val files = createFiles(dir, random)
+        val checksums = files.map(ChecksumEngine.hashFile(_, "MD5"))
+        val schema =
+          s"""version 1.1
+             |@totalColumns 2 @noHeader
+             |file:
+             |checksum: checksum(file("${pathOf(dir)}", $$file), "MD5")
+             |""".stripMargin
+        Definition(schema, 1, Array.tabulate(rows)(i => Array(files(i % files.length).getFileName.toString, checksums(i % files.length))))
+      case _ =>
+        throw new IllegalArgumentException(s"Unknown rule family: $family, expected one of ${Families.mkString(", ")}")
+    }
+  }
+
+  private val columnIndex = definition.columnIndex
+
+  private var schema: Schema = Fixtures.parseSchema(validator, definition.schema)
+
+  val rowsToEvaluate: Array[Row] = definition.values.zipWithIndex.map { case (v, i) => Row.fromValues(v, i + 1) }
+
+  def rule: Rule = schema.columnDefinitions(columnIndex).rules.head
+
+  /**
+    * @return true if the rule passes for the row
+    */
+  def evaluate(row: Row): Boolean = rule.evaluate(columnIndex, row, schema).isValid
+
+  /**
+    * Forgets the state of a stateful rule (e.g. the values
+    * seen by `unique`), so that it may be evaluated again
+    */
+  def reset(): Unit =
+    if(rule.isStateful) {
+      schema = Fixtures.parseSchema(validator, definition.schema)
+    }
+}
+
+object RuleFixture {
+
+  val Families: Seq[String] = Seq("regex", "uuid4", "xDate", "xDateRange", "unique", "checksum", "fileExists")
+
+  private val Seed = 42L
+
+  private case class Definition(schema: String, columnIndex: Int, values: Array[Array[String]])
+
+  /**
+    * The number of distinct files checked by the
+    * `checksum` and `fileExists` rules
+    */
+  private val FileCount = 100
+  private val FileSize = 4096
+
+  private def singleColumn(rule: String): String =
+    s"""version 1.1
+       |@totalColumns 1 @noHeader
+       |value: $rule
+       |""".stripMargin
+
+  private def pathOf(dir: Path): String = dir.toAbsolutePath.toString.replace('\\', '/')
+
+  private def createFiles(dir: Path, random: Random): Array[Path] =
+    Array.tabulate(FileCount) { i =>
+      val bytes = new Array[Byte](FileSize)
+      random.nextBytes(bytes)
+      Files.write(dir.resolve(s"file-$i.bin"), bytes)
+    }
+}
+
+/**
+  * Generates CSV files, and their schemas, for benchmarking
+  * the validation of whole files.
+  *
+  * The first column of a file is `unique`, the other columns
+  * cycle through a selection of the commonly used rules.
+  */
+object SyntheticCsv {
+
+  private case class ColumnKind(rule: String, valid: Random => String, invalid: String)
+
+  private val ColumnKinds = Vector(
+    ColumnKind("""regex("[a-z]{8}")""", Fixtures.lowerCaseLetters(_, 8), "NOT-LOWER"),
+    ColumnKind("xDate", Fixtures.xsdDate, "2012-13-45"),
+    ColumnKind("positiveInteger", r => r.nextInt(Int.MaxValue).toString, "-1"),
+    ColumnKind("uuid4", Fixtures.uuid4, "not-a-uuid"),
+    ColumnKind("""any("red","green","blue")""", r => Seq("red", "green", "blue")(r.nextInt(3)), "purple"),
+    ColumnKind("length(1,32)", r => Fixtures.lowerCaseLetters(r, 1 + r.nextInt(32)), "")
+  )
+
+  private def columnName(column: Int): String = s"column$column"
+
+  /**
+    * @param width the number of columns, at least 1
+    */
+  def schema(width: Int): String = schema(width, directives = false)
+
+  /**
+    * @param width the number of columns, at least 1
+    * @param directives whether the columns (other than the first) have
+    *                   column directives, in a different order on each column,
+    *                   for benchmarking the parsing of the schema
+    */
+  def schema(width: Int, directives: Boolean): String = {
+    require(width >= 1, "width must be at least 1")
+    val columns = columnName(0) + ": unique" +: (1 until width).map { c =>
+      val column = s"${columnName(c)}: ${ColumnKinds((c - 1) % ColumnKinds.length).rule}"
+      if(directives) s"$column ${ColumnDirectives((c - 1) % ColumnDirectives.length)}" else column
+    }
+    ("version 1.1" +: s"@totalColumns $width" +: columns).mkString("", "\n", "\n")
+  }
+
+  private val ColumnDirectives = Vector("@matchIsFalse", "@ignoreCase").permutations.map(_.mkString(" ")).toVector ++
+    Vector("@matchIsFalse", "@ignoreCase", "@warning").permutations.map(_.mkString(" "))
+
+  /**
+    * Writes a CSV file, with a header, which matches [[schema]]
+    *
+    * @param width the number of columns, at least 1
+    * @param rows the number of rows, excluding the header
+    * @param errorDensity the probability of any cell (other than in
+    *                     the first column) having an invalid value
+    * @param seed the seed for the values, the same seed gives the same file
+    */
+  def write(file: Path, width: Int, rows: Int, errorDensity: Double, seed: Long): Unit = {
+    require(width >= 1, "width must be at least 1")
+    val random = new Random(seed)
+    Using.resource(Files.newBufferedWriter(file, StandardCharsets.UTF_8)) { writer =>
+      writer.write((0 until width).map(columnName).mkString(","))
+      writer.write("\n")
+      for(row <- 1 to rows) {
+        writer.write(s"row-$row")
+        for(c <- 1 until width) {
+          val kind = ColumnKinds((c - 1) % ColumnKinds.length)
+          writer.write(",")
+          writer.write(if(random.nextDouble() < errorDensity) kind.invalid else kind.valid(random))
+        }
+        writer.write("\n")
+      }
+    }
+  }
+}
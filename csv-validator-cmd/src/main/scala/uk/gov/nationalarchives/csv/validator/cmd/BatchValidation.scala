@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator.cmd
+
+import cats.data.{NonEmptyList, Validated}
+import uk.gov.nationalarchives.csv.validator._
+import uk.gov.nationalarchives.csv.validator.api.CsvValidator.{SubstitutePath, createValidator}
+import uk.gov.nationalarchives.csv.validator.api.{SchemaPool, TextFile}
+import uk.gov.nationalarchives.csv.validator.cmd.CsvValidatorCmdApp.ExitStatus
+import uk.gov.nationalarchives.csv.validator.schema.UniquenessStoreConfig
+
+import java.io.StringReader
+import java.nio.charset.Charset
+import java.nio.file.{FileSystems, Files, Path, Paths}
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.{Callable, ConcurrentHashMap, Executors, Semaphore}
+import scala.jdk.CollectionConverters._
+import scala.util.control.NonFatal
+import scala.util.{Try, Using}
+
+/**
+  * Validates many CSV files, each against its own schema, in a
+  * single JVM. Files are validated at the same time on virtual
+  * threads, as much of the work of the file rules (e.g. `checksum`)
+  * is waiting for I/O, but no more than `parallelism` at once.
+  *
+  * Each distinct schema file is read and parsed once. As rules remember
+  * what they have seen whilst validating (e.g. the values seen by `unique`),
+  * a file which is validated whilst another is using the schema gets its own
+  * copy of the parsed schema from a [[SchemaPool]], the copies are reset and
+  * reused for later files.
+  */
+object BatchValidation {
+
+  /**
+    * A CSV file and the schema to validate it against
+    */
+  case class BatchEntry(csvPath: Path, schemaPath: Path)
+
+  /**
+    * The outcome of validating one CSV file of a batch
+    *
+    * @param exitCode None if the file was skipped
+    *                 as the batch had been stopped
+    */
+  case class FileResult(entry: BatchEntry, exitCode: Option[SystemExitCodes.SystemExitCode]) {
+    def status: String = exitCode match {
+      case Some(SystemExitCodes.ValidCsv) => "PASS"
+      case Some(SystemExitCodes.InvalidSchema) => "INVALID SCHEMA"
+      case Some(_) => "FAIL"
+      case None => "SKIPPED"
+    }
+  }
+
+  case class BatchSettings(failFast: Boolean,
+                           stopOnFailure: Boolean,
+                           parallelism: Int,
+                           pathSubstitutions: List[SubstitutePath],
+                           enforceCaseSensitivePathChecks: Boolean,
+                           csvEncoding: Charset,
+                           validateUtf8Encoding: Boolean,
+                           csvSchemaEncoding: Charset,
+                           maxCharsPerCell: Int,
+                           skipFileChecks: Boolean,
+                           rowParallelism: Int,
+                           uniquenessStore: UniquenessStoreConfig,
+                           checksums: ChecksumConfig,
+                           maxErrors: Option[Long] = None)
+
+  private val GlobChars = "*?[{"
+
+  /**
+    * Finds the CSV files of the batch
+    *
+    * @param source either a directory, whose `.csv` files are validated against
+    *               the default schema; a glob, whose matching files are validated
+    *               against the default schema; or a manifest file, each line of which
+    *               is the path of a CSV file, optionally followed by a comma and
+    *               the path of its schema. Relative paths in a manifest are resolved
+    *               against the directory of the manifest, blank lines and lines
+    *               starting with `#` are ignored.
+    * @param defaultSchema the schema for files which do not name their own
+    *
+    * @return the entries of the batch, or a message
+    *         explaining why they could not be found
+    */
+  def entries(source: String, defaultSchema: Option[Path]): Either[String, List[BatchEntry]] = {
+    def withDefaultSchema(csvPaths: List[Path]): Either[String, List[BatchEntry]] = defaultSchema match {
+      case Some(schema) => Right(csvPaths.map(BatchEntry(_, schema)))
+      case None => Left(s"A schema must be given with --batch-schema to validate: $source")
+    }
+
+    Try {
+      if(source.exists(GlobChars.contains(_))) {
+        withDefaultSchema(glob(source))
+      } else {
+        val path = Paths.get(source)
+        if(Files.isDirectory(path)) {
+          withDefaultSchema(Using.resource(Files.list(path)) { files =>
+            files.iterator().asScala.filter(f => Files.isRegularFile(f) && f.getFileName.toString.toLowerCase.endsWith(".csv")).toList.sorted
+          })
+        } else if(Files.isReadable(path)) {
+          manifest(path, defaultSchema)
+        } else {
+          Left(s"Cannot access batch: $source")
+        }
+      }
+    }.fold(e => Left(s"Cannot read batch: $source, ${e.getMessage}"), identity).flatMap { found =>
+      if(found.isEmpty) Left(s"No CSV files found in batch: $source") else Right(found)
+    }
+  }
+
+  /**
+    * The directory to search is the part of the glob before
+    * the first path element which contains a glob character
+    */
+  private def glob(pattern: String): List[Path] = {
+    val separators = "/" + java.io.File.separator
+    val firstGlobChar = pattern.indexWhere(GlobChars.contains(_))
+    val baseEnd = pattern.lastIndexWhere(separators.contains(_), firstGlobChar)
+    val base = if(baseEnd < 0) Paths.get(".") else Paths.get(pattern.substring(0, baseEnd + 1))
+    val matcher = FileSystems.getDefault.getPathMatcher("glob:" + pattern.substring(baseEnd + 1))
+    Using.resource(Files.walk(base)) { files =>
+      files.iterator().asScala.filter(f => Files.isRegularFile(f) && matcher.matches(base.relativize(f))).toList.sorted
+    }
+  }
+
+  private def manifest(manifestPath: Path, defaultSchema: Option[Path]): Either[String, List[BatchEntry]] = {
+    val dir = Option(manifestPath.toAbsolutePath.getParent).getOrElse(Paths.get("."))
+    val lines = Files.readAllLines(manifestPath).asScala.toList.zipWithIndex
+      .map { case (line, idx) => (line.trim, idx + 1) }
+      .filterNot { case (line, _) => line.isEmpty || line.startsWith("#") }
+
+    lines.foldLeft[Either[String, List[BatchEntry]]](Right(Nil)) {
+      case (Left(err), _) => Left(err)
+      case (Right(acc), (line, lineNr)) =>
+        line.split(',').map(_.trim).toList match {
+          case csv :: schema :: Nil => Right(BatchEntry(dir.resolve(csv), dir.resolve(schema)) :: acc)
+          case csv :: Nil => defaultSchema.map(s => BatchEntry(dir.resolve(csv), s) :: acc).toRight(s"No schema for line $lineNr of manifest: $manifestPath, and no --batch-schema was given")
+          case _ => Left(s"Expected <csv-path>[,<csv-schema-path>] at line $lineNr of manifest: $manifestPath")
+        }
+    }.map(_.reverse)
+  }
+
+  /**
+    * Validates each of the CSV files, the errors of each file are
+    * printed as they are found, prefixed by the path of the file
+    *
+    * @return a summary of the result of each file, along with
+    *         the worst exit code of any of the files
+    */
+  def validate(entries: List[BatchEntry], settings: BatchSettings): ExitStatus = {
+    val stopped = new AtomicBoolean(false)
+    val permits = new Semaphore(settings.parallelism)
+    val schemas = new ConcurrentHashMap[Path, SchemaPool]()
+
+    val results = Using.resources(new ChecksumEngine(settings.checksums), Executors.newVirtualThreadPerTaskExecutor()) { (checksumEngine, executor) =>
+      // files are started in the order of the batch
+      val futures = entries.map { entry =>
+        permits.acquire()
+        executor.submit(new Callable[FileResult] {
+          override def call(): FileResult = {
+            try {
+              if(stopped.get()) {
+                FileResult(entry, None)
+              } else {
+                val parsed = schemas.computeIfAbsent(entry.schemaPath.toAbsolutePath.normalize(), p => schemaPool(p, settings, checksumEngine))
+                val result = validateFile(entry, parsed, settings, checksumEngine)
+                if(settings.stopOnFailure && !result.exitCode.contains(SystemExitCodes.ValidCsv)) {
+                  stopped.set(true)
+                }
+                result
+              }
+            } finally {
+              permits.release()
+            }
+          }
+        })
+      }
+      val results = futures.map(_.get())
+      schemas.values().forEach(_.close())
+      results
+    }
+
+    val summary = results.map(r => f"${r.status}%-14s ${r.entry.csvPath}") :+
+      s"Validated ${results.count(_.exitCode.nonEmpty)} of ${results.size} files: ${results.count(_.exitCode.contains(SystemExitCodes.ValidCsv))} passed, " +
+      s"${results.count(_.exitCode.contains(SystemExitCodes.InvalidCsv))} failed, ${results.count(_.exitCode.contains(SystemExitCodes.InvalidSchema))} with an invalid schema"
+
+    val exitCode = results.flatMap(_.exitCode).maxByOption(_.code).getOrElse(SystemExitCodes.ValidCsv)
+    (summary.mkString(EOL), exitCode)
+  }
+
+  private def validateFile(entry: BatchEntry, parsed: SchemaPool, settings: BatchSettings, checksumEngine: ChecksumEngine): FileResult = {
+    val csvFile = TextFile(entry.csvPath, settings.csvEncoding, settings.validateUtf8Encoding)
+    if(!Files.isReadable(csvFile.file)) {
+      report(entry, s"Error:   Cannot access CSV file: ${csvFile.file}")
+      FileResult(entry, Some(SystemExitCodes.InvalidCsv))
+    } else {
+      parsed.borrow() match {
+        case Validated.Invalid(errors) =>
+          report(entry, CsvValidatorCmdApp.prettyPrint(errors))
+          FileResult(entry, Some(SystemExitCodes.InvalidSchema))
+
+        case Validated.Valid(schema) =>
+          val validator = newValidator(settings, checksumEngine)
+          val pass = try {
+            settings.maxErrors match {
+              case Some(maxErrors) =>
+                val printing: ErrorSink = failure => report(entry, CsvValidatorCmdApp.prettyPrint(NonEmptyList.one(failure)))
+                validator.validateCsvFileToSink(csvFile, schema, None, ErrorSink.capped(printing, maxErrors))
+              case None =>
+                validator.validateCsvFile(csvFile, schema, None, {
+                  case Validated.Invalid(failures) => report(entry, CsvValidatorCmdApp.prettyPrint(failures))
+                  case _ =>
+                })
+            }
+          } catch {
+            case NonFatal(e) =>
+              report(entry, s"Error:   ${e.getMessage}")
+              false
+          } finally {
+            parsed.giveBack(schema)
+          }
+          FileResult(entry, Some(if(pass) SystemExitCodes.ValidCsv else SystemExitCodes.InvalidCsv))
+      }
+    }
+  }
+
+  private def newValidator(settings: BatchSettings, checksumEngine: ChecksumEngine) =
+    createValidator(settings.failFast, settings.pathSubstitutions, settings.enforceCaseSensitivePathChecks, false, settings.skipFileChecks, settings.maxCharsPerCell, settings.rowParallelism, settings.uniquenessStore, checksumEngine)
+
+  /**
+    * The lines of the files are interleaved, so each
+    * line is prefixed with the path of its file
+    */
+  private def report(entry: BatchEntry, messages: String): Unit = {
+    val prefixed = messages.linesIterator.map(line => s"${entry.csvPath}: $line").mkString(EOL)
+    Console.out.synchronized {
+      println(prefixed)
+    }
+  }
+
+  private val EOL = sys.props("line.separator")
+
+  /**
+    * The parsed copies of a schema, which is read once. Each copy is
+    * parsed by its own validator, so that copies do not share a file system cache.
+    */
+  private def schemaPool(schemaPath: Path, settings: BatchSettings, checksumEngine: ChecksumEngine): SchemaPool = {
+    lazy val schemaText: Either[NonEmptyList[FailMessage], String] =
+      Try(new String(Files.readAllBytes(schemaPath), settings.csvSchemaEncoding)).toEither.left.map { e =>
+        NonEmptyList.one(FailMessage(SchemaDefinitionError, s"Cannot access CSV Schema file: $schemaPath, ${e.getMessage}"))
+      }
+
+    new SchemaPool(() => schemaText match {
+      case Left(errors) => Validated.invalid(errors)
+      case Right(text) => newValidator(settings, checksumEngine).parseSchema(new StringReader(text))
+    })
+  }
+}
@@ -14,11 +14,13 @@ import scopt.Read
 import uk.gov.nationalarchives.csv.validator._
 import uk.gov.nationalarchives.csv.validator.api.CsvValidator.{SubstitutePath, createValidator}
 import uk.gov.nationalarchives.csv.validator.api.{CsvValidator, TextFile}
+import uk.gov.nationalarchives.csv.validator.schema.{Schema, UniquenessStoreConfig, UniquenessTracking}
 
 import java.net.URL
-import java.nio.charset.Charset
+import java.nio.charset.{Charset, StandardCharsets}
 import java.nio.file.{Files, Path, Paths}
 import java.text.DecimalFormat
+import java.time.Duration
 import java.util.jar.{Attributes, Manifest}
 import scala.util.{Try, Using}
 
@@ -46,14 +48,51 @@ object CsvValidatorCmdApp extends App {
                     substitutePaths: List[SubstitutePath] = List.empty[SubstitutePath],
                     caseSensitivePaths: Boolean = false,
                     showVersion: Boolean = false,
-                    csvPath: Path = Paths.get("."),
+                    csvPath: Option[Path] = None,
                     csvEncoding: Charset = CsvValidator.DEFAULT_ENCODING,
-                    csvSchemaPath: Path = Paths.get("."),
+                    zipEntry: Option[String] = None,
+                    csvSchemaPath: Option[Path] = None,
                     csvSchemaEncoding: Charset = CsvValidator.DEFAULT_ENCODING,
                     disableUtf8Validation:Boolean = false,
                     maxCharsPerCell: Int = 4096,
                     progressCallback: Option[ProgressCallback] = None,
-                    skipFileChecks: Boolean = false)
+                    skipFileChecks: Boolean = false,
+                    parallelism: Int = 1,
+                    parseParallelism: Int = 1,
+                    prefetchWindow: Int = 0,
+                    prefetchThreads: Int = PrefetchConfig.DefaultThreads,
+                    uniqueMemoryLimit: Option[Long] = None,
+                    uniqueSpillDirectory: Option[Path] = None,
+                    checksumThreads: Int = ChecksumEngine.DefaultThreads,
+                    checksumCacheFile: Option[Path] = None,
+                    forceChecksumReverify: Boolean = false,
+                    profile: Boolean = false,
+                    profileJson: Option[Path] = None,
+                    batch: Option[String] = None,
+                    batchSchema: Option[Path] = None,
+                    batchParallelism: Int = Runtime.getRuntime.availableProcessors(),
+                    stopOnFailure: Boolean = false,
+                    errorOutput: ErrorOutput = ErrorOutput(),
+                    checkpointFile: Option[Path] = None,
+                    checkpointInterval: Long = CheckpointSettings.DefaultInterval.getSeconds,
+                    resume: Boolean = false) {
+
+    def checkpoints: Option[CheckpointSettings] =
+      checkpointFile.map(CheckpointSettings(_, Duration.ofSeconds(checkpointInterval), resume))
+
+    def prefetch: PrefetchConfig = PrefetchConfig(prefetchWindow, prefetchThreads)
+  }
+
+  /**
+    * How the failures are reported, by default each is printed as the rows are validated
+    *
+    * @param maxErrors stop validating once this many errors have been reported
+    * @param summary print the number of failures of each rule of each column, rather than each failure
+    * @param jsonLines a file to which each failure is written as a line of JSON
+    */
+  case class ErrorOutput(maxErrors: Option[Long] = None, summary: Boolean = false, jsonLines: Option[Path] = None) {
+    def usesSink: Boolean = maxErrors.isDefined || summary || jsonLines.isDefined
+  }
 
   def run(args: Array[String]): ExitStatus = {
 
@@ -69,42 +108,118 @@ object CsvValidatorCmdApp extends App {
         opt[SubstitutePath]('p', "path").optional().unbounded().action { (x,c) => c.copy(substitutePaths = c.substitutePaths :+ x) }.text("Allows you to substitute a file path (or part of) in the CSV for a different file path")
         opt[Boolean]('c', "case-sensitive-paths").optional().action { (x,c) => c.copy(caseSensitivePaths = x) }.text("Enforces case-sensitive file path checking. Useful when validating on case-insensitive filesystems like Windows NTFS")
         opt[Charset]('x', "csv-encoding").optional().action { (x,c) => c.copy(csvEncoding = x) } text("Defines the charset encoding used in the CSV file")
+        opt[String]("zip-entry").optional().action { (x,c) => c.copy(zipEntry = Some(x)) }.text("The entry of a zip file <csv-path> to validate, which may be omitted when the zip file holds one file (gzip and zip files are decompressed as they are validated)")
         opt[Charset]('y', "csv-schema-encoding").optional().action { (x,c) => c.copy(csvSchemaEncoding = x) }.text("Defines the charset encoding used in the CSV Schema file")
         opt[Unit]("disable-utf8-validation").optional().action {(_, c) => c.copy(disableUtf8Validation = true)}.text("Disable UTF-8 validation for CSV files.")
         opt[Int]("max-chars-per-cell").optional().action {(x, c) =>  c.copy(maxCharsPerCell = x)}.text("Maximum number of chars allowed in a cell (is set to 4096 by default)")
         opt[Unit]("skip-file-checks").optional().action {(_, c) => c.copy(progressCallback = Some(commandLineProgressCallback()))}.text("Skip integrity, checksum and file existence checks")
         opt[Unit]("show-progress").optional().action {(_, c) => c.copy(progressCallback = Some(commandLineProgressCallback()))}.text("Show progress")
-        arg[Path]("<csv-path>").validate { x => if(Files.exists(x) && Files.isReadable(x)) success else failure(s"Cannot access CSV file: ${x.toString}") }.action { (x,c) => c.copy(csvPath = x) }.text("The path to the CSV file to validate")
-        arg[Path]("<csv-schema-path>").validate { x => if(Files.exists(x) && Files.isReadable(x)) success else failure(s"Cannot access CSV Schema file: ${x.toString}") }.action { (x,c) => c.copy(csvSchemaPath = x) }.text("The path to the CSV Schema file to use for validation")
+        opt[Long]("unique-memory-limit").optional().validate { x => if(x > 0) success else failure("The unique memory limit must be at least 1 MB") }.action {(x, c) => c.copy(uniqueMemoryLimit = Some(x * 1024 * 1024))}.text("Maximum memory in MB used to track the values of each unique rule, values are hashed and spilled to disk beyond this limit, each spilled value adds about 1.3 bytes (by default all values are kept in memory)")
+        opt[Path]("unique-spill-dir").optional().validate { x => if(Files.isDirectory(x) && Files.isWritable(x)) success else failure(s"Cannot write to unique spill directory: ${x.toString}") }.action {(x, c) => c.copy(uniqueSpillDirectory = Some(x))}.text("Directory used when the values of a unique rule are spilled to disk (is set to the temporary directory by default)")
+        opt[Int]("checksum-threads").optional().validate { x => if(x > 0) success else failure("The number of checksum threads must be at least 1") }.action {(x, c) => c.copy(checksumThreads = x)}.text(s"Maximum number of files hashed at the same time by checksum rules (is set to ${ChecksumEngine.DefaultThreads} by default)")
+        opt[Path]("checksum-cache").optional().action {(x, c) => c.copy(checksumCacheFile = Some(x))}.text("File in which the checksums of files are cached between runs, files whose size and last modified time are unchanged are not hashed again")
+        opt[Unit]("force-checksum-reverify").optional().action {(_, c) => c.copy(forceChecksumReverify = true)}.text("Hash every file even when the checksum cache holds a checksum for it")
+        opt[Unit]("profile").optional().action {(_, c) => c.copy(profile = true)}.text("Reports the time spent parsing the CSV and evaluating each rule of the schema, the statistics may also be watched through JMX whilst validating")
+        opt[Path]("profile-json").optional().action {(x, c) => c.copy(profile = true, profileJson = Some(x))}.text("File to which the profile is written as JSON, implies --profile")
+        opt[Int]("parallelism").optional().validate { x => if(x > 0) success else failure("Parallelism must be at least 1") }.action {(x, c) => c.copy(parallelism = x)}.text("Number of threads used to validate rows when reporting all errors (is set to 1 by default)")
+        opt[Int]("parse-parallelism").optional().validate { x => if(x > 0) success else failure("Parse parallelism must be at least 1") }.action {(x, c) => c.copy(parseParallelism = x)}.text("Number of threads used to parse a large CSV file, which is split into chunks at record boundaries (is set to 1 by default)")
+        opt[Int]("prefetch-window").optional().validate { x => if(x >= 0) success else failure("The prefetch window must not be negative") }.action {(x, c) => c.copy(prefetchWindow = x)}.text(s"Number of rows read ahead of validation so that the files of their fileExists, checksum and fileCount rules are looked at in the background, e.g. ${PrefetchConfig.DefaultWindow} (is set to 0, no prefetching, by default)")
+        opt[Int]("prefetch-threads").optional().validate { x => if(x > 0) success else failure("The number of prefetch threads must be at least 1") }.action {(x, c) => c.copy(prefetchThreads = x)}.text(s"Number of threads which prefetch files for --prefetch-window (is set to ${PrefetchConfig.DefaultThreads} by default)")
+        opt[Long]("max-errors").optional().validate { x => if(x > 0) success else failure("The maximum number of errors must be at least 1") }.action {(x, c) => c.copy(errorOutput = c.errorOutput.copy(maxErrors = Some(x)))}.text("Stops validating once this many errors have been reported, the rest of the CSV file is not read")
+        opt[Unit]("error-summary").optional().action {(_, c) => c.copy(errorOutput = c.errorOutput.copy(summary = true))}.text("Prints the number of failures of each rule of each column and the first lines on which each failed, rather than every failure")
+        opt[Path]("errors-jsonl").optional().action {(x, c) => c.copy(errorOutput = c.errorOutput.copy(jsonLines = Some(x)))}.text("File to which each failure is written as a line of JSON, as it is found")
+        opt[Path]("checkpoint").optional().action {(x, c) => c.copy(checkpointFile = Some(x))}.text("File to which the state of the validation is saved periodically, so that it may be resumed with --resume should it be interrupted, the file is deleted once the CSV file has been validated")
+        opt[Long]("checkpoint-interval").optional().validate { x => if(x > 0) success else failure("The checkpoint interval must be at least 1 second") }.action {(x, c) => c.copy(checkpointInterval = x)}.text(s"Seconds between checkpoints (is set to ${CheckpointSettings.DefaultInterval.getSeconds} by default)")
+        opt[Unit]("resume").optional().action {(_, c) => c.copy(resume = true)}.text("Resumes the validation from the --checkpoint file, if there is one, provided that neither the CSV file nor the CSV Schema have changed")
+        opt[String]("batch").optional().action {(x, c) => c.copy(batch = Some(x))}.text("Validates many CSV files instead of <csv-path>, either the .csv files of a directory, the files matching a glob (e.g. 'data/**/*.csv'), or those listed in a manifest file of <csv-path>[,<csv-schema-path>] lines")
+        opt[Path]("batch-schema").optional().validate { x => if(Files.exists(x) && Files.isReadable(x)) success else failure(s"Cannot access CSV Schema file: ${x.toString}") }.action {(x, c) => c.copy(batchSchema = Some(x))}.text("The CSV Schema for the files of a --batch which do not name their own")
+        opt[Int]("batch-parallelism").optional().validate { x => if(x > 0) success else failure("Batch parallelism must be at least 1") }.action {(x, c) => c.copy(batchParallelism = x)}.text(s"Maximum number of CSV files of a --batch validated at the same time (is set to the number of processors by default)")
+        opt[Unit]("stop-on-failure").optional().action {(_, c) => c.copy(stopOnFailure = true)}.text("Stops a --batch once any CSV file fails, the files which have not been started are skipped")
+        arg[Path]("<csv-path>").optional().validate { x => if(Files.exists(x) && Files.isReadable(x)) success else failure(s"Cannot access CSV file: ${x.toString}") }.action { (x,c) => c.copy(csvPath = Some(x)) }.text("The path to the CSV file to validate")
+        arg[Path]("<csv-schema-path>").optional().validate { x => if(Files.exists(x) && Files.isReadable(x)) success else failure(s"Cannot access CSV Schema file: ${x.toString}") }.action { (x,c) => c.copy(csvSchemaPath = Some(x)) }.text("The path to the CSV Schema file to use for validation")
+        checkConfig { c =>
+          if(c.batch.isDefined) {
+            if(c.csvPath.isDefined || c.csvSchemaPath.isDefined) failure("Use --batch-schema rather than <csv-path> and <csv-schema-path> with --batch")
+            else if(c.profile) failure("--profile can not be used with --batch")
+            else if(c.zipEntry.isDefined) failure("--zip-entry can not be used with --batch")
+            else if(c.errorOutput.summary || c.errorOutput.jsonLines.isDefined) failure("--error-summary and --errors-jsonl can not be used with --batch")
+            else if(c.checkpointFile.isDefined) failure("--checkpoint can not be used with --batch")
+            else success
+          } else if(c.errorOutput.summary && c.errorOutput.jsonLines.isDefined) {
+            failure("--error-summary can not be used with --errors-jsonl")
+          } else if(c.resume && c.checkpointFile.isEmpty) {
+            failure("--resume requires --checkpoint")
+          } else if(c.csvPath.isEmpty || c.csvSchemaPath.isEmpty) {
+            failure("Missing argument <csv-path> <csv-schema-path>")
+          } else {
+            success
+          }
+        }
     }
 
     //parse the command line arguments
     parser.parse(args, new Config()) map {
-      config =>
-        validate(
-          TextFile(config.csvPath, config.csvEncoding, !config.disableUtf8Validation),
-          TextFile(config.csvSchemaPath, config.csvSchemaEncoding),
-          config.failFast,
-          config.substitutePaths,
-          config.caseSensitivePaths,
-          config.traceParser,
-          config.maxCharsPerCell,
-          config.progressCallback,
-          config.skipFileChecks
-        )
+      case config if config.batch.isDefined =>
+        validateBatch(config)
+      case config =>
+        Compression.checkZipEntry(config.csvPath.get, config.zipEntry) match {
+          case Some(error) =>
+            (error, SystemExitCodes.IncorrectArguments)
+          case None =>
+            validate(
+              TextFile(config.csvPath.get, config.csvEncoding, !config.disableUtf8Validation, config.zipEntry),
+              TextFile(config.csvSchemaPath.get, config.csvSchemaEncoding),
+              config.failFast,
+              config.substitutePaths,
+              config.caseSensitivePaths,
+              config.traceParser,
+              config.maxCharsPerCell,
+              config.progressCallback,
+              config.skipFileChecks,
+              parallelism = config.parallelism,
+              uniquenessStore = UniquenessStoreConfig(config.uniqueMemoryLimit, config.uniqueSpillDirectory),
+              checksums = ChecksumConfig(config.checksumThreads, config.checksumCacheFile, config.forceChecksumReverify),
+              profile = config.profile,
+              profileJson = config.profileJson,
+              parseParallelism = config.parseParallelism,
+              prefetch = config.prefetch,
+              errorOutput = config.errorOutput,
+              checkpoints = config.checkpoints
+            )
+        }
     } getOrElse {
       //arguments are bad, usage message will have been displayed
       ("", SystemExitCodes.IncorrectArguments)
     }
   }
 
+  private def validateBatch(config: Config): ExitStatus =
+    BatchValidation.entries(config.batch.get, config.batchSchema) match {
+      case Left(err) => (err, SystemExitCodes.IncorrectArguments)
+      case Right(entries) =>
+        BatchValidation.validate(entries, BatchValidation.BatchSettings(
+          failFast = config.failFast,
+          stopOnFailure = config.stopOnFailure,
+          parallelism = config.batchParallelism,
+          pathSubstitutions = config.substitutePaths,
+          enforceCaseSensitivePathChecks = config.caseSensitivePaths,
+          csvEncoding = config.csvEncoding,
+          validateUtf8Encoding = !config.disableUtf8Validation,
+          csvSchemaEncoding = config.csvSchemaEncoding,
+          maxCharsPerCell = config.maxCharsPerCell,
+          skipFileChecks = config.skipFileChecks,
+          rowParallelism = config.parallelism,
+          uniquenessStore = UniquenessStoreConfig(config.uniqueMemoryLimit, config.uniqueSpillDirectory),
+          checksums = ChecksumConfig(config.checksumThreads, config.checksumCacheFile, config.forceChecksumReverify),
+          maxErrors = config.errorOutput.maxErrors
+        ))
+    }
+
   def commandLineProgressCallback() =  new ProgressCallback {
 
     private val numberFormat = new DecimalFormat("0% \n")
 
     override def update(complete: Percentage): Unit = Console.out.println(numberFormat.format(complete/100))
-
-    override def update(total: Int, processed: Int): Unit = Console.out.println(s"processing ${processed} of ${total}")
   }
 
   private def getShortVersion(): String = {
@@ -165,19 +280,86 @@ object CsvValidatorCmdApp extends App {
     maxCharsPerCell: Int,
     progress: Option[ProgressCallback],
     skipFileChecks: Boolean,
-    onRow: ValidatedNel[FailMessage, Any] => Unit = rowCallback
+    onRow: ValidatedNel[FailMessage, Any] => Unit = rowCallback,
+    parallelism: Int = 1,
+    uniquenessStore: UniquenessStoreConfig = UniquenessStoreConfig(),
+    checksums: ChecksumConfig = ChecksumConfig(),
+    profile: Boolean = false,
+    profileJson: Option[Path] = None,
+    parseParallelism: Int = 1,
+    errorOutput: ErrorOutput = ErrorOutput(),
+    checkpoints: Option[CheckpointSettings] = None,
+    prefetch: PrefetchConfig = PrefetchConfig.Disabled
   ): ExitStatus = {
-    val validator = createValidator(failFast, pathSubstitutionsList, enforceCaseSensitivePathChecks, trace, skipFileChecks, maxCharsPerCell)
-    validator.parseSchema(schemaFile) match {
-      case Validated.Invalid(errors) => (prettyPrint(errors), SystemExitCodes.InvalidSchema)
-      case Validated.Valid(schema) =>
-        val pass = validator.validateCsvFile(
-          csvFile,
-          schema,
-          progress,
-          onRow
-        )
-        if (pass) ("PASS", SystemExitCodes.ValidCsv) else ("FAIL", SystemExitCodes.InvalidCsv)
+    val profiler = if(profile) ValidationProfiler() else ValidationProfiler.Disabled
+    Using.resource(new ChecksumEngine(checksums)) { checksumEngine =>
+      val validator = createValidator(failFast, pathSubstitutionsList, enforceCaseSensitivePathChecks, trace, skipFileChecks, maxCharsPerCell, parallelism, uniquenessStore, checksumEngine, profiler, parseParallelism, prefetch)
+      validator.parseSchema(schemaFile) match {
+        case Validated.Invalid(errors) => (prettyPrint(errors), SystemExitCodes.InvalidSchema)
+        case Validated.Valid(schema) =>
+          val pass = withProfilerMBean(profiler, csvFile) {
+            if(errorOutput.usesSink) {
+              validateToSink(validator, csvFile, schema, progress, onRow, errorOutput, checkpoints)
+            } else {
+              validator.validateCsvFile(
+                csvFile,
+                schema,
+                progress,
+                onRow,
+                checkpoints
+              )
+            }
+          }
+          if(profiler.enabled) {
+            printProfile(profiler.report, profileJson)
+          }
+          if(uniquenessStore.memoryLimit.isDefined) {
+            printUniquenessStores(schema)
+          }
+          if(checksumEngine.cacheEnabled) {
+            println(s"Checksum cache: ${checksumEngine.cacheHits} hits, ${checksumEngine.cacheMisses} misses")
+          }
+          if (pass) ("PASS", SystemExitCodes.ValidCsv) else ("FAIL", SystemExitCodes.InvalidCsv)
+      }
+    }
+  }
+
+  private def validateToSink(validator: CsvValidator, csvFile: TextFile, schema: Schema, progress: Option[ProgressCallback], onRow: ValidatedNel[FailMessage, Any] => Unit, errorOutput: ErrorOutput, checkpoints: Option[CheckpointSettings]): Boolean = {
+    val summary = if(errorOutput.summary) Some(new ErrorSummary()) else None
+    val printing: ErrorSink = failure => onRow(Validated.invalidNel(failure))
+    val jsonLines = errorOutput.jsonLines.map(Files.newBufferedWriter(_, StandardCharsets.UTF_8))
+    try {
+      val sinks = summary.getOrElse(printing) :: jsonLines.map(new JsonLinesErrorSink(_)).toList
+      val sink = if(sinks.size == 1) sinks.head else ErrorSink.tee(sinks: _*)
+      val capped = errorOutput.maxErrors.map(ErrorSink.capped(sink, _))
+
+      val pass = validator.validateCsvFileToSink(csvFile, schema, progress, capped.getOrElse(sink), checkpoints)
+
+      summary.foreach(_.report(schema).foreach(println))
+      capped.filter(_.limitReached).foreach(c => println(s"Stopped after ${c.errorCount} errors, the rest of the CSV file was not validated"))
+      errorOutput.jsonLines.foreach(path => println(s"Failures written to: $path"))
+      pass
+    } finally {
+      jsonLines.foreach(_.close())
+    }
+  }
+
+  private def withProfilerMBean[T](profiler: ValidationProfiler, csvFile: TextFile)(f: => T): T =
+    if(profiler.enabled) Using.resource(profiler.registerMBean(csvFile.file.toString))(_ => f) else f
+
+  private def printProfile(report: ProfileReport, profileJson: Option[Path]): Unit = {
+    println(report.toTable)
+    profileJson.foreach { path =>
+      Files.write(path, report.toJson.getBytes(StandardCharsets.UTF_8))
+      println(s"Profile written to: $path")
+    }
+  }
+
+  private def printUniquenessStores(schema: Schema): Unit = {
+    for((columnDefinition, rule) <- UniquenessTracking.in(schema)) {
+      val store = rule.distinctValues
+      println(s"unique for column: ${columnDefinition.id} recorded ${store.size} distinct values using ${store.memoryUsed / 1024} KB of memory and ${store.spilledRuns} runs spilled to disk")
+      store.close()
     }
   }
 
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator.cmd
+
+import org.junit.runner.RunWith
+import org.specs2.mutable.Specification
+import org.specs2.runner.JUnitRunner
+
+import java.nio.charset.StandardCharsets
+import java.nio.file.{Files, Path, Paths}
+
+@RunWith(classOf[JUnitRunner])
+class BatchValidationSpec extends Specification with TestResources {
+
+  val schemaPath = resourcePath("schema.csvs")
+  val metadataPath = resourcePath("metaData.csv")
+  val warningSchemaPath = resourcePath("warning.csvs")
+  val warningMetadataPath = resourcePath("warning.csv")
+  val badSchemaPath = resourcePath("badSchema.csvs")
+  val standardRulesFailPath = resourcePath("acceptance/standardRulesFailMetaData.csv")
+  val standardRulesSchemaPath = resourcePath("acceptance/standardRulesSchema.csvs")
+
+  def manifest(lines: String*): String = {
+    val file = Files.createTempFile("batch", ".txt")
+    file.toFile.deleteOnExit()
+    Files.write(file, lines.mkString("\n").getBytes(StandardCharsets.UTF_8))
+    file.toString
+  }
+
+  "Batch validation" should {
+
+    "pass when every file of a manifest passes" in {
+      val (summary, exitCode) = CsvValidatorCmdApp.run(Array("--batch", manifest(
+        "# files with their own schemas",
+        s"$metadataPath,$schemaPath",
+        "",
+        s"$warningMetadataPath,$warningSchemaPath",
+        s"$metadataPath,$schemaPath"
+      )))
+
+      exitCode mustEqual SystemExitCodes.ValidCsv
+      summary must contain("Validated 3 of 3 files: 3 passed, 0 failed, 0 with an invalid schema")
+    }
+
+    "report the worst exit code of the files" in {
+      val (summary, exitCode) = CsvValidatorCmdApp.run(Array("--batch", manifest(
+        s"$metadataPath,$schemaPath",
+        s"$metadataPath,$badSchemaPath",
+        s"$standardRulesFailPath,$standardRulesSchemaPath"
+      )))
+
+      exitCode mustEqual SystemExitCodes.InvalidCsv
+      summary must contain("1 passed, 1 failed, 1 with an invalid schema")
+      summary must contain(s"INVALID SCHEMA $metadataPath")
+    }
+
+    "use the batch schema for files which do not name their own" in {
+      CsvValidatorCmdApp.run(Array("--batch", manifest(metadataPath), "--batch-schema", schemaPath))._2 mustEqual SystemExitCodes.ValidCsv
+      CsvValidatorCmdApp.run(Array("--batch", manifest(metadataPath)))._2 mustEqual SystemExitCodes.IncorrectArguments
+    }
+
+    "validate the files matching a glob" in {
+      val dir = Files.createTempDirectory("batch")
+      Files.copy(Paths.get(metadataPath), dir.resolve("a.csv"))
+      Files.copy(Paths.get(metadataPath), dir.resolve("b.csv"))
+      Files.write(dir.resolve("notes.txt"), "not a csv".getBytes(StandardCharsets.UTF_8))
+      try {
+        val (summary, exitCode) = CsvValidatorCmdApp.run(Array("--batch", s"$dir/*.csv", "--batch-schema", schemaPath))
+
+        exitCode mustEqual SystemExitCodes.ValidCsv
+        summary must contain("Validated 2 of 2 files")
+      } finally {
+        List("a.csv", "b.csv", "notes.txt").foreach(f => Files.delete(dir.resolve(f)))
+        Files.delete(dir)
+      }
+    }
+
+    "skip the remaining files once a file fails when stopping on failure" in {
+      val (summary, exitCode) = CsvValidatorCmdApp.run(Array("--batch", manifest(
+        s"$standardRulesFailPath,$standardRulesSchemaPath",
+        s"$metadataPath,$schemaPath"
+      ), "--batch-parallelism", "1", "--stop-on-failure"))
+
+      exitCode mustEqual SystemExitCodes.InvalidCsv
+      summary must contain("Validated 1 of 2 files")
+      summary must contain(s"SKIPPED        $metadataPath")
+    }
+
+    "not accept <csv-path> and <csv-schema-path> as well" in {
+      CsvValidatorCmdApp.run(Array("--batch", manifest(s"$metadataPath,$schemaPath"), metadataPath, schemaPath))._2 mustEqual SystemExitCodes.IncorrectArguments
+    }
+
+    "not accept a batch which does not exist" in {
+      CsvValidatorCmdApp.run(Array("--batch", "nonExistentManifest.txt"))._2 mustEqual SystemExitCodes.IncorrectArguments
+    }
+  }
+
+  "BatchValidation.entries" should {
+
+    "resolve the paths of a manifest against its directory" in {
+      val dir = Paths.get(metadataPath).getParent
+      val file: Path = Paths.get(manifest("metaData.csv,schema.csvs"))
+      val relative = Files.createTempFile(dir, "batch", ".txt")
+      try {
+        Files.copy(file, relative, java.nio.file.StandardCopyOption.REPLACE_EXISTING)
+        BatchValidation.entries(relative.toString, None) must beRight(List(BatchValidation.BatchEntry(dir.resolve("metaData.csv"), dir.resolve("schema.csvs"))))
+      } finally {
+        Files.delete(relative)
+      }
+    }
+  }
+}
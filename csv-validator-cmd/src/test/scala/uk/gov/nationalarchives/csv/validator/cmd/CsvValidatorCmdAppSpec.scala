@@ -12,6 +12,11 @@ import org.junit.runner.RunWith
 import org.specs2.mutable.Specification
 import org.specs2.runner.JUnitRunner
 
+import java.nio.file.{Files, Paths}
+import java.util.zip.{ZipEntry, ZipOutputStream}
+import scala.jdk.CollectionConverters._
+import scala.util.Using
+
 @RunWith(classOf[JUnitRunner])
 class CsvValidatorCmdAppSpec extends Specification with TestResources {
 
@@ -144,6 +149,65 @@ class CsvValidatorCmdAppSpec extends Specification with TestResources {
       CsvValidatorCmdApp.run(Array(standardRulesFailPath, standardRulesSchemaPath))._2 mustEqual SystemExitCodes.InvalidCsv
     }
 
+    "have exit code 3 when the metadata is invalid and --max-errors stops the validation" in {
+      CsvValidatorCmdApp.run(Array("--max-errors", "1", standardRulesFailPath, standardRulesSchemaPath))._2 mustEqual SystemExitCodes.InvalidCsv
+    }
+
+    "have exit code 3 when the metadata is invalid and the errors are summarised" in {
+      CsvValidatorCmdApp.run(Array("--error-summary", standardRulesFailPath, standardRulesSchemaPath))._2 mustEqual SystemExitCodes.InvalidCsv
+    }
+
+    "write each failure as a line of JSON with --errors-jsonl" in {
+      val jsonLines = Files.createTempFile("errors", ".jsonl")
+      try {
+        CsvValidatorCmdApp.run(Array("--errors-jsonl", jsonLines.toString, standardRulesFailPath, standardRulesSchemaPath))._2 mustEqual SystemExitCodes.InvalidCsv
+        val lines = Files.readAllLines(jsonLines).asScala
+        lines must not be empty
+        lines must contain(startWith("{\"type\":\"error\",\"line\":1,")).forall
+      } finally {
+        Files.delete(jsonLines)
+      }
+    }
+
+    "have exit code 1 when --error-summary and --errors-jsonl are both given" in {
+      CsvValidatorCmdApp.run(Array("--error-summary", "--errors-jsonl", "errors.jsonl", standardRulesFailPath, standardRulesSchemaPath))._2 mustEqual SystemExitCodes.IncorrectArguments
+    }
+
+    "delete the --checkpoint file once the CSV file has been validated" in {
+      val checkpoint = Files.createTempFile("validation", ".checkpoint")
+      try {
+        CsvValidatorCmdApp.run(Array("--checkpoint", checkpoint.toString, "--checkpoint-interval", "1", metadataPath, schemaPath))._2 mustEqual SystemExitCodes.ValidCsv
+        Files.exists(checkpoint) must beFalse
+      } finally {
+        Files.deleteIfExists(checkpoint)
+      }
+    }
+
+    "have exit code 1 when --resume is given without --checkpoint" in {
+      CsvValidatorCmdApp.run(Array("--resume", metadataPath, schemaPath))._2 mustEqual SystemExitCodes.IncorrectArguments
+    }
+
+    "have exit code 0 when validating the named entry of a zip file" in {
+      val zip = Files.createTempFile("metaData", ".zip")
+      try {
+        Using.resource(new ZipOutputStream(Files.newOutputStream(zip))) { out =>
+          out.putNextEntry(new ZipEntry("readme.txt"))
+          out.closeEntry()
+          out.putNextEntry(new ZipEntry("metaData.csv"))
+          out.write(Files.readAllBytes(Paths.get(metadataPath)))
+          out.closeEntry()
+        }
+        CsvValidatorCmdApp.run(Array("--zip-entry", "metaData.csv", zip.toString, schemaPath)) mustEqual Tuple2("PASS", SystemExitCodes.ValidCsv)
+        CsvValidatorCmdApp.run(Array(zip.toString, schemaPath))._2 mustEqual SystemExitCodes.IncorrectArguments
+      } finally {
+        Files.delete(zip)
+      }
+    }
+
+    "have exit code 1 when --zip-entry is given for a file which is not a zip file" in {
+      CsvValidatorCmdApp.run(Array("--zip-entry", "metaData.csv", metadataPath, schemaPath))._2 mustEqual SystemExitCodes.IncorrectArguments
+    }
+
     "have exit code 0 for non UTF-8 csv file and disabled UTF-8 validation" in {
       CsvValidatorCmdApp.run(Array("--disable-utf8-validation", nonUtf8File, schemaPath)) mustEqual Tuple2("PASS", SystemExitCodes.ValidCsv)
     }
@@ -9,10 +9,15 @@
 package uk.gov.nationalarchives.csv.validator
 
 import cats.syntax.all._
-import uk.gov.nationalarchives.csv.validator.metadata.{Cell, Row}
-import uk.gov.nationalarchives.csv.validator.schema.{Optional, Rule, Schema, Warning}
+import uk.gov.nationalarchives.csv.validator.metadata.Row
+import uk.gov.nationalarchives.csv.validator.schema.{Rule, Schema}
 
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{Callable, ExecutionException, Executors, ThreadFactory, Future => JFuture}
 import scala.annotation.tailrec
+import scala.collection.mutable
+import scala.util.Try
+import scala.util.control.NonFatal
 
 trait AllErrorsMetaDataValidator extends MetaDataValidator {
 
@@ -21,6 +26,17 @@ trait AllErrorsMetaDataValidator extends MetaDataValidator {
     schema: Schema,
     rowCallback: MetaDataValidation[Any] => Unit
   ): Boolean = {
+    if(parallelism > 1)
+      validateRowsInParallel(rows, schema, rowCallback)
+    else
+      validateRowsSequentially(rows, schema, rowCallback)
+  }
+
+  private def validateRowsSequentially(
+    rows: Iterator[Row],
+    schema: Schema,
+    rowCallback: MetaDataValidation[Any] => Unit
+  ): Boolean = {
 
     @tailrec
     def inner(passing: Boolean) : Boolean = {
@@ -37,29 +53,170 @@ trait AllErrorsMetaDataValidator extends MetaDataValidator {
     inner(true)
   }
 
+  /**
+    * Validates the rows using a pool of `parallelism` worker threads.
+    *
+    * Rows are read in batches on the calling thread and each batch is
+    * handed to a worker which evaluates the stateless rules. Stateful rules
+    * (see [[Rule.isStateful]]) are deferred and evaluated back on the calling
+    * thread in line-number order, just before the result of the row is passed
+    * to the `rowCallback`. Results are therefore delivered in the same order,
+    * and with the same content, as when validating sequentially.
+    */
+  private def validateRowsInParallel(
+    rows: Iterator[Row],
+    schema: Schema,
+    rowCallback: MetaDataValidation[Any] => Unit
+  ): Boolean = {
+
+    val executor = Executors.newFixedThreadPool(parallelism, AllErrorsMetaDataValidator.workerThreadFactory)
+    val inFlight = mutable.Queue.empty[JFuture[Array[Try[PartialRow]]]]
+    var passing = true
+
+    def deliverNextBatch(): Unit = {
+      val batch = try {
+        inFlight.dequeue().get()
+      } catch {
+        case e: ExecutionException if e.getCause != null => throw e.getCause
+      }
+
+      for (partialRow <- batch) {
+        val result = completeRow(partialRow.get, schema)
+        rowCallback(result)
+        passing = passing && !containsErrors(result)
+      }
+    }
+
+    try {
+      var readFailure: Option[Throwable] = None
+
+      while(readFailure.isEmpty && rows.hasNext) {
+        val batchRows = new mutable.ArrayBuffer[Row](AllErrorsMetaDataValidator.RowBatchSize)
+        val batchMayBeLast = new mutable.ArrayBuffer[Option[Boolean]](AllErrorsMetaDataValidator.RowBatchSize)
+        try {
+          while(batchRows.length < AllErrorsMetaDataValidator.RowBatchSize && rows.hasNext) {
+            batchRows += rows.next()
+            batchMayBeLast += Some(rows.hasNext)
+          }
+        } catch {
+          // the rows read so far must still be reported before the failure
+          case NonFatal(e) => readFailure = Some(e)
+        }
+
+        if(batchRows.nonEmpty) {
+          val batch = batchRows.toArray
+          val mayBeLast = batchMayBeLast.toArray
+          inFlight.enqueue(executor.submit(new Callable[Array[Try[PartialRow]]] {
+            override def call(): Array[Try[PartialRow]] = batch.indices.map(i => Try(evaluateStatelessRules(batch(i), schema, mayBeLast(i)))).toArray
+          }))
+        }
+
+        if(inFlight.size >= parallelism * 2) {
+          deliverNextBatch()
+        }
+      }
+
+      while(inFlight.nonEmpty) {
+        deliverNextBatch()
+      }
+
+      readFailure.foreach(e => throw e)
+      passing
+    } finally {
+      executor.shutdownNow()
+    }
+  }
+
+  /**
+    * The result of evaluating the stateless rules of a row,
+    * the stateful rules are yet to be evaluated
+    */
+  private case class PartialRow(row: Row, mayBeLast: Option[Boolean], totalColumns: MetaDataValidation[Any], cells: List[PartialCell])
+
+  private sealed trait PartialCell
+
+  /**
+    * All of the rules for the cell have been evaluated
+    */
+  private case class CompleteCell(result: MetaDataValidation[Any]) extends PartialCell
+
+  /**
+    * The results of the rules for the cell in schema order,
+    * `None` marks a stateful rule which has yet to be evaluated
+    */
+  private case class DeferredCell(ruleResults: List[Option[Rule#RuleValidation[Any]]]) extends PartialCell
+
+  private def evaluateStatelessRules(row: Row, schema: Schema, mayBeLast: Option[Boolean]): PartialRow = {
+    val plan = schema.plan
+    val partialCells = List.tabulate(plan.columnCount) { columnIndex =>
+      if(!row.hasCell(columnIndex) || isOptionalAndEmpty(columnIndex, row, schema) || !plan.hasStatefulRule(columnIndex)) {
+        CompleteCell(validateCell(columnIndex, row, schema, mayBeLast))
+      } else {
+        DeferredCell(plan.columnDefinition(columnIndex).rules.map { rule =>
+          if(rule.isStateful) None else Some(evaluateRule(rule, columnIndex, row, schema, mayBeLast))
+        })
+      }
+    }
+    PartialRow(row, mayBeLast, totalColumns(row, schema), partialCells)
+  }
+
+  private def completeRow(partialRow: PartialRow, schema: Schema): MetaDataValidation[Any] = {
+    val row = partialRow.row
+    val rulesV = partialRow.cells.zipWithIndex.map {
+      case (CompleteCell(result), _) =>
+        result
+      case (DeferredCell(ruleResults), columnIndex) =>
+        cellResult(columnIndex, row, schema, schema.plan.columnDefinition(columnIndex).rules.zip(ruleResults).map {
+          case (rule, None) => rule -> evaluateRule(rule, columnIndex, row, schema, partialRow.mayBeLast)
+          case (rule, Some(ruleResult)) => rule -> ruleResult
+        })
+    }.sequence[MetaDataValidation, Any]
+
+    (partialRow.totalColumns, rulesV).mapN { _ :: _ }
+  }
 
   override protected def rules(row: Row, schema: Schema, mayBeLast: Option[Boolean] = None): MetaDataValidation[List[Any]] = {
-    val cells: (Int) => Option[Cell] = row.cells.lift
-    val v = schema.columnDefinitions.zipWithIndex.map {
-      case (columnDefinition, columnIndex) =>
-        validateCell(columnIndex, cells, row, schema, mayBeLast)
+    val v = List.tabulate(schema.plan.columnCount) { columnIndex =>
+      validateCell(columnIndex, row, schema, mayBeLast)
     }
 
     v.sequence[MetaDataValidation, Any]
   }
 
-  override protected def rulesForCell(columnIndex: Int, row: Row, schema: Schema, mayBeLast: Option[Boolean] = None): MetaDataValidation[Any] = {
+  override protected def rulesForCell(columnIndex: Int, row: Row, schema: Schema, mayBeLast: Option[Boolean] = None): MetaDataValidation[Any] =
+    cellResult(columnIndex, row, schema, schema.plan.columnDefinition(columnIndex).rules.map { rule =>
+      rule -> evaluateRule(rule, columnIndex, row, schema, mayBeLast)
+    })
 
-    val columnDefinition = schema.columnDefinitions(columnIndex)
+  private def isOptionalAndEmpty(columnIndex: Int, row: Row, schema: Schema): Boolean =
+    schema.plan.columnDefinition(columnIndex).isOptional && row.value(columnIndex).trim.isEmpty
 
-    def isWarningDirective: Boolean = columnDefinition.directives.contains(Warning())
-    def isOptionDirective: Boolean = columnDefinition.directives.contains(Optional())
+  private def cellResult(columnIndex: Int, row: Row, schema: Schema, ruleResults: => List[(Rule, Rule#RuleValidation[Any])]): MetaDataValidation[Any] = {
 
-    if(row.cells(columnIndex).value.trim.isEmpty && isOptionDirective) true.validNel
-    else columnDefinition.rules.map{rule =>
-      rule.evaluate(columnIndex, row, schema, mayBeLast)
-    }.map{ ruleResult:Rule#RuleValidation[Any] => {
-      if(isWarningDirective) toWarnings(ruleResult, row.lineNumber, columnIndex) else toErrors(ruleResult, row.lineNumber, columnIndex)
+    val isWarningDirective = schema.plan.columnDefinition(columnIndex).isWarning
+
+    if(isOptionalAndEmpty(columnIndex, row, schema)) true.validNel
+    else ruleResults.map{ case (rule, ruleResult) => {
+      if(isWarningDirective) toWarnings(ruleResult, row.lineNumber, columnIndex, rule) else toErrors(ruleResult, row.lineNumber, columnIndex, rule)
     }}.sequence[MetaDataValidation, Any]
   }
 }
+
+object AllErrorsMetaDataValidator {
+
+  /**
+    * The number of rows handed to a worker
+    * at once when validating in parallel
+    */
+  val RowBatchSize = 256
+
+  private val workerCount = new AtomicInteger()
+
+  private[validator] val workerThreadFactory: ThreadFactory = new ThreadFactory {
+    override def newThread(r: Runnable): Thread = {
+      val thread = new Thread(r, s"csv-validator-worker-${workerCount.incrementAndGet()}")
+      thread.setDaemon(true)
+      thread
+    }
+  }
+}
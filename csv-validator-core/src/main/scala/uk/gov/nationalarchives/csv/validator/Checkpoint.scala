@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator
+
+import uk.gov.nationalarchives.csv.validator.schema.{ExecutionPlan, Schema}
+
+import java.io.{BufferedInputStream, BufferedOutputStream, DataInput, DataInputStream, DataOutput, DataOutputStream, IOException}
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.charset.StandardCharsets
+import java.nio.file.{Files, Path, StandardCopyOption, StandardOpenOption}
+import java.security.MessageDigest
+import java.time.Duration
+import scala.util.Using
+
+/**
+  * Where and how often the state of a validation is saved, so that a
+  * validation which is interrupted, e.g. by the JVM dying, may be resumed
+  * from its last checkpoint rather than from the first row of the CSV file.
+  *
+  * @param file the file that each checkpoint is written to, replacing the last,
+  *             it is deleted once the CSV file has been validated to the end
+  * @param interval the least time between checkpoints, each of which
+  *                 writes the values seen by the `unique` rules
+  * @param resume whether to resume from the checkpoint in the file, if there is one
+  */
+case class CheckpointSettings(file: Path, interval: Duration = CheckpointSettings.DefaultInterval, resume: Boolean = false)
+
+object CheckpointSettings {
+  val DefaultInterval: Duration = Duration.ofMinutes(5)
+}
+
+/**
+  * Identifies the CSV file and the schema that a checkpoint was written for.
+  *
+  * The CSV file is identified by its size, its last modified time and a hash of
+  * its first and last [[Fingerprint.SampleBytes]] bytes, rather than of all of its
+  * bytes, which for a large file would take almost as long to read as to validate.
+  * The schema is identified by a hash of its parsed form, so a change to any of its
+  * rules is noticed, but not a change to its layout or comments.
+  */
+case class Fingerprint(csvSize: Long, csvLastModified: Long, csvHash: String, schemaHash: String)
+
+object Fingerprint {
+
+  val SampleBytes: Int = 1024 * 1024
+
+  def of(csvFile: Path, schema: Schema): Fingerprint = {
+    val size = Files.size(csvFile)
+    val digest = MessageDigest.getInstance("SHA-256")
+    Using.resource(FileChannel.open(csvFile, StandardOpenOption.READ)) { channel =>
+      update(digest, channel, 0, Math.min(size, SampleBytes.toLong))
+      if(size > SampleBytes) update(digest, channel, Math.max(SampleBytes.toLong, size - SampleBytes), size)
+    }
+    val schemaHash = MessageDigest.getInstance("SHA-256").digest(schema.toString.getBytes(StandardCharsets.UTF_8))
+
+    Fingerprint(size, Files.getLastModifiedTime(csvFile).toMillis, ChecksumEngine.toHex(digest.digest()), ChecksumEngine.toHex(schemaHash))
+  }
+
+  private def update(digest: MessageDigest, channel: FileChannel, from: Long, to: Long): Unit = {
+    val buffer = ByteBuffer.allocate(64 * 1024)
+    var position = from
+    while(position < to) {
+      buffer.clear()
+      buffer.limit(Math.min(buffer.capacity().toLong, to - position).toInt)
+      val read = channel.read(buffer, position)
+      if(read < 0) {
+        position = to
+      } else {
+        buffer.flip()
+        digest.update(buffer)
+        position += read
+      }
+    }
+  }
+}
+
+/**
+  * A validation, once the rows up to and including `lineNumber` had been
+  * validated. The state of the rules (e.g. the values seen by `unique` rules)
+  * at that point follows the checkpoint in its file, see [[ExecutionPlan.saveState]].
+  *
+  * @param bytesRead the number of bytes of the CSV file read by the parser,
+  *                  which reads a little ahead of the rows that have been validated
+  * @param passing whether the rows up to the line were valid
+  */
+case class Checkpoint(fingerprint: Fingerprint, lineNumber: Int, bytesRead: Long, passing: Boolean)
+
+object Checkpoint {
+
+  private val Magic = 0x43535643 // CSVC
+  private val Version = 1
+
+  /**
+    * Writes the checkpoint followed by the state of the rules of the plan. The file is
+    * replaced atomically, so that it always holds a whole checkpoint, even if the JVM dies.
+    */
+  def write(file: Path, checkpoint: Checkpoint, plan: ExecutionPlan): Unit = {
+    val tmp = Files.createTempFile(file.toAbsolutePath.getParent, file.getFileName.toString, ".tmp")
+    try {
+      Using.resource(new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) { out =>
+        out.writeInt(Magic)
+        out.writeInt(Version)
+        val fingerprint = checkpoint.fingerprint
+        out.writeLong(fingerprint.csvSize)
+        out.writeLong(fingerprint.csvLastModified)
+        out.writeUTF(fingerprint.csvHash)
+        out.writeUTF(fingerprint.schemaHash)
+        out.writeInt(checkpoint.lineNumber)
+        out.writeLong(checkpoint.bytesRead)
+        out.writeBoolean(checkpoint.passing)
+        plan.saveState(out)
+      }
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+    } catch {
+      case e: IOException =>
+        Files.deleteIfExists(tmp)
+        throw e
+    }
+  }
+
+  /**
+    * Reads the checkpoint from the file, if there is one, and restores
+    * the state of the rules of the plan from it
+    *
+    * @return the checkpoint, or a message if it can not be resumed from
+    *         because it was written for a different CSV file or schema
+    */
+  def resume(file: Path, fingerprint: Fingerprint, plan: ExecutionPlan): Either[String, Option[Checkpoint]] =
+    if(!Files.exists(file)) {
+      Right(None)
+    } else {
+      try {
+        Using.resource(new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) { in =>
+          if(in.readInt() != Magic || in.readInt() != Version) {
+            Left(s"$file is not a checkpoint written by this version of the CSV Validator")
+          } else {
+            val written = Fingerprint(in.readLong(), in.readLong(), in.readUTF(), in.readUTF())
+            if(written != fingerprint) {
+              Left(s"The checkpoint $file was written for a different CSV file or schema, delete it to validate from the first row")
+            } else {
+              val checkpoint = Checkpoint(written, in.readInt(), in.readLong(), in.readBoolean())
+              plan.reset()
+              plan.restoreState(in)
+              Right(Some(checkpoint))
+            }
+          }
+        }
+      } catch {
+        case e: IOException =>
+          plan.reset()
+          Left(s"The checkpoint $file could not be read: ${e.getMessage}")
+      }
+    }
+
+  /**
+    * Writes a string of any length, unlike `DataOutput.writeUTF`
+    */
+  private[validator] def writeString(out: DataOutput, s: String): Unit = {
+    out.writeInt(s.length)
+    out.writeChars(s)
+  }
+
+  private[validator] def readString(in: DataInput): String = {
+    val chars = new Array[Char](in.readInt())
+    for(i <- chars.indices) {
+      chars(i) = in.readChar()
+    }
+    new String(chars)
+  }
+}
+
+/**
+  * Writes a checkpoint of a validation whenever the interval has
+  * passed, see [[CheckpointSettings]]; must be called from the
+  * thread that evaluates the stateful rules, once a row is complete
+  *
+  * @param resumeFrom the checkpoint that the validation resumes from, if any
+  */
+private[validator] final class Checkpointer(settings: CheckpointSettings, fingerprint: Fingerprint, plan: ExecutionPlan, val resumeFrom: Option[Checkpoint]) {
+
+  private val intervalNanos = settings.interval.toNanos
+  private var lastWritten = System.nanoTime()
+
+  def isDue: Boolean = System.nanoTime() - lastWritten >= intervalNanos
+
+  def write(lineNumber: Int, bytesRead: Long, passing: Boolean): Unit = {
+    Checkpoint.write(settings.file, Checkpoint(fingerprint, lineNumber, bytesRead, passing), plan)
+    lastWritten = System.nanoTime()
+  }
+
+  /**
+    * The CSV file has been validated to the end,
+    * there is nothing left to resume
+    */
+  def finished(): Unit = Files.deleteIfExists(settings.file)
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator
+
+import java.io.{BufferedWriter, Closeable, IOException}
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.charset.StandardCharsets
+import java.nio.file.attribute.BasicFileAttributes
+import java.nio.file.{Files, Path, StandardOpenOption}
+import java.security.MessageDigest
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
+import java.util.concurrent.{Callable, CancellationException, ConcurrentHashMap, ConcurrentLinkedQueue, ExecutionException, ExecutorService, Executors, ThreadFactory, Future => JFuture}
+import scala.jdk.CollectionConverters._
+import scala.util.control.NonFatal
+import scala.util.{Try, Using}
+
+/**
+  * Configures the [[ChecksumEngine]] used by `checksum` rules.
+  *
+  * @param threads the maximum number of files hashed at the same time
+  * @param cacheFile when present, the digests of files are recorded in this file, and files whose
+  *                  size and last modified time are unchanged are not hashed again on later runs
+  * @param forceReverify hash every file even when the cache holds a digest for it
+  * @param maxPrefetched the maximum number of prefetched files whose checksums are held until they
+  *                      are asked for, beyond which the oldest are assumed to be no longer wanted
+  */
+case class ChecksumConfig(threads: Int = ChecksumEngine.DefaultThreads, cacheFile: Option[Path] = None, forceReverify: Boolean = false, maxPrefetched: Int = ChecksumEngine.DefaultMaxPrefetched)
+
+/**
+  * Calculates the checksums of files for the `checksum` rules.
+  *
+  * Files are read through a large buffer and hashed on a bounded pool of threads,
+  * so that several files may be hashed concurrently (e.g. when validating rows in
+  * parallel, or when files are prefetched) without overwhelming the disk.
+  * Concurrent requests for the checksum of the same file share a single hashing.
+  *
+  * A prefetched file may never be asked for, e.g. when validation stops early, so
+  * only the latest `maxPrefetched` prefetches are held; an older one which has not
+  * been asked for is forgotten, and its hashing cancelled.
+  *
+  * The engine should be closed once validation has finished, to stop its threads
+  * and to write out its digest cache.
+  */
+class ChecksumEngine(config: ChecksumConfig) extends Closeable {
+  import ChecksumEngine._
+
+  private val cache: Option[DigestCache] = config.cacheFile.map(new DigestCache(_))
+
+  // threads are only started once files are submitted
+  private val pool: ExecutorService = Executors.newFixedThreadPool(config.threads, checksumThreadFactory)
+  private val inFlight = new ConcurrentHashMap[FileKey, JFuture[Either[String, String]]]()
+  private val prefetched = new ConcurrentLinkedQueue[(FileKey, JFuture[Either[String, String]])]()
+  private val prefetchedCount = new AtomicInteger()
+
+  private val hits = new AtomicLong()
+  private val misses = new AtomicLong()
+
+  /**
+    * The number of checksums which were
+    * answered from the digest cache
+    */
+  def cacheHits: Long = hits.get()
+
+  /**
+    * The number of checksums which had to be
+    * calculated because the digest cache could not answer them
+    */
+  def cacheMisses: Long = misses.get()
+
+  def cacheEnabled: Boolean = cache.isDefined
+
+  /**
+    * @return the hex encoded digest of the file, or a message
+    *         describing why the digest could not be calculated
+    */
+  def checksum(file: Path, algorithm: String): Either[String, String] = {
+    Try(request(file, algorithm)).fold(e => Left(message(e)), identity)
+  }
+
+  /**
+    * Starts calculating the checksum of the file in the background,
+    * so that a later call to [[checksum]] may not have to wait for it.
+    */
+  def prefetch(file: Path, algorithm: String): Unit = {
+    Try(start(file, algorithm)).foreach {
+      case Right(hashing) =>
+        prefetched.add(hashing)
+        prefetchedCount.incrementAndGet()
+        expirePrefetched()
+      case Left(_) =>
+    }
+  }
+
+  /**
+    * The number of checksums which are being calculated,
+    * or have been calculated, but not yet asked for
+    */
+  def inFlightCount: Int = inFlight.size()
+
+  override def close(): Unit = {
+    pool.shutdownNow()
+    cache.foreach(_.close())
+  }
+
+  private def request(file: Path, algorithm: String): Either[String, String] = {
+    start(file, algorithm) match {
+      case Left(cached) =>
+        Right(cached)
+      case Right((key, future)) =>
+        try {
+          future.get()
+        } catch {
+          case e: ExecutionException if e.getCause != null => throw e.getCause
+          // a prefetch which expired just as it was asked for, so hash the file again
+          case _: CancellationException => request(file, algorithm)
+        } finally {
+          inFlight.remove(key, future)
+        }
+    }
+  }
+
+  /**
+    * Forgets the oldest prefetches beyond `maxPrefetched`; those
+    * which have already been asked for are no longer in flight
+    */
+  private def expirePrefetched(): Unit = {
+    while(prefetchedCount.get() > config.maxPrefetched) {
+      Option(prefetched.poll()).foreach { case (key, future) =>
+        prefetchedCount.decrementAndGet()
+        if(inFlight.remove(key, future)) {
+          future.cancel(true)
+        }
+      }
+    }
+  }
+
+  /**
+    * @return Left of the cached digest, or Right of the
+    *         hashing of the file (which may already be in flight)
+    */
+  private def start(file: Path, algorithm: String): Either[String, (FileKey, JFuture[Either[String, String]])] = {
+    val canonicalPath = file.toRealPath().toString
+    val jcaAlgorithm = standardAlgorithmName(algorithm)
+    val attributes = Files.readAttributes(file, classOf[BasicFileAttributes])
+    val size = attributes.size()
+    val lastModified = attributes.lastModifiedTime().toMillis
+    // a file which has changed since it was hashed is hashed again, as with the digest cache
+    val key = FileKey(canonicalPath, jcaAlgorithm, size, lastModified)
+
+    val cached = if(config.forceReverify) None else cache.flatMap(_.get(canonicalPath, jcaAlgorithm, size, lastModified))
+    cached match {
+      case Some(digest) =>
+        hits.incrementAndGet()
+        Left(digest)
+
+      case None =>
+        val future = inFlight.computeIfAbsent(key, _ => {
+          if(cache.isDefined) misses.incrementAndGet()
+          pool.submit(new Callable[Either[String, String]] {
+            override def call(): Either[String, String] = {
+              val result = Try(hashFile(file, jcaAlgorithm)).toEither.left.map(message)
+              result.foreach(digest => cache.foreach(_.put(canonicalPath, jcaAlgorithm, size, lastModified, digest)))
+              result
+            }
+          })
+        })
+        Right((key, future))
+    }
+  }
+}
+
+object ChecksumEngine {
+
+  val DefaultThreads: Int = Math.max(1, Math.min(4, Runtime.getRuntime.availableProcessors()))
+
+  val DefaultMaxPrefetched: Int = 1024
+
+  /**
+    * The engine used by `checksum` rules when none has been
+    * configured, it does not cache digests between runs
+    */
+  lazy val Default: ChecksumEngine = new ChecksumEngine(ChecksumConfig())
+
+  private val BufferSize = 1024 * 1024 //1MB
+
+  private case class FileKey(canonicalPath: String, algorithm: String, size: Long, lastModified: Long)
+
+  private val buffers: ThreadLocal[ByteBuffer] = ThreadLocal.withInitial(() => ByteBuffer.allocate(BufferSize))
+
+  private val HexDigits = "0123456789abcdef".toCharArray
+
+  private def message(e: Throwable): String = Option(e.getMessage).getOrElse(e.toString)
+
+  private val checksumThreadCount = new AtomicInteger()
+
+  private val checksumThreadFactory: ThreadFactory = new ThreadFactory {
+    override def newThread(r: Runnable): Thread = {
+      val thread = new Thread(r, s"csv-validator-checksum-${checksumThreadCount.incrementAndGet()}")
+      thread.setDaemon(true)
+      thread
+    }
+  }
+
+  /**
+    * Maps the algorithm names accepted by the `checksum`
+    * rule, e.g. `SHA256`, onto their standard names
+    */
+  def standardAlgorithmName(algorithm: String): String = algorithm.toLowerCase.replace("-", "") match {
+    case "md2" => "MD2"
+    case "md5" => "MD5"
+    case "sha1" => "SHA-1"
+    case "sha256" => "SHA-256"
+    case "sha384" => "SHA-384"
+    case "sha512" => "SHA-512"
+    case _ => algorithm
+  }
+
+  /**
+    * Hashes the file on the calling thread
+    *
+    * @return the hex encoded digest
+    */
+  def hashFile(file: Path, algorithm: String): String = {
+    val digest = MessageDigest.getInstance(standardAlgorithmName(algorithm))
+    val buffer = buffers.get()
+    Using.resource(FileChannel.open(file, StandardOpenOption.READ)) { channel =>
+      buffer.clear()
+      while(channel.read(buffer) != -1) {
+        buffer.flip()
+        digest.update(buffer)
+        buffer.clear()
+      }
+    }
+    toHex(digest.digest())
+  }
+
+  def toHex(bytes: Array[Byte]): String = {
+    val chars = new Array[Char](bytes.length * 2)
+    for(i <- bytes.indices) {
+      chars(i * 2) = HexDigits((bytes(i) >> 4) & 0xF)
+      chars(i * 2 + 1) = HexDigits(bytes(i) & 0xF)
+    }
+    new String(chars)
+  }
+}
+
+/**
+  * Records the digests of files on disk, each keyed by the canonical path
+  * of the file, its size, its last modified time and the algorithm used.
+  *
+  * The file holds one tab separated entry per line, new entries are appended
+  * as they are calculated, and later entries supersede earlier ones.
+  */
+class DigestCache(file: Path) extends Closeable {
+
+  private case class CachedDigest(size: Long, lastModified: Long, digest: String)
+
+  private val entries = new ConcurrentHashMap[(String, String), CachedDigest]()
+
+  private val writer: BufferedWriter = {
+    val lines = load()
+    if(lines > entries.size()) {
+      compact()
+    }
+    Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)
+  }
+
+  def get(canonicalPath: String, algorithm: String, size: Long, lastModified: Long): Option[String] =
+    Option(entries.get((canonicalPath, algorithm))).collect {
+      case CachedDigest(`size`, `lastModified`, digest) => digest
+    }
+
+  def put(canonicalPath: String, algorithm: String, size: Long, lastModified: Long, digest: String): Unit = {
+    if(!canonicalPath.contains('\n')) {
+      entries.put((canonicalPath, algorithm), CachedDigest(size, lastModified, digest))
+      writer.synchronized {
+        writer.write(entryLine(canonicalPath, algorithm, CachedDigest(size, lastModified, digest)))
+      }
+    }
+  }
+
+  override def close(): Unit = writer.synchronized {
+    writer.close()
+  }
+
+  /**
+    * @return the number of lines read
+    */
+  private def load(): Int = {
+    if(!Files.exists(file)) {
+      0
+    } else {
+      val lines = Files.readAllLines(file, StandardCharsets.UTF_8).asScala
+      for(line <- lines) {
+        line.split("\t", 5) match {
+          case Array(algorithm, size, lastModified, digest, canonicalPath) =>
+            try {
+              entries.put((canonicalPath, algorithm), CachedDigest(size.toLong, lastModified.toLong, digest))
+            } catch {
+              case NonFatal(_) => // ignore a corrupt entry, the file will just be hashed again
+            }
+          case _ =>
+        }
+      }
+      lines.size
+    }
+  }
+
+  /**
+    * Rewrites the file without
+    * any superseded entries
+    */
+  private def compact(): Unit = {
+    val tmp = Files.createTempFile(file.toAbsolutePath.getParent, file.getFileName.toString, ".tmp")
+    try {
+      Using.resource(Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) { w =>
+        entries.forEach((key, cached) => w.write(entryLine(key._1, key._2, cached)))
+      }
+      Files.move(tmp, file, java.nio.file.StandardCopyOption.REPLACE_EXISTING)
+    } catch {
+      case e: IOException =>
+        Files.deleteIfExists(tmp)
+        throw e
+    }
+  }
+
+  private def entryLine(canonicalPath: String, algorithm: String, cached: CachedDigest): String =
+    s"$algorithm\t${cached.size}\t${cached.lastModified}\t${cached.digest}\t$canonicalPath\n"
+}
@@ -0,0 +1,483 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator
+
+import com.univocity.parsers.csv.{CsvParser, CsvParserSettings}
+
+import java.io.{InputStream, InputStreamReader, Reader => JReader}
+import java.nio.channels.FileChannel
+import java.nio.charset.{Charset, StandardCharsets}
+import java.nio.file.{Files, Path, StandardOpenOption}
+import java.nio.{ByteBuffer, MappedByteBuffer}
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{Callable, ExecutionException, ExecutorService, Executors, ThreadFactory, Future => JFuture}
+import scala.collection.mutable
+import scala.util.control.NonFatal
+
+/**
+  * Parses a CSV file on several threads, by splitting the file into
+  * chunks at record boundaries and parsing each chunk with its own
+  * [[CsvParser]]. The rows are returned in the order of the file, so a
+  * [[RowIterator]] gives them the same line numbers as when the file is
+  * parsed by a single parser.
+  *
+  * The file is memory mapped and scanned for record boundaries a few
+  * chunks ahead of the rows being read. A newline is only taken as a
+  * boundary when the scan can prove that it ends a record, by following
+  * the separator, quoting and comments of the parser's settings. As soon
+  * as the scan finds anything which the parser might read differently
+  * (e.g. a quote within an unquoted value, or a change of line separator),
+  * the rest of the file is parsed by a single parser, as it would be
+  * when parsing sequentially.
+  *
+  * Use [[ChunkedCsvParser.open]], which declines files that can not be split.
+  */
+final class ChunkedCsvParser private(file: Path, channel: FileChannel, size: Long, layout: ChunkedCsvParser.Layout, settings: () => CsvParserSettings, firstReader: InputStream => JReader, encoding: Charset, threads: Int, chunkSize: Long) extends RowSource {
+  import ChunkedCsvParser._
+
+  private val executor: ExecutorService = Executors.newFixedThreadPool(threads, parserThreadFactory)
+  private val scanner = new BoundaryScanner(channel, size, layout, chunkSize)
+  private val inFlight = mutable.Queue.empty[Either[Chunk, JFuture[ParsedChunk]]]
+  private var nextStart = 0L
+  private var scanned = false
+
+  private var rows: Array[Array[String]] = Array.empty
+  private var rowIdx = 0
+  private var failure: Throwable = _
+  private var streaming: Option[(CsvParser, ByteCountingInputStream)] = None
+  private var finished = false
+
+  @volatile private var currentChunk: Chunk = Chunk(0, 0, 0, streamed = false)
+
+  override def parseNext(): Array[String] = {
+    var next: Array[String] = null
+    while(next == null && !finished) {
+      streaming match {
+        case Some((parser, _)) =>
+          // a streamed chunk is always the last
+          next = parser.parseNext()
+          if(next == null) finished = true
+
+        case None if rowIdx < rows.length =>
+          next = rows(rowIdx)
+          rows(rowIdx) = null
+          rowIdx += 1
+
+        case None if failure != null =>
+          // the rows parsed before the failure have been returned
+          finished = true
+          val f = failure
+          failure = null
+          throw f
+
+        case None =>
+          submitChunks()
+          if(inFlight.isEmpty) {
+            finished = true
+          } else {
+            inFlight.dequeue() match {
+              case Left(chunk) =>
+                currentChunk = chunk
+                streaming = Some(openStream(chunk))
+              case Right(future) =>
+                val parsed = try {
+                  future.get()
+                } catch {
+                  case e: ExecutionException if e.getCause != null => throw e.getCause
+                }
+                currentChunk = parsed.chunk
+                rows = parsed.rows
+                rowIdx = 0
+                failure = parsed.failure
+            }
+          }
+      }
+    }
+    next
+  }
+
+  /**
+    * Parse errors report their line within the chunk
+    * which they occurred in, this is the number of
+    * lines of the file before that chunk
+    */
+  override def lineOffset: Long = currentChunk.linesBefore
+
+  /**
+    * The bytes of the file which have been parsed
+    * into the rows returned so far, e.g. for the
+    * purposes of reporting progress
+    */
+  def bytesRead: Long = streaming match {
+    case Some((_, counting)) => currentChunk.start + counting.bytesRead
+    case None => currentChunk.end
+  }
+
+  override def stopParsing(): Unit = {
+    finished = true
+    streaming.foreach(_._1.stopParsing())
+    inFlight.foreach(_.foreach(_.cancel(true)))
+    inFlight.clear()
+    executor.shutdownNow()
+    channel.close()
+  }
+
+  /**
+    * Keeps `threads * 2` chunks in flight,
+    * like the workers of [[AllErrorsMetaDataValidator]]
+    */
+  private def submitChunks(): Unit =
+    while(!scanned && inFlight.size < threads * 2) {
+      val chunk = scanner.next(nextStart)
+      if(chunk.streamed) {
+        inFlight.enqueue(Left(chunk))
+      } else {
+        inFlight.enqueue(Right(executor.submit(new Callable[ParsedChunk] {
+          override def call(): ParsedChunk = parse(chunk)
+        })))
+      }
+      nextStart = chunk.end
+      scanned = chunk.end == size
+    }
+
+  private def parse(chunk: Chunk): ParsedChunk = {
+    val parser = newParser(chunk)
+    val parsed = mutable.ArrayBuffer.empty[Array[String]]
+    var failure: Throwable = null
+    try {
+      parser.beginParsing(reader(chunk, new ByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, chunk.start, chunk.end - chunk.start))))
+      var row = parser.parseNext()
+      while(row != null) {
+        parsed += row
+        row = parser.parseNext()
+      }
+    } catch {
+      case NonFatal(e) => failure = e
+    } finally {
+      parser.stopParsing()
+    }
+    ParsedChunk(chunk, parsed.toArray, failure)
+  }
+
+  private def openStream(chunk: Chunk): (CsvParser, ByteCountingInputStream) = {
+    val in = Files.newInputStream(file)
+    in.skipNBytes(chunk.start)
+    val counting = new ByteCountingInputStream(in)
+    val parser = newParser(chunk)
+    parser.beginParsing(reader(chunk, counting))
+    (parser, counting)
+  }
+
+  /**
+    * The first chunk is parsed exactly as when parsing sequentially,
+    * the parsers of the other chunks are told the line separator
+    * rather than detecting it from their first line
+    */
+  private def newParser(chunk: Chunk): CsvParser = {
+    val s = settings()
+    if(chunk.start > 0) {
+      s.setLineSeparatorDetectionEnabled(false)
+      s.getFormat.setLineSeparator(if(layout.crlf) "\r\n" else "\n")
+    }
+    new CsvParser(s)
+  }
+
+  private def reader(chunk: Chunk, in: InputStream): JReader =
+    if(chunk.start == 0) firstReader(in) else new InputStreamReader(in, encoding)
+}
+
+object ChunkedCsvParser {
+
+  /**
+    * The size of the chunks which
+    * a file is split into
+    */
+  val DefaultChunkSize: Long = 4L * 1024 * 1024
+
+  /**
+    * A chunk which reaches this size without a provable record
+    * boundary ends the splitting of the file, so that every
+    * chunk which is parsed ahead can be memory mapped
+    */
+  private val MaxChunkSize: Long = Int.MaxValue / 2
+
+  /**
+    * The line separator is detected from
+    * within this many bytes of the start of the file
+    */
+  private val DetectionSize = 1024 * 1024
+
+  private val Utf8Bom = Array(0xEF.toByte, 0xBB.toByte, 0xBF.toByte)
+
+  /**
+    * Opens the file for parsing on several threads
+    *
+    * @param settings creates the settings of a parser, a
+    *                 parser is created for each chunk
+    * @param firstReader decodes the first chunk, which starts at the
+    *                    start of the file, e.g. skipping any Byte Order Mark
+    * @param threads the number of chunks parsed at the same time
+    * @param chunkSize the size of the chunks, a chunk extends
+    *                  beyond this size to the end of its last record
+    *
+    * @return None if the file is not worth splitting, i.e. it is no larger than
+    *         a chunk, or can not be split, i.e. its encoding is not one in which a
+    *         newline is always the same single byte, its line separator is neither
+    *         LF nor CRLF, or the separator, quote or comment characters of the
+    *         settings are not ASCII
+    */
+  def open(file: Path, encoding: Charset, threads: Int, settings: () => CsvParserSettings, firstReader: InputStream => JReader, chunkSize: Long = DefaultChunkSize): Option[ChunkedCsvParser] = {
+    val size = Files.size(file)
+    if(threads < 2 || size <= chunkSize) {
+      None
+    } else {
+      val format = settings().getFormat
+      val syntax = Syntax(format.getDelimiter, format.getQuote, format.getQuoteEscape, format.getComment)
+
+      if(!syntax.isScannable(encoding)) {
+        None
+      } else {
+        val channel = FileChannel.open(file, StandardOpenOption.READ)
+        detectLayout(channel, size, encoding, syntax) match {
+          case Some(layout) =>
+            Some(new ChunkedCsvParser(file, channel, size, layout, settings, firstReader, encoding, threads, chunkSize))
+          case None =>
+            channel.close()
+            None
+        }
+      }
+    }
+  }
+
+  /**
+    * The characters of the CSV format
+    * which determine where records end
+    */
+  private[validator] case class Syntax(separator: Char, quote: Char, quoteEscape: Char, comment: Char) {
+
+    /**
+      * The scan works on bytes, so each character which the scan looks for
+      * must be encoded as the same single byte wherever it occurs, and any
+      * escaped quote must be a doubled quote, as in RFC 4180
+      */
+    def isScannable(encoding: Charset): Boolean = {
+      val chars = Seq('\n', '\r', separator, quote) ++ Option(comment).filter(_ != '\u0000')
+      val asciiCompatible = encoding == StandardCharsets.UTF_8 || {
+        val encoder = encoding.newEncoder()
+        encoder.maxBytesPerChar() == 1.0f && chars.forall(encoder.canEncode) && chars.mkString.getBytes(encoding).sameElements(chars.mkString.getBytes(StandardCharsets.US_ASCII))
+      }
+      asciiCompatible && chars.forall(_ < 0x80) && chars.distinct.size == chars.size && quoteEscape == quote
+    }
+  }
+
+  /**
+    * @param crlf true if records end with CRLF, otherwise they end with LF
+    * @param dataStart the offset of the first byte after any Byte Order Mark
+    */
+  private[validator] case class Layout(syntax: Syntax, crlf: Boolean, dataStart: Long)
+
+  /**
+    * Detects the line separator in the same way as the parser, i.e. from the
+    * first CR or LF in the file, regardless of whether it is within quotes
+    */
+  private def detectLayout(channel: FileChannel, size: Long, encoding: Charset, syntax: Syntax): Option[Layout] = {
+    val start = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, DetectionSize.toLong))
+    val dataStart = if(encoding == StandardCharsets.UTF_8 && start.limit() >= Utf8Bom.length && Utf8Bom.indices.forall(i => start.get(i) == Utf8Bom(i))) Utf8Bom.length else 0
+
+    var i = dataStart
+    while(i < start.limit() && start.get(i) != '\r' && start.get(i) != '\n') {
+      i += 1
+    }
+
+    if(i == start.limit()) {
+      None
+    } else if(start.get(i) == '\n') {
+      Some(Layout(syntax, crlf = false, dataStart))
+    } else if(i + 1 < start.limit() && start.get(i + 1) == '\n') {
+      Some(Layout(syntax, crlf = true, dataStart))
+    } else {
+      // records which end with CR alone
+      None
+    }
+  }
+
+  /**
+    * @param linesBefore the number of LF bytes before the chunk
+    * @param streamed the chunk is parsed as the rows are read, rather than
+    *                 ahead, as it has no provable end and may be very large
+    */
+  private[validator] case class Chunk(start: Long, end: Long, linesBefore: Long, streamed: Boolean)
+
+  /**
+    * @param failure the failure which stopped the parsing of the
+    *                chunk after the rows, or null if it was parsed
+    */
+  private[validator] case class ParsedChunk(chunk: Chunk, rows: Array[Array[String]], failure: Throwable)
+
+  private sealed trait Step
+  private case object Continue extends Step
+  private case object Boundary extends Step
+  private case object Unprovable extends Step
+
+  private final val RecordStart = 0
+  private final val FieldStart = 1
+  private final val Unquoted = 2
+  private final val Quoted = 3
+  private final val QuoteInQuoted = 4
+  private final val Comment = 5
+
+  /**
+    * Finds the record boundaries of the file, in order, by following the
+    * state of the parser through every byte of the file; the chunks must
+    * be requested in order, and each must start where the last ended
+    */
+  private[validator] final class BoundaryScanner(channel: FileChannel, size: Long, layout: Layout, chunkSize: Long) {
+
+    private val separator = layout.syntax.separator.toByte
+    private val quote = layout.syntax.quote.toByte
+    private val comment = layout.syntax.comment.toByte
+    private val hasComment = layout.syntax.comment != '\u0000'
+
+    private var position = layout.dataStart
+    private var lines = 0L
+    private var state = RecordStart
+    private var pendingCr = false
+    private var proven = true
+
+    private var window: MappedByteBuffer = _
+    private var windowStart = 0L
+
+    def next(start: Long): Chunk = {
+      val linesBefore = lines
+      if(!proven) {
+        Chunk(start, size, linesBefore, streamed = true)
+      } else {
+        val target = start + chunkSize
+        var chunk: Chunk = null
+        while(chunk == null && position < size) {
+          val b = byteAt(position)
+          position += 1
+          if(b == '\n') lines += 1
+          accept(b) match {
+            case Boundary if position >= target =>
+              chunk = Chunk(start, position, linesBefore, streamed = false)
+            case Unprovable =>
+              proven = false
+            case _ if position - start > MaxChunkSize =>
+              proven = false
+            case _ =>
+          }
+          if(!proven) {
+            chunk = Chunk(start, size, linesBefore, streamed = true)
+          }
+        }
+        if(chunk == null) {
+          // the rest of the file starts at a record boundary
+          chunk = Chunk(start, size, linesBefore, streamed = false)
+        }
+        chunk
+      }
+    }
+
+    private def accept(b: Byte): Step =
+      if(pendingCr) {
+        pendingCr = false
+        if(b == '\n') newline(crlf = true) else Unprovable
+      } else state match {
+        case Quoted =>
+          if(b == quote) state = QuoteInQuoted
+          Continue
+
+        case Comment =>
+          if(b == '\n') newline(crlf = false)
+          else {
+            if(b == '\r') pendingCr = true
+            Continue
+          }
+
+        case _ =>
+          if(b == separator) {
+            state = FieldStart
+            Continue
+          } else if(b == '\n') {
+            newline(crlf = false)
+          } else if(b == '\r') {
+            pendingCr = true
+            Continue
+          } else if(b == quote) {
+            if(state == Unquoted) {
+              // the parser may treat the quote as part of the value, or not
+              Unprovable
+            } else {
+              // an opening quote, or an escaped quote within a quoted value
+              state = Quoted
+              Continue
+            }
+          } else if(state == QuoteInQuoted) {
+            // a value continues after its closing quote
+            Unprovable
+          } else if(state == RecordStart && hasComment && b == comment) {
+            state = Comment
+            Continue
+          } else {
+            state = Unquoted
+            Continue
+          }
+      }
+
+    private def newline(crlf: Boolean): Step =
+      if(crlf != layout.crlf) {
+        Unprovable
+      } else {
+        state = RecordStart
+        Boundary
+      }
+
+    private def byteAt(pos: Long): Byte = {
+      if(window == null || pos >= windowStart + window.limit()) {
+        windowStart = pos
+        window = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(size - pos, ScanWindowSize))
+      }
+      window.get((pos - windowStart).toInt)
+    }
+  }
+
+  /**
+    * The bytes of the file mapped at once by the scan
+    */
+  private val ScanWindowSize: Long = 64L * 1024 * 1024
+
+  private final class ByteBufferInputStream(buffer: ByteBuffer) extends InputStream {
+
+    override def read(): Int = if(buffer.hasRemaining) buffer.get() & 0xFF else -1
+
+    override def read(b: Array[Byte], off: Int, len: Int): Int =
+      if(len == 0) {
+        0
+      } else if(!buffer.hasRemaining) {
+        -1
+      } else {
+        val n = Math.min(len, buffer.remaining())
+        buffer.get(b, off, n)
+        n
+      }
+
+    override def available(): Int = buffer.remaining()
+  }
+
+  private val parserThreadCount = new AtomicInteger()
+
+  private[validator] val parserThreadFactory: ThreadFactory = new ThreadFactory {
+    override def newThread(r: Runnable): Thread = {
+      val thread = new Thread(r, s"csv-validator-parser-${parserThreadCount.incrementAndGet()}")
+      thread.setDaemon(true)
+      thread
+    }
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator
+
+import java.io.{BufferedInputStream, FileNotFoundException, FilterInputStream, IOException, InputStream}
+import java.nio.file.{Files, Path}
+import java.util.zip.{GZIPInputStream, ZipFile, ZipInputStream}
+import scala.jdk.CollectionConverters._
+import scala.util.Using
+import scala.util.control.NonFatal
+
+/**
+  * How a CSV file is compressed, which is recognised
+  * by the first bytes of the file rather than by its name
+  */
+sealed trait Compression
+
+object Compression {
+
+  case object Uncompressed extends Compression
+  case object Gzip extends Compression
+  case object Zip extends Compression
+
+  def of(file: Path): Compression = {
+    val magic = Using.resource(Files.newInputStream(file))(_.readNBytes(4))
+
+    def byte(i: Int): Int = if(i < magic.length) magic(i) & 0xFF else -1
+
+    if(byte(0) == 0x1F && byte(1) == 0x8B) {
+      Gzip
+    } else if(byte(0) == 'P' && byte(1) == 'K' && byte(2) == 0x03 && byte(3) == 0x04) {
+      Zip
+    } else {
+      Uncompressed
+    }
+  }
+
+  /**
+    * Chooses the entry of a zip file which holds the CSV,
+    * which is either the named entry, or the only file in the zip file
+    *
+    * @return the name of the entry, or a message describing why there is none
+    */
+  def zipEntry(file: Path, name: Option[String]): Either[String, String] = {
+    val files = Using.resource(new ZipFile(file.toFile)) { zip =>
+      zip.stream().iterator().asScala.filterNot(_.isDirectory).map(_.getName).toList
+    }
+
+    name match {
+      case Some(n) if files.contains(n) =>
+        Right(n)
+      case Some(n) =>
+        Left(s"The zip file $file has no entry named $n")
+      case None =>
+        files match {
+          case List(only) => Right(only)
+          case Nil => Left(s"The zip file $file is empty")
+          case _ => Left(s"The zip file $file contains ${files.size} files, choose one of: ${files.mkString(", ")}")
+        }
+    }
+  }
+
+  /**
+    * Checks that an entry may be chosen from the file,
+    * i.e. that it is a zip file with such an entry
+    *
+    * @return a message describing why the entry can not be chosen
+    */
+  def checkZipEntry(file: Path, name: Option[String]): Option[String] =
+    of(file) match {
+      case Zip => zipEntry(file, name).left.toOption
+      case _ => name.map(n => s"$file is not a zip file, so it has no entry named $n")
+    }
+}
+
+/**
+  * Reads a file, which is decompressed as it is read when it is
+  * compressed with gzip, or is a zip file, see [[Compression]].
+  *
+  * [[fileBytesRead]] counts the bytes read from the file itself,
+  * i.e. the compressed bytes, so that progress may be reported
+  * against the size of the file; whereas the bytes read through
+  * this stream are those of the decompressed CSV.
+  */
+final class DecompressingInputStream private (counting: ByteCountingInputStream, in: InputStream) extends FilterInputStream(in) {
+
+  def fileBytesRead: Long = counting.bytesRead
+
+  override def markSupported(): Boolean = false
+}
+
+object DecompressingInputStream {
+
+  private val BufferSize = 64 * 1024
+
+  /**
+    * @param zipEntry the entry to read when the file is a zip file,
+    *                 by default its only file, see [[Compression.zipEntry]]
+    * @throws FileNotFoundException if the zip file does not have such an entry
+    * @throws IOException if an entry is given but the file is not a zip file
+    */
+  def open(file: Path, zipEntry: Option[String] = None): DecompressingInputStream = {
+    val compression = Compression.of(file)
+    val entry = compression match {
+      case Compression.Zip =>
+        Some(Compression.zipEntry(file, zipEntry).fold(message => throw new FileNotFoundException(message), identity))
+      case _ =>
+        zipEntry.foreach(name => throw new IOException(s"$file is not a zip file, so it has no entry named $name"))
+        None
+    }
+
+    val counting = new ByteCountingInputStream(new BufferedInputStream(Files.newInputStream(file)))
+    try {
+      val in = compression match {
+        case Compression.Uncompressed =>
+          counting
+
+        case Compression.Gzip =>
+          new BufferedInputStream(new GZIPInputStream(counting, BufferSize), BufferSize)
+
+        case Compression.Zip =>
+          // the entries before the chosen entry are read past, rather than the file being opened for random access, so that every byte read is counted
+          val zip = new ZipInputStream(counting)
+          var next = zip.getNextEntry
+          while(next != null && next.getName != entry.get) {
+            next = zip.getNextEntry
+          }
+          if(next == null) {
+            throw new FileNotFoundException(s"The zip file $file has no entry named ${entry.get}")
+          }
+          new BufferedInputStream(zip, BufferSize)
+      }
+      new DecompressingInputStream(counting, in)
+    } catch {
+      case NonFatal(e) =>
+        counting.close()
+        throw e
+    }
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator
+
+import cats.data.{Validated, ValidatedNel}
+import uk.gov.nationalarchives.csv.validator.schema.Schema
+
+import java.io.Writer
+import java.util.{LinkedHashMap => JLinkedHashMap}
+import scala.collection.mutable.ListBuffer
+import scala.jdk.CollectionConverters._
+
+/**
+  * Receives the failures of a validation one at a time, as the rows
+  * are validated, so that they need never all be held in memory,
+  * see `validateCsvFileToSink` and `validateReaderToSink`.
+  *
+  * A sink is called from a single thread, even when the
+  * rows are validated in parallel, so need not be thread-safe.
+  */
+trait ErrorSink {
+
+  /**
+    * Whether the sink needs the full message of each failure, e.g.
+    * `regex("[a-z]+") fails for row: 3, column: name, value: "A1"`.
+    *
+    * When false, the message of a failed rule is just the rule, e.g.
+    * `regex("[a-z]+")`, which is far cheaper to build; the line and
+    * column of the failure are given by the [[FailMessage]] either way.
+    */
+  def needsMessages: Boolean = true
+
+  def accept(failure: FailMessage): Unit
+
+  /**
+    * Once true, no more rows are read from the CSV
+    * and the validation stops, see [[ErrorSink.capped]]
+    */
+  def isSaturated: Boolean = false
+}
+
+object ErrorSink {
+
+  /**
+    * Stops the validation once the sink
+    * has received `maxErrors` errors
+    */
+  def capped(sink: ErrorSink, maxErrors: Long): MaxErrorsSink = new MaxErrorsSink(sink, maxErrors)
+
+  /**
+    * Passes each failure to all of the sinks
+    */
+  def tee(sinks: ErrorSink*): ErrorSink = new ErrorSink {
+    override val needsMessages: Boolean = sinks.exists(_.needsMessages)
+    override def accept(failure: FailMessage): Unit = sinks.foreach(_.accept(failure))
+    override def isSaturated: Boolean = sinks.exists(_.isSaturated)
+  }
+
+  /**
+    * Adapts the sink to the `rowCallback` of the validator
+    */
+  def rowCallback(sink: ErrorSink): ValidatedNel[FailMessage, Any] => Unit = {
+    case Validated.Invalid(failures) => failures.toList.foreach(sink.accept)
+    case _ =>
+  }
+}
+
+/**
+  * Passes on the failures until `maxErrors` errors have been passed
+  * on, after which the sink is saturated and further failures are dropped
+  * (warnings do not count towards the limit)
+  */
+final class MaxErrorsSink(sink: ErrorSink, maxErrors: Long) extends ErrorSink {
+  require(maxErrors > 0, "maxErrors must be at least 1")
+
+  private var errors = 0L
+  private var dropped = false
+
+  override def needsMessages: Boolean = sink.needsMessages
+
+  override def accept(failure: FailMessage): Unit =
+    if(errors >= maxErrors) {
+      dropped = true
+    } else {
+      if(failure.`type` != ValidationWarning) errors += 1
+      sink.accept(failure)
+    }
+
+  override def isSaturated: Boolean = errors >= maxErrors || sink.isSaturated
+
+  /**
+    * @return the number of errors passed on
+    */
+  def errorCount: Long = errors
+
+  /**
+    * @return true if the limit was reached, and so
+    *         the CSV may not have been validated in full
+    */
+  def limitReached: Boolean = errors >= maxErrors || dropped
+}
+
+/**
+  * Counts the failures of each rule of each column, keeping the
+  * line numbers of the first `samplesPerGroup` rows on which each
+  * failed, so its memory is bounded however many failures there are.
+  *
+  * Failures which are not of a rule (e.g. `@totalColumns`)
+  * are grouped by their message. Beyond `maxGroups` groups,
+  * failures are only counted, see [[ungroupedCount]].
+  */
+final class ErrorSummary(samplesPerGroup: Int = 10, maxGroups: Int = 10000) extends ErrorSink {
+  import ErrorSummary._
+
+  private val groups = new JLinkedHashMap[Key, GroupBuilder]()
+  private var ungrouped = 0L
+
+  override def needsMessages: Boolean = false
+
+  override def accept(failure: FailMessage): Unit = {
+    val key = Key(failure.`type`, failure.columnIndex, failure.message)
+    var group = groups.get(key)
+    if(group == null && groups.size < maxGroups) {
+      group = new GroupBuilder(key)
+      groups.put(key, group)
+    }
+    if(group == null) {
+      ungrouped += 1
+    } else {
+      group.count += 1
+      if(group.samples.size < samplesPerGroup) failure.lineNumber.foreach(group.samples += _)
+    }
+  }
+
+  /**
+    * @return the groups, in the order of their first failure
+    */
+  def groupedFailures: List[Group] =
+    groups.values.asScala.map(g => Group(g.key.`type`, g.key.columnIndex, g.key.failure, g.count, g.samples.toList)).toList
+
+  /**
+    * @return the number of failures which were beyond `maxGroups`
+    */
+  def ungroupedCount: Long = ungrouped
+
+  /**
+    * @return a line describing each group, naming
+    *         the column from the schema where there is one
+    */
+  def report(schema: Schema): List[String] = {
+    val plan = schema.plan
+    val lines = groupedFailures.map { group =>
+      val kind = group.`type` match {
+        case ValidationWarning => "Warning:"
+        case ValidationError => "Error:  "
+        case SchemaDefinitionError => "Schema: "
+      }
+      val column = group.columnIndex.filter(_ < plan.columnCount).map(i => s" in column: ${plan.columnDefinition(i).id}").getOrElse("")
+      val samples = if(group.sampleLines.isEmpty) "" else group.sampleLines.mkString(", first on lines: ", ", ", "")
+      s"$kind ${group.failure}$column failed ${group.count} time${if(group.count == 1) "" else "s"}$samples"
+    }
+    if(ungrouped > 0) lines :+ s"$ungrouped further failures" else lines
+  }
+}
+
+object ErrorSummary {
+
+  /**
+    * @param failure the rule which failed, or the message
+    *                of a failure which is not of a rule
+    * @param sampleLines the first few lines on which it failed
+    */
+  case class Group(`type`: ErrorType, columnIndex: Option[Int], failure: String, count: Long, sampleLines: List[Int])
+
+  private case class Key(`type`: ErrorType, columnIndex: Option[Int], failure: String)
+
+  private final class GroupBuilder(val key: Key) {
+    var count = 0L
+    val samples = ListBuffer.empty[Int]
+  }
+}
+
+/**
+  * Writes each failure as a line of JSON to the writer, e.g.
+  * `{"type":"error","line":3,"column":1,"message":"..."}`, where
+  * the column is the index of the column in the schema (from 0).
+  * The line and column are omitted when not known.
+  *
+  * The caller is responsible for closing the writer.
+  */
+final class JsonLinesErrorSink(writer: Writer) extends ErrorSink {
+
+  private val sb = new StringBuilder
+
+  override def accept(failure: FailMessage): Unit = {
+    sb.setLength(0)
+    val kind = failure.`type` match {
+      case ValidationWarning => "warning"
+      case ValidationError => "error"
+      case SchemaDefinitionError => "schema"
+    }
+    sb.append("{\"type\":\"").append(kind).append('"')
+    failure.lineNumber.foreach(line => sb.append(",\"line\":").append(line))
+    failure.columnIndex.foreach(column => sb.append(",\"column\":").append(column))
+    sb.append(",\"message\":").append(ProfileReport.quote(failure.message)).append("}\n")
+    writer.write(sb.toString)
+  }
+}
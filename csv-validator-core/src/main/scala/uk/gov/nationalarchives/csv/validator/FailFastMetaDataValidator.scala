@@ -10,7 +10,7 @@ package uk.gov.nationalarchives.csv.validator
 
 import cats.data.Validated.{Invalid => Failure}
 import cats.syntax.all._
-import uk.gov.nationalarchives.csv.validator.metadata.{Cell, Row}
+import uk.gov.nationalarchives.csv.validator.metadata.Row
 import uk.gov.nationalarchives.csv.validator.schema._
 
 import scala.annotation.tailrec
@@ -44,51 +44,46 @@ trait FailFastMetaDataValidator extends MetaDataValidator {
   }
 
   override protected def rules(row: Row,  schema: Schema, mayBeLast: Option[Boolean] = None): MetaDataValidation[List[Any]] = {
-    val cells: (Int) => Option[Cell] = row.cells.lift
+    val plan = schema.plan
 
     @tailrec
-    def validateRules(columnDefinitions: List[(ColumnDefinition, Int)], accum: List[MetaDataValidation[Any]] = List.empty) : List[MetaDataValidation[Any]] = {
-      columnDefinitions match {
-        case Nil =>
-          if (accum.isEmpty) {
-            List(true.validNel[FailMessage])
-          } else {
-            accum.reverse
-          }
-
-        case (columnDefinition, columnIndex) :: tail =>
-          validateCell(columnIndex, cells, row, schema, mayBeLast) match {
-            case failure @ Failure(_) if(!schema.columnDefinitions(columnIndex).directives.contains(Warning())) =>
-              validateRules(List.empty, failure :: accum) //stop on first failure which is not a warning
-            case result =>
-              validateRules(tail, result :: accum)
-          }
+    def validateRules(columnIndex: Int, accum: List[MetaDataValidation[Any]] = List.empty) : List[MetaDataValidation[Any]] = {
+      if (columnIndex >= plan.columnCount) {
+        if (accum.isEmpty) {
+          List(true.validNel[FailMessage])
+        } else {
+          accum.reverse
+        }
+      } else {
+        validateCell(columnIndex, row, schema, mayBeLast) match {
+          case failure @ Failure(_) if(!plan.columnDefinition(columnIndex).isWarning) =>
+            validateRules(plan.columnCount, failure :: accum) //stop on first failure which is not a warning
+          case result =>
+            validateRules(columnIndex + 1, result :: accum)
+        }
       }
     }
 
-    val v = validateRules(schema.columnDefinitions.zipWithIndex)
+    val v = validateRules(0)
     v.sequence[MetaDataValidation, Any]
   }
 
   override protected def rulesForCell(columnIndex: Int, row: Row,  schema: Schema, mayBeLast: Option[Boolean] = None): MetaDataValidation[Any] = {
-    val columnDefinition = schema.columnDefinitions(columnIndex)
-
-    def isWarningDirective: Boolean = columnDefinition.directives.contains(Warning())
-    def isOptionDirective: Boolean = columnDefinition.directives.contains(Optional())
+    val columnDefinition = schema.plan.columnDefinition(columnIndex)
 
     @tailrec
     def validateRulesForCell(rules: List[Rule]): MetaDataValidation[Any] = rules match {
       case Nil => true.validNel[FailMessage]
-      case rule :: tail => rule.evaluate(columnIndex, row, schema, mayBeLast) match {
-        case e@Failure(_) => toErrors(e, row.lineNumber, columnIndex)
+      case rule :: tail => evaluateRule(rule, columnIndex, row, schema, mayBeLast) match {
+        case e@Failure(_) => toErrors(e, row.lineNumber, columnIndex, rule)
         case _ => validateRulesForCell(tail)
       }
     }
 
-    def validateAllRulesForCell(rules: List[Rule]): MetaDataValidation[Any] = rules.map(_.evaluate(columnIndex, row, schema, mayBeLast)).map(toWarnings(_, row.lineNumber, columnIndex)).sequence[MetaDataValidation, Any]
+    def validateAllRulesForCell(rules: List[Rule]): MetaDataValidation[Any] = rules.map(rule => toWarnings(evaluateRule(rule, columnIndex, row, schema, mayBeLast), row.lineNumber, columnIndex, rule)).sequence[MetaDataValidation, Any]
 
-    if(row.cells(columnIndex).value.trim.isEmpty && isOptionDirective) true.validNel
-    else if(isWarningDirective) validateAllRulesForCell(columnDefinition.rules)
+    if(columnDefinition.isOptional && row.value(columnIndex).trim.isEmpty) true.validNel
+    else if(columnDefinition.isWarning) validateAllRulesForCell(columnDefinition.rules)
     else validateRulesForCell(columnDefinition.rules)
   }
 }
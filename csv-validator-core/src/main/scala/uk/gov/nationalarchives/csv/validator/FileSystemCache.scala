@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator
+
+import java.nio.file.{FileSystems, FileVisitOption, Files, Path, PathMatcher}
+import java.util.{LinkedHashMap => JLinkedHashMap}
+import java.util.concurrent.atomic.AtomicLong
+import scala.jdk.CollectionConverters._
+import scala.util.Using
+
+/**
+  * Remembers the metadata of the file system, i.e. directory listings,
+  * whether paths exist and the results of wildcard searches, for the
+  * duration of a single validation, so that rules which check thousands
+  * of files do not repeatedly ask the file system the same questions.
+  *
+  * For example, with case-sensitive path checks every ancestor directory
+  * of every file is listed; with this cache each directory is listed at most
+  * once (unless it has been evicted).
+  *
+  * The cache is bounded by the number of paths it holds, the least recently
+  * used entries are evicted first. It is safe to use from multiple threads.
+  *
+  * As the file system is assumed not to change during a validation,
+  * a cache should not be shared between validations.
+  *
+  * @param maxPaths the maximum number of paths held by the cache,
+  *                 a cache of zero paths does not remember anything
+  */
+class FileSystemCache(val maxPaths: Int = FileSystemCache.DefaultMaxPaths) {
+  import FileSystemCache._
+
+  private val entries = new JLinkedHashMap[CacheKey, CacheEntry](16, 0.75f, true)
+  private var weight = 0L
+
+  private val lookups = new AtomicLong()
+  private val hits = new AtomicLong()
+
+  /**
+    * The number of questions which were answered from the cache
+    */
+  def cacheHits: Long = hits.get()
+
+  /**
+    * The number of questions which were asked of the cache
+    */
+  def cacheLookups: Long = lookups.get()
+
+  /**
+    * @return the paths directly within the directory,
+    *         or empty if the directory cannot be listed
+    */
+  def children(dir: Path): Seq[Path] = listing(dir).paths
+
+  def children(dir: Path, globPattern: String): Seq[Path] = {
+    val matcher = pathMatcher(globPattern)
+    children(dir).filter(matcher.matches)
+  }
+
+  /**
+    * @return the path and all of the paths beneath it,
+    *         which match the glob pattern
+    */
+  def descendants(path: Path, globPattern: String): Seq[Path] = {
+    val matcher = pathMatcher(globPattern)
+    memoise(Tree(path)) {
+      val paths = Using(Files.walk(path, Array.empty[FileVisitOption] :_*)) { stream =>
+        stream.iterator().asScala.toVector
+      }.getOrElse(Vector.empty)
+      Walked(paths)
+    }.paths.filter(matcher.matches)
+  }
+
+  def exists(path: Path): Boolean =
+    memoise(Exists(path))(Flag(Files.exists(path))).value
+
+  def isDirectory(path: Path): Boolean =
+    memoise(IsDirectory(path))(Flag(Files.isDirectory(path))).value
+
+  /**
+    * @see [[Util.FileSystem.caseSensitivePathMatchesFs]]
+    */
+  def caseSensitivePathMatchesFs(f: Path): Boolean = {
+    var path = f.toAbsolutePath
+    var parent = path.getParent
+    var matches = true
+    while(matches && parent != null) {
+      matches = listing(parent).names.contains(path.getFileName.toString)
+      path = parent
+      parent = path.getParent
+    }
+    matches
+  }
+
+  /**
+    * Forgets everything, so that the
+    * cache may be used for another validation
+    */
+  def clear(): Unit = entries.synchronized {
+    entries.clear()
+    weight = 0
+  }
+
+  private def listing(dir: Path): Listing = memoise(Listed(dir)) {
+    val paths = Using(Files.list(dir)) { stream =>
+      stream.iterator().asScala.toVector
+    }.getOrElse(Vector.empty)
+    new Listing(paths)
+  }
+
+  private def pathMatcher(globPattern: String): PathMatcher =
+    memoise(Glob(globPattern))(Matcher(FileSystems.getDefault.getPathMatcher(s"glob:$globPattern"))).matcher
+
+  /**
+    * The file system is queried without holding the lock on the cache,
+    * so two threads may occasionally answer the same question
+    */
+  private def memoise[E <: CacheEntry](key: CacheKey)(compute: => E): E = {
+    lookups.incrementAndGet()
+    val cached = entries.synchronized(entries.get(key))
+    if(cached != null) {
+      hits.incrementAndGet()
+      cached.asInstanceOf[E]
+    } else {
+      val entry = compute
+      if(maxPaths > 0) {
+        entries.synchronized {
+          val previous = entries.put(key, entry)
+          if(previous != null) weight -= previous.weight
+          weight += entry.weight
+          evict()
+        }
+      }
+      entry
+    }
+  }
+
+  private def evict(): Unit = {
+    val eldest = entries.entrySet().iterator()
+    while(weight > maxPaths && eldest.hasNext) {
+      weight -= eldest.next().getValue.weight
+      eldest.remove()
+    }
+  }
+}
+
+object FileSystemCache {
+
+  val DefaultMaxPaths: Int = 1000000
+
+  /**
+    * A cache which does not remember anything,
+    * i.e. every question is asked of the file system
+    */
+  val Disabled = new FileSystemCache(0)
+
+  private sealed trait CacheKey
+  private case class Listed(dir: Path) extends CacheKey
+  private case class Tree(path: Path) extends CacheKey
+  private case class Exists(path: Path) extends CacheKey
+  private case class IsDirectory(path: Path) extends CacheKey
+  private case class Glob(pattern: String) extends CacheKey
+
+  private sealed trait CacheEntry {
+    def weight: Int = 1
+  }
+  private class Listing(val paths: Seq[Path]) extends CacheEntry {
+    lazy val names: Set[String] = paths.map(_.getFileName.toString).toSet
+    override def weight: Int = 1 + paths.size
+  }
+  private case class Walked(paths: Seq[Path]) extends CacheEntry {
+    override def weight: Int = 1 + paths.size
+  }
+  private case class Flag(value: Boolean) extends CacheEntry
+  private case class Matcher(matcher: PathMatcher) extends CacheEntry
+}
+
+/**
+  * A rule which checks files, and may
+  * share a [[FileSystemCache]] with other rules
+  */
+trait FileSystemCaching {
+
+  private var cache: FileSystemCache = FileSystemCache.Disabled
+
+  def fileSystemCache: FileSystemCache = cache
+
+  def usingFileSystemCache(fileSystemCache: FileSystemCache): this.type = {
+    this.cache = fileSystemCache
+    this
+  }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator
+
+import java.io.{FilterInputStream, FilterReader, InputStream, Reader}
+
+/**
+  * Counts the bytes that have been read
+  * through the stream, e.g. for the purposes
+  * of reporting progress
+  */
+class ByteCountingInputStream(in: InputStream) extends FilterInputStream(in) {
+
+  @volatile private var count = 0L
+
+  def bytesRead: Long = count
+
+  override def read(): Int = {
+    val b = super.read()
+    if(b != -1) count += 1
+    b
+  }
+
+  override def read(b: Array[Byte], off: Int, len: Int): Int = {
+    val n = super.read(b, off, len)
+    if(n > 0) count += n
+    n
+  }
+
+  override def skip(n: Long): Long = {
+    val skipped = super.skip(n)
+    count += skipped
+    skipped
+  }
+
+  override def markSupported(): Boolean = false
+}
+
+/**
+  * Counts the characters that have been read
+  * through the reader, e.g. for the purposes
+  * of reporting progress when the underlying
+  * bytes are not available
+  */
+class CharCountingReader(in: Reader) extends FilterReader(in) {
+
+  @volatile private var count = 0L
+
+  def charsRead: Long = count
+
+  override def read(): Int = {
+    val c = super.read()
+    if(c != -1) count += 1
+    c
+  }
+
+  override def read(cbuf: Array[Char], off: Int, len: Int): Int = {
+    val n = super.read(cbuf, off, len)
+    if(n > 0) count += n
+    n
+  }
+
+  override def skip(n: Long): Long = {
+    val skipped = super.skip(n)
+    count += skipped
+    skipped
+  }
+
+  override def markSupported(): Boolean = false
+}
+
+/**
+  * Validates that the bytes read through the stream are UTF-8 encoded,
+  * as they are read. This allows the encoding of a file to be checked
+  * in the same pass over the file as it is parsed.
+  *
+  * Errors are reported with the same messages and byte offsets as
+  * [[uk.gov.nationalarchives.utf8.validator.Utf8Validator]], which
+  * validates a file in a separate pass.
+  *
+  * The errors are only complete once the end of the stream
+  * has been reached, see [[drain]].
+  */
+class Utf8ValidatingInputStream(in: InputStream) extends FilterInputStream(in) {
+
+  /** the number of bytes seen so far */
+  private var position = 0L
+
+  /** the offset of the first byte of the current multibyte sequence */
+  private var sequenceStart = 0L
+
+  /** the number of continuation bytes expected for the current multibyte sequence */
+  private var expected = 0
+
+  private val continuation = new Array[Byte](3)
+  private var received = 0
+
+  private var finished = false
+  private var reversedErrors: List[(Long, String)] = List.empty
+
+  /**
+    * The errors found so far as pairs of byte offset and message,
+    * in the order in which they occur in the stream
+    */
+  def errors: List[(Long, String)] = reversedErrors.reverse
+
+  /**
+    * Reads (and validates) any
+    * remaining bytes of the stream
+    */
+  def drain(): Unit = {
+    val buf = new Array[Byte](8192)
+    while(read(buf, 0, buf.length) != -1) {}
+  }
+
+  override def read(): Int = {
+    val b = super.read()
+    if(b == -1) finish() else accept(b.toByte)
+    b
+  }
+
+  override def read(b: Array[Byte], off: Int, len: Int): Int = {
+    val n = super.read(b, off, len)
+    if(n == -1) {
+      finish()
+    } else {
+      var i = off
+      val end = off + n
+      while(i < end) {
+        accept(b(i))
+        i += 1
+      }
+    }
+    n
+  }
+
+  override def skip(n: Long): Long = {
+    // skipped bytes must still be validated
+    val buf = new Array[Byte](Math.min(n, 8192L).toInt)
+    var skipped = 0L
+    var last = 0
+    while(skipped < n && last != -1) {
+      last = read(buf, 0, Math.min(n - skipped, buf.length.toLong).toInt)
+      if(last > 0) skipped += last
+    }
+    skipped
+  }
+
+  override def markSupported(): Boolean = false
+
+  private def accept(b: Byte): Unit = {
+    position += 1
+    if(expected > 0) {
+      continuation(received) = b
+      received += 1
+      if(received == expected) {
+        checkContinuation(position)
+        expected = 0
+      }
+    } else if(b < 0) {
+      if((b & 0xF0) == 0xF0) startSequence(3)
+      else if((b & 0xE0) == 0xE0) startSequence(2)
+      else if((b & 0xC0) == 0xC0) startSequence(1)
+      else error(position, "Invalid single byte UTF-8 character")
+    }
+  }
+
+  private def startSequence(continuationBytes: Int): Unit = {
+    sequenceStart = position - 1
+    expected = continuationBytes
+    received = 0
+  }
+
+  /**
+    * The stream ended part way through
+    * a multibyte sequence
+    */
+  private def finish(): Unit = {
+    if(!finished) {
+      finished = true
+      if(expected > 0) {
+        // mirror Utf8Validator, which reads the remainder of the
+        // sequence with a single read; that read reports -1, rather than 0,
+        // if no bytes remain, which also affects the offsets that it reports
+        val got = if(received > 0) received else -1
+        error(-1, s"Invalid UTF-8 Sequence, expecting: ${expected + 1}bytes, but got: ${got + 1}bytes - reached end of stream.")
+        for(i <- received until expected) continuation(i) = 0
+        checkContinuation(sequenceStart + 1 + got)
+        expected = 0
+      }
+    }
+  }
+
+  /**
+    * @param byteCount the number of bytes of the stream
+    *                  that had been consumed at the end of the sequence
+    */
+  private def checkContinuation(byteCount: Long): Unit = {
+    for(i <- 0 until expected) {
+      if((continuation(i) & 0xC0) != 0x80) {
+        error(byteCount - expected + i + 1, s"Invalid UTF-8 sequence, byte ${i + 2} of ${expected + 1} byte multibyte sequence.")
+      }
+    }
+  }
+
+  private def error(offset: Long, message: String): Unit = reversedErrors ::= (offset, message)
+}
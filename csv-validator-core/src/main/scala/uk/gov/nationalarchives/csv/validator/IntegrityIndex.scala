@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator
+
+import java.io.{DataInput, DataOutput, FileNotFoundException, IOException}
+import java.nio.file.attribute.BasicFileAttributes
+import java.nio.file.{FileVisitResult, Files, Path, Paths, SimpleFileVisitor}
+import java.util.{HashMap => JHashMap, HashSet => JHashSet}
+import scala.jdk.CollectionConverters._
+
+/**
+  * Tracks which of the files within the content folders
+  * have not (yet) been listed in the metadata, for the `integrityCheck` rule.
+  *
+  * Each content folder is scanned once, when the first file within it is
+  * listed, after which marking a file as listed takes constant time.
+  * The memory used is proportional to the number of files in the content
+  * folders, and does not depend on the number of rows.
+  *
+  * @param includeFolder whether the folders within the content folders
+  *                      (and the content folders themselves) must also be listed
+  */
+class IntegrityIndex(includeFolder: Boolean) {
+
+  private val unlisted = new JHashMap[String, JHashSet[Path]]()
+
+  /**
+    * Marks a file as listed in the metadata
+    *
+    * @param contentFolder the content folder that the file is within
+    * @param contentFolderPath the content folder, if its path is valid
+    * @param file the file, if its path is valid
+    *
+    * @throws FileNotFoundException if the content folder does not exist
+    */
+  def markListed(contentFolder: String, contentFolderPath: Option[Path], file: Option[Path]): Unit = {
+    var files = unlisted.get(contentFolder)
+    if(files == null) {
+      files = contentFolderPath.map(IntegrityIndex.scan(_, includeFolder)).getOrElse(new JHashSet[Path]())
+      unlisted.put(contentFolder, files)
+    }
+    file.foreach(files.remove)
+  }
+
+  /**
+    * @return true if every file in the
+    *         content folders has been listed
+    */
+  def allListed: Boolean = unlisted.values().asScala.forall(_.isEmpty)
+
+  /**
+    * Forgets the content folders scanned so far,
+    * and which of their files have been listed
+    */
+  def clear(): Unit = unlisted.clear()
+
+  /**
+    * Writes the content folders scanned so far, and which of their files
+    * have not been listed, so that they may be restored by [[restore]]
+    * when a validation is resumed from a checkpoint
+    */
+  def save(out: DataOutput): Unit = {
+    out.writeInt(unlisted.size)
+    unlisted.forEach { (contentFolder, files) =>
+      Checkpoint.writeString(out, contentFolder)
+      out.writeInt(files.size)
+      files.forEach(file => Checkpoint.writeString(out, file.toString))
+    }
+  }
+
+  /**
+    * Restores what was written by [[save]], the
+    * content folders are not scanned again
+    */
+  def restore(in: DataInput): Unit = {
+    unlisted.clear()
+    for(_ <- 0 until in.readInt()) {
+      val contentFolder = Checkpoint.readString(in)
+      val files = new JHashSet[Path]()
+      for(_ <- 0 until in.readInt()) {
+        files.add(Paths.get(Checkpoint.readString(in)))
+      }
+      unlisted.put(contentFolder, files)
+    }
+  }
+
+  /**
+    * @return the files in the content folders which
+    *         have not been listed, in path order
+    */
+  def unlistedFiles: Seq[Path] = unlisted.values().asScala.flatMap(_.asScala).toSeq.sorted(IntegrityIndex.pathOrdering)
+}
+
+object IntegrityIndex {
+
+  private val ExcludedFolders = Set("RECYCLER", "$RECYCLE.BIN")
+
+  private val pathOrdering: Ordering[Path] = Ordering.fromLessThan(_.compareTo(_) < 0)
+
+  /**
+    * Finds all of the files beneath the folder,
+    * with a single walk of the file tree
+    *
+    * @throws FileNotFoundException if the folder does not exist
+    */
+  def scan(folder: Path, includeFolder: Boolean): JHashSet[Path] = {
+    if(!Files.exists(folder)) {
+      throw new FileNotFoundException(s"Cannot find the folder $folder")
+    }
+
+    val files = new JHashSet[Path]()
+    Files.walkFileTree(folder, new SimpleFileVisitor[Path] {
+      override def preVisitDirectory(dir: Path, attrs: BasicFileAttributes): FileVisitResult = {
+        if(dir != folder && ExcludedFolders.contains(dir.getFileName.toString)) {
+          FileVisitResult.SKIP_SUBTREE
+        } else {
+          if(includeFolder) files.add(dir)
+          FileVisitResult.CONTINUE
+        }
+      }
+
+      override def visitFile(file: Path, attrs: BasicFileAttributes): FileVisitResult = {
+        files.add(file)
+        FileVisitResult.CONTINUE
+      }
+
+      // a file which cannot be read must still be listed
+      override def visitFileFailed(file: Path, exc: IOException): FileVisitResult = {
+        files.add(file)
+        FileVisitResult.CONTINUE
+      }
+    })
+    files
+  }
+}
@@ -12,17 +12,17 @@ package uk.gov.nationalarchives.csv.validator
 import cats.data.{Chain, Validated, ValidatedNel}
 import cats.syntax.all._
 import com.univocity.parsers.common.TextParsingException
-import com.univocity.parsers.csv.{CsvParser, CsvParserSettings, CsvRoutines}
+import com.univocity.parsers.csv.{CsvParser, CsvParserSettings}
 import org.apache.commons.io.input.BOMInputStream
 import uk.gov.nationalarchives.csv.validator.api.TextFile
-import uk.gov.nationalarchives.csv.validator.metadata.{Cell, Row}
+import uk.gov.nationalarchives.csv.validator.metadata.Row
 import uk.gov.nationalarchives.csv.validator.schema._
 import uk.gov.nationalarchives.utf8.validator.{Utf8Validator, ValidationHandler}
 
-import java.io.{BufferedInputStream, IOException, InputStreamReader => JInputStreamReader, LineNumberReader => JLineNumberReader, Reader => JReader}
+import java.io.{IOException, InputStream, InputStreamReader => JInputStreamReader, Reader => JReader}
 import java.nio.charset.{Charset, StandardCharsets}
-import java.nio.file.{Files, Path}
-import scala.annotation.tailrec
+import java.nio.file.Path
+import scala.annotation.nowarn
 import scala.language.{postfixOps, reflectiveCalls}
 import scala.util.{Failure, Success, Try, Using}
 
@@ -31,8 +31,35 @@ sealed trait ErrorType
 case object ValidationWarning extends ErrorType
 case object ValidationError extends ErrorType
 case object SchemaDefinitionError extends ErrorType
-case class FailMessage(`type`: ErrorType, message : String, lineNumber: Option[Int] = None, columnIndex: Option[Int] = None) //TODO(AR) consider a better name, e.g. CsvValidationFailure
+/**
+  * @param rule the rule which failed, e.g. `regex("[a-z]+")`, or empty when the failure
+  *             is not of a rule (e.g. `@totalColumns`). Being in the second parameter list,
+  *             it is not compared by `equals` nor matched by the four-field pattern.
+  */
+case class FailMessage(`type`: ErrorType, message : String, lineNumber: Option[Int] = None, columnIndex: Option[Int] = None)(val rule: Option[String] = None) { //TODO(AR) consider a better name, e.g. CsvValidationFailure
+
+  override def toString: String =
+    productPrefix + productIterator.mkString("(", ",", ")") + rule.fold("")(r => s"($r)")
+}
+
 object FailMessage {
+
+  /**
+    * Replaces the synthetic apply, so that a failure which
+    * is not of a rule is built without a second argument list
+    */
+  private def apply(`type`: ErrorType, message: String, lineNumber: Option[Int], columnIndex: Option[Int])(rule: Option[String]): FailMessage =
+    new FailMessage(`type`, message, lineNumber, columnIndex)(rule)
+
+  def apply(`type`: ErrorType, message: String, lineNumber: Option[Int] = None, columnIndex: Option[Int] = None): FailMessage =
+    new FailMessage(`type`, message, lineNumber, columnIndex)()
+
+  /**
+    * A failure of the rule, see [[FailMessage.rule]]
+    */
+  def ofRule(`type`: ErrorType, message: String, lineNumber: Int, columnIndex: Int, failedRule: Rule): FailMessage =
+    new FailMessage(`type`, message, Some(lineNumber), Some(columnIndex))(Some(failedRule.toError))
+
   def isWarning : PartialFunction[FailMessage, FailMessage] = {
     case fm @ FailMessage(ValidationWarning, _, _, _) => fm
   }
@@ -48,7 +75,19 @@ object FailMessage {
 
 
 
-case class ProgressFor(rowsToValidate: Int, progress: ProgressCallback)
+/**
+  * @param rowsToValidate the number of rows to be validated, or -1 if unknown
+  * @param bytes when present, progress is measured by the bytes
+  *              of the file consumed rather than by rows
+  */
+case class ProgressFor(rowsToValidate: Int, progress: ProgressCallback, bytes: Option[BytesProgress] = None)
+
+/**
+  * @param bytesToValidate the size of the file in bytes, or -1 if unknown
+  * @param bytesRead the number of bytes of the file consumed so far
+  *                  (or characters, when validating a Reader)
+  */
+case class BytesProgress(bytesToValidate: Long, bytesRead: () => Long)
 
 trait MetaDataValidator {
   // Helper functions for checking if a result contains a warning or error.
@@ -58,6 +97,35 @@ trait MetaDataValidator {
 
   type MetaDataValidation[S] = ValidatedNel[FailMessage, S]
 
+  /**
+    * The number of threads used to evaluate rows.
+    *
+    * Values greater than 1 enable parallel row
+    * validation, which is only supported when reporting
+    * all errors, see [[AllErrorsMetaDataValidator]]
+    */
+  def parallelism: Int = 1
+
+  /**
+    * The number of threads used to parse a CSV file.
+    *
+    * Values greater than 1 enable the parsing of large
+    * files in chunks, see [[ChunkedCsvParser]]
+    */
+  def parseParallelism: Int = 1
+
+  /**
+    * Records the time spent parsing the CSV and
+    * evaluating each rule, by default nothing is recorded
+    */
+  def profiler: ValidationProfiler = ValidationProfiler.Disabled
+
+  /**
+    * Whether, and how far, rows are read ahead to prefetch
+    * the files of their file rules, see [[FilePrefetcher]]
+    */
+  def prefetch: PrefetchConfig = PrefetchConfig.Disabled
+
   @deprecated("use validateReader or validateCsvFile")
   def validate(
     csv: JReader,    
@@ -88,27 +156,102 @@ trait MetaDataValidator {
     maxCharsPerCell: Int,
     progress: Option[ProgressCallback],
     rowCallback: MetaDataValidation[Any] => Unit
-  ): Boolean = {
-    //try to find the number of rows for the
-    //purposes pf reporting progress
-    //can only do that if we can reset()
-    //on the reader
-    val pf = if(csv.markSupported()) {
-      progress.map {
-        p =>
-          csv.mark(Integer.MAX_VALUE)
-          val pf = ProgressFor(countRows(csv, schema), p)
-          csv.reset()
-          pf
-      }
-    } else {
-      None
+  ): Boolean = validateReader(csv, schema, maxCharsPerCell, progress, None, rowCallback)
+
+  /**
+    * Validates the CSV as it is read, in constant memory, so the
+    * reader may be of any length, e.g. a stream from the network.
+    *
+    * Progress is reported by the rows validated and the characters
+    * read, see [[ProgressCallback.processed]]; as a percentage only
+    * when the `expectedLength` is known, as the reader is never
+    * read ahead to count its rows.
+    *
+    * @param expectedLength the number of characters expected from the reader, if known
+    */
+  def validateReader(
+    csv: JReader,
+    schema: Schema,
+    maxCharsPerCell: Int,
+    progress: Option[ProgressCallback],
+    expectedLength: Option[Long],
+    rowCallback: MetaDataValidation[Any] => Unit
+  ): Boolean = validateReaderUntil(csv, schema, maxCharsPerCell, progress, expectedLength, rowCallback, () => false, detailedMessages = true)
+
+  /**
+    * Validates the CSV as it is read, see [[validateReader]], passing
+    * each failure to the sink rather than each row to a callback.
+    *
+    * Once the sink is saturated, e.g. by [[ErrorSink.capped]], the
+    * rest of the CSV is not read; and the messages of failures
+    * are only built when the sink needs them.
+    *
+    * @return true if the CSV is valid, which it is not
+    *         when the validation was stopped by the sink
+    */
+  def validateReaderToSink(
+    csv: JReader,
+    schema: Schema,
+    maxCharsPerCell: Int,
+    progress: Option[ProgressCallback],
+    expectedLength: Option[Long],
+    sink: ErrorSink
+  ): Boolean =
+    withErrorSink(sink) { (rowCallback, stop, detailedMessages) =>
+      validateReaderUntil(csv, schema, maxCharsPerCell, progress, expectedLength, rowCallback, stop, detailedMessages)
     }
 
-    validateKnownRows(csv, schema, maxCharsPerCell, pf, rowCallback)
+  private def validateReaderUntil(
+    csv: JReader,
+    schema: Schema,
+    maxCharsPerCell: Int,
+    progress: Option[ProgressCallback],
+    expectedLength: Option[Long],
+    rowCallback: MetaDataValidation[Any] => Unit,
+    stop: () => Boolean,
+    detailedMessages: Boolean
+  ): Boolean = {
+    val counting = new CharCountingReader(csv)
+    val pf = progress.map(p => ProgressFor(-1, p, Some(BytesProgress(expectedLength.getOrElse(-1L), () => counting.charsRead))))
+    validateRowSource(RowSource.until(parseRows(counting, schema, maxCharsPerCell), stop, detailedMessages), schema, maxCharsPerCell, pf, rowCallback)
+  }
+
+  /**
+    * Calls `validate` with a `rowCallback` for the sink, a function which is
+    * true once the sink is saturated, and whether the sink needs the messages
+    * of failures, which is given to the rows read, see [[Row.detailedMessages]],
+    * so that it only applies to this validation of the schema
+    */
+  protected def withErrorSink(sink: ErrorSink)(validate: (MetaDataValidation[Any] => Unit, () => Boolean, Boolean) => Boolean): Boolean =
+    validate(ErrorSink.rowCallback(sink), () => sink.isSaturated, sink.needsMessages)
+
+  /**
+    * Validates the CSV as it is read from the stream, in constant memory,
+    * reporting progress by the bytes read, see [[validateReader]].
+    * The stream is closed once the rows have been validated.
+    *
+    * @param encoding the encoding of the CSV, for UTF-8 any Byte Order Mark is skipped
+    * @param expectedLength the number of bytes expected from the stream, if known
+    */
+  def validateInputStream(
+    csv: InputStream,
+    encoding: Charset,
+    schema: Schema,
+    maxCharsPerCell: Int,
+    progress: Option[ProgressCallback],
+    expectedLength: Option[Long],
+    rowCallback: MetaDataValidation[Any] => Unit
+  ): Boolean = {
+    val counting = new ByteCountingInputStream(csv)
+    val pf = progress.map(p => ProgressFor(-1, p, Some(BytesProgress(expectedLength.getOrElse(-1L), () => counting.bytesRead))))
+    validateKnownRows(newReader(counting, encoding), schema, maxCharsPerCell, pf, rowCallback)
   }
 
-  def createCsvParser(schema: Schema, maxCharsPerCell: Int): CsvParser = {
+  def createCsvParser(schema: Schema, maxCharsPerCell: Int): CsvParser =
+    //we need a better CSV Reader!
+    new CsvParser(createCsvParserSettings(schema, maxCharsPerCell))
+
+  def createCsvParserSettings(schema: Schema, maxCharsPerCell: Int): CsvParserSettings = {
     val separator: Char = schema.globalDirectives.collectFirst {
       case Separator(sep) =>
         sep
@@ -133,8 +276,7 @@ trait MetaDataValidator {
     format.setQuoteEscape(CSV_RFC1480_QUOTE_ESCAPE_CHARACTER)
     //format.setLineSeparator(CSV_RFC1480_LINE_SEPARATOR)  // CRLF
 
-    //we need a better CSV Reader!
-    new CsvParser(settings)
+    settings
   }
 
 
@@ -144,14 +286,37 @@ trait MetaDataValidator {
     maxCharsPerCell: Int,
     progress: Option[ProgressFor],
     rowCallback: MetaDataValidation[Any] => Unit
-  ): Boolean = {
+  ): Boolean =
+    validateRowSource(parseRows(csv, schema, maxCharsPerCell), schema, maxCharsPerCell, progress, rowCallback)
 
+  protected def parseRows(csv: JReader, schema: Schema, maxCharsPerCell: Int): RowSource = {
     val parser = createCsvParser(schema, maxCharsPerCell)
+    parser.beginParsing(csv)
+    RowSource(parser)
+  }
+
+  /**
+    * Validates the rows of the source, which
+    * is stopped once the rows have been validated
+    *
+    * @param checkpointer when present, checkpoints are written as the rows are validated,
+    *                     and the rows before any checkpoint resumed from are skipped
+    * @param bytesRead the bytes of the CSV read so far, recorded in each checkpoint
+    */
+  protected def validateRowSource(
+    source: => RowSource,
+    schema: Schema,
+    maxCharsPerCell: Int,
+    progress: Option[ProgressFor],
+    rowCallback: MetaDataValidation[Any] => Unit,
+    checkpointer: Option[Checkpointer] = None,
+    bytesRead: () => Long = () => -1L
+  ): Boolean = {
 
-    val result : Try[Boolean] = Using {
-      parser.beginParsing(csv)
-      parser
-    } {
+    // the files may have changed since the schema last validated
+    schema.plan.clearFileSystemCaches()
+
+    val result : Try[Boolean] = Using(source) {
       reader =>
 
         // if 'no header' is set but the file is empty and 'permit empty' has not been set - this is an error
@@ -159,11 +324,12 @@ trait MetaDataValidator {
         // if 'no header' is not set and 'permit empty' is not set but the file contains only one line - this is an error
 
 
-        val rowIt = new RowIterator(reader, progress, maxCharsPerCell)
+        val rowIt = new RowIterator(reader, progress, maxCharsPerCell, profiler)
+        val plan = schema.plan
 
         val maybeNoData =
-          if (schema.globalDirectives.contains(NoHeader())) {
-            if (!rowIt.hasNext && !schema.globalDirectives.contains(PermitEmpty())) {
+          if (plan.noHeader) {
+            if (!rowIt.hasNext && !plan.permitEmpty) {
               Some(FailMessage(ValidationError, "metadata file is empty but this has not been permitted").invalidNel[Any])
             } else {
               None
@@ -175,7 +341,7 @@ trait MetaDataValidator {
               val header = rowIt.skipHeader()
               val headerValidation = validateHeader(header, schema)
               headerValidation.orElse {
-                if(!rowIt.hasNext && !schema.globalDirectives.contains(PermitEmpty())) {
+                if(!rowIt.hasNext && !plan.permitEmpty) {
                   Some(FailMessage(ValidationError, "metadata file has a header but no data and this has not been permitted").invalidNel[Any])
                 } else {
                   None
@@ -189,7 +355,10 @@ trait MetaDataValidator {
             rowCallback(noData)
             false
           case None =>
-            validateRows(rowIt, schema, rowCallback)
+            checkpointer match {
+              case Some(c) => validateRowsWithCheckpoints(rowIt, schema, rowCallback, c, bytesRead)
+              case None => prefetching(rowIt, schema)(validateRows(_, schema, rowCallback))
+            }
         }
 
     } (_.stopParsing());
@@ -205,6 +374,45 @@ trait MetaDataValidator {
     }
   }
 
+  private def validateRowsWithCheckpoints(
+    rows: RowIterator,
+    schema: Schema,
+    rowCallback: MetaDataValidation[Any] => Unit,
+    checkpointer: Checkpointer,
+    bytesRead: () => Long
+  ): Boolean = {
+    var lineNumber = if(schema.plan.noHeader) 0 else 1
+    var passing = true
+
+    for(checkpoint <- checkpointer.resumeFrom) {
+      // the rows up to the checkpoint have been validated, and the state of the rules restored
+      while(lineNumber < checkpoint.lineNumber && rows.hasNext) {
+        rows.next()
+        lineNumber += 1
+      }
+      passing = checkpoint.passing
+    }
+
+    val valid = prefetching(rows, schema)(validateRows(_, schema, { result =>
+      rowCallback(result)
+      lineNumber += 1
+      passing = passing && !containsErrors(result)
+      if(checkpointer.isDue) {
+        checkpointer.write(lineNumber, bytesRead(), passing)
+      }
+    }))
+
+    checkpointer.finished()
+    valid && checkpointer.resumeFrom.forall(_.passing)
+  }
+
+  private def prefetching(rows: Iterator[Row], schema: Schema)(validate: Iterator[Row] => Boolean): Boolean =
+    if(prefetch.enabled && FilePrefetcher.fileColumns(schema).nonEmpty) {
+      Using.resource(new FilePrefetcher(rows, schema, prefetch, profiler))(validate)
+    } else {
+      validate(rows)
+    }
+
   /**
     * Return the column at the index columnIndex
     * @param rows the row iterator
@@ -216,7 +424,7 @@ trait MetaDataValidator {
       acc :+ filename(row, columnIndex)
     }
 
-  def filename(row: Row,titleIndex: Int): String = row.cells(titleIndex).value
+  def filename(row: Row,titleIndex: Int): String = row.value(titleIndex)
 
   def validateRows(
     rows: Iterator[Row],
@@ -225,19 +433,19 @@ trait MetaDataValidator {
   ): Boolean
 
   def validateHeader(header: Row, schema: Schema): Option[MetaDataValidation[Any]] = {
-    val icnc: Option[IgnoreColumnNameCase] = schema.globalDirectives.collectFirst {case i @ IgnoreColumnNameCase() => i }
+    val icnc = schema.plan.ignoreColumnNameCase
 
     def toggleCase(s: String): String =
-      if (icnc.isDefined) s.toLowerCase else s
+      if (icnc) s.toLowerCase else s
 
 
-    val headerList = header.cells.map(header => toggleCase(header.value))
+    val headerList = header.values.map(toggleCase)
     val schemaHeader = schema.columnDefinitions.map(header => toggleCase(header.id.value))
 
     if (headerList.sameElements(schemaHeader))
       None
     else
-      Some(FailMessage(ValidationError, s"Metadata header, cannot find the column headers - ${Util.diff(schemaHeader.toSet, headerList.toSet).mkString(", ")} - .${if (icnc.isEmpty) "  (Case sensitive)" else ""}").invalidNel[Any])
+      Some(FailMessage(ValidationError, s"Metadata header, cannot find the column headers - ${Util.diff(schemaHeader.toSet, headerList.toSet).mkString(", ")} - .${if (!icnc) "  (Case sensitive)" else ""}").invalidNel[Any])
   }
 
   def validateRow(row: Row,  schema: Schema, mayBeLast: Option[Boolean] = None): MetaDataValidation[Any] = {
@@ -258,10 +466,18 @@ trait MetaDataValidator {
 
     new Utf8Validator(validationHandler).validate(file.toFile)
 
-    validationHandler.errors.toNel match {
+    toUtf8Validation(validationHandler.errors.reverse)
+  }
+
+  /**
+    * @param errors pairs of byte offset and message,
+    *               in the order in which they occur in the file
+    */
+  protected def toUtf8Validation(errors: List[(Long, String)]): MetaDataValidation[Any] = {
+    errors.toNel match {
       case None => true.validNel
       case Some(nel) => {
-        val ret = nel.reverse.map {
+        val ret = nel.map {
           case (offset, message) => FailMessage(ValidationError, s"[UTF-8 Error][@$offset] ${message}")
         }
         ret.invalid
@@ -269,64 +485,42 @@ trait MetaDataValidator {
     }
   }
 
-  private def totalColumns(row: Row, schema: Schema): MetaDataValidation[Any] = {
-    val tc: Option[TotalColumns] = schema.globalDirectives.collectFirst {
-      case t@TotalColumns(_) => t
-    }
+  protected def totalColumns(row: Row, schema: Schema): MetaDataValidation[Any] = {
+    val tc: Option[BigInt] = schema.plan.totalColumns
 
-    if (tc.isEmpty || tc.get.numberOfColumns == row.cells.length) true.validNel[FailMessage]
-    else FailMessage(ValidationError, s"Expected @totalColumns of ${tc.get.numberOfColumns} and found ${row.cells.length} on line ${row.lineNumber}", Some(row.lineNumber), Some(row.cells.length)).invalidNel[Any]
+    if (tc.isEmpty || tc.get == row.length) true.validNel[FailMessage]
+    else if (!row.detailedMessages) FailMessage(ValidationError, s"@totalColumns ${tc.get} found ${row.length}", Some(row.lineNumber)).invalidNel[Any]
+    else FailMessage(ValidationError, s"Expected @totalColumns of ${tc.get} and found ${row.length} on line ${row.lineNumber}", Some(row.lineNumber), Some(row.length)).invalidNel[Any]
   }
 
   protected def rules(row: Row, schema: Schema, mayBeLast: Option[Boolean] = None): MetaDataValidation[List[Any]]
 
-  protected def validateCell(columnIndex: Int, cells: (Int) => Option[Cell], row: Row, schema: Schema, mayBeLast: Option[Boolean] = None): MetaDataValidation[Any] = {
-    cells(columnIndex) match {
-      case Some(c) => rulesForCell(columnIndex, row, schema, mayBeLast)
-      case _ => FailMessage(ValidationError, s"Missing value at line: ${row.lineNumber}, column: ${schema.columnDefinitions(columnIndex).id}", Some(row.lineNumber), Some(columnIndex)).invalidNel[Any]
-    }
+  protected def validateCell(columnIndex: Int, row: Row, schema: Schema, mayBeLast: Option[Boolean] = None): MetaDataValidation[Any] = {
+    if (row.hasCell(columnIndex)) rulesForCell(columnIndex, row, schema, mayBeLast)
+    else if (!row.detailedMessages) FailMessage(ValidationError, "missing value", Some(row.lineNumber), Some(columnIndex)).invalidNel[Any]
+    else FailMessage(ValidationError, s"Missing value at line: ${row.lineNumber}, column: ${schema.plan.columnDefinition(columnIndex).id}", Some(row.lineNumber), Some(columnIndex)).invalidNel[Any]
   }
 
-  protected def toWarnings(results: Rule#RuleValidation[Any], lineNumber: Int, columnIndex: Int): MetaDataValidation[Any] = results.leftMap(_.map(FailMessage(ValidationWarning, _, Some(lineNumber), Some(columnIndex))))
-  protected def toErrors(results: Rule#RuleValidation[Any], lineNumber: Int, columnIndex: Int): MetaDataValidation[Any] = results.leftMap(_.map(FailMessage(ValidationError, _, Some(lineNumber), Some(columnIndex))))
+  protected def toWarnings(results: Rule#RuleValidation[Any], lineNumber: Int, columnIndex: Int, rule: Rule): MetaDataValidation[Any] = results.leftMap(_.map(FailMessage.ofRule(ValidationWarning, _, lineNumber, columnIndex, rule)))
+  protected def toErrors(results: Rule#RuleValidation[Any], lineNumber: Int, columnIndex: Int, rule: Rule): MetaDataValidation[Any] = results.leftMap(_.map(FailMessage.ofRule(ValidationError, _, lineNumber, columnIndex, rule)))
 
   protected def rulesForCell(columnIndex: Int, row: Row, schema: Schema, mayBeLast: Option[Boolean] = None): MetaDataValidation[Any]
 
-  protected def countRows(textFile: TextFile): Int = {
-    withReader(textFile) {
-      // getInputDimension is more efficient and ignores new lines in cells but it closes the Reader after use; only use it when it's OK to discard the reader.
-      reader => Try(new CsvRoutines().getInputDimension(reader).rowCount().toInt).getOrElse(-1)
+  protected def evaluateRule(rule: Rule, columnIndex: Int, row: Row, schema: Schema, mayBeLast: Option[Boolean]): Rule#RuleValidation[Any] = {
+    val p = profiler
+    if(!p.enabled) {
+      rule.evaluate(columnIndex, row, schema, mayBeLast)
+    } else {
+      val start = System.nanoTime()
+      val result = rule.evaluate(columnIndex, row, schema, mayBeLast)
+      p.recordRule(rule, columnIndex, schema, System.nanoTime() - start, result.isInvalid)
+      result
     }
   }
 
-  protected def countRows(reader: JReader, schema: Schema): Int = {
-    val rowsAsHeader =  if(schema.globalDirectives.contains(NoHeader())) 0 else 1
-    Try {
-      val lineReader = new JLineNumberReader(reader) // don't close this JLineNumberReader, because it automatically close original reader.
-                                                     // It's resource/memory safe. JLineReader will be colected by GS.
-      @tailrec
-      def readAll(): Int = {
-        val result = Option(lineReader.readLine())
-        if(result.isEmpty) {
-          lineReader.getLineNumber() + 1 //start from 1 not 0
-        } else {
-          readAll()
-        }
-      }
-      readAll()
-    }.map(_ - rowsAsHeader) getOrElse -1
-  }
-
   protected def withReader[B](textFile: TextFile)(fn: JReader => B): B = {
-    def inputStreamReader(encoding: Charset) : JInputStreamReader = {
-      val bis = new BufferedInputStream(Files.newInputStream(textFile.file))
-      val is = if(encoding == StandardCharsets.UTF_8) {
-        new BOMInputStream(bis)
-      } else {
-        bis
-      }
-      new JInputStreamReader(is, encoding)
-    }
+    def inputStreamReader(encoding: Charset) : JReader =
+      newReader(DecompressingInputStream.open(textFile.file, textFile.zipEntry), encoding)
 
     Using(inputStreamReader(textFile.encoding))(fn) match {
       case util.Failure(ioError) =>
@@ -335,6 +529,19 @@ trait MetaDataValidator {
         result
     }
   }
+
+  /**
+    * Decodes the input stream, any UTF-8
+    * Byte Order Mark is skipped
+    */
+  protected def newReader(is: InputStream, encoding: Charset): JReader = {
+    val in = if(encoding == StandardCharsets.UTF_8) {
+      new BOMInputStream(is)
+    } else {
+      is
+    }
+    new JInputStreamReader(in, encoding)
+  }
 }
 
 trait ProgressCallback {
@@ -348,13 +555,84 @@ trait ProgressCallback {
 
   def update(complete: Percentage): Unit
 
+  /**
+    * Only called when the caller gives the number of rows to validate
+    * in a [[ProgressFor]], as the validator no longer counts them first
+    */
+  @deprecated("progress is reported by update(complete) and processed(rows, bytes)")
   def update(total: Int, processed: Int): Unit = update((processed.toFloat / total.toFloat) * 100)
+
+  /**
+    * Receives the number of rows read so far, and the number of bytes
+    * consumed (or characters, when validating a Reader), or -1 if unknown.
+    *
+    * Called every [[RowIterator.ProcessedInterval]] rows,
+    * and once the last row has been read
+    */
+  def processed(rows: Long, bytes: Long): Unit = {}
+}
+
+/**
+  * The rows parsed from a CSV file, e.g. by a single
+  * [[CsvParser]], or by a [[ChunkedCsvParser]]
+  */
+trait RowSource {
+
+  /**
+    * @return the values of the next row,
+    *         or null if there are no more rows
+    */
+  def parseNext(): Array[String]
+
+  /**
+    * The number of lines to add to the line index of a
+    * [[TextParsingException]] thrown by [[parseNext]]
+    */
+  def lineOffset: Long = 0
+
+  /**
+    * Whether the failures of the rows are to be described in
+    * full, see [[uk.gov.nationalarchives.csv.validator.metadata.Row.detailedMessages]]
+    */
+  def detailedMessages: Boolean = true
+
+  def stopParsing(): Unit
+}
+
+object RowSource {
+  def apply(parser: CsvParser): RowSource = new RowSource {
+    override def parseNext(): Array[String] = parser.parseNext()
+    override def stopParsing(): Unit = parser.stopParsing()
+  }
+
+  /**
+    * Ends the rows of the source once `stop` is true
+    *
+    * @param detailedMessages see [[RowSource.detailedMessages]]
+    */
+  def until(source: RowSource, stop: () => Boolean, detailedMessages: Boolean = true): RowSource = {
+    val detailed = detailedMessages
+    new RowSource {
+      override def parseNext(): Array[String] = if(stop()) null else source.parseNext()
+      override def lineOffset: Long = source.lineOffset
+      override def detailedMessages: Boolean = detailed && source.detailedMessages
+      override def stopParsing(): Unit = source.stopParsing()
+    }
+  }
 }
 
-class RowIterator(parser: CsvParser, progress: Option[ProgressFor], maxCharsPerCell: Int) extends Iterator[Row] {
+class RowIterator(source: RowSource, progress: Option[ProgressFor], maxCharsPerCell: Int, profiler: ValidationProfiler) extends Iterator[Row] {
+
+  def this(parser: CsvParser, progress: Option[ProgressFor], maxCharsPerCell: Int, profiler: ValidationProfiler) =
+    this(RowSource(parser), progress, maxCharsPerCell, profiler)
+
+  def this(parser: CsvParser, progress: Option[ProgressFor], maxCharsPerCell: Int) =
+    this(parser, progress, maxCharsPerCell, ValidationProfiler.Disabled)
 
   private var index = 1
-  private var current = toRow(Try(parser.parseNext()))
+  private var rowsRead = 0L
+  private var reportedPermille = -1
+  private var current = parseNext()
   private var potentialHeaderRow: Option[Row] = None
 
   @throws(classOf[IOException])
@@ -366,7 +644,7 @@ class RowIterator(parser: CsvParser, progress: Option[ProgressFor], maxCharsPerC
       case Failure(ex: TextParsingException) if(ex.toString.contains("exceeds the maximum number of characters")) =>
         val cellLocationMsg =
           potentialHeaderRow match {
-            case Some(headerRow) => s"in the cell located at row: ${ex.getLineIndex}, column: ${headerRow.cells(ex.getColumnIndex).value},"
+            case Some(headerRow) => s"in the cell located at row: ${ex.getLineIndex + source.lineOffset}, column: ${headerRow.value(ex.getColumnIndex)},"
             case None => s"in column ${ex.getColumnIndex + 1} of the header row"
           }
 
@@ -378,13 +656,26 @@ class RowIterator(parser: CsvParser, progress: Option[ProgressFor], maxCharsPerC
 
     //move to the next
     this.index = index + 1
-    this.current = toRow(Try(parser.parseNext()))
+    this.rowsRead = rowsRead + 1
+    this.current = parseNext()
 
     progress map {
-      p =>
+      case ProgressFor(_, callback, Some(BytesProgress(bytesToValidate, bytesRead))) =>
+        val read = bytesRead()
+        if(bytesToValidate > 0) {
+          // only report when the progress has moved on by at least a tenth of a percent
+          val permille = Math.min(1000L, (read * 1000) / bytesToValidate).toInt
+          if(permille != reportedPermille) {
+            reportedPermille = permille
+            callback.update(permille / 10f)
+          }
+        }
+        reportProcessed(callback, read)
+      case p =>
         if(p.rowsToValidate != -1) {
-          p.progress.update(p.rowsToValidate, index)
+          (p.progress.update(p.rowsToValidate, index): @nowarn("cat=deprecation"))
         }
+        reportProcessed(p.progress, -1)
     }
 
     row
@@ -403,5 +694,31 @@ class RowIterator(parser: CsvParser, progress: Option[ProgressFor], maxCharsPerC
     case _ => true
   }
 
-  private def toRow(rowData: Try[Array[String]]): Try[Row] = rowData.map(data => Row(data.toList.map(d => Cell(Option(d).getOrElse(""))), index))
+  private def reportProcessed(callback: ProgressCallback, bytes: Long): Unit =
+    if(rowsRead % RowIterator.ProcessedInterval == 0 || !hasNext) {
+      callback.processed(rowsRead, bytes)
+    }
+
+  private def parseNext(): Try[Row] =
+    if(!profiler.enabled) {
+      toRow(Try(source.parseNext()))
+    } else {
+      val start = System.nanoTime()
+      val row = toRow(Try(source.parseNext()))
+      val end = System.nanoTime()
+      if(row.isSuccess) profiler.recordRowParsed(end - start, end)
+      row
+    }
+
+  // the parser creates a new array for every row, so the row can take ownership of it
+  private def toRow(rowData: Try[Array[String]]): Try[Row] = rowData.map(data => Row.fromValues(data, index, source.detailedMessages))
+}
+
+object RowIterator {
+
+  /**
+    * The number of rows between the reports of
+    * [[ProgressCallback.processed]]
+    */
+  val ProcessedInterval = 1000
 }
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator
+
+import uk.gov.nationalarchives.csv.validator.metadata.Row
+import uk.gov.nationalarchives.csv.validator.schema.{RuleCost, Schema}
+
+import java.io.Closeable
+import java.util.ArrayDeque
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{ExecutorService, Executors, RejectedExecutionException, ThreadFactory}
+import scala.util.control.NonFatal
+
+/**
+  * Configures the prefetching of the files of file rules, see [[FilePrefetcher]].
+  *
+  * @param window the maximum number of rows read ahead of the row being validated,
+  *               and of rows whose files are being prefetched, 0 disables prefetching
+  * @param threads the number of threads which prefetch files
+  */
+case class PrefetchConfig(window: Int = 0, threads: Int = PrefetchConfig.DefaultThreads) {
+  def enabled: Boolean = window > 0
+}
+
+object PrefetchConfig {
+  val DefaultWindow: Int = 256
+  val DefaultThreads: Int = 8
+
+  val Disabled: PrefetchConfig = PrefetchConfig()
+}
+
+/**
+  * Reads rows ahead of their validation, and prefetches the files of their
+  * file rules (e.g. `fileExists`, `checksum` and `fileCount`) on a pool of threads,
+  * see [[uk.gov.nationalarchives.csv.validator.schema.Rule.prefetch]]. The answers
+  * are held by the [[FileSystemCache]] and the [[ChecksumEngine]], so that by the time
+  * a row is validated its files have already been looked at, and the latency of a slow
+  * file system overlaps the validation of the rows before it.
+  *
+  * The rows are given in the order that they were read. At most `window` rows
+  * are held ahead of the row being validated, and at most `window` rows are
+  * waiting for, or having, their files prefetched; rows which are read whilst
+  * that many are queued are not prefetched. A row whose validation has begun
+  * before its files were prefetched is not prefetched at all.
+  *
+  * A failure to read a row is deferred until the rows read before it have been given.
+  */
+private[validator] final class FilePrefetcher(rows: Iterator[Row], schema: Schema, config: PrefetchConfig, profiler: ValidationProfiler) extends Iterator[Row] with Closeable {
+  import FilePrefetcher._
+
+  private val plan = schema.plan
+  private val columns: Array[Int] = fileColumns(schema)
+  private val pool: ExecutorService = Executors.newFixedThreadPool(config.threads, prefetchThreadFactory)
+
+  private val ahead = new ArrayDeque[Row](config.window)
+  private val queued = new AtomicInteger()
+  private var readFailure: Option[Throwable] = None
+  private var readFailed = false
+
+  // the line number of the row most recently given for validation
+  @volatile private var validatingLine = Int.MinValue
+
+  override def hasNext: Boolean = {
+    readAhead()
+    !ahead.isEmpty || readFailure.nonEmpty
+  }
+
+  override def next(): Row = {
+    if(!hasNext) {
+      throw new NoSuchElementException("no more rows")
+    }
+
+    if(ahead.isEmpty) {
+      val failure = readFailure.get
+      readFailure = None
+      throw failure
+    }
+
+    val row = ahead.poll()
+    validatingLine = row.lineNumber
+    row
+  }
+
+  override def close(): Unit = pool.shutdownNow()
+
+  private def readAhead(): Unit = {
+    try {
+      while(!readFailed && (ahead.isEmpty || (ahead.size < config.window && queued.get() < config.window)) && rows.hasNext) {
+        val row = rows.next()
+        ahead.add(row)
+        if(queued.get() < config.window) {
+          submit(row)
+        }
+      }
+    } catch {
+      case NonFatal(e) =>
+        readFailure = Some(e)
+        readFailed = true
+    }
+  }
+
+  private def submit(row: Row): Unit = {
+    profiler.recordPrefetchQueue(queued.incrementAndGet())
+    try {
+      pool.execute(() => {
+        try {
+          if(row.lineNumber > validatingLine) {
+            prefetch(row)
+          }
+        } finally {
+          profiler.recordPrefetchQueue(queued.decrementAndGet())
+        }
+      })
+    } catch {
+      case _: RejectedExecutionException =>
+        queued.decrementAndGet()
+    }
+  }
+
+  private def prefetch(row: Row): Unit = {
+    for(columnIndex <- columns if row.hasCell(columnIndex)) {
+      val columnDefinition = plan.columnDefinition(columnIndex)
+      if(!(columnDefinition.isOptional && row.value(columnIndex).isEmpty)) {
+        for(rule <- columnDefinition.rules) {
+          try {
+            rule.prefetch(columnIndex, row, schema)
+          } catch {
+            // the rule reports the problem when it is evaluated
+            case NonFatal(_) =>
+          }
+        }
+      }
+    }
+  }
+}
+
+private[validator] object FilePrefetcher {
+
+  /**
+    * @return the indexes of the columns which have
+    *         a rule that asks the file system
+    */
+  def fileColumns(schema: Schema): Array[Int] =
+    schema.columnDefinitions.zipWithIndex.collect {
+      case (columnDefinition, columnIndex) if(columnDefinition.rules.exists(_.cost >= RuleCost.FileSystem)) => columnIndex
+    }.toArray
+
+  private val prefetchThreadCount = new AtomicInteger()
+
+  private val prefetchThreadFactory: ThreadFactory = new ThreadFactory {
+    override def newThread(r: Runnable): Thread = {
+      val thread = new Thread(r, s"csv-validator-prefetch-${prefetchThreadCount.incrementAndGet()}")
+      thread.setDaemon(true)
+      thread
+    }
+  }
+}
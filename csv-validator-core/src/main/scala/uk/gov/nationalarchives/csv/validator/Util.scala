@@ -283,14 +283,14 @@ object Util {
       }
     }
 
-    def exists(enforceCaseSensitivePathChecks: Boolean = false): Boolean = {
+    def exists(enforceCaseSensitivePathChecks: Boolean = false, cache: FileSystemCache = FileSystemCache.Disabled): Boolean = {
 
 
       FileSystem.createFile(FileSystem.convertPath2Platform(substitutePath(jointPath))) match {
         case scala.util.Success(f) => {
-          val exists = Files.exists(f) && !f.getFileName.toString.isEmpty
+          val exists = !f.getFileName.toString.isEmpty && cache.exists(f)
           if(exists && enforceCaseSensitivePathChecks) {
-            FileSystem.caseSensitivePathMatchesFs(f)
+            cache.caseSensitivePathMatchesFs(f)
           } else {
             exists
           }
@@ -299,37 +299,17 @@ object Util {
       }
     }
 
-    def scanDir(dir: Path, includeFolder: Boolean): Set[Path] = findAllFiles(dir, includeFolder)
-
-    def findAllFiles(folder: Path, includeFolder : Boolean): Set[Path] = {
-      if (Files.exists(folder)) {
-        val these = listFiles(folder).toSet
-        val head = if (includeFolder) Set(folder) else Nil
-        (head ++ these.filter( f => if (!includeFolder) !Files.isDirectory(f) else true) ++ these.filter(f => Files.isDirectory(f) && !(f.getFileName.toString == "RECYCLER") && !(f.getFileName.toString == "$RECYCLE.BIN")).flatMap(file => findAllFiles(file, includeFolder))).toSet
-      }
-      else
-        throw new FileNotFoundException(s"Cannot find the folder $folder")
-    }
-
-
-
-
-    def integrityCheck(fileMap: Map[String, Set[Path]], enforceCaseSensitivePathChecks: Boolean, topLevelFolder: String, includeFolder: Boolean): Map[String, Set[Path]] = {
+    /**
+      * Marks the file as listed in the metadata
+      * within its content folder
+      */
+    def integrityCheck(index: IntegrityIndex, topLevelFolder: String): Unit = {
       val contentDirectory = contentDir(jointPath, topLevelFolder)
-      val files = fileMap.get(contentDirectory).getOrElse{
-        val theFiles = FileSystem.createFile(FileSystem.convertPath2Platform(contentDirectory)) match
-            {
-              case scala.util.Success(f) => scanDir(f, includeFolder)
-              case scala.util.Failure(_) => Set[Path]()
-            }
-            theFiles
-        }
-      val remainder = FileSystem.createFile(FileSystem.convertPath2Platform(substitutePath(jointPath))) match {
-        case scala.util.Success(f) => files - f
-        case _ => files
-      }
-
-      fileMap.view.filterKeys(_ == contentDirectory).toMap + (contentDirectory -> remainder)
+      index.markListed(
+        contentDirectory,
+        FileSystem.createFile(FileSystem.convertPath2Platform(contentDirectory)).toOption,
+        FileSystem.createFile(FileSystem.convertPath2Platform(substitutePath(jointPath))).toOption
+      )
     }
 
     def expandBasePath: String = {
@@ -0,0 +1,371 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator
+
+import uk.gov.nationalarchives.csv.validator.schema.{Rule, Schema}
+
+import java.io.Closeable
+import java.lang.management.ManagementFactory
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.atomic.{LongAccumulator, LongAdder}
+import javax.management.ObjectName
+import scala.collection.mutable
+import scala.jdk.CollectionConverters._
+
+/**
+  * The statistics of a [[ValidationProfiler]]
+  * which may be watched through JMX while validating
+  */
+trait ValidationProfilerMXBean {
+  def getRowsRead: Long
+  def getRowsPerSecond: Double
+  def getParseMillis: Double
+  def getRuleInvocations: Long
+  def getRuleFailures: Long
+  def getRuleMillis: Double
+
+  /**
+    * @return the number of rows waiting for, or having, their files
+    *         prefetched when a row was last read ahead, see [[FilePrefetcher]]
+    */
+  def getPrefetchQueueDepth: Int
+  def getMaxPrefetchQueueDepth: Int
+
+  /**
+    * @return the [[ProfileReport]] as JSON
+    */
+  def getReport: String
+}
+
+/**
+  * Records where the time goes when validating; how long each rule of the
+  * schema takes to evaluate, how often it fails, how long the CSV takes to
+  * parse, and how many rows are read per second as validation progresses.
+  *
+  * Rules are recorded separately for every column that they appear in, and
+  * only the rules of a column definition are timed, not the rules that they
+  * contain (e.g. the alternatives of an `or`).
+  *
+  * The profiler may be shared by several threads, e.g. when validating rows
+  * in parallel. When disabled, see [[ValidationProfiler.Disabled]], nothing is
+  * recorded and the validators do not read the clock.
+  */
+final class ValidationProfiler private(val enabled: Boolean) extends ValidationProfilerMXBean {
+  import ValidationProfiler._
+
+  private val ruleStats = new ConcurrentHashMap[RuleKey, RuleStats]()
+
+  private val rowsRead = new LongAdder()
+  private val parseNanos = new LongAdder()
+
+  // the clock readings are only written by the thread reading the rows
+  @volatile private var firstRowAt = 0L
+  @volatile private var lastRowAt = 0L
+  @volatile private var nextSampleAt = 0L
+  private var rowsAtLastSample = 0L
+  private var lastSampleAt = 0L
+  private val samples = mutable.ArrayBuffer.empty[ThroughputSample]
+
+  @volatile private var prefetchQueueDepth = 0
+  private val maxPrefetchQueueDepth = new LongAccumulator((a, b) => Math.max(a, b), 0)
+
+  /**
+    * Records the evaluation of a rule
+    *
+    * @param nanos how long the rule took to evaluate
+    * @param failed whether the rule failed
+    */
+  def recordRule(rule: Rule, columnIndex: Int, schema: Schema, nanos: Long, failed: Boolean): Unit = {
+    val key = new RuleKey(columnIndex, rule)
+    var stats = ruleStats.get(key)
+    if(stats == null) {
+      stats = ruleStats.computeIfAbsent(key, _ => new RuleStats(columnIndex, schema.plan.columnDefinition(columnIndex).id.value, rule.toError, rule.pos.line, rule.pos.column))
+    }
+    stats.record(nanos, failed)
+  }
+
+  /**
+    * Records the parsing of a row of the CSV
+    *
+    * @param nanos how long the row took to parse
+    * @param now the value of `System.nanoTime` once the row was parsed
+    */
+  def recordRowParsed(nanos: Long, now: Long): Unit = {
+    rowsRead.increment()
+    parseNanos.add(nanos)
+    lastRowAt = now
+    if(firstRowAt == 0) {
+      synchronized {
+        firstRowAt = now - nanos
+        lastSampleAt = firstRowAt
+        nextSampleAt = firstRowAt + SampleIntervalNanos
+      }
+    } else if(now >= nextSampleAt) {
+      sample(now)
+    }
+  }
+
+  /**
+    * Records the number of rows waiting for, or having,
+    * their files prefetched, see [[FilePrefetcher]]
+    */
+  def recordPrefetchQueue(depth: Int): Unit = if(enabled) {
+    prefetchQueueDepth = depth
+    maxPrefetchQueueDepth.accumulate(depth)
+  }
+
+  private def sample(now: Long): Unit = synchronized {
+    val rows = rowsRead.sum()
+    samples += ThroughputSample((now - firstRowAt) / 1000000, ratePerSecond(rows - rowsAtLastSample, now - lastSampleAt))
+    rowsAtLastSample = rows
+    lastSampleAt = now
+    nextSampleAt = now + SampleIntervalNanos
+  }
+
+  /**
+    * @return a snapshot of what has been recorded so far
+    */
+  def report: ProfileReport = {
+    val rules = ruleStats.values().asScala.map(_.toProfile).toList.sortBy(r => (-r.totalNanos, r.columnIndex))
+    val throughput = synchronized { samples.toList }
+    val elapsed = if(firstRowAt == 0) 0 else lastRowAt - firstRowAt
+    ProfileReport(rowsRead.sum(), parseNanos.sum(), elapsed, rules, throughput, maxPrefetchQueueDepth.get().toInt)
+  }
+
+  /**
+    * Registers this profiler with the platform MBean server
+    *
+    * @param name distinguishes this profiler from any others which are registered
+    * @return closing unregisters the profiler
+    */
+  def registerMBean(name: String): Closeable = {
+    val server = ManagementFactory.getPlatformMBeanServer
+    val objectName = new ObjectName(s"$MBeanDomain:type=ValidationProfiler,name=${ObjectName.quote(name)}")
+    server.registerMBean(this, objectName)
+    new Closeable {
+      override def close(): Unit = if(server.isRegistered(objectName)) server.unregisterMBean(objectName)
+    }
+  }
+
+  override def getRowsRead: Long = rowsRead.sum()
+  override def getRowsPerSecond: Double = ratePerSecond(rowsRead.sum(), lastRowAt - firstRowAt)
+  override def getParseMillis: Double = parseNanos.sum() / 1e6
+  override def getRuleInvocations: Long = ruleStats.values().asScala.map(_.invocations.sum()).sum
+  override def getRuleFailures: Long = ruleStats.values().asScala.map(_.failures.sum()).sum
+  override def getRuleMillis: Double = ruleStats.values().asScala.map(_.nanos.sum()).sum / 1e6
+  override def getPrefetchQueueDepth: Int = prefetchQueueDepth
+  override def getMaxPrefetchQueueDepth: Int = maxPrefetchQueueDepth.get().toInt
+  override def getReport: String = report.toJson
+}
+
+object ValidationProfiler {
+
+  /**
+    * A profiler which records nothing
+    */
+  val Disabled: ValidationProfiler = new ValidationProfiler(false)
+
+  def apply(): ValidationProfiler = new ValidationProfiler(true)
+
+  val MBeanDomain = "uk.gov.nationalarchives.csv.validator"
+
+  /**
+    * How often the rows read per second are sampled
+    */
+  val SampleIntervalNanos: Long = 1000000000L
+
+  private def ratePerSecond(count: Long, nanos: Long): Double =
+    if(nanos <= 0) 0 else count * 1e9 / nanos
+
+  /**
+    * Identifies a rule of a column definition; rules are case classes, so
+    * the same rule in two columns, or twice in one column, would be equal
+    */
+  private final class RuleKey(val columnIndex: Int, val rule: Rule) {
+    override def equals(other: Any): Boolean = other match {
+      case key: RuleKey => key.columnIndex == columnIndex && (key.rule eq rule)
+      case _ => false
+    }
+    override def hashCode: Int = 31 * columnIndex + System.identityHashCode(rule)
+  }
+
+  private final class RuleStats(columnIndex: Int, column: String, rule: String, line: Int, position: Int) {
+    val invocations = new LongAdder()
+    val failures = new LongAdder()
+    val nanos = new LongAdder()
+    private val max = new LongAccumulator((a, b) => Math.max(a, b), 0)
+    private val histogram = new LatencyHistogram()
+
+    def record(elapsed: Long, failed: Boolean): Unit = {
+      invocations.increment()
+      if(failed) failures.increment()
+      nanos.add(elapsed)
+      max.accumulate(elapsed)
+      histogram.record(elapsed)
+    }
+
+    def toProfile: RuleProfile = {
+      val maxNanos = max.get()
+      val counts = histogram.snapshot
+      RuleProfile(columnIndex, column, rule, line, position, invocations.sum(), failures.sum(), nanos.sum(),
+        Math.min(LatencyHistogram.percentile(counts, 0.5), maxNanos),
+        Math.min(LatencyHistogram.percentile(counts, 0.9), maxNanos),
+        Math.min(LatencyHistogram.percentile(counts, 0.99), maxNanos),
+        maxNanos)
+    }
+  }
+}
+
+/**
+  * Counts latencies in buckets whose width grows with the latency, each power
+  * of two is split into eight buckets, so a percentile is within 12.5% of the
+  * true value whilst the histogram stays a fixed size
+  */
+private[validator] final class LatencyHistogram {
+  import LatencyHistogram._
+
+  private val counts = new AtomicLongArray(Buckets)
+
+  def record(nanos: Long): Unit = counts.incrementAndGet(bucketOf(Math.max(0, nanos)))
+
+  def snapshot: Array[Long] = Array.tabulate(Buckets)(counts.get)
+}
+
+private[validator] object LatencyHistogram {
+  private val SubBucketBits = 3
+  private val SubBuckets = 1 << SubBucketBits
+
+  val Buckets: Int = (64 - SubBucketBits) * SubBuckets + SubBuckets
+
+  def bucketOf(nanos: Long): Int =
+    if(nanos < SubBuckets) {
+      nanos.toInt
+    } else {
+      val magnitude = 63 - java.lang.Long.numberOfLeadingZeros(nanos)
+      val subBucket = ((nanos >>> (magnitude - SubBucketBits)) & (SubBuckets - 1)).toInt
+      (magnitude - SubBucketBits + 1) * SubBuckets + subBucket
+    }
+
+  /**
+    * @return the greatest latency which is counted in the bucket
+    */
+  def upperBound(bucket: Int): Long =
+    if(bucket < SubBuckets) {
+      bucket
+    } else {
+      val magnitude = bucket / SubBuckets + SubBucketBits - 1
+      val subBucket = bucket % SubBuckets
+      ((SubBuckets + subBucket + 1).toLong << (magnitude - SubBucketBits)) - 1
+    }
+
+  /**
+    * @param fraction between 0 and 1, e.g. 0.99 for the 99th percentile
+    */
+  def percentile(counts: Array[Long], fraction: Double): Long = {
+    val total = counts.sum
+    if(total == 0) {
+      0
+    } else {
+      val target = Math.max(1, Math.ceil(total * fraction).toLong)
+      var cumulative = 0L
+      var bucket = 0
+      while(bucket < counts.length - 1 && cumulative + counts(bucket) < target) {
+        cumulative += counts(bucket)
+        bucket += 1
+      }
+      upperBound(bucket)
+    }
+  }
+}
+
+/**
+  * The profile of a rule of a column definition, latencies are in nanoseconds
+  *
+  * @param line the line of the rule in the schema
+  * @param position the position of the rule within its line of the schema
+  */
+case class RuleProfile(columnIndex: Int, column: String, rule: String, line: Int, position: Int, invocations: Long, failures: Long, totalNanos: Long, p50Nanos: Long, p90Nanos: Long, p99Nanos: Long, maxNanos: Long)
+
+/**
+  * @param elapsedMillis the time since the first row was read
+  * @param rowsPerSecond the rate at which rows were read since the previous sample
+  */
+case class ThroughputSample(elapsedMillis: Long, rowsPerSecond: Double)
+
+/**
+  * What a [[ValidationProfiler]] recorded, the rules
+  * are ordered by the total time spent evaluating them
+  *
+  * @param elapsedNanos the time between the first and last rows being read
+  * @param maxPrefetchQueueDepth the greatest number of rows waiting for, or having,
+  *                              their files prefetched, 0 when files were not prefetched
+  */
+case class ProfileReport(rowsRead: Long, parseNanos: Long, elapsedNanos: Long, rules: List[RuleProfile], throughput: List[ThroughputSample], maxPrefetchQueueDepth: Int = 0) {
+
+  def rowsPerSecond: Double = if(elapsedNanos <= 0) 0 else rowsRead * 1e9 / elapsedNanos
+
+  /**
+    * @return the report as a table, for people to read
+    */
+  def toTable: String = {
+    val header = Vector("Column", "Rule", "Schema", "Calls", "Failures", "Total ms", "p50 us", "p90 us", "p99 us", "Max us")
+    val rows = rules.map { r =>
+      Vector(r.column, r.rule, s"${r.line}:${r.position}", r.invocations.toString, r.failures.toString,
+        millis(r.totalNanos), micros(r.p50Nanos), micros(r.p90Nanos), micros(r.p99Nanos), micros(r.maxNanos))
+    }
+    val widths = header.indices.map(i => (header +: rows).map(_(i).length).max)
+    // the column and rule are left aligned, the numbers are right aligned
+    def line(cells: Vector[String]): String = cells.zip(widths).zipWithIndex.map {
+      case ((cell, width), i) if i < 2 => cell.padTo(width, ' ')
+      case ((cell, width), _) => " " * (width - cell.length) + cell
+    }.mkString("  ")
+
+    val summary = f"Rows read: $rowsRead in ${elapsedNanos / 1e9}%.3f s ($rowsPerSecond%.1f rows/s), parsing the CSV took ${parseNanos / 1e9}%.3f s" +
+      (if(maxPrefetchQueueDepth > 0) s", at most $maxPrefetchQueueDepth rows were queued for prefetching" else "")
+    (summary +: line(header) +: rows.map(line)).mkString(System.lineSeparator())
+  }
+
+  /**
+    * @return the report as JSON, for tools to read
+    */
+  def toJson: String = {
+    def ruleJson(r: RuleProfile): String =
+      s"""{"columnIndex":${r.columnIndex},"column":${ProfileReport.quote(r.column)},"rule":${ProfileReport.quote(r.rule)},"line":${r.line},"position":${r.position},""" +
+        s""""invocations":${r.invocations},"failures":${r.failures},"totalNanos":${r.totalNanos},"p50Nanos":${r.p50Nanos},"p90Nanos":${r.p90Nanos},"p99Nanos":${r.p99Nanos},"maxNanos":${r.maxNanos}}"""
+
+    def sampleJson(s: ThroughputSample): String =
+      s"""{"elapsedMillis":${s.elapsedMillis},"rowsPerSecond":${ProfileReport.number(s.rowsPerSecond)}}"""
+
+    s"""{"rowsRead":$rowsRead,"parseNanos":$parseNanos,"elapsedNanos":$elapsedNanos,"rowsPerSecond":${ProfileReport.number(rowsPerSecond)},""" +
+      s""""maxPrefetchQueueDepth":$maxPrefetchQueueDepth,"rules":${rules.map(ruleJson).mkString("[", ",", "]")},"throughput":${throughput.map(sampleJson).mkString("[", ",", "]")}}"""
+  }
+
+  private def millis(nanos: Long): String = f"${nanos / 1e6}%.3f"
+  private def micros(nanos: Long): String = f"${nanos / 1e3}%.1f"
+}
+
+object ProfileReport {
+
+  private def number(d: Double): String = f"$d%.3f".replace(',', '.')
+
+  private[validator] def quote(s: String): String = {
+    val sb = new StringBuilder("\"")
+    s.foreach {
+      case '"' => sb.append("\\\"")
+      case '\\' => sb.append("\\\\")
+      case '\n' => sb.append("\\n")
+      case '\r' => sb.append("\\r")
+      case '\t' => sb.append("\\t")
+      case c if c < ' ' => sb.append('\\').append('u').append(f"${c.toInt}%04x")
+      case c => sb.append(c)
+    }
+    sb.append('"').toString
+  }
+}
@@ -11,14 +11,16 @@ package uk.gov.nationalarchives.csv.validator.api
 import cats.data.{Chain, Validated, ValidatedNel}
 import cats.implicits._
 import com.univocity.parsers.csv.{CsvParser, CsvParserSettings}
+import org.apache.commons.io.input.CloseShieldInputStream
 import uk.gov.nationalarchives.csv.validator._
-import uk.gov.nationalarchives.csv.validator.schema.{Quoted, Schema, SchemaParser, Separator}
+import uk.gov.nationalarchives.csv.validator.schema.{Quoted, Schema, SchemaParser, Separator, UniquenessStoreConfig}
 
 import java.io.{Reader => JReader}
 import java.nio.charset.{Charset => JCharset}
-import java.nio.file.Path
+import java.nio.file.{Files, Path}
+import java.util.concurrent.{Callable, ExecutionException, Executors}
 import scala.jdk.CollectionConverters._
-import scala.util.Try
+import scala.util.{Try, Using}
 
 object CsvValidator {
 
@@ -30,11 +32,20 @@ object CsvValidator {
   type PathTo = String
   type SubstitutePath = (PathFrom, PathTo)
 
-  def createValidator(failFast: Boolean, pathSubstitutionsList: List[SubstitutePath], enforceCaseSensitivePathChecksSwitch: Boolean, traceSwitch: Boolean, skipFileChecksSwitch: Boolean, maxCharsPerCellLimit: Int) = {
+  /**
+    * @param parallelismLevel the number of threads used to validate rows,
+    *                         only used when reporting all errors (i.e. not `failFast`)
+    * @param uniquenessStore how the distinct values seen by `unique` rules are stored
+    * @param checksums calculates the checksums for `checksum` rules, the caller is responsible for closing it
+    * @param profile records the time spent parsing the CSV and evaluating each rule
+    * @param parseParallelismLevel the number of threads used to parse a large CSV file
+    * @param prefetchConfig whether, and how far, rows are read ahead to prefetch the files of their file rules
+    */
+  def createValidator(failFast: Boolean, pathSubstitutionsList: List[SubstitutePath], enforceCaseSensitivePathChecksSwitch: Boolean, traceSwitch: Boolean, skipFileChecksSwitch: Boolean, maxCharsPerCellLimit: Int, parallelismLevel: Int = 1, uniquenessStore: UniquenessStoreConfig = UniquenessStoreConfig(), checksums: ChecksumEngine = ChecksumEngine.Default, profile: ValidationProfiler = ValidationProfiler.Disabled, parseParallelismLevel: Int = 1, prefetchConfig: PrefetchConfig = PrefetchConfig.Disabled) = {
     if(failFast) {
-      new CsvValidator with FailFastMetaDataValidator { val pathSubstitutions = pathSubstitutionsList; val enforceCaseSensitivePathChecks = enforceCaseSensitivePathChecksSwitch; val trace = traceSwitch; val skipFileChecks = skipFileChecksSwitch; val maxCharsPerCell = maxCharsPerCellLimit}
+      new CsvValidator with FailFastMetaDataValidator { val pathSubstitutions = pathSubstitutionsList; val enforceCaseSensitivePathChecks = enforceCaseSensitivePathChecksSwitch; val trace = traceSwitch; val skipFileChecks = skipFileChecksSwitch; val maxCharsPerCell = maxCharsPerCellLimit; override val uniquenessStoreConfig = uniquenessStore; override val checksumEngine = checksums; override val profiler = profile; override val parseParallelism = parseParallelismLevel; override val prefetch = prefetchConfig }
     } else {
-      new CsvValidator with AllErrorsMetaDataValidator { val pathSubstitutions = pathSubstitutionsList; val enforceCaseSensitivePathChecks = enforceCaseSensitivePathChecksSwitch; val trace = traceSwitch; val skipFileChecks = skipFileChecksSwitch; val maxCharsPerCell = maxCharsPerCellLimit }
+      new CsvValidator with AllErrorsMetaDataValidator { val pathSubstitutions = pathSubstitutionsList; val enforceCaseSensitivePathChecks = enforceCaseSensitivePathChecksSwitch; val trace = traceSwitch; val skipFileChecks = skipFileChecksSwitch; val maxCharsPerCell = maxCharsPerCellLimit; override val parallelism = parallelismLevel; override val uniquenessStoreConfig = uniquenessStore; override val checksumEngine = checksums; override val profiler = profile; override val parseParallelism = parseParallelismLevel; override val prefetch = prefetchConfig }
     }
   }
 }
@@ -46,8 +57,14 @@ object CsvValidator {
   *
   * If no encoding is specified, then UTF-8 will
   * be assumed.
+  *
+  * A file which is compressed with gzip, or is a zip file,
+  * is decompressed as it is read, see [[Compression]].
+  *
+  * @param zipEntry the entry of a zip file to read, which
+  *                 may be omitted when the zip file holds one file
   */
-case class TextFile(file: Path, encoding: JCharset = CsvValidator.DEFAULT_ENCODING, validateEncoding: Boolean = true)
+case class TextFile(file: Path, encoding: JCharset = CsvValidator.DEFAULT_ENCODING, validateEncoding: Boolean = true, zipEntry: Option[String] = None)
 
 trait CsvValidator extends SchemaParser {
   this: MetaDataValidator =>
@@ -87,31 +104,197 @@ trait CsvValidator extends SchemaParser {
     }
   }
   
+  /**
+    * Validates the CSV file in a single pass over its bytes; the UTF-8 encoding
+    * (if required) is checked as the bytes are read by the CSV parser, and
+    * progress is reported by the bytes of the file consumed.
+    *
+    * A compressed file is decompressed as it is read, its encoding is checked
+    * over the decompressed bytes, whereas its progress is reported by the
+    * compressed bytes consumed.
+    *
+    * When [[parseParallelism]] is greater than 1, a large uncompressed file is
+    * instead parsed in chunks on several threads, see [[ChunkedCsvParser]], and
+    * its UTF-8 encoding is checked at the same time on another thread.
+    *
+    * The result of the encoding validation is passed to the `rowCallback`
+    * once all of the rows have been validated.
+    *
+    * @param checkpoints when present, the state of the validation is saved
+    *                    periodically, so that it may be resumed should it be
+    *                    interrupted, see [[CheckpointSettings]]. When resuming,
+    *                    the rows before the checkpoint are read but not validated
+    *                    again, so their failures are not passed to the `rowCallback`,
+    *                    although they are accounted for in the result.
+    */
   def validateCsvFile(
     csvFile: TextFile,
     csvSchema: Schema,
     progress: Option[ProgressCallback],
-    rowCallback: MetaDataValidation[Any] => Unit
+    rowCallback: MetaDataValidation[Any] => Unit,
+    checkpoints: Option[CheckpointSettings] = None
+  ): Boolean = validateCsvFileUntil(csvFile, csvSchema, progress, rowCallback, () => false, detailedMessages = true, checkpoints)
+
+  /**
+    * Validates the CSV file, see [[validateCsvFile]], passing each
+    * failure to the sink rather than each row to a callback.
+    *
+    * Once the sink is saturated, e.g. by [[ErrorSink.capped]], the rest
+    * of the file is neither read nor has its encoding validated; and the
+    * messages of failures are only built when the sink needs them.
+    *
+    * @return true if the CSV file is valid, which it is
+    *         not when the validation was stopped by the sink
+    */
+  def validateCsvFileToSink(
+    csvFile: TextFile,
+    csvSchema: Schema,
+    progress: Option[ProgressCallback],
+    sink: ErrorSink,
+    checkpoints: Option[CheckpointSettings] = None
+  ): Boolean =
+    withErrorSink(sink) { (rowCallback, stop, detailedMessages) =>
+      validateCsvFileUntil(csvFile, csvSchema, progress, rowCallback, stop, detailedMessages, checkpoints)
+    }
+
+  private def validateCsvFileUntil(
+    csvFile: TextFile,
+    csvSchema: Schema,
+    progress: Option[ProgressCallback],
+    rowCallback: MetaDataValidation[Any] => Unit,
+    stop: () => Boolean,
+    detailedMessages: Boolean,
+    checkpoints: Option[CheckpointSettings]
   ): Boolean = {
 
-    val encodingValidationNel: MetaDataValidation[Any] = validateCsvFileEncoding(csvFile).getOrElse(true.validNel[FailMessage])
-    rowCallback(encodingValidationNel)
+    val checkpointer: Either[String, Option[Checkpointer]] = checkpoints match {
+      case Some(settings) =>
+        val fingerprint = Fingerprint.of(csvFile.file, csvSchema)
+        val resumeFrom = if(settings.resume) Checkpoint.resume(settings.file, fingerprint, csvSchema.plan) else Right(None)
+        resumeFrom.map(from => Some(new Checkpointer(settings, fingerprint, csvSchema.plan, from)))
+      case None =>
+        Right(None)
+    }
 
-    val csvValidation = withReader(csvFile) {
-      reader =>
-        val totalRows = countRows(csvFile)
-        validateKnownRows(reader, csvSchema, this.maxCharsPerCell, progress.map(p => {ProgressFor(totalRows, p)} ), rowCallback)
+    checkpointer match {
+      case Left(message) =>
+        rowCallback(FailMessage(ValidationError, message).invalidNel[Any])
+        false
+
+      case Right(checkpointer) =>
+        // a compressed file can only be read from its start
+        val chunked = if(parseParallelism > 1 && Compression.of(csvFile.file) == Compression.Uncompressed) {
+          ChunkedCsvParser.open(csvFile.file, csvFile.encoding, parseParallelism, () => createCsvParserSettings(csvSchema, this.maxCharsPerCell), newReader(_, csvFile.encoding))
+        } else {
+          None
+        }
+
+        chunked match {
+          case Some(parser) =>
+            validateChunkedCsvFile(csvFile, parser, csvSchema, progress, rowCallback, stop, detailedMessages, checkpointer)
+          case None =>
+            validateSequentialCsvFile(csvFile, csvSchema, progress, rowCallback, stop, detailedMessages, checkpointer)
+        }
+    }
+  }
+
+  private def validateSequentialCsvFile(
+    csvFile: TextFile,
+    csvSchema: Schema,
+    progress: Option[ProgressCallback],
+    rowCallback: MetaDataValidation[Any] => Unit,
+    stop: () => Boolean,
+    detailedMessages: Boolean,
+    checkpointer: Option[Checkpointer]
+  ): Boolean = {
+
+    val result = Using(DecompressingInputStream.open(csvFile.file, csvFile.zipEntry)) {
+      decompressing =>
+        val utf8Validation = if(requiresEncodingValidation(csvFile)) Some(new Utf8ValidatingInputStream(decompressing)) else None
+        val in = utf8Validation.getOrElse(decompressing)
+
+        // the parser closes its reader when it finishes, but any bytes it did not read must still be validated
+        val reader = newReader(CloseShieldInputStream.wrap(in), csvFile.encoding)
+        val bytesProgress = BytesProgress(Files.size(csvFile.file), () => decompressing.fileBytesRead)
+        val rows = RowSource.until(parseRows(reader, csvSchema, this.maxCharsPerCell), stop, detailedMessages)
+        val csvValidation = validateRowSource(rows, csvSchema, this.maxCharsPerCell, progress.map(p => ProgressFor(-1, p, Some(bytesProgress))), rowCallback, checkpointer, bytesProgress.bytesRead)
+
+        if(stop()) {
+          false
+        } else {
+          val encodingValidationNel: MetaDataValidation[Any] = utf8Validation.map { utf8 =>
+            utf8.drain()
+            toUtf8Validation(utf8.errors)
+          }.getOrElse(true.validNel[FailMessage])
+          rowCallback(encodingValidationNel)
+
+          encodingValidationNel.isValid && csvValidation
+        }
+    }
+
+    result match {
+      case util.Failure(ioError) =>
+        throw ioError
+      case util.Success(valid) =>
+        valid
     }
-    encodingValidationNel.isValid && csvValidation
   }
 
+  private def validateChunkedCsvFile(
+    csvFile: TextFile,
+    parser: ChunkedCsvParser,
+    csvSchema: Schema,
+    progress: Option[ProgressCallback],
+    rowCallback: MetaDataValidation[Any] => Unit,
+    stop: () => Boolean,
+    detailedMessages: Boolean,
+    checkpointer: Option[Checkpointer]
+  ): Boolean = {
 
-  def validateCsvFileEncoding(csvFile: TextFile): Option[MetaDataValidation[Any]] = csvFile match {
-      // validateCsvFileEncoding(csvFile).getOrElse(true.validNel[FailMessage])
+    val encodingExecutor = Executors.newSingleThreadExecutor(ChunkedCsvParser.parserThreadFactory)
+    try {
+      val encodingValidation = encodingExecutor.submit(new Callable[Option[MetaDataValidation[Any]]] {
+        override def call(): Option[MetaDataValidation[Any]] = validateCsvFileEncoding(csvFile)
+      })
+
+      val bytesProgress = BytesProgress(Files.size(csvFile.file), () => parser.bytesRead)
+      val csvValidation = validateRowSource(RowSource.until(parser, stop, detailedMessages), csvSchema, this.maxCharsPerCell, progress.map(p => ProgressFor(-1, p, Some(bytesProgress))), rowCallback, checkpointer, bytesProgress.bytesRead)
+
+      if(stop()) {
+        encodingValidation.cancel(true)
+        false
+      } else {
+        val encodingValidationNel: MetaDataValidation[Any] = try {
+          encodingValidation.get().getOrElse(true.validNel[FailMessage])
+        } catch {
+          case e: ExecutionException if e.getCause != null => throw e.getCause
+        }
+        rowCallback(encodingValidationNel)
+
+        encodingValidationNel.isValid && csvValidation
+      }
+    } finally {
+      encodingExecutor.shutdownNow()
+    }
+  }
+
+
+  def validateCsvFileEncoding(csvFile: TextFile): Option[MetaDataValidation[Any]] =
+    if(!requiresEncodingValidation(csvFile)) {
+      None
+    } else if(Compression.of(csvFile.file) == Compression.Uncompressed) {
+      Some(validateUtf8Encoding(csvFile.file))
+    } else {
+      Some(Using.resource(new Utf8ValidatingInputStream(DecompressingInputStream.open(csvFile.file, csvFile.zipEntry))) { utf8 =>
+        utf8.drain()
+        toUtf8Validation(utf8.errors)
+      })
+    }
 
-    case TextFile(_, _, false) => None
-    case TextFile(_, encoding, _) if !encoding.equals(CsvValidator.UTF_8) => None
-    case TextFile(file, _, true)  => Some(validateUtf8Encoding(file))
+  private def requiresEncodingValidation(csvFile: TextFile): Boolean = csvFile match {
+    case TextFile(_, _, false, _) => false
+    case TextFile(_, encoding, _, _) if !encoding.equals(CsvValidator.UTF_8) => false
+    case TextFile(_, _, true, _)  => true
   }
 
   def parseSchema(csvSchemaFile: TextFile): ValidatedNel[FailMessage, Schema] = {
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator.api
+
+import cats.data.{Validated, ValidatedNel}
+import uk.gov.nationalarchives.csv.validator.FailMessage
+import uk.gov.nationalarchives.csv.validator.schema.Schema
+
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicBoolean
+import scala.util.Try
+
+/**
+  * The parsed copies of a CSV Schema, which may be used to validate
+  * any number of CSV files, from any number of threads at the same time.
+  *
+  * Rules remember what they have seen whilst validating (e.g. the values
+  * seen by `unique`), so each validation borrows a copy of the schema for
+  * itself. Once the validation has finished, the copy is given back, reset
+  * and kept for the next validation; the schema is only parsed again when
+  * more validations are running at the same time than ever before.
+  *
+  * @param parse parses a copy of the schema, each copy should be parsed by
+  *              its own validator, so that the copies do not share a file system cache
+  */
+final class SchemaPool(parse: () => ValidatedNel[FailMessage, Schema]) {
+
+  private val idle = new ConcurrentLinkedQueue[Schema]()
+
+  /**
+    * The result of the first parse is
+    * kept, as it holds any schema errors
+    */
+  private lazy val first: ValidatedNel[FailMessage, Schema] = parse()
+  private val firstBorrowed = new AtomicBoolean(false)
+
+  /**
+    * @return the errors in the schema, parsing it if it has not yet been parsed
+    */
+  def schemaErrors: List[FailMessage] = first.fold(_.toList, _ => Nil)
+
+  /**
+    * @return a copy of the schema which no other validation is using,
+    *         or the errors in the schema
+    */
+  def borrow(): ValidatedNel[FailMessage, Schema] = first match {
+    case invalid @ Validated.Invalid(_) => invalid
+    case Validated.Valid(schema) =>
+      if(firstBorrowed.compareAndSet(false, true)) {
+        Validated.valid(schema)
+      } else {
+        Option(idle.poll()).map(Validated.valid).getOrElse(parse())
+      }
+  }
+
+  /**
+    * Keeps the copy for the next validation, unless it cannot be reset
+    */
+  def giveBack(schema: Schema): Unit =
+    if(Try(schema.plan.reset()).isSuccess) {
+      idle.offer(schema)
+    }
+
+  /**
+    * Releases the resources of a copy which is not to be kept,
+    * e.g. as its validation failed part way through a row
+    */
+  def discard(schema: Schema): Unit = Try(schema.plan.reset())
+
+  /**
+    * Releases the resources of the copies which are not being
+    * used, resetting closes the stores of the unique rules
+    */
+  def close(): Unit =
+    Iterator.continually(idle.poll()).takeWhile(_ != null).foreach(discard)
+}
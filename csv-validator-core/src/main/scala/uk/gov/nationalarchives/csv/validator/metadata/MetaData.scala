@@ -8,6 +8,82 @@
  */
 package uk.gov.nationalarchives.csv.validator.metadata
 
-case class Row(cells: List[Cell], lineNumber: Int)
+import scala.collection.immutable.ArraySeq
+
+/**
+  * A row of a CSV file.
+  *
+  * The values of the cells are held in an array, which is usually
+  * the array produced by the CSV parser for the row, so that any cell
+  * may be accessed in constant time without copying the row.
+  * The array must not be modified once the row has been created.
+  *
+  * @param detailedMessages whether the message of a failure of the row describes
+  *                         the row and value, or just the rule which failed, see
+  *                         `ErrorSink.needsMessages`. This belongs to the validation
+  *                         which read the row, so is not part of its equality.
+  */
+final class Row private (private val cellValues: Array[String], val lineNumber: Int, val detailedMessages: Boolean) extends Serializable {
+
+  /**
+    * The number of cells in the row
+    */
+  def length: Int = cellValues.length
+
+  /**
+    * @return the value of the cell at the index
+    * @throws IndexOutOfBoundsException if the row has no such cell
+    */
+  def value(columnIndex: Int): String = cellValues(columnIndex)
+
+  /**
+    * @return the value of the cell at the index,
+    *         or None if the row has no such cell
+    */
+  def valueOption(columnIndex: Int): Option[String] =
+    if(columnIndex >= 0 && columnIndex < cellValues.length) Some(cellValues(columnIndex)) else None
+
+  def hasCell(columnIndex: Int): Boolean = columnIndex >= 0 && columnIndex < cellValues.length
+
+  /**
+    * The cells of the row. Prefer [[value]], which does not create a [[Cell]] for every cell.
+    */
+  def cells: IndexedSeq[Cell] = ArraySeq.unsafeWrapArray(cellValues).map(Cell)
+
+  /**
+    * The values of the cells of the row
+    */
+  def values: IndexedSeq[String] = ArraySeq.unsafeWrapArray(cellValues)
+
+  override def equals(other: Any): Boolean = other match {
+    case that: Row => lineNumber == that.lineNumber && java.util.Arrays.equals(cellValues.asInstanceOf[Array[AnyRef]], that.cellValues.asInstanceOf[Array[AnyRef]])
+    case _ => false
+  }
+
+  override def hashCode(): Int = 31 * java.util.Arrays.hashCode(cellValues.asInstanceOf[Array[AnyRef]]) + lineNumber
+
+  override def toString: String = s"Row(${cells.mkString("List(", ", ", ")")},$lineNumber)"
+}
+
+object Row {
+
+  def apply(cells: Seq[Cell], lineNumber: Int): Row = new Row(cells.map(_.value).toArray, lineNumber, true)
+
+  /**
+    * Creates a row which holds the array of values, without copying it.
+    * `null` values, which the CSV parser produces for empty unquoted cells,
+    * are replaced by the empty string in the array.
+    */
+  def fromValues(values: Array[String], lineNumber: Int, detailedMessages: Boolean = true): Row = {
+    var i = 0
+    while(i < values.length) {
+      if(values(i) == null) values(i) = ""
+      i += 1
+    }
+    new Row(values, lineNumber, detailedMessages)
+  }
+
+  def unapply(row: Row): Some[(IndexedSeq[Cell], Int)] = Some((row.cells, row.lineNumber))
+}
 
 case class Cell(value: String)
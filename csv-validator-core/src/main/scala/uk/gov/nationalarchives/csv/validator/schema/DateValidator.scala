@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator.schema
+
+import org.joda.time.DateTimeZone
+
+/**
+  * Validates the values of a date or time rule, giving the instant
+  * that a value denotes so that it may be compared with a range.
+  *
+  * A value is valid when it matches the regular expression of the rule,
+  * and is then successfully parsed by its [[DateParser]]; the instant is
+  * that of the parsed `DateTime`. See [[DateParser.validator]].
+  */
+trait DateValidator {
+
+  /**
+    * @return the instant denoted by the value in milliseconds
+    *         from the epoch, or [[DateValidator.Invalid]]
+    */
+  def toEpochMillis(value: String): Long
+}
+
+object DateValidator {
+
+  /**
+    * Returned for a value which is not valid, no valid
+    * value can denote an instant so far in the past
+    */
+  final val Invalid = Long.MinValue
+
+  /**
+    * Matches the regular expression and then parses the value with
+    * the parser, as the date and time rules have always done
+    */
+  def matchThenParse(dateRegex: String, dateParser: DateParser): DateValidator = new DateValidator {
+    private val pattern = RegexCache.getCompiledRegex(dateRegex)
+
+    override def toEpochMillis(value: String): Long =
+      if(pattern.matcher(value).matches()) dateParser.parse(value).map(_.getMillis).getOrElse(Invalid) else Invalid
+  }
+}
+
+/**
+  * Validates the XSD forms of date, time and date-time values in
+  * a single pass over their characters, and without allocating,
+  * giving the same results as [[DateValidator.matchThenParse]] with
+  * the corresponding XSD regular expression and ISO parser.
+  *
+  * Values which are rare and whose treatment by the parser is subtle,
+  * i.e. an hour or a time zone offset of 24, are given to `fallback`.
+  *
+  * @param date whether the value has a date, `-?yyyy-MM-dd`
+  * @param time whether the value has a time, `HH:mm:ss(.SSS)?`,
+  *             after a `T` when there is also a date
+  * @param zoneRequired whether the value must end with a time
+  *                     zone, `Z` or `(+|-)HH:mm`, which is otherwise optional
+  */
+private[schema] final class XsdDateTimeValidator(date: Boolean, time: Boolean, zoneRequired: Boolean, fallback: DateValidator) extends DateValidator {
+  import DateValidator.Invalid
+  import XsdDateTimeValidator._
+
+  override def toEpochMillis(value: String): Long = {
+    val length = value.length
+    var i = 0
+    var days = 0L
+    var millisOfDay = 0L
+
+    if(date) {
+      val negative = length > 0 && value.charAt(0) == '-'
+      if(negative) i += 1
+      if(i + 10 > length) return Invalid
+      val year = digits(value, i, 4)
+      if(year < 0 || value.charAt(i + 4) != '-' || value.charAt(i + 7) != '-') return Invalid
+      val month = digits(value, i + 5, 2)
+      val day = digits(value, i + 8, 2)
+      if(month < 1 || month > 12 || day < 1 || day > maxDayOfMonth(month)) return Invalid
+      val signedYear = if(negative) -year else year
+      // matched by the regular expression, but not a date in the ISO calendar
+      if(month == 2 && day == 29 && !isLeapYear(signedYear)) return Invalid
+      days = epochDay(signedYear, month, day)
+      i += 10
+    }
+
+    if(time) {
+      if(date) {
+        if(i >= length || value.charAt(i) != 'T') return Invalid
+        i += 1
+      }
+      if(i + 8 > length || value.charAt(i + 2) != ':' || value.charAt(i + 5) != ':') return Invalid
+      val hour = digits(value, i, 2)
+      val minute = digits(value, i + 3, 2)
+      val second = digits(value, i + 6, 2)
+      if(hour < 0 || hour > 24 || minute < 0 || minute > 59 || second < 0 || second > 59) return Invalid
+      if(hour == 24) return fallback.toEpochMillis(value)
+      i += 8
+      var millis = 0
+      if(i < length && value.charAt(i) == '.') {
+        if(i + 4 > length) return Invalid
+        millis = digits(value, i + 1, 3)
+        if(millis < 0) return Invalid
+        i += 4
+      }
+      millisOfDay = ((hour * 60L + minute) * 60L + second) * 1000L + millis
+    }
+
+    val local = days * MillisPerDay + millisOfDay
+
+    if(i == length) {
+      if(zoneRequired) Invalid else inDefaultZone(local)
+    } else if(value.charAt(i) == 'Z') {
+      if(i + 1 == length) local else Invalid
+    } else if(value.charAt(i) == '+' || value.charAt(i) == '-') {
+      if(i + 6 != length || value.charAt(i + 3) != ':') return Invalid
+      val hours = digits(value, i + 1, 2)
+      val minutes = digits(value, i + 4, 2)
+      if(hours < 0 || hours > 24 || minutes < 0 || minutes > 59) return Invalid
+      if(hours == 24) return fallback.toEpochMillis(value)
+      val offset = (hours * 60L + minutes) * MillisPerMinute
+      if(value.charAt(i) == '+') local - offset else local + offset
+    } else {
+      Invalid
+    }
+  }
+}
+
+private[schema] object XsdDateTimeValidator {
+
+  private[schema] final val MillisPerMinute = 60L * 1000L
+  private[schema] final val MillisPerDay = 24L * 60L * MillisPerMinute
+
+  /**
+    * @return the value of the ASCII digits, or -1
+    *         if any of the characters is not a digit
+    */
+  private[schema] def digits(value: String, from: Int, count: Int): Int = {
+    var result = 0
+    var i = from
+    while(i < from + count) {
+      val c = value.charAt(i)
+      if(c < '0' || c > '9') return -1
+      result = result * 10 + (c - '0')
+      i += 1
+    }
+    result
+  }
+
+  /**
+    * The last day of the month allowed by the regular
+    * expressions, which allow the 29th of February in any year
+    */
+  private[schema] def maxDayOfMonth(month: Int): Int = month match {
+    case 2 => 29
+    case 4 | 6 | 9 | 11 => 30
+    case _ => 31
+  }
+
+  private[schema] def isLeapYear(year: Int): Boolean = year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)
+
+  /**
+    * The number of days from 1970-01-01 in the proleptic
+    * Gregorian calendar, as used by the ISO chronology
+    */
+  private[schema] def epochDay(year: Int, month: Int, day: Int): Long = {
+    // counts years from March, so that the leap day is the last of the year
+    val y = if(month <= 2) year - 1 else year
+    val era = Math.floorDiv(y, 400)
+    val yearOfEra = y - era * 400
+    val dayOfYear = (153 * ((month + 9) % 12) + 2) / 5 + day - 1
+    val dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear
+    era * 146097L + dayOfEra - 719468L
+  }
+
+  /**
+    * Converts a local date-time to an instant in the default time zone,
+    * as the parser does when the value has no time zone offset; a local
+    * date-time which does not exist in that zone, i.e. one skipped when
+    * the clocks went forward, is invalid
+    */
+  private[schema] def inDefaultZone(local: Long): Long = {
+    val zone = DateTimeZone.getDefault
+    val offset = zone.getOffsetFromLocal(local)
+    val instant = local - offset
+    if(zone.getOffset(instant) == offset) instant else DateValidator.Invalid
+  }
+}
+
+/**
+  * Validates the values of `ukDate` in a single pass over their
+  * characters, and without allocating, giving the same results as
+  * [[DateValidator.matchThenParse]] with `UkDateRegex` and the
+  * `UkDateFormat` parser (whose year of era may not be 0).
+  */
+private[schema] object UkDateValidator extends DateValidator {
+  import DateValidator.Invalid
+  import XsdDateTimeValidator._
+
+  override def toEpochMillis(value: String): Long = {
+    if(value.length != 10 || value.charAt(2) != '/' || value.charAt(5) != '/') return Invalid
+    val day = digits(value, 0, 2)
+    val month = digits(value, 3, 2)
+    val year = digits(value, 6, 4)
+    if(month < 1 || month > 12 || day < 1 || day > maxDayOfMonth(month) || year < 1) return Invalid
+    if(month == 2 && day == 29 && !isLeapYear(year)) return Invalid
+    inDefaultZone(epochDay(year, month, day) * MillisPerDay)
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator.schema
+
+import uk.gov.nationalarchives.csv.validator.FileSystemCache
+import uk.gov.nationalarchives.csv.validator.metadata.Row
+
+import java.io.{DataInput, DataOutput}
+import java.util.{HashMap => JHashMap}
+
+/**
+  * The compiled form of a [[Schema]], which the validator runs against.
+  *
+  * Everything that can be derived from the schema alone is resolved
+  * once, when the plan is compiled, rather than for every row or cell:
+  * column identifiers are resolved to their indexes, the global directives
+  * become flags, and each rule is given the opportunity to precompile
+  * its arguments (see [[Rule.compile]]).
+  *
+  * A plan is immutable, apart from the per-thread results of shared
+  * conditions and the file system caches of its rules, and may be shared between threads. Use [[Schema.plan]] to obtain the plan for a schema.
+  */
+final class ExecutionPlan private (val schema: Schema) {
+
+  private val columns: Array[ColumnDefinition] = schema.columnDefinitions.toArray
+
+  private val columnIndexes: JHashMap[ColumnIdentifier, Integer] = {
+    val indexes = new JHashMap[ColumnIdentifier, Integer]()
+    // the first column with an identifier wins, as with `indexWhere`
+    for(i <- columns.indices.reverse) {
+      indexes.put(columns(i).id, i)
+    }
+    indexes
+  }
+
+  private val stateful: Array[Boolean] = columns.map(_.rules.exists(_.isStateful))
+
+  // filled whilst the plan is compiled, see shareCondition
+  private val sharedConditions = new JHashMap[(Rule, ColumnReference), Integer]()
+
+  // filled whilst the plan is compiled, see useFileSystemCache
+  private val fileSystemCaches = scala.collection.mutable.ArrayBuffer.empty[FileSystemCache]
+
+  // the row for which each slot (with and without ignoreCase) was last evaluated by the thread, and its result
+  private lazy val conditionResults: ThreadLocal[(Array[Row], Array[Boolean])] =
+    ThreadLocal.withInitial(() => (new Array[Row](sharedConditions.size * 2), new Array[Boolean](sharedConditions.size * 2)))
+
+  val totalColumns: Option[BigInt] = schema.globalDirectives.collectFirst {
+    case TotalColumns(numberOfColumns) => numberOfColumns
+  }
+
+  val noHeader: Boolean = schema.globalDirectives.contains(NoHeader())
+
+  val permitEmpty: Boolean = schema.globalDirectives.contains(PermitEmpty())
+
+  val ignoreColumnNameCase: Boolean = schema.globalDirectives.contains(IgnoreColumnNameCase())
+
+  /**
+    * The number of columns defined by the schema
+    */
+  def columnCount: Int = columns.length
+
+  def columnDefinition(columnIndex: Int): ColumnDefinition = columns(columnIndex)
+
+  /**
+    * @return the index of the first column with the identifier,
+    *         or -1 if there is no such column
+    */
+  def columnIndex(id: ColumnIdentifier): Int = {
+    val index = columnIndexes.get(id)
+    if(index == null) -1 else index.intValue
+  }
+
+  /**
+    * @return true if any of the rules for the column are stateful,
+    *         see [[Rule.isStateful]]
+    */
+  def hasStatefulRule(columnIndex: Int): Boolean = stateful(columnIndex)
+
+  /**
+    * Called by rules with conditions, see [[ConditionSharing]], whilst
+    * the plan is compiled. A condition which is not stateful and reads a
+    * single explicit column, e.g. `$type/is("file")`, gives the same result
+    * for every rule of a row in which it appears, so equal conditions are
+    * given the same slot, and are evaluated at most once per row.
+    *
+    * @return the slot of the condition, or -1 if its result may not be shared
+    */
+  private[schema] def shareCondition(condition: Rule): Int =
+    if(condition.isStateful || condition.explicitColumns.length != 1) {
+      -1
+    } else {
+      sharedConditions.computeIfAbsent((condition, condition.explicitColumns.head), _ => Integer.valueOf(sharedConditions.size)).intValue
+    }
+
+  /**
+    * The result of the condition in the slot for the row, evaluating it
+    * only if it has not already been evaluated for the row by this thread.
+    * The result also depends upon whether the column of the rule which
+    * evaluates the condition ignores case.
+    */
+  private[schema] def sharedCondition(slot: Int, ignoreCase: Boolean, row: Row)(valid: => Boolean): Boolean = {
+    val (rows, results) = conditionResults.get()
+    val i = slot * 2 + (if(ignoreCase) 1 else 0)
+    if(rows(i) eq row) {
+      results(i)
+    } else {
+      val result = valid
+      rows(i) = row
+      results(i) = result
+      result
+    }
+  }
+
+  /**
+    * Records a cache of the file system used by a rule,
+    * whilst the plan is compiled, see [[clearFileSystemCaches]]
+    */
+  private[schema] def useFileSystemCache(cache: FileSystemCache): Unit =
+    if(!fileSystemCaches.exists(_ eq cache)) fileSystemCaches += cache
+
+  /**
+    * Forgets what the rules of the schema have been told by the file
+    * system, which may have changed since the schema last validated
+    */
+  def clearFileSystemCaches(): Unit = fileSystemCaches.foreach(_.clear())
+
+  /**
+    * Resets every rule of the schema, see [[Rule.reset]], so that the
+    * schema may be used to validate another CSV file. Must not be
+    * called whilst the schema is being used to validate.
+    */
+  def reset(): Unit = columns.foreach(_.rules.foreach(_.reset()))
+
+  /**
+    * Writes the state of every rule of the schema, see [[Rule.saveState]],
+    * so that a validation may be resumed from a checkpoint. Must not be
+    * called whilst a row is being validated.
+    */
+  def saveState(out: DataOutput): Unit = columns.foreach(_.rules.foreach(_.saveState(out)))
+
+  /**
+    * Restores the state written by [[saveState]], for the same
+    * schema, to its rules, which must have been reset
+    */
+  def restoreState(in: DataInput): Unit = columns.foreach(_.rules.foreach(_.restoreState(in)))
+}
+
+object ExecutionPlan {
+
+  def compile(schema: Schema): ExecutionPlan = {
+    val plan = new ExecutionPlan(schema)
+    for {
+      columnDefinition <- schema.columnDefinitions
+      rule <- columnDefinition.rules
+    } rule.compile(plan)
+    plan
+  }
+}
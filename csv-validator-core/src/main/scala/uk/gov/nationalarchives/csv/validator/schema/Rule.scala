@@ -11,9 +11,11 @@ package uk.gov.nationalarchives.csv.validator.schema
 import org.joda.time.DateTime
 import uk.gov.nationalarchives.csv.validator.metadata.Row
 
-import scala.collection.mutable.{ListBuffer => MutableListBuffer, Map => MutableMap}
+import scala.collection.concurrent.TrieMap
+import scala.collection.mutable.{ListBuffer => MutableListBuffer}
 import scala.util.Try
 import scala.util.parsing.input.Positional
+import java.io.{DataInput, DataOutput}
 import java.util.regex.Pattern
 import cats.data.ValidatedNel
 import cats.syntax.validated._
@@ -49,7 +51,7 @@ abstract class Rule(name: String, val argProviders: ArgProvider*) extends Positi
   val explicitColumns: MutableListBuffer[ColumnReference] = MutableListBuffer()
 
   def evaluate(columnIndex: Int, row: Row,  schema: Schema, mayBeLast: Option[Boolean] = None): RuleValidation[Any] = {
-    if (valid(cellValue(columnIndex, row, schema), schema.columnDefinitions(columnIndex), columnIndex, row, schema, mayBeLast))
+    if (valid(cellValue(columnIndex, row, schema), schema.plan.columnDefinition(columnIndex), columnIndex, row, schema, mayBeLast))
       true.validNel[String]
     else fail(columnIndex, row, schema)
   }
@@ -57,25 +59,99 @@ abstract class Rule(name: String, val argProviders: ArgProvider*) extends Positi
   def argProviderHelper(provider: ArgProvider, columnDefinition: ColumnDefinition, columnIndex: Int, row: Row, schema: Schema, cellValue: String): (Option[FilePathBase], FilePathBase) = {
     val ruleValue = provider.referenceValue(columnIndex, row, schema)
 
-    if (columnDefinition.directives.contains(IgnoreCase())) (ruleValue.map(_.toLowerCase), cellValue.toLowerCase) else (ruleValue, cellValue)
+    if (columnDefinition.isIgnoreCase) (ruleValue.map(_.toLowerCase), cellValue.toLowerCase) else (ruleValue, cellValue)
   }
 
   def valid(cellValue: String, columnDefinition: ColumnDefinition, columnIndex: Int,
             row: Row, schema: Schema, mayBeLast: Option[Boolean] = None): Boolean =
     evaluate(columnIndex, row, schema).isValid
 
+  /**
+    * Whether the outcome of this rule depends upon
+    * the rows that were evaluated before it, e.g. `unique`.
+    *
+    * Stateful rules must be evaluated once per row,
+    * in line-number order, and from a single thread.
+    */
+  def isStateful: Boolean = false
+
+  /**
+    * A rough estimate of the cost of evaluating the rule, see [[RuleCost]],
+    * so that rules whose outcome does not depend upon the order in which
+    * they evaluate other rules, e.g. `and`, may evaluate the cheapest first.
+    *
+    * Rules which contain other rules must include their costs.
+    */
+  def cost: Int = RuleCost.Compare
+
+  /**
+    * Asks the file system, ahead of the rule being evaluated for the row,
+    * the questions that evaluating it will ask, so that their answers are
+    * cached by then, see [[uk.gov.nationalarchives.csv.validator.FilePrefetcher]].
+    * Called on another thread, so it must not change the state of the rule.
+    *
+    * Rules which contain other rules must prefetch them too.
+    */
+  def prefetch(columnIndex: Int, row: Row, schema: Schema): Unit = {}
+
+  /**
+    * Called once when the schema is compiled, see [[ExecutionPlan]],
+    * so that the rule may prepare anything which does not
+    * depend upon the rows, e.g. compiling a regular expression.
+    *
+    * Rules which contain other rules must compile them too.
+    */
+  def compile(plan: ExecutionPlan): Unit = {}
 
-  def fail(columnIndex: Int, row: Row, schema: Schema): RuleValidation[Any] = {
-    val columnDefinition = schema.columnDefinitions(columnIndex)
-    s"$toError fails for row: ${row.lineNumber}, column: ${columnDefinition.id}, ${toValueError(row,columnIndex)}".invalidNel[Any]
+  /**
+    * Forgets everything remembered from the rows evaluated so far,
+    * so that the rule may be used to validate another CSV file.
+    *
+    * Rules which contain other rules must reset them too.
+    */
+  def reset(): Unit = {
+    explicitColumnIndex = 0
   }
 
+  /**
+    * Writes everything remembered from the rows evaluated so far, see
+    * [[reset]], so that it may be restored by [[restoreState]] when a
+    * validation is resumed from a checkpoint.
+    *
+    * Rules which contain other rules must save them too.
+    */
+  def saveState(out: DataOutput): Unit = {
+    out.writeInt(explicitColumnIndex)
+  }
+
+  /**
+    * Restores what was written by [[saveState]].
+    *
+    * Rules which contain other rules must restore them too.
+    */
+  def restoreState(in: DataInput): Unit = {
+    explicitColumnIndex = in.readInt()
+  }
+
+
+  def fail(columnIndex: Int, row: Row, schema: Schema): RuleValidation[Any] =
+    failWith(row)(s"$toError fails for row: ${row.lineNumber}, column: ${schema.plan.columnDefinition(columnIndex).id}, ${toValueError(row,columnIndex)}")
+
+  /**
+    * A failure of the rule for the row, whose `message` is only built when
+    * the row is to have detailed messages, see [[Row.detailedMessages]];
+    * otherwise the failure is just the `rule`, so that failures of the
+    * rule may be grouped, e.g. by `ErrorSummary`
+    */
+  protected def failWith(row: Row, rule: => String = toError)(message: => String): RuleValidation[Any] =
+    (if(row.detailedMessages) message else rule).invalidNel[Any]
+
   def cellValue(columnIndex: Int, row: Row, schema: Schema): String = {
     explicitColumn match {
       case Some(columnRef) =>
         columnRef.referenceValueEx(columnIndex, row, schema)
       case None =>
-        row.cells(columnIndex).value
+        row.value(columnIndex)
     }
   }
 
@@ -84,18 +160,19 @@ abstract class Rule(name: String, val argProviders: ArgProvider*) extends Positi
   def ruleName: String = explicitName.getOrElse("") + name
 
   def columnIdentifierToIndex(schema: Schema, id: ColumnIdentifier): Int = {
-    try {
-      schema.columnDefinitions.zipWithIndex.filter{ case (c,i) => c.id == id}.head._2
-    } catch {
+    val index = schema.plan.columnIndex(id)
+    if (index >= 0) {
+      index
+    } else {
       // TODO this should be fixed in the uk.gov.nationalarchives.csv.validator.schema validator, preventing this from ever happening
-      case _: java.util.NoSuchElementException => println( s"Error:   Unable to find: $id for line: ${pos.line}, column: ${pos.column}"); 0
-      case _: Throwable => println( s"Error: with: $id"); 0
+      println( s"Error:   Unable to find: $id for line: ${pos.line}, column: ${pos.column}")
+      0
     }
   }
 
 
   def toValueError(row: Row, columnIndex:Int ) =
-    s"""value: ${'"'}${row.cells(columnIndex).value}${'"'}"""
+    s"""value: ${'"'}${row.value(columnIndex)}${'"'}"""
 
 
   def toError =
@@ -103,12 +180,108 @@ abstract class Rule(name: String, val argProviders: ArgProvider*) extends Positi
 
 }
 
+/**
+  * Evaluates the conditions of a rule such as `if`, sharing the result
+  * of a condition between the rules of a row with an equal condition on
+  * the same column, e.g. `if($type/is("file"), ...)` on several columns,
+  * see [[ExecutionPlan.shareCondition]]
+  */
+trait ConditionSharing { this: Rule =>
+
+  /**
+    * The conditions of the rule, in the order that they are evaluated
+    */
+  protected def conditions: Seq[Rule]
+
+  private var sharedBy: ExecutionPlan = _
+  private var slots: Array[Int] = Array.empty
+
+  /**
+    * Called from [[Rule.compile]]
+    */
+  protected def shareConditions(plan: ExecutionPlan): Unit = {
+    slots = conditions.map(plan.shareCondition).toArray
+    sharedBy = plan
+  }
+
+  /**
+    * Evaluates the `conditionIndex`th condition against the cell,
+    * or against the column of its explicit column reference
+    */
+  protected def conditionValid(conditionIndex: Int, columnIndex: Int, row: Row, schema: Schema): Boolean = {
+    val condition = conditions(conditionIndex)
+
+    def evaluateCondition: Boolean = {
+      val (cellValue,idx) = findColumnRefence(condition) match {
+        case Some(columnRef) =>
+          (columnRef.referenceValueEx(columnIndex, row, schema), columnIdentifierToIndex(schema, columnRef.ref))
+        case None =>
+          (row.value(columnIndex), columnIndex)
+      }
+      condition.valid(cellValue, schema.plan.columnDefinition(columnIndex), idx, row, schema)
+    }
+
+    val plan = schema.plan
+    if((plan eq sharedBy) && slots(conditionIndex) >= 0) {
+      plan.sharedCondition(slots(conditionIndex), plan.columnDefinition(columnIndex).isIgnoreCase, row)(evaluateCondition)
+    } else {
+      evaluateCondition
+    }
+  }
+}
+
+/**
+  * The estimated costs of evaluating rules, see [[Rule.cost]],
+  * which are only meaningful relative to one another
+  */
+object RuleCost {
+
+  /**
+    * Compares the value, e.g. `is`, `notEmpty`
+    */
+  final val Compare = 1
+
+  /**
+    * Matches a regular expression or parses the value, e.g. `regex`, `xDate`
+    */
+  final val Parse = 10
+
+  /**
+    * Looks a file up, e.g. `fileExists`
+    */
+  final val FileSystem = 1000
+
+  /**
+    * Reads the whole of a file, e.g. `checksum`
+    */
+  final val ReadFile = 100000
+
+  /**
+    * The operands of a rule such as `and`, whose outcome does not depend upon
+    * the order in which it evaluates them, cheapest first; unless either is
+    * stateful, as a stateful rule must be evaluated exactly when it would be.
+    *
+    * A rule which refers to a column that is missing from a short row throws,
+    * so the operands should only be reordered for a row with every column, or
+    * an operand which is skipped might not throw as it would in schema order.
+    */
+  def cheaperFirst(left: Rule, right: Rule): (Rule, Rule) =
+    if(!left.isStateful && !right.isStateful && right.cost < left.cost) (right, left) else (left, right)
+
+  /**
+    * Whether the rule may be evaluated whilst prefetching, to find out whether
+    * the rule evaluated after it will be evaluated at all, i.e. the rule is
+    * neither stateful nor looks at the file system.
+    */
+  def evaluatesCheaply(rule: Rule): Boolean = !rule.isStateful && rule.cost < FileSystem
+}
+
 /**
  * This object is a place to store the precompiled regexs
  * @author Jess Flanagan
  */
 object RegexCache {
-  val cache = MutableMap[String, Pattern]()
+  val cache = TrieMap[String, Pattern]()
   
   /**
    * This function returns compiled regexs.
@@ -124,20 +297,34 @@ object RegexCache {
 
 abstract class PatternRule(name: String, pattern: String) extends Rule(name) {
   // Uses the cache to retrieve a compiled regex representation for the pattern string.
+  private lazy val compiledPattern = RegexCache.getCompiledRegex(pattern)
+
+  override def compile(plan: ExecutionPlan): Unit = compiledPattern
+
+  override def cost: Int = RuleCost.Parse
+
   override def valid(cellValue: String, columnDefinition: ColumnDefinition, columnIndex: Int, row: Row, schema: Schema, mayBeLast: Option[Boolean] = None): Boolean = {
-    RegexCache.getCompiledRegex(pattern).matcher(cellValue).matches()
+    compiledPattern.matcher(cellValue).matches()
   }
 }
 
 trait DateParser {
   def parse(dateStr: String): Try[DateTime]
+
+  /**
+    * Validates the values which match the regular expression and which
+    * are then parsed successfully, by default with the regular expression
+    * and [[parse]]; parsers may instead provide a faster [[DateValidator]]
+    * for the expressions which they know
+    */
+  def validator(dateRegex: String): DateValidator = DateValidator.matchThenParse(dateRegex, this)
 }
 
 abstract class DateRule(name: String, dateRegex: String, dateParser: DateParser) extends PatternRule(name, dateRegex) {
-  override def valid(cellValue: String, columnDefinition: ColumnDefinition, columnIndex: Int, row: Row, schema: Schema, mayBeLast: Option[Boolean] = None): Boolean = {
-    super.valid(cellValue, columnDefinition, columnIndex, row, schema) match {
-      case true => dateParser.parse(cellValue).isSuccess
-      case _ => false
-    }
-  }
+  private lazy val dateValidator = dateParser.validator(dateRegex)
+
+  override def compile(plan: ExecutionPlan): Unit = dateValidator
+
+  override def valid(cellValue: String, columnDefinition: ColumnDefinition, columnIndex: Int, row: Row, schema: Schema, mayBeLast: Option[Boolean] = None): Boolean =
+    dateValidator.toEpochMillis(cellValue) != DateValidator.Invalid
 }
@@ -12,7 +12,13 @@ import org.apache.commons.io.FilenameUtils
 import uk.gov.nationalarchives.csv.validator.metadata.Row
 import util.parsing.input.Positional
 
-case class Schema(globalDirectives: List[GlobalDirective], columnDefinitions: List[ColumnDefinition], version: String = Schema.version)
+case class Schema(globalDirectives: List[GlobalDirective], columnDefinitions: List[ColumnDefinition], version: String = Schema.version) {
+
+  /**
+    * The compiled form of the schema, which is compiled once on first use
+    */
+  lazy val plan: ExecutionPlan = ExecutionPlan.compile(this)
+}
 
 object Schema {
   val version = "1.2"
@@ -45,7 +51,11 @@ case class OffsetColumnIdentifier(offset: BigInt) extends ColumnIdentifier {
   val value = offset.toString
 }
 
-case class ColumnDefinition(id: ColumnIdentifier, rules: List[Rule] = Nil, directives: List[ColumnDirective] = Nil) extends Positional
+case class ColumnDefinition(id: ColumnIdentifier, rules: List[Rule] = Nil, directives: List[ColumnDirective] = Nil) extends Positional {
+  val isOptional: Boolean = directives.contains(Optional())
+  val isWarning: Boolean = directives.contains(Warning())
+  val isIgnoreCase: Boolean = directives.contains(IgnoreCase())
+}
 
 trait ArgProvider {
 
@@ -57,8 +67,7 @@ trait ArgProvider {
 case class ColumnReference(ref: ColumnIdentifier) extends ArgProvider {
 
   def referenceValue(columnIndex: Int, row: Row, schema: Schema): Option[String] = {
-    val referencedIndex = schema.columnDefinitions.indexWhere(_.id == ref)
-    row.cells.lift(referencedIndex).map(_.value)
+    row.valueOption(schema.plan.columnIndex(ref))
   }
 
   @throws[IndexOutOfBoundsException]
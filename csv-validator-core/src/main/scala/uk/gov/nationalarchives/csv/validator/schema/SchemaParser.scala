@@ -13,6 +13,7 @@ import uk.gov.nationalarchives.csv.validator.schema.v1_0.{SchemaParser => Schema
 import uk.gov.nationalarchives.csv.validator.schema.v1_1.{SchemaParser => SchemaParser1_1, _}
 import uk.gov.nationalarchives.csv.validator.schema.v1_2.{SchemaParser => SchemaParser1_2, _}
 
+import scala.annotation.tailrec
 import scala.util.parsing.combinator._
 import scala.language.reflectiveCalls
 import java.io.Reader
@@ -20,7 +21,7 @@ import java.io.Reader
 import cats.data.ValidatedNel
 import cats.syntax.validated._
 
-import uk.gov.nationalarchives.csv.validator.{SchemaDefinitionError, FailMessage}
+import uk.gov.nationalarchives.csv.validator.{ChecksumEngine, FileSystemCache, SchemaDefinitionError, FailMessage}
 
 /**
   * CSV Schema Parser
@@ -53,6 +54,25 @@ with TraceableParsers {
 
   val maxCharsPerCell: Int
 
+  /**
+    * How the distinct values seen
+    * by `unique` rules are stored
+    */
+  val uniquenessStoreConfig: UniquenessStoreConfig = UniquenessStoreConfig()
+
+  /**
+    * Calculates the checksums
+    * for `checksum` rules
+    */
+  val checksumEngine: ChecksumEngine = ChecksumEngine.Default
+
+  /**
+    * Remembers the directory listings and paths
+    * seen by the rules which check files, the
+    * rules of every schema parsed share this cache
+    */
+  lazy val fileSystemCache: FileSystemCache = new FileSystemCache()
+
   lazy val versionHeader: PackratParser[String] = "VersionDecl" ::= ("version" ~> versionLiteral )
 
 
@@ -62,54 +82,49 @@ with TraceableParsers {
 
   /**
     * Given 1 or more Parsers
-    * this function produces
-    * all permutations of
-    * all combinations.
-    *
-    * Put more simply if you have a List
-    * of Parsers, we create a Parser
+    * this function produces a Parser
     * that matches n of those parsers
-    * in any order
+    * in any order, each at most once.
+    *
+    * At each position the parsers which have
+    * not yet matched are tried in turn, so the
+    * time taken is linear in the number of
+    * parsers rather than in the number of
+    * their permutations. A repeat of a parser
+    * which has already matched is left as input,
+    * e.g. for the caller to report.
     *
     * @param parsers A list of parsers to mingle
-    * @return A parser that represents all permutations of
-    *         all combinations of the parsers
+    * @return A parser that matches 1 or more of the
+    *         parsers in any order
     */
-  protected def mingle[T, U](parsers : List[Parser[T]]): Parser[List[T]] = {
-
-    /**
-      * All permutations of all combinations
-      * of a List
-      */
-    def mingle[T](data: List[T]): List[List[T]] = {
-      (for(i <- 1 to data.length) yield
-        data.combinations(i).flatMap(_.permutations)
-        ).toList.flatten
-    }
+  protected def mingle[T](parsers : List[Parser[T]]): Parser[List[T]] = Parser { in =>
 
     /**
-      * Combines n parsers together
-      * in the same manner as p1 ~ p2 ~ ... pN
+      * The first of the parsers that
+      * matches, or reports an error
       */
-    def combine[T](parsers: List[Parser[T]]): Parser[List[T]] = {
-      parsers.foldRight(success(List.empty[T])) {
-        case (p, acc) => for {
-          pRes <- p
-          accRes <- acc
-        } yield pRes :: accRes
+    def first(remaining: List[Parser[T]], in: Input): Option[(Parser[T], ParseResult[T])] =
+      remaining.iterator.map(p => (p, p(in))).find {
+        case (_, _: Failure) => false
+        case _ => true
       }
-    }
-
-    def longestFirst(l1: List[_], l2: List[_]) = l1.length > l2.length
 
-    val mingled = mingle[Parser[T]](parsers)
-      .sortWith(longestFirst)
-    //we sort longest first here,
-    //to make sure the parser that matches
-    //the most input will always be put first
+    @tailrec
+    def loop(remaining: List[Parser[T]], in: Input, matched: List[T]): ParseResult[List[T]] =
+      first(remaining, in) match {
+        case Some((p, Success(result, next))) =>
+          loop(remaining.filterNot(_ eq p), next, result :: matched)
+        case Some((_, error: Error)) =>
+          error
+        case _ if matched.nonEmpty =>
+          Success(matched.reverse, in)
+        case _ =>
+          //report the failure of whichever parser got furthest
+          parsers.reduceLeft(_ | _)(in).map(List(_))
+      }
 
-    val alternates = mingled.map(combine(_))
-    alternates.reduceLeft(_ | _)
+    loop(parsers, in, List.empty)
   }
 
 
@@ -127,7 +142,11 @@ with TraceableParsers {
     parse(reader) match {
       case s @ Success(schema: Schema, next) => {
         val errors = SchemaValidator.validate(schema)
-        if (errors.isEmpty) schema.validNel[FailMessage] else FailMessage(SchemaDefinitionError, errors).invalidNel[Schema]
+        if (errors.isEmpty) {
+          // compile the schema now, rather than when the first row is validated
+          schema.plan
+          schema.validNel[FailMessage]
+        } else FailMessage(SchemaDefinitionError, errors).invalidNel[Schema]
       }
       case n: NoSuccess => FailMessage(SchemaDefinitionError, formatNoSuccessMessageForPlatform(n.toString)).invalidNel[Schema]
     }
@@ -150,6 +169,9 @@ with TraceableParsers {
     val t = trace
     val sfc = skipFileChecks
     val mcpc = maxCharsPerCell
+    val usc = uniquenessStoreConfig
+    val ce = checksumEngine
+    val fsc = fileSystemCache
 
     SchemaValidator.versionValid(version).map(Failure(_, next)).getOrElse {
       version match {
@@ -159,6 +181,9 @@ with TraceableParsers {
             override val trace: Boolean = t
             override val skipFileChecks: Boolean = sfc
             override val maxCharsPerCell: Int = mcpc
+            override val uniquenessStoreConfig: UniquenessStoreConfig = usc
+            override val checksumEngine: ChecksumEngine = ce
+            override lazy val fileSystemCache: FileSystemCache = fsc
           }
 
           parser1_2.parseVersionAware(reader) match {
@@ -173,6 +198,9 @@ with TraceableParsers {
             override val trace: Boolean = t
             override val skipFileChecks: Boolean = sfc
             override val maxCharsPerCell: Int = mcpc
+            override val uniquenessStoreConfig: UniquenessStoreConfig = usc
+            override val checksumEngine: ChecksumEngine = ce
+            override lazy val fileSystemCache: FileSystemCache = fsc
           }
 
           parser1_1.parseVersionAware(reader) match {
@@ -187,6 +215,9 @@ with TraceableParsers {
             override val trace: Boolean = t
             override val skipFileChecks: Boolean = sfc
             override val maxCharsPerCell: Int = mcpc
+            override val uniquenessStoreConfig: UniquenessStoreConfig = usc
+            override val checksumEngine: ChecksumEngine = ce
+            override lazy val fileSystemCache: FileSystemCache = fsc
           }
 
           parser1_0.parseVersionAware(reader) match {
@@ -0,0 +1,681 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator.schema
+
+import uk.gov.nationalarchives.csv.validator.Checkpoint
+
+import java.io.{Closeable, DataInput, DataOutput, IOException}
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.{Files, Path, StandardOpenOption}
+import scala.annotation.tailrec
+import scala.collection.mutable
+
+/**
+  * Records the distinct values seen by the `unique` rules,
+  * along with the line number at which each value was first seen.
+  */
+trait UniquenessStore extends Closeable {
+
+  /**
+    * Records the value, unless it has been seen before.
+    *
+    * @return the line number at which the value was first seen,
+    *         or None if this is the first time the value has been seen
+    */
+  def putIfAbsent(value: String, lineNumber: Int): Option[Int]
+
+  /**
+    * The number of distinct values recorded
+    */
+  def size: Long
+
+  /**
+    * An estimate of the heap memory used
+    * by the store in bytes
+    */
+  def memoryUsed: Long
+
+  /**
+    * The number of runs of values
+    * which have been spilled to disk
+    */
+  def spilledRuns: Int = 0
+
+  /**
+    * Writes the values recorded, so that they may be recorded
+    * again by [[restore]] when a validation is resumed from a checkpoint
+    */
+  def save(out: DataOutput): Unit
+
+  /**
+    * Records the values written by [[save]] of
+    * a store of the same kind, which was empty
+    */
+  def restore(in: DataInput): Unit
+
+  override def close(): Unit = {}
+}
+
+/**
+  * Configures the [[UniquenessStore]] used by the `unique` rules.
+  *
+  * @param memoryLimit when present, values are recorded as fixed-width hashes in a compact table
+  *                    which uses at most this many bytes, runs of hashes are spilled to disk once
+  *                    the table is full. The limit covers only the table, each value spilled to disk
+  *                    adds about 1.3 bytes more. When absent, all values are kept in memory as they are.
+  * @param spillDirectory the directory that runs are spilled to,
+  *                       by default the temporary directory of the JVM
+  */
+case class UniquenessStoreConfig(memoryLimit: Option[Long] = None, spillDirectory: Option[Path] = None) {
+
+  def newStore(): UniquenessStore = memoryLimit match {
+    case Some(limit) => new CompactUniquenessStore(limit, spillDirectory)
+    case None => new InMemoryUniquenessStore()
+  }
+}
+
+/**
+  * Mixed into rules which need
+  * to track distinct values
+  */
+trait UniquenessTracking {
+
+  private var storeConfig = UniquenessStoreConfig()
+  private var store: Option[UniquenessStore] = None
+
+  def usingUniquenessStore(config: UniquenessStoreConfig): this.type = {
+    storeConfig = config
+    store = None
+    this
+  }
+
+  def uniquenessStoreConfig: UniquenessStoreConfig = storeConfig
+
+  def distinctValues: UniquenessStore = store match {
+    case Some(s) => s
+    case None =>
+      val s = storeConfig.newStore()
+      store = Some(s)
+      s
+  }
+
+  /**
+    * Closes the store of distinct values,
+    * a new store is created when next needed
+    */
+  def forgetDistinctValues(): Unit = {
+    store.foreach(_.close())
+    store = None
+  }
+
+  def saveDistinctValues(out: DataOutput): Unit = {
+    out.writeBoolean(storeConfig.memoryLimit.isDefined)
+    distinctValues.save(out)
+  }
+
+  /**
+    * @throws IOException if the values were saved from
+    *                     a different kind of store
+    */
+  def restoreDistinctValues(in: DataInput): Unit = {
+    if(in.readBoolean() != storeConfig.memoryLimit.isDefined) {
+      throw new IOException("the values of unique rules were saved with a different unique memory limit")
+    }
+    distinctValues.restore(in)
+  }
+}
+
+object UniquenessTracking {
+
+  /**
+    * The rules of the schema which track distinct values,
+    * along with the column that they are declared against
+    */
+  def in(schema: Schema): List[(ColumnDefinition, Rule with UniquenessTracking)] =
+    for {
+      columnDefinition <- schema.columnDefinitions
+      rule <- columnDefinition.rules.collect { case u: UniquenessTracking => u }
+    } yield (columnDefinition, rule)
+}
+
+/**
+  * Keeps every distinct value in memory, exactly as it was seen.
+  * Memory use grows with the number and length of the values.
+  */
+class InMemoryUniquenessStore extends UniquenessStore {
+
+  private val values = mutable.HashMap[String, Int]()
+  private var estimatedBytes = 0L
+
+  override def putIfAbsent(value: String, lineNumber: Int): Option[Int] = {
+    val original = values.get(value)
+    if(original.isEmpty) {
+      values.put(value, lineNumber)
+      estimatedBytes += InMemoryUniquenessStore.EntryOverheadBytes + (value.length * 2L)
+    }
+    original
+  }
+
+  override def size: Long = values.size
+
+  override def memoryUsed: Long = estimatedBytes
+
+  override def save(out: DataOutput): Unit = {
+    out.writeInt(values.size)
+    values.foreachEntry { (value, lineNumber) =>
+      Checkpoint.writeString(out, value)
+      out.writeInt(lineNumber)
+    }
+  }
+
+  override def restore(in: DataInput): Unit =
+    for(_ <- 0 until in.readInt()) {
+      putIfAbsent(Checkpoint.readString(in), in.readInt())
+    }
+}
+
+object InMemoryUniquenessStore {
+
+  /**
+    * Approximate bytes of the hash map entry, boxed
+    * line number and String header for each value
+    */
+  private val EntryOverheadBytes = 96
+}
+
+/**
+  * Keeps a 128-bit hash of each distinct value, and the line number at which it
+  * was first seen, in a primitive open-addressing table of bounded size.
+  *
+  * When the table is full its entries are sorted and written to disk as a run,
+  * and the table is emptied. Each run keeps a Bloom filter and a sparse index
+  * in memory (about 1.3 bytes per value) so that a value which was spilled can be
+  * found with at most one small read from disk. Once there are more than
+  * `MaxSpilledRuns` runs they are merged into one, so that neither the files
+  * held open nor the runs looked in for each value grow with the number of spills.
+  *
+  * The memory limit covers only the table, which is sorted in place when it is
+  * spilled. Each spilled value adds about 1.3 bytes, and whilst runs are merged
+  * the Bloom filters and indexes of both the runs and the merged run are held.
+  *
+  * Values are compared by their hashes, so two different values would only be
+  * confused if their 128-bit hashes collided; for a billion values the chance of
+  * that is less than one in 10^20. The line numbers reported are always those
+  * recorded for the value.
+  *
+  * @param memoryLimit the maximum number of bytes used by the table, not including the runs
+  * @param spillDirectory the directory that runs are written to
+  */
+class CompactUniquenessStore(memoryLimit: Long, spillDirectory: Option[Path]) extends UniquenessStore {
+  import CompactUniquenessStore._
+
+  private val maxCapacity: Int = {
+    val slots = Math.max(MinCapacity.toLong, Math.min(memoryLimit / SlotBytes, MaxCapacity.toLong))
+    java.lang.Long.highestOneBit(slots).toInt
+  }
+
+  private var capacity = Math.min(InitialCapacity, maxCapacity)
+  private var his = new Array[Long](capacity)
+  private var los = new Array[Long](capacity)
+  // a line number of 0 marks an empty slot, line numbers start from 1
+  private var lines = new Array[Int](capacity)
+  private var entries = 0
+
+  private var runs: List[SpilledRun] = List.empty
+  private var spilledEntries = 0L
+  private val block = SpilledRun.newBlockBuffer()
+
+  // the hash of the current value
+  private var hi = 0L
+  private var lo = 0L
+
+  override def putIfAbsent(value: String, lineNumber: Int): Option[Int] = {
+    hash(value)
+
+    val slot = findSlot(hi, lo, his, los, lines)
+    if(lines(slot) != 0) {
+      Some(lines(slot))
+    } else {
+      findInRuns(runs) match {
+        case found @ Some(_) =>
+          found
+        case None =>
+          insert(lineNumber)
+          None
+      }
+    }
+  }
+
+  override def size: Long = entries + spilledEntries
+
+  /**
+    * The bytes of the table, which are bounded by the memory limit, plus
+    * those of the runs, about 1.3 bytes for each value spilled to disk
+    */
+  override def memoryUsed: Long = (capacity.toLong * SlotBytes) + block.capacity() + runs.map(_.memoryUsed).sum
+
+  override def spilledRuns: Int = runs.size
+
+  override def close(): Unit = {
+    runs.foreach(_.close())
+    runs = List.empty
+  }
+
+  override def save(out: DataOutput): Unit = {
+    out.writeLong(size)
+    for(i <- 0 until capacity if lines(i) != 0) {
+      out.writeLong(his(i))
+      out.writeLong(los(i))
+      out.writeInt(lines(i))
+    }
+    for(run <- runs) {
+      run.foreach(block) { (hi, lo, line) =>
+        out.writeLong(hi)
+        out.writeLong(lo)
+        out.writeInt(line)
+      }
+    }
+  }
+
+  override def restore(in: DataInput): Unit = {
+    var remaining = in.readLong()
+    while(remaining > 0) {
+      hi = in.readLong()
+      lo = in.readLong()
+      insert(in.readInt())
+      remaining -= 1
+    }
+  }
+
+  @tailrec
+  private def findInRuns(remaining: List[SpilledRun]): Option[Int] = remaining match {
+    case Nil => None
+    case run :: tail =>
+      val line = run.find(hi, lo, block)
+      if(line.isDefined) line else findInRuns(tail)
+  }
+
+  private def insert(lineNumber: Int): Unit = {
+    if(entries + 1 > capacity / 4 * 3) {
+      if(capacity < maxCapacity) grow() else spill()
+    }
+    val slot = findSlot(hi, lo, his, los, lines)
+    his(slot) = hi
+    los(slot) = lo
+    lines(slot) = lineNumber
+    entries += 1
+  }
+
+  private def grow(): Unit = {
+    val newCapacity = capacity * 2
+    val newHis = new Array[Long](newCapacity)
+    val newLos = new Array[Long](newCapacity)
+    val newLines = new Array[Int](newCapacity)
+    for(i <- 0 until capacity if lines(i) != 0) {
+      val slot = findSlot(his(i), los(i), newHis, newLos, newLines)
+      newHis(slot) = his(i)
+      newLos(slot) = los(i)
+      newLines(slot) = lines(i)
+    }
+    capacity = newCapacity
+    his = newHis
+    los = newLos
+    lines = newLines
+  }
+
+  /**
+    * The entries are moved to the front of the table and sorted
+    * there, so spilling needs no more memory than the table
+    */
+  private def spill(): Unit = {
+    var n = 0
+    for(i <- 0 until capacity if lines(i) != 0) {
+      his(n) = his(i)
+      los(n) = los(i)
+      lines(n) = lines(i)
+      n += 1
+    }
+    sort(his, los, lines, 0, n - 1)
+
+    runs = runs :+ SpilledRun.write(his, los, lines, n, spillDirectory)
+    spilledEntries += entries
+    if(runs.size > MaxSpilledRuns) {
+      val merged = SpilledRun.merge(runs, spillDirectory)
+      runs.foreach(_.close())
+      runs = List(merged)
+    }
+
+    java.util.Arrays.fill(lines, 0)
+    entries = 0
+  }
+
+  private def hash(value: String): Unit = {
+    var a = Seed1
+    var b = Seed2
+    var i = 0
+    while(i < value.length) {
+      val c = value.charAt(i)
+      a = (a ^ c) * 0x100000001b3L
+      b = java.lang.Long.rotateLeft(b ^ (c * 0x9e3779b97f4a7c15L), 31) * 0xbf58476d1ce4e5b9L
+      i += 1
+    }
+    hi = mix(a ^ value.length)
+    lo = mix(b + value.length)
+  }
+}
+
+object CompactUniquenessStore {
+
+  /** bytes per slot of the table: two longs of hash and an int line number */
+  private[schema] val SlotBytes = 20
+
+  /** the number of runs beyond which they are merged into one */
+  private[schema] val MaxSpilledRuns = 8
+
+  private val InitialCapacity = 1 << 10
+  private val MinCapacity = 1 << 10
+  private val MaxCapacity = 1 << 30
+
+  private val Seed1 = 0xcbf29ce484222325L
+  private val Seed2 = 0x2545f4914f6cdd1dL
+
+  /** the finalisation step of MurmurHash3 */
+  private[schema] def mix(h: Long): Long = {
+    var k = h
+    k ^= k >>> 33
+    k *= 0xff51afd7ed558ccdL
+    k ^= k >>> 33
+    k *= 0xc4ceb9fe1a85ec53L
+    k ^= k >>> 33
+    k
+  }
+
+  private[schema] def compare(hi1: Long, lo1: Long, hi2: Long, lo2: Long): Int = {
+    val c = java.lang.Long.compare(hi1, hi2)
+    if(c != 0) c else java.lang.Long.compare(lo1, lo2)
+  }
+
+  /**
+    * @return the slot containing the hash,
+    *         or the empty slot where it belongs
+    */
+  private def findSlot(hi: Long, lo: Long, his: Array[Long], los: Array[Long], lines: Array[Int]): Int = {
+    val mask = lines.length - 1
+    var slot = hi.toInt & mask
+    while(lines(slot) != 0 && (his(slot) != hi || los(slot) != lo)) {
+      slot = (slot + 1) & mask
+    }
+    slot
+  }
+
+  /**
+    * Sorts the parallel arrays by hash
+    */
+  private def sort(his: Array[Long], los: Array[Long], lines: Array[Int], from: Int, to: Int): Unit = {
+    if(from < to) {
+      val mid = from + (to - from) / 2
+      val pivotHi = his(mid)
+      val pivotLo = los(mid)
+      var i = from
+      var j = to
+      while(i <= j) {
+        while(compare(his(i), los(i), pivotHi, pivotLo) < 0) i += 1
+        while(compare(his(j), los(j), pivotHi, pivotLo) > 0) j -= 1
+        if(i <= j) {
+          swap(his, los, lines, i, j)
+          i += 1
+          j -= 1
+        }
+      }
+      // recurse into the smaller partition first to bound the depth of the stack
+      if(j - from < to - i) {
+        sort(his, los, lines, from, j)
+        sort(his, los, lines, i, to)
+      } else {
+        sort(his, los, lines, i, to)
+        sort(his, los, lines, from, j)
+      }
+    }
+  }
+
+  private def swap(his: Array[Long], los: Array[Long], lines: Array[Int], i: Int, j: Int): Unit = {
+    val hi = his(i); his(i) = his(j); his(j) = hi
+    val lo = los(i); los(i) = los(j); los(j) = lo
+    val line = lines(i); lines(i) = lines(j); lines(j) = line
+  }
+}
+
+/**
+  * A sorted run of hashes and line numbers on disk, the file
+  * is deleted when the run is closed (or the JVM exits)
+  */
+private[schema] class SpilledRun(channel: FileChannel, entries: Long, indexHis: Array[Long], indexLos: Array[Long], bloom: Array[Long]) {
+  import SpilledRun._
+
+  def memoryUsed: Long = (indexHis.length + indexLos.length + bloom.length) * 8L
+
+  def size: Long = entries
+
+  /**
+    * @param block a buffer from [[SpilledRun.newBlockBuffer]]
+    */
+  def find(hi: Long, lo: Long, block: ByteBuffer): Option[Int] = {
+    if(!mightContain(bloom, hi, lo)) {
+      None
+    } else {
+      // the last block whose first hash is not greater than the hash
+      var low = 0
+      var high = indexHis.length - 1
+      while(low < high) {
+        val mid = (low + high + 1) >>> 1
+        if(CompactUniquenessStore.compare(indexHis(mid), indexLos(mid), hi, lo) <= 0) low = mid else high = mid - 1
+      }
+      findInBlock(low, hi, lo, block)
+    }
+  }
+
+  def close(): Unit = channel.close()
+
+  /**
+    * Reads every hash and line number of the run, in hash order
+    *
+    * @param block a buffer from [[SpilledRun.newBlockBuffer]]
+    */
+  def foreach(block: ByteBuffer)(f: (Long, Long, Int) => Unit): Unit =
+    for(blockIndex <- 0 until indexHis.length) {
+      val count = readBlock(blockIndex, block)
+      for(i <- 0 until count) {
+        val offset = i * RecordBytes
+        f(block.getLong(offset), block.getLong(offset + 8), block.getInt(offset + 16))
+      }
+    }
+
+  /**
+    * Reads the records of the run one at a time, in hash order,
+    * each cursor through its own buffer, see [[SpilledRun.merge]]
+    */
+  final class Cursor {
+    private val block = newBlockBuffer()
+    private var blockIndex = -1
+    private var count = 0
+    private var index = 0
+
+    var hi = 0L
+    var lo = 0L
+    var line = 0
+
+    /**
+      * Moves to the next record
+      *
+      * @return false once every record has been read
+      */
+    def advance(): Boolean = {
+      if(index == count && blockIndex + 1 < indexHis.length) {
+        blockIndex += 1
+        count = readBlock(blockIndex, block)
+        index = 0
+      }
+      if(index < count) {
+        val offset = index * RecordBytes
+        hi = block.getLong(offset)
+        lo = block.getLong(offset + 8)
+        line = block.getInt(offset + 16)
+        index += 1
+        true
+      } else {
+        false
+      }
+    }
+  }
+
+  /**
+    * Reads the records of the block into the buffer
+    *
+    * @return the number of records read
+    */
+  private def readBlock(blockIndex: Int, block: ByteBuffer): Int = {
+    val first = blockIndex.toLong * BlockEntries
+    val count = Math.min(BlockEntries.toLong, entries - first).toInt
+    block.clear()
+    block.limit(count * RecordBytes)
+    val position = first * RecordBytes
+    while(block.hasRemaining && channel.read(block, position + block.position()) != -1) {}
+    block.flip()
+    count
+  }
+
+  private def findInBlock(blockIndex: Int, hi: Long, lo: Long, block: ByteBuffer): Option[Int] = {
+    val count = readBlock(blockIndex, block)
+
+    var i = 0
+    var found: Option[Int] = None
+    while(found.isEmpty && i < count) {
+      val offset = i * RecordBytes
+      if(block.getLong(offset) == hi && block.getLong(offset + 8) == lo) {
+        found = Some(block.getInt(offset + 16))
+      }
+      i += 1
+    }
+    found
+  }
+}
+
+private[schema] object SpilledRun {
+
+  /** bytes per record: two longs of hash and an int line number */
+  private val RecordBytes = 20
+
+  /** the number of records between the entries of the sparse index */
+  private val BlockEntries = 256
+
+  private val BloomBitsPerEntry = 10
+  private val BloomHashes = 7
+
+  def newBlockBuffer(): ByteBuffer = ByteBuffer.allocate(BlockEntries * RecordBytes)
+
+  /**
+    * Writes the first `count` records of the arrays, which are in hash order
+    */
+  def write(his: Array[Long], los: Array[Long], lines: Array[Int], count: Int, spillDirectory: Option[Path]): SpilledRun = {
+    val writer = new Writer(count, spillDirectory)
+    for(i <- 0 until count) {
+      writer.add(his(i), los(i), lines(i))
+    }
+    writer.finish()
+  }
+
+  /**
+    * Merges the runs into a single run, with a Bloom filter and sparse
+    * index of its own, the runs are left open for their owner to close
+    */
+  def merge(runs: Seq[SpilledRun], spillDirectory: Option[Path]): SpilledRun = {
+    val writer = new Writer(runs.map(_.size).sum, spillDirectory)
+
+    val cursors = runs.map(run => new run.Cursor()).filter(_.advance()).toArray[SpilledRun#Cursor]
+    var remaining = cursors.length
+    while(remaining > 0) {
+      // there are only a few runs, so the least record is found by a scan rather than a heap
+      var least = 0
+      for(i <- 1 until remaining) {
+        if(CompactUniquenessStore.compare(cursors(i).hi, cursors(i).lo, cursors(least).hi, cursors(least).lo) < 0) least = i
+      }
+      val cursor = cursors(least)
+      writer.add(cursor.hi, cursor.lo, cursor.line)
+      if(!cursor.advance()) {
+        remaining -= 1
+        cursors(least) = cursors(remaining)
+      }
+    }
+    writer.finish()
+  }
+
+  /**
+    * Writes a run of the given number of records,
+    * which must be added in hash order
+    */
+  private final class Writer(entries: Long, spillDirectory: Option[Path]) {
+    private val file = spillDirectory match {
+      case Some(dir) => Files.createTempFile(dir, "csv-validator-unique-", ".run")
+      case None => Files.createTempFile("csv-validator-unique-", ".run")
+    }
+    private val channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE)
+
+    private val blocks = ((entries + BlockEntries - 1) / BlockEntries).toInt
+    private val indexHis = new Array[Long](blocks)
+    private val indexLos = new Array[Long](blocks)
+    private val bloom = new Array[Long](Math.max(1, (entries * BloomBitsPerEntry / 64).toInt + 1))
+
+    private val buffer = ByteBuffer.allocate(BlockEntries * RecordBytes * 16)
+    private var written = 0L
+
+    def add(hi: Long, lo: Long, line: Int): Unit = {
+      if(written % BlockEntries == 0) {
+        indexHis((written / BlockEntries).toInt) = hi
+        indexLos((written / BlockEntries).toInt) = lo
+      }
+      addToBloom(bloom, hi, lo)
+
+      buffer.putLong(hi).putLong(lo).putInt(line)
+      if(!buffer.hasRemaining) {
+        flush(channel, buffer)
+      }
+      written += 1
+    }
+
+    def finish(): SpilledRun = {
+      flush(channel, buffer)
+      new SpilledRun(channel, entries, indexHis, indexLos, bloom)
+    }
+  }
+
+  private def flush(channel: FileChannel, buffer: ByteBuffer): Unit = {
+    buffer.flip()
+    while(buffer.hasRemaining) {
+      channel.write(buffer)
+    }
+    buffer.clear()
+  }
+
+  private def bloomBit(bloom: Array[Long], hi: Long, lo: Long, i: Int): Long =
+    java.lang.Long.remainderUnsigned(hi + (i * lo), bloom.length * 64L)
+
+  private def addToBloom(bloom: Array[Long], hi: Long, lo: Long): Unit = {
+    for(i <- 0 until BloomHashes) {
+      val bit = bloomBit(bloom, hi, lo, i)
+      bloom((bit >>> 6).toInt) |= 1L << (bit & 63)
+    }
+  }
+
+  private def mightContain(bloom: Array[Long], hi: Long, lo: Long): Boolean =
+    (0 until BloomHashes).forall { i =>
+      val bit = bloomBit(bloom, hi, lo, i)
+      (bloom((bit >>> 6).toInt) & (1L << (bit & 63))) != 0
+    }
+}
@@ -8,37 +8,75 @@
  */
 package uk.gov.nationalarchives.csv.validator.schema.v1_0
 
+import java.io.{DataInput, DataOutput}
 import java.net.{URI, URISyntaxException}
-import java.security.MessageDigest
 import org.joda.time.format.{DateTimeFormat, DateTimeFormatterBuilder, ISODateTimeFormat}
-import org.joda.time.{DateTime, Interval}
-import uk.gov.nationalarchives.csv.validator.Util.{FileSystem, TypedPath, children, descendants}
+import org.joda.time.DateTime
+import uk.gov.nationalarchives.csv.validator.{ChecksumEngine, FileSystemCaching}
+import uk.gov.nationalarchives.csv.validator.Util.{FileSystem, TypedPath}
 import uk.gov.nationalarchives.csv.validator.api.CsvValidator._
 import uk.gov.nationalarchives.csv.validator.metadata.Row
 import uk.gov.nationalarchives.csv.validator.schema._
 
 import scala.annotation.tailrec
-import scala.collection.mutable
-import scala.language.higherKinds
 import scala.util.Try
-import cats.effect.{IO, Sync}
-import fs2.{Chunk, Pipe, Stream, hash, io}
 import cats.data.{ValidatedNel, Validated}
 import cats.syntax.all._
-import java.nio.file.{Files, Path}
+import java.nio.file.Path
 
 case class OrRule(left: Rule, right: Rule) extends Rule("or") {
+
+  // either operand passing is enough, so the cheaper is evaluated first
+  private lazy val operands = RuleCost.cheaperFirst(left, right)
+
   override def evaluate(columnIndex: Int, row: Row,  schema: Schema, mayBeLast: Option[Boolean] = None): RuleValidation[Any] = {
-    left.evaluate(columnIndex, row, schema, mayBeLast) match {
+    val (l, r) = if(row.length >= schema.plan.columnCount) operands else (left, right)
+    l.evaluate(columnIndex, row, schema, mayBeLast) match {
       case s @ Validated.Valid(_) => s
 
-      case Validated.Invalid(_) => right.evaluate(columnIndex, row, schema,  mayBeLast) match {
+      case Validated.Invalid(_) => r.evaluate(columnIndex, row, schema,  mayBeLast) match {
         case s @ Validated.Valid(_) => s
         case Validated.Invalid(_) => fail(columnIndex, row, schema)
       }
     }
   }
 
+  override def isStateful: Boolean = left.isStateful || right.isStateful
+
+  override def cost: Int = left.cost + right.cost
+
+  // the operand evaluated second is only prefetched when the first is known to fail
+  override def prefetch(columnIndex: Int, row: Row, schema: Schema): Unit = {
+    val (l, r) = if(row.length >= schema.plan.columnCount) operands else (left, right)
+    l.prefetch(columnIndex, row, schema)
+    if(RuleCost.evaluatesCheaply(l) && Try(l.evaluate(columnIndex, row, schema).isInvalid).getOrElse(false)) {
+      r.prefetch(columnIndex, row, schema)
+    }
+  }
+
+  override def compile(plan: ExecutionPlan): Unit = {
+    left.compile(plan)
+    right.compile(plan)
+  }
+
+  override def reset(): Unit = {
+    super.reset()
+    left.reset()
+    right.reset()
+  }
+
+  override def saveState(out: DataOutput): Unit = {
+    super.saveState(out)
+    left.saveState(out)
+    right.saveState(out)
+  }
+
+  override def restoreState(in: DataInput): Unit = {
+    super.restoreState(in)
+    left.restoreState(in)
+    right.restoreState(in)
+  }
+
   override def toError = s"""${left.toError} $ruleName ${right.toError}"""
 }
 
@@ -52,6 +90,28 @@ case class ParenthesesRule(rules: List[Rule]) extends Rule("parentheses") {
     v.sequence[RuleValidation, Any]
   }
 
+  override def isStateful: Boolean = rules.exists(_.isStateful)
+
+  override def cost: Int = rules.map(_.cost).sum
+
+  override def prefetch(columnIndex: Int, row: Row, schema: Schema): Unit = rules.foreach(_.prefetch(columnIndex, row, schema))
+
+  override def compile(plan: ExecutionPlan): Unit = rules.foreach(_.compile(plan))
+
+  override def reset(): Unit = {
+    super.reset()
+    rules.foreach(_.reset())
+  }
+
+  override def saveState(out: DataOutput): Unit = {
+    super.saveState(out)
+    rules.foreach(_.saveState(out))
+  }
+
+  override def restoreState(in: DataInput): Unit = {
+    super.restoreState(in)
+    rules.foreach(_.restoreState(in))
+  }
 
   override def toError = {
     val paramErrs = rules.map(_.toError).mkString(" ")
@@ -59,21 +119,13 @@ case class ParenthesesRule(rules: List[Rule]) extends Rule("parentheses") {
   }
 }
 
-case class IfRule(condition: Rule, rules: List[Rule], elseRules: Option[List[Rule]]) extends Rule("if") {
+case class IfRule(condition: Rule, rules: List[Rule], elseRules: Option[List[Rule]]) extends Rule("if") with ConditionSharing {
 
-  override def evaluate(columnIndex: Int, row: Row, schema: Schema, mayBeLast: Option[Boolean] = None): RuleValidation[Any] = {
+  override protected val conditions: Seq[Rule] = List(condition)
 
-    def conditionValid: Boolean = {
-      val (cellValue,idx) = findColumnRefence(condition) match {
-        case Some(columnRef) =>
-          (columnRef.referenceValueEx(columnIndex, row, schema), columnIdentifierToIndex(schema, columnRef.ref))
-        case None =>
-          (row.cells(columnIndex).value, columnIndex)
-      }
-      condition.valid(cellValue, schema.columnDefinitions(columnIndex), idx, row, schema)
-    }
+  override def evaluate(columnIndex: Int, row: Row, schema: Schema, mayBeLast: Option[Boolean] = None): RuleValidation[Any] = {
 
-    val v = if (conditionValid) {
+    val v = if (conditionValid(0, columnIndex, row, schema)) {
       for (rule <- rules) yield {
         rule.evaluate(columnIndex, row, schema)
       }
@@ -88,6 +140,46 @@ case class IfRule(condition: Rule, rules: List[Rule], elseRules: Option[List[Rul
     v.sequence[RuleValidation, Any]
   }
 
+  // a condition with more than one explicit column cycles through them on each evaluation
+  override def isStateful: Boolean =
+    condition.isStateful || condition.explicitColumns.length > 1 || rules.exists(_.isStateful) || elseRules.exists(_.exists(_.isStateful))
+
+  override def cost: Int = condition.cost + Math.max(rules.map(_.cost).sum, elseRules.map(_.map(_.cost).sum).getOrElse(0))
+
+  // only the rules of the branch which will be taken, evaluating a stateful condition would change its state
+  override def prefetch(columnIndex: Int, row: Row, schema: Schema): Unit = if(!isStateful) {
+    val branch = if(conditionValid(0, columnIndex, row, schema)) rules else elseRules.getOrElse(Nil)
+    branch.foreach(_.prefetch(columnIndex, row, schema))
+  }
+
+  override def compile(plan: ExecutionPlan): Unit = {
+    shareConditions(plan)
+    condition.compile(plan)
+    rules.foreach(_.compile(plan))
+    elseRules.foreach(_.foreach(_.compile(plan)))
+  }
+
+  override def reset(): Unit = {
+    super.reset()
+    condition.reset()
+    rules.foreach(_.reset())
+    elseRules.foreach(_.foreach(_.reset()))
+  }
+
+  override def saveState(out: DataOutput): Unit = {
+    super.saveState(out)
+    condition.saveState(out)
+    rules.foreach(_.saveState(out))
+    elseRules.foreach(_.foreach(_.saveState(out)))
+  }
+
+  override def restoreState(in: DataInput): Unit = {
+    super.restoreState(in)
+    condition.restoreState(in)
+    rules.foreach(_.restoreState(in))
+    elseRules.foreach(_.foreach(_.restoreState(in)))
+  }
+
   override def toError = {
     val paramErrs = rules.map( _.toError).mkString(" ")
     s"""($paramErrs)""" + (if (argProviders.isEmpty) "" else "(" + argProviders.foldLeft("")((a, b) => (if (a.isEmpty) "" else a + ", ") + b.toError) + ")")
@@ -95,9 +187,14 @@ case class IfRule(condition: Rule, rules: List[Rule], elseRules: Option[List[Rul
 }
 
 case class RegExpRule(regex: String) extends Rule("regex") {
+  private lazy val pattern = RegexCache.getCompiledRegex(regex)
+  private lazy val ignoreCasePattern = RegexCache.getCompiledRegex("(?i)" + regex)
+
+  override def cost: Int = RuleCost.Parse
+
   override def valid(cellValue: String, columnDefinition: ColumnDefinition, columnIndex: Int, row: Row, schema: Schema, mayBeLast: Option[Boolean] = None): Boolean = {
-    val regexp = if (columnDefinition.directives.contains(IgnoreCase())) "(?i)" + regex else regex
-    RegexCache.getCompiledRegex(regexp).matcher(cellValue).matches()
+    val regexp = if (columnDefinition.isIgnoreCase) ignoreCasePattern else pattern
+    regexp.matcher(cellValue).matches()
   }
 
   override def toError = {
@@ -106,7 +203,17 @@ case class RegExpRule(regex: String) extends Rule("regex") {
 }
 
 //TODO note the use of `Seq(rootPath): _*` when extending Rule, this is to workaround this bug https://issues.scala-lang.org/browse/SI-7436. This pattern is repeated below!
-case class FileExistsRule(pathSubstitutions: List[(String,String)], enforceCaseSensitivePathChecks: Boolean, rootPath: ArgProvider = Literal(None), skipFileChecks: Boolean = false) extends Rule("fileExists", Seq(rootPath): _*) {
+case class FileExistsRule(pathSubstitutions: List[(String,String)], enforceCaseSensitivePathChecks: Boolean, rootPath: ArgProvider = Literal(None), skipFileChecks: Boolean = false) extends Rule("fileExists", Seq(rootPath): _*) with FileSystemCaching {
+
+  override def cost: Int = if(skipFileChecks) RuleCost.Compare else RuleCost.FileSystem
+
+  override def compile(plan: ExecutionPlan): Unit = plan.useFileSystemCache(fileSystemCache)
+
+  // the answers are only remembered by an enabled cache
+  override def prefetch(columnIndex: Int, row: Row, schema: Schema): Unit =
+    if(!skipFileChecks && fileSystemCache.maxPaths > 0) {
+      valid(cellValue(columnIndex, row, schema), schema.plan.columnDefinition(columnIndex), columnIndex, row, schema)
+    }
 
   override def valid(filePath: String, columnDefinition: ColumnDefinition, columnIndex: Int, row: Row, schema: Schema, mayBeLast: Option[Boolean] = None) = {
     if(skipFileChecks) {
@@ -115,8 +222,8 @@ case class FileExistsRule(pathSubstitutions: List[(String,String)], enforceCaseS
       val ruleValue = rootPath.referenceValue(columnIndex, row, schema)
 
       ruleValue match {
-        case Some(rp) => new FileSystem(rp, filePath, pathSubstitutions).exists(enforceCaseSensitivePathChecks)
-        case None => new FileSystem(filePath, pathSubstitutions).exists(enforceCaseSensitivePathChecks)
+        case Some(rp) => new FileSystem(rp, filePath, pathSubstitutions).exists(enforceCaseSensitivePathChecks, fileSystemCache)
+        case None => new FileSystem(filePath, pathSubstitutions).exists(enforceCaseSensitivePathChecks, fileSystemCache)
       }
     }
 
@@ -174,6 +281,9 @@ case class NotEmptyRule() extends Rule("notEmpty") {
 }
 
 case class UriRule() extends Rule("uri") {
+
+  override def cost: Int = RuleCost.Parse
+
   override def valid(cellValue: String, columnDefinition: ColumnDefinition, columnIndex: Int, row: Row, schema: Schema, mayBeLast: Option[Boolean] = None): Boolean = {
     try {
       val uri = new URI(cellValue)
@@ -189,6 +299,11 @@ case class UriRule() extends Rule("uri") {
 object IsoDateTimeParser extends DateParser {
   val isoDateTimeFormatter = ISODateTimeFormat.dateTimeParser().withOffsetParsed()
   def parse(dateStr: String): Try[DateTime] = Try(isoDateTimeFormatter.parseDateTime(dateStr))
+
+  override def validator(dateRegex: String): DateValidator =
+    if(dateRegex == XsdDateTimeRegex) new XsdDateTimeValidator(date = true, time = true, zoneRequired = false, super.validator(dateRegex))
+    else if(dateRegex == XsdDateTimeWithTimeZoneRegex) new XsdDateTimeValidator(date = true, time = true, zoneRequired = true, super.validator(dateRegex))
+    else super.validator(dateRegex)
 }
 
 object XsdDateParser extends DateParser {
@@ -200,16 +315,27 @@ object XsdDateParser extends DateParser {
     ).toFormatter
 
   def parse(dateStr: String): Try[DateTime] = Try(xsdDateFormatter.parseDateTime(dateStr))
+
+  override def validator(dateRegex: String): DateValidator =
+    if(dateRegex == XsdDateRegex) new XsdDateTimeValidator(date = true, time = false, zoneRequired = false, super.validator(dateRegex))
+    else super.validator(dateRegex)
 }
 
 object IsoTimeParser extends DateParser {
   val isoTimeFormatter = ISODateTimeFormat.timeParser
   def parse(dateStr: String): Try[DateTime] = Try(isoTimeFormatter.parseDateTime(dateStr))
+
+  override def validator(dateRegex: String): DateValidator =
+    if(dateRegex == XsdTimeOptionalTimeZoneRegex) new XsdDateTimeValidator(date = false, time = true, zoneRequired = false, super.validator(dateRegex))
+    else super.validator(dateRegex)
 }
 
 object UkDateParser extends DateParser {
   val fmt = DateTimeFormat.forPattern(UkDateFormat)
   def parse(dateStr: String): Try[DateTime] = Try(fmt.parseDateTime(dateStr))
+
+  override def validator(dateRegex: String): DateValidator =
+    if(dateRegex == UkDateRegex) UkDateValidator else super.validator(dateRegex)
 }
 
 abstract class DateRangeRule(name: String, dateRegex: String, dateParser: DateParser) extends Rule(name) {
@@ -219,18 +345,29 @@ abstract class DateRangeRule(name: String, dateRegex: String, dateParser: DatePa
   lazy val fromDate = parse(from)
   lazy val toDate = parse(to)
 
-  override def valid(cellValue: String, columnDefinition: ColumnDefinition, columnIndex: Int, row: Row, schema: Schema, mayBeLast: Option[Boolean] = None): Boolean = {
-    cellValue matches dateRegex match {
-      case true => {
-        val inRange = for ( frmDt <- fromDate; toDt <- toDate; cellDt <- parse(cellValue)) yield {
-          val interval = new Interval(frmDt,toDt.plusMillis(1))
-          interval.contains(cellDt)
-        }
+  /**
+    * The range as the first and last instants in milliseconds from the epoch
+    * (inclusive), or None if either bound can not be parsed or the last is
+    * before the first, in which case no value is in the range
+    */
+  private lazy val range: Option[(Long, Long)] = (for (frmDt <- fromDate; toDt <- toDate) yield (frmDt.getMillis, toDt.getMillis)).toOption.filter {
+    case (first, last) => first <= last + 1
+  }
+  private lazy val dateValidator = dateParser.validator(dateRegex)
 
-        inRange.getOrElse(false)
-      }
+  override def compile(plan: ExecutionPlan): Unit = {
+    range
+    dateValidator
+  }
 
-      case _ => false
+  override def cost: Int = RuleCost.Parse
+
+  override def valid(cellValue: String, columnDefinition: ColumnDefinition, columnIndex: Int, row: Row, schema: Schema, mayBeLast: Option[Boolean] = None): Boolean = {
+    range match {
+      case Some((first, last)) =>
+        val cellMillis = dateValidator.toEpochMillis(cellValue)
+        cellMillis != DateValidator.Invalid && cellMillis >= first && cellMillis <= last
+      case None => false
     }
   }
 
@@ -261,51 +398,71 @@ case class Uuid4Rule() extends PatternRule("uuid4", Uuid4Regex)
 
 case class PositiveIntegerRule() extends PatternRule("positiveInteger", PositiveIntegerRegex)
 
-case class UniqueRule() extends Rule("unique") {
-  val distinctValues = mutable.HashMap[String, Int]()
+case class UniqueRule() extends Rule("unique") with UniquenessTracking {
 
-  override def evaluate(columnIndex: Int, row: Row, schema: Schema, mayBeLast: Option[Boolean] = None): RuleValidation[Any] = {
-    val columnDefinition = schema.columnDefinitions(columnIndex)
+  override def isStateful: Boolean = true
 
-    def originalValue: Option[String] = {
-      val cellValue = cellValueCorrectCase
-      if (distinctValues contains cellValue) Some(cellValue) else None
-    }
+  override def reset(): Unit = {
+    super.reset()
+    forgetDistinctValues()
+  }
 
-    def cellValueCorrectCase = if (columnDefinition.directives contains IgnoreCase()) cellValue(columnIndex,row,schema).toLowerCase else cellValue(columnIndex,row,schema)
+  override def saveState(out: DataOutput): Unit = {
+    super.saveState(out)
+    saveDistinctValues(out)
+  }
 
-    originalValue match {
-      case None => distinctValues.put(cellValueCorrectCase, row.lineNumber); true.validNel
-      case Some(o) => {
-        s"$toError fails for row: ${row.lineNumber}, column: ${columnDefinition.id}, ${toValueError(row,columnIndex)} (original at row: ${distinctValues(o)})".invalidNel[Any]
-      }
+  override def restoreState(in: DataInput): Unit = {
+    super.restoreState(in)
+    restoreDistinctValues(in)
+  }
+
+  override def evaluate(columnIndex: Int, row: Row, schema: Schema, mayBeLast: Option[Boolean] = None): RuleValidation[Any] = {
+    val columnDefinition = schema.plan.columnDefinition(columnIndex)
+
+    def cellValueCorrectCase = if (columnDefinition.isIgnoreCase) cellValue(columnIndex,row,schema).toLowerCase else cellValue(columnIndex,row,schema)
+
+    distinctValues.putIfAbsent(cellValueCorrectCase, row.lineNumber) match {
+      case None => true.validNel
+      case Some(originalLineNumber) =>
+        failWith(row)(s"$toError fails for row: ${row.lineNumber}, column: ${columnDefinition.id}, ${toValueError(row,columnIndex)} (original at row: ${originalLineNumber})")
     }
   }
 }
 
-case class UniqueMultiRule(columns: List[ColumnReference]) extends Rule("unique(") {
+case class UniqueMultiRule(columns: List[ColumnReference]) extends Rule("unique(") with UniquenessTracking {
   val SEPARATOR:Char = 0x07 // BEL
-  val distinctValues = mutable.HashMap[String, Int]()
+
+  override def isStateful: Boolean = true
+
+  override def reset(): Unit = {
+    super.reset()
+    forgetDistinctValues()
+  }
+
+  override def saveState(out: DataOutput): Unit = {
+    super.saveState(out)
+    saveDistinctValues(out)
+  }
+
+  override def restoreState(in: DataInput): Unit = {
+    super.restoreState(in)
+    restoreDistinctValues(in)
+  }
 
   override def evaluate(columnIndex: Int, row: Row, schema: Schema, mayBeLast: Option[Boolean] = None): RuleValidation[Any] = {
-    val columnDefinition = schema.columnDefinitions(columnIndex)
+    val columnDefinition = schema.plan.columnDefinition(columnIndex)
 
     def secondaryValues = columns.map(_.referenceValue(columnIndex, row, schema)).mkString(SEPARATOR.toString)
 
     def uniqueString: String =  cellValue(columnIndex,row,schema) + SEPARATOR +  secondaryValues
 
-    def originalValue: Option[String] = {
-      val cellValue = cellValueCorrectCase
-      if (distinctValues contains cellValue) Some(cellValue) else None
-    }
-
     def cellValueCorrectCase = if (columnDefinition.directives contains IgnoreCase) uniqueString.toLowerCase else uniqueString
 
-    originalValue match {
-      case None => distinctValues.put(cellValueCorrectCase, row.lineNumber); true.validNel
-      case Some(o) => {
-        s"$toError ${columns.map(_.toError).mkString(", ")} ) fails for row: ${row.lineNumber}, column: ${columnDefinition.id}, ${toValueError(row,columnIndex)} (original at row: ${distinctValues(o)})".invalidNel[Any]
-      }
+    distinctValues.putIfAbsent(cellValueCorrectCase, row.lineNumber) match {
+      case None => true.validNel
+      case Some(originalLineNumber) =>
+        failWith(row, s"$toError ${columns.map(_.toError).mkString(", ")} )")(s"$toError ${columns.map(_.toError).mkString(", ")} ) fails for row: ${row.lineNumber}, column: ${columnDefinition.id}, ${toValueError(row,columnIndex)} (original at row: ${originalLineNumber})")
     }
   }
 }
@@ -315,15 +472,42 @@ case class ChecksumRule(rootPath: ArgProvider, file: ArgProvider, algorithm: Str
   def this(file: ArgProvider, algorithm: String, pathSubstitutions: List[(String,String)], enforceCaseSensitivePathChecks: Boolean) = this(Literal(None), file, algorithm, pathSubstitutions, enforceCaseSensitivePathChecks, false)
   def this(file: ArgProvider, algorithm: String, enforceCaseSensitivePathChecks: Boolean, skipFileChecks: Boolean) = this(Literal(None), file, algorithm, List.empty[(String,String)], enforceCaseSensitivePathChecks, false)
 
+  override def compile(plan: ExecutionPlan): Unit = plan.useFileSystemCache(fileSystemCache)
+
+  private var checksumEngine: ChecksumEngine = ChecksumEngine.Default
+
+  override def cost: Int = if(skipFileChecks) RuleCost.Compare else RuleCost.ReadFile
+
+  /**
+    * Starts hashing the file in the background, see [[ChecksumEngine.prefetch]], so
+    * that evaluating the rule is given its digest. The files of a path with wildcards
+    * are only searched for, and hashed, when the rule is evaluated.
+    */
+  override def prefetch(columnIndex: Int, row: Row, schema: Schema): Unit =
+    if(!skipFileChecks) {
+      val (base, name) = filename(columnIndex, row, schema)
+      val fullPath = new FileSystem(None, base + name, pathSubstitutions).expandBasePath
+      if(!fullPath.contains("*")) {
+        FileSystem.createFile(fullPath).foreach { file =>
+          if(fileSystemCache.exists(file)) checksumEngine.prefetch(file, algorithm)
+        }
+      }
+    }
+
+  def usingChecksumEngine(engine: ChecksumEngine): this.type = {
+    checksumEngine = engine
+    this
+  }
+
   override def evaluate(columnIndex: Int, row: Row, schema: Schema, mayBeLast: Option[Boolean] = None): RuleValidation[Any] = {
-    val columnDefinition = schema.columnDefinitions(columnIndex)
+    val columnDefinition = schema.plan.columnDefinition(columnIndex)
     if(skipFileChecks) {
       Validated.Valid("")
     } else {
       search(filename(columnIndex, row, schema)) match {
         case Validated.Valid(hexValue: String) if hexValue == cellValue(columnIndex, row, schema) => true.validNel[String]
-        case Validated.Valid(hexValue: String) => s"""$toError file "${TypedPath(filename(columnIndex, row, schema)._1 + filename(columnIndex, row, schema)._2).toPlatform}" checksum match fails for row: ${row.lineNumber}, column: ${columnDefinition.id}, ${toValueError(row, columnIndex)}. Computed checksum value:"${hexValue}"""".invalidNel[Any]
-        case Validated.Invalid(errMsg) => s"$toError ${errMsg.head} for row: ${row.lineNumber}, column: ${columnDefinition.id}, ${toValueError(row, columnIndex)}".invalidNel[Any]
+        case Validated.Valid(hexValue: String) => failWith(row)(s"""$toError file "${TypedPath(filename(columnIndex, row, schema)._1 + filename(columnIndex, row, schema)._2).toPlatform}" checksum match fails for row: ${row.lineNumber}, column: ${columnDefinition.id}, ${toValueError(row, columnIndex)}. Computed checksum value:"${hexValue}"""")
+        case Validated.Invalid(errMsg) => failWith(row)(s"$toError ${errMsg.head} for row: ${row.lineNumber}, column: ${columnDefinition.id}, ${toValueError(row, columnIndex)}")
       }
     }
   }
@@ -356,46 +540,13 @@ case class ChecksumRule(rootPath: ArgProvider, file: ArgProvider, algorithm: Str
 
   def calcChecksum(file: String): ValidatedNel[String, String] = {
 
-    def checksum(f: Path): ValidatedNel[String, String] = {
-
-      def getHash[F[_]](algorithm: String) : Pipe[F, Byte, Byte] = {
-        val hashes = Map[String, Pipe[F, Byte, Byte]](
-          ("md2", bugFixedHash.md2),
-          ("md5", bugFixedHash.md5),
-          ("sha1", bugFixedHash.sha1),
-          ("sha256", bugFixedHash.sha256),
-          ("sha384", bugFixedHash.sha384),
-          ("sha512", bugFixedHash.sha512)
-//          ("md2", hash.md2),
-//          ("md5", hash.md5),
-//          ("sha1", hash.sha1),
-//          ("sha256", hash.sha256),
-//          ("sha384", hash.sha384),
-//          ("sha512", hash.sha512)
-        )
-        hashes(algorithm.toLowerCase().replace("-", ""))
-      }
-
-      val bufSize = 16384 //16KB
-
-      def checksummer[F[_]](implicit F: fs2.io.file.Files[F]): Stream[F, Byte] =
-        fs2.io.file.Files[F]
-          .readAll(f, bufSize)
-        . through(getHash(algorithm))
-
-      import cats.effect.unsafe.implicits.global
-
-      checksummer[IO].compile.toVector.attempt.unsafeRunSync()
-        .map(_.map("%02x" format _))
-        .map(_.mkString)
-        .leftMap(_.getMessage)
-        .toValidatedNel
-    }
+    def checksum(f: Path): ValidatedNel[String, String] =
+      Validated.fromEither(checksumEngine.checksum(f, algorithm)).toValidatedNel
 
     FileSystem.createFile(file) match {
-      case scala.util.Success(f) if(Files.exists(f)) =>
+      case scala.util.Success(f) if(fileSystemCache.exists(f)) =>
         if(enforceCaseSensitivePathChecks) {
-          if(FileSystem.caseSensitivePathMatchesFs(f)) {
+          if(fileSystemCache.caseSensitivePathMatchesFs(f)) {
             checksum(f)
           } else {
             s"""file "${FileSystem.file2PatformDependent(file)}" not found""".invalidNel[String]
@@ -408,61 +559,32 @@ case class ChecksumRule(rootPath: ArgProvider, file: ArgProvider, algorithm: Str
         s"""file "${FileSystem.file2PatformDependent(file)}" not found""".invalidNel[String]
     }
   }
-
-  /**
-   * Temporary bug fixed version of fs2.hash
-   *
-   * @see https://github.com/functional-streams-for-scala/fs2/pull/943
-   */
-  object bugFixedHash {
-
-    /** Computes an MD2 digest. */
-    def md2[F[_]]: Pipe[F,Byte,Byte] = digest(MessageDigest.getInstance("MD2"))
-
-    /** Computes an MD5 digest. */
-    def md5[F[_]]: Pipe[F,Byte,Byte] = digest(MessageDigest.getInstance("MD5"))
-
-    /** Computes a SHA-1 digest. */
-    def sha1[F[_]]: Pipe[F,Byte,Byte] = digest(MessageDigest.getInstance("SHA-1"))
-
-    /** Computes a SHA-256 digest. */
-    def sha256[F[_]]: Pipe[F,Byte,Byte] = digest(MessageDigest.getInstance("SHA-256"))
-
-    /** Computes a SHA-384 digest. */
-    def sha384[F[_]]: Pipe[F,Byte,Byte] = digest(MessageDigest.getInstance("SHA-384"))
-
-    /** Computes a SHA-512 digest. */
-    def sha512[F[_]]: Pipe[F,Byte,Byte] = digest(MessageDigest.getInstance("SHA-512"))
-
-    /**
-     * Computes the digest of the the source stream, emitting the digest as a chunk
-     * after completion of the source stream.
-     */
-    def digest[F[_]](digest: => MessageDigest): Pipe[F, Byte, Byte] =
-      in => Stream.suspend {
-        in.chunks.
-          fold(digest) { (d, c) => d.update(Chunk.array(c.toArray, 0, c.size).toArray); d }.
-          flatMap { d => Stream.chunk(Chunk.array(d.digest())) }
-      }
-  }
 }
 
 case class FileCountRule(rootPath: ArgProvider, file: ArgProvider, pathSubstitutions: List[SubstitutePath] = List.empty) extends Rule("fileCount", Seq(rootPath, file): _*) with FileWildcardSearch[Int] {
   def this(file: ArgProvider, pathSubstitutions: List[SubstitutePath]) = this(Literal(None), file, pathSubstitutions)
   def this(rootPath: Literal, file: Literal) = this(rootPath, file,  List.empty)
 
+  override def cost: Int = RuleCost.FileSystem
+
+  override def compile(plan: ExecutionPlan): Unit = plan.useFileSystemCache(fileSystemCache)
+
+  // the answers are only remembered by an enabled cache
+  override def prefetch(columnIndex: Int, row: Row, schema: Schema): Unit =
+    if(fileSystemCache.maxPaths > 0) search(filename(columnIndex, row, schema))
+
   override def evaluate(columnIndex: Int, row: Row, schema: Schema, mayBeLast: Option[Boolean] = None): RuleValidation[Any] = {
-    val columnDefinition = schema.columnDefinitions(columnIndex)
+    val columnDefinition = schema.plan.columnDefinition(columnIndex)
 
     Try(cellValue(columnIndex,row,schema).toInt) match {
       case scala.util.Success(cellCount) =>
         search(filename(columnIndex, row, schema)) match {
           case Validated.Valid(count: Int) if count == cellCount => true.validNel[String]
-          case Validated.Valid(count: Int) => s"$toError found $count file(s) for row: ${row.lineNumber}, column: ${columnDefinition.id}, ${toValueError(row,columnIndex)}".invalidNel[Any]
-          case Validated.Invalid(errMsg) => s"$toError ${errMsg.head} for row: ${row.lineNumber}, column: ${columnDefinition.id}, ${toValueError(row,columnIndex)}".invalidNel[Any]
+          case Validated.Valid(count: Int) => failWith(row)(s"$toError found $count file(s) for row: ${row.lineNumber}, column: ${columnDefinition.id}, ${toValueError(row,columnIndex)}")
+          case Validated.Invalid(errMsg) => failWith(row)(s"$toError ${errMsg.head} for row: ${row.lineNumber}, column: ${columnDefinition.id}, ${toValueError(row,columnIndex)}")
         }
 
-      case scala.util.Failure(_) =>  s"$toError '${cellValue(columnIndex,row,schema)}' is not a number for row: ${row.lineNumber}, column: ${columnDefinition.id}, ${toValueError(row,columnIndex)}".invalidNel[Any]
+      case scala.util.Failure(_) => failWith(row)(s"$toError '${cellValue(columnIndex,row,schema)}' is not a number for row: ${row.lineNumber}, column: ${columnDefinition.id}, ${toValueError(row,columnIndex)}")
     }
   }
 
@@ -486,14 +608,14 @@ case class FileCountRule(rootPath: ArgProvider, file: ArgProvider, pathSubstitut
   def matchSimplePath(fullPath: String): ValidatedNel[String, Int]  = 1.validNel[String]  // file found so ok
 }
 
-trait FileWildcardSearch[T] {
+trait FileWildcardSearch[T] extends FileSystemCaching {
 
   val pathSubstitutions: List[SubstitutePath]
   def matchWildcardPaths(matchList: Seq[Path], fullPath: String): ValidatedNel[String, T]
   def matchSimplePath(fullPath: String): ValidatedNel[String, T]
 
-  val wildcardPath = (p: Path, matchPath: String) => descendants(p, matchPath)
-  val wildcardFile = (p: Path, matchPath: String) => children(p, "**/" + matchPath)
+  val wildcardPath = (p: Path, matchPath: String) => fileSystemCache.descendants(p, matchPath)
+  val wildcardFile = (p: Path, matchPath: String) => fileSystemCache.children(p, "**/" + matchPath)
 
   //TODO consider re-writing the FileSystem stuff to use TypedPath now that we have toPlatform - just need a better File approach and handling of parent/child - maybe use scalax.file.Path
 
@@ -540,7 +662,7 @@ trait FileWildcardSearch[T] {
       }
 
       def basePathExists: Boolean = filePaths._1.length > 0 && (!(FileSystem.createFile( basePath.toPlatform.toString ) match {
-        case scala.util.Success(f) => Files.exists(f)
+        case scala.util.Success(f) => fileSystemCache.exists(f)
         case scala.util.Failure(_) => false
       }))
 
@@ -555,7 +677,7 @@ trait FileWildcardSearch[T] {
         val path = platformPath.toString + platformPath.separator + matchPath
 
         FileSystem.createFile( path ) match {
-          case scala.util.Success(file) => Files.exists(file)
+          case scala.util.Success(file) => fileSystemCache.exists(file)
           case scala.util.Failure(_) => false
         }
       }
@@ -582,6 +704,8 @@ trait FileWildcardSearch[T] {
 
 case class RangeRule(min: BigDecimal, max: BigDecimal) extends Rule("range") {
 
+  override def cost: Int = RuleCost.Parse
+
   override def valid(cellValue: String, columnDefinition: ColumnDefinition, columnIndex: Int, row: Row, schema: Schema,  mayBeLast: Option[Boolean] = None): Boolean = {
     Try[BigDecimal]( BigDecimal(cellValue)) match {
       case scala.util.Success(callDecimal) => (callDecimal >= min && callDecimal <= max  )
@@ -610,16 +734,57 @@ case class LengthRule(from: Option[String], to: String) extends Rule("length") {
 }
 
 case class AndRule(left: Rule, right: Rule) extends Rule("and") {
+
+  // either operand failing is enough, so the cheaper is evaluated first
+  private lazy val operands = RuleCost.cheaperFirst(left, right)
+
   override def evaluate(columnIndex: Int, row: Row, schema: Schema, mayBeLast: Option[Boolean] = None): RuleValidation[Any] = {
-    left.evaluate(columnIndex, row, schema) match {
+    val (l, r) = if(row.length >= schema.plan.columnCount) operands else (left, right)
+    l.evaluate(columnIndex, row, schema) match {
       case s @ Validated.Invalid(_) => fail(columnIndex, row, schema)
 
-      case Validated.Valid(_) => right.evaluate(columnIndex, row, schema) match {
+      case Validated.Valid(_) => r.evaluate(columnIndex, row, schema) match {
         case s @ Validated.Valid(_) => s
         case Validated.Invalid(_) => fail(columnIndex, row, schema)
       }
     }
   }
 
+  override def isStateful: Boolean = left.isStateful || right.isStateful
+
+  override def cost: Int = left.cost + right.cost
+
+  // the operand evaluated second is only prefetched when the first is known to pass
+  override def prefetch(columnIndex: Int, row: Row, schema: Schema): Unit = {
+    val (l, r) = if(row.length >= schema.plan.columnCount) operands else (left, right)
+    l.prefetch(columnIndex, row, schema)
+    if(RuleCost.evaluatesCheaply(l) && Try(l.evaluate(columnIndex, row, schema).isValid).getOrElse(false)) {
+      r.prefetch(columnIndex, row, schema)
+    }
+  }
+
+  override def compile(plan: ExecutionPlan): Unit = {
+    left.compile(plan)
+    right.compile(plan)
+  }
+
+  override def reset(): Unit = {
+    super.reset()
+    left.reset()
+    right.reset()
+  }
+
+  override def saveState(out: DataOutput): Unit = {
+    super.saveState(out)
+    left.saveState(out)
+    right.saveState(out)
+  }
+
+  override def restoreState(in: DataInput): Unit = {
+    super.restoreState(in)
+    left.restoreState(in)
+    right.restoreState(in)
+  }
+
   override def toError = s"""${left.toError} $ruleName ${right.toError}"""
 }
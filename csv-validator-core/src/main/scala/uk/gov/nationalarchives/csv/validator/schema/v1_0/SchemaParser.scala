@@ -372,9 +372,9 @@ trait SchemaParser extends BaseSchemaParser {
     */
   lazy val uniqueExpr: PackratParser[Rule] = "UniqueExpr" ::= "unique" ~> opt("(" ~> columnRef ~ rep("," ~> columnRef) <~ ")") ^^ {
     case None =>
-      UniqueRule()
+      UniqueRule().usingUniquenessStore(uniquenessStoreConfig)
     case Some((columnRef1 ~ columnRefN)) =>
-      UniqueMultiRule(columnRef1 :: columnRefN)
+      UniqueMultiRule(columnRef1 :: columnRefN).usingUniquenessStore(uniquenessStoreConfig)
   }
 
   /**
@@ -481,9 +481,9 @@ trait SchemaParser extends BaseSchemaParser {
     */
   lazy val fileExistsExpr: PackratParser[FileExistsRule] = "FileExistsExpr" ::= ("fileExists" ~> opt("(" ~> stringProvider <~ ")")).withFailureMessage("Invalid fileExists rule") ^^ {
     case None =>
-      FileExistsRule(pathSubstitutions, enforceCaseSensitivePathChecks, skipFileChecks = skipFileChecks)
+      FileExistsRule(pathSubstitutions, enforceCaseSensitivePathChecks, skipFileChecks = skipFileChecks).usingFileSystemCache(fileSystemCache)
     case Some(s) =>
-      FileExistsRule(pathSubstitutions, enforceCaseSensitivePathChecks, s, skipFileChecks = skipFileChecks)
+      FileExistsRule(pathSubstitutions, enforceCaseSensitivePathChecks, s, skipFileChecks = skipFileChecks).usingFileSystemCache(fileSystemCache)
   }
 
 
@@ -492,7 +492,7 @@ trait SchemaParser extends BaseSchemaParser {
     */
   lazy val checksumExpr = "ChecksumExpr" ::= ("checksum(" ~> fileExpr <~ ",") ~ stringLiteral <~ ")" ^^ {
     case files ~ algorithm =>
-      ChecksumRule(files._1.getOrElse(Literal(None)), files._2, algorithm, pathSubstitutions, enforceCaseSensitivePathChecks, skipFileChecks)
+      ChecksumRule(files._1.getOrElse(Literal(None)), files._2, algorithm, pathSubstitutions, enforceCaseSensitivePathChecks, skipFileChecks).usingChecksumEngine(checksumEngine).usingFileSystemCache(fileSystemCache)
   }
 
   /**
@@ -505,7 +505,7 @@ trait SchemaParser extends BaseSchemaParser {
     */
   lazy val fileCountExpr = "FileCountExpr" ::= "fileCount(" ~> fileExpr <~ ")" ^^ {
     case a  =>
-      FileCountRule(a._1.getOrElse(Literal(None)), a._2, pathSubstitutions)
+      FileCountRule(a._1.getOrElse(Literal(None)), a._2, pathSubstitutions).usingFileSystemCache(fileSystemCache)
   }
 
   /**
@@ -9,42 +9,52 @@
 package uk.gov.nationalarchives.csv.validator
 package schema.v1_1
 
-import java.io.FileNotFoundException
+import java.io.{DataInput, DataOutput, FileNotFoundException}
 import uk.gov.nationalarchives.csv.validator.Util.FileSystem
 import uk.gov.nationalarchives.csv.validator.metadata.Row
 import uk.gov.nationalarchives.csv.validator.schema._
 import uk.gov.nationalarchives.csv.validator.schema.v1_0.{DateRangeRule, IsoDateTimeParser}
 
 import scala.util.Try
-import java.nio.file.Path
 import cats.implicits._
 
 case class AnyRule(anyValues: List[ArgProvider]) extends Rule("any", anyValues:_*) {
+
+  // when all of the values are literals, they are looked up in a set rather than searched
+  private lazy val literalValues: Option[Set[String]] =
+    if (anyValues.forall(_.isInstanceOf[Literal])) Some(anyValues.collect { case Literal(Some(value)) => value }.toSet) else None
+  private lazy val lowerCaseLiteralValues: Option[Set[String]] = literalValues.map(_.map(_.toLowerCase))
+
+  override def compile(plan: ExecutionPlan): Unit = {
+    literalValues
+    lowerCaseLiteralValues
+  }
+
   override def valid(cellValue: String, columnDefinition: ColumnDefinition, columnIndex: Int, row: Row, schema: Schema, mayBeLast: Option[Boolean]  = None): Boolean = {
+    if (literalValues.isDefined) {
+      if (columnDefinition.isIgnoreCase) lowerCaseLiteralValues.get.contains(cellValue.toLowerCase) else literalValues.get.contains(cellValue)
+    } else {
+      anyValid(cellValue, columnDefinition, columnIndex, row, schema)
+    }
+  }
+
+  private def anyValid(cellValue: String, columnDefinition: ColumnDefinition, columnIndex: Int, row: Row, schema: Schema): Boolean = {
 
     val ruleValues = (for (rule <- anyValues) yield rule.referenceValue(columnIndex, row, schema)).toList.flatten
 
-    val (rv, cv) = if (columnDefinition.directives.contains(IgnoreCase())) (ruleValues.map(_.toLowerCase), cellValue.toLowerCase) else (ruleValues, cellValue)
+    val (rv, cv) = if (columnDefinition.isIgnoreCase) (ruleValues.map(_.toLowerCase), cellValue.toLowerCase) else (ruleValues, cellValue)
     rv.contains(cv)
   }
 }
 
 
-case class SwitchRule(elseRules: Option[List[Rule]], cases:(Rule, List[Rule])*) extends Rule("switch") {
+case class SwitchRule(elseRules: Option[List[Rule]], cases:(Rule, List[Rule])*) extends Rule("switch") with ConditionSharing {
 
+  override protected val conditions: Seq[Rule] = cases.map(_._1).toVector
 
   override def evaluate(columnIndex: Int, row: Row, schema: Schema, mayBeLast: Option[Boolean] = None): RuleValidation[Any] = {
-    def conditionValid(condition: Rule): Boolean = {
-      val (cellValue,idx) = findColumnRefence(condition) match {
-        case Some(columnRef) =>
-          (columnRef.referenceValueEx(columnIndex, row, schema), columnIdentifierToIndex(schema, columnRef.ref))
-        case None =>
-          (row.cells(columnIndex).value, columnIndex)
-      }
-      condition.valid(cellValue, schema.columnDefinitions(columnIndex), idx, row, schema)
-    }
 
-    cases.collectFirst { case (condition, rules) if (conditionValid(condition)) =>
+    cases.iterator.zipWithIndex.collectFirst { case ((_, rules), i) if (conditionValid(i, columnIndex, row, schema)) =>
       for (rule <- rules) yield {
         rule.evaluate(columnIndex, row, schema)
       }
@@ -57,6 +67,56 @@ case class SwitchRule(elseRules: Option[List[Rule]], cases:(Rule, List[Rule])*)
     }.sequence[RuleValidation, Any]
   }
 
+  // a condition with more than one explicit column cycles through them on each evaluation
+  override def isStateful: Boolean =
+    cases.exists { case (condition, rules) => condition.isStateful || condition.explicitColumns.length > 1 || rules.exists(_.isStateful) } ||
+      elseRules.exists(_.exists(_.isStateful))
+
+  override def cost: Int =
+    conditions.map(_.cost).sum + (cases.map { case (_, rules) => rules.map(_.cost).sum } ++ elseRules.map(_.map(_.cost).sum)).maxOption.getOrElse(0)
+
+  // only the rules of the case which will be taken, evaluating a stateful condition would change its state
+  override def prefetch(columnIndex: Int, row: Row, schema: Schema): Unit = if(!isStateful) {
+    val taken = cases.iterator.zipWithIndex.collectFirst { case ((_, rules), i) if (conditionValid(i, columnIndex, row, schema)) => rules }
+    taken.orElse(elseRules).getOrElse(Nil).foreach(_.prefetch(columnIndex, row, schema))
+  }
+
+  override def compile(plan: ExecutionPlan): Unit = {
+    shareConditions(plan)
+    for ((condition, rules) <- cases) {
+      condition.compile(plan)
+      rules.foreach(_.compile(plan))
+    }
+    elseRules.foreach(_.foreach(_.compile(plan)))
+  }
+
+  override def reset(): Unit = {
+    super.reset()
+    for ((condition, rules) <- cases) {
+      condition.reset()
+      rules.foreach(_.reset())
+    }
+    elseRules.foreach(_.foreach(_.reset()))
+  }
+
+  override def saveState(out: DataOutput): Unit = {
+    super.saveState(out)
+    for ((condition, rules) <- cases) {
+      condition.saveState(out)
+      rules.foreach(_.saveState(out))
+    }
+    elseRules.foreach(_.foreach(_.saveState(out)))
+  }
+
+  override def restoreState(in: DataInput): Unit = {
+    super.restoreState(in)
+    for ((condition, rules) <- cases) {
+      condition.restoreState(in)
+      rules.foreach(_.restoreState(in))
+    }
+    elseRules.foreach(_.foreach(_.restoreState(in)))
+  }
+
   override def toError = {
     val paramErrs = cases.map{ case (x,rules) => "(" + x.toError + ", " + rules.map( _.toError).mkString(" ") + ")" }.mkString(", ")
     s"""${super.toError}($paramErrs)"""
@@ -69,16 +129,35 @@ case class SwitchRule(elseRules: Option[List[Rule]], cases:(Rule, List[Rule])*)
 case class IntegrityCheckRule(pathSubstitutions: List[(String,String)], enforceCaseSensitivePathChecks: Boolean, rootPath: ArgProvider = Literal(None), topLevelFolder: String = "content", includeFolder: Boolean = false, skipFileChecks: Boolean = false) extends Rule("integrityCheck", Seq(rootPath): _*) {
 
   //TODO introduce state, not very functional
-  var filesMap = Map[String, Set[Path]]()
+  val index = new IntegrityIndex(includeFolder)
+
+  override def isStateful: Boolean = true
+
+  override def cost: Int = if(skipFileChecks) RuleCost.Compare else RuleCost.FileSystem
+
+  override def reset(): Unit = {
+    super.reset()
+    index.clear()
+  }
+
+  override def saveState(out: DataOutput): Unit = {
+    super.saveState(out)
+    index.save(out)
+  }
+
+  override def restoreState(in: DataInput): Unit = {
+    super.restoreState(in)
+    index.restore(in)
+  }
 
   override def evaluate(columnIndex: Int, row: Row,  schema: Schema, mayBeLast: Option[Boolean] = None): RuleValidation[Any] = {
     try{
-      if (valid(cellValue(columnIndex, row, schema), schema.columnDefinitions(columnIndex), columnIndex, row, schema, mayBeLast)) true.validNel[String] else fail(columnIndex, row, schema)
+      if (valid(cellValue(columnIndex, row, schema), schema.plan.columnDefinition(columnIndex), columnIndex, row, schema, mayBeLast)) true.validNel[String] else fail(columnIndex, row, schema)
     }
     catch {
       case ex: FileNotFoundException =>
-        val columnDefinition = schema.columnDefinitions(columnIndex)
-        s"$toError fails for row: ${row.lineNumber}, column: ${columnDefinition.id}, ${ex.getMessage} with substitution paths ${pathSubstitutions.mkString(", ")}".invalidNel[Any]
+        val columnDefinition = schema.plan.columnDefinition(columnIndex)
+        failWith(row)(s"$toError fails for row: ${row.lineNumber}, column: ${columnDefinition.id}, ${ex.getMessage} with substitution paths ${pathSubstitutions.mkString(", ")}")
     }
   }
 
@@ -94,11 +173,11 @@ case class IntegrityCheckRule(pathSubstitutions: List[(String,String)], enforceC
         else
           filePath
 
-        filesMap = new FileSystem(ruleValue, filePathS, pathSubstitutions).integrityCheck(filesMap, enforceCaseSensitivePathChecks, topLevelFolder, includeFolder)
+        new FileSystem(ruleValue, filePathS, pathSubstitutions).integrityCheck(index, topLevelFolder)
         val isLastLine = mayBeLast.map(!_).getOrElse(false)
 
         if (isLastLine)
-        { filesMap.forall{case (folder,files) => files.isEmpty} }
+        { index.allListed }
         else
           true
     }
@@ -110,9 +189,7 @@ case class IntegrityCheckRule(pathSubstitutions: List[(String,String)], enforceC
 
   override def toValueError(row: Row, columnIndex:Int ) =  {
 
-    val extraFiles = filesMap.collect{ case (folder,files) if files.nonEmpty =>
-      files.mkString(", ")
-    }.mkString(", ")
+    val extraFiles = index.unlistedFiles.mkString(", ")
 
     s"""files: ${'"'}$extraFiles${'"'} are not listed in the metadata"""
   }
@@ -132,6 +209,24 @@ case class IdenticalRule() extends Rule("identical") {
 
   var lastValue: Option[String] = None
 
+  override def isStateful: Boolean = true
+
+  override def reset(): Unit = {
+    super.reset()
+    lastValue = None
+  }
+
+  override def saveState(out: DataOutput): Unit = {
+    super.saveState(out)
+    out.writeBoolean(lastValue.isDefined)
+    lastValue.foreach(Checkpoint.writeString(out, _))
+  }
+
+  override def restoreState(in: DataInput): Unit = {
+    super.restoreState(in)
+    lastValue = if(in.readBoolean()) Some(Checkpoint.readString(in)) else None
+  }
+
   override def valid(cellValue: String, columnDefinition: ColumnDefinition, columnIndex: Int, row: Row, schema: Schema,  mayBeLast: Option[Boolean] = None): Boolean = {
     if (cellValue.isEmpty) false
     else if (lastValue.isEmpty){
@@ -150,6 +245,8 @@ case class IdenticalRule() extends Rule("identical") {
 
 case class RangeRule(min: Option[BigDecimal], max: Option[BigDecimal]) extends Rule("range") {
 
+  override def cost: Int = RuleCost.Parse
+
   override def valid(cellValue: String, columnDefinition: ColumnDefinition, columnIndex: Int, row: Row, schema: Schema,  mayBeLast: Option[Boolean] = None): Boolean = {
 
     Try[BigDecimal]( BigDecimal(cellValue)) match {
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator
+
+import cats.data.ValidatedNel
+import org.junit.runner.RunWith
+import org.specs2.mutable.Specification
+import org.specs2.runner.JUnitRunner
+import uk.gov.nationalarchives.csv.validator.api.{CsvValidator, TextFile}
+import uk.gov.nationalarchives.csv.validator.schema.Schema
+
+import java.io.StringReader
+import java.nio.charset.StandardCharsets
+import java.nio.file.{Files, Path, StandardOpenOption}
+import java.time.Duration
+import scala.collection.mutable
+
+@RunWith(classOf[JUnitRunner])
+class CheckpointSpec extends Specification {
+
+  val uniqueSchema =
+    """version 1.1
+      |@totalColumns 1
+      |id: unique
+      |""".stripMargin
+
+  def validator(failFast: Boolean = false, parseParallelism: Int = 1) =
+    CsvValidator.createValidator(failFast, Nil, false, false, false, 4096, parseParallelismLevel = parseParallelism)
+
+  def schema(text: String): Schema =
+    validator().parseSchema(new StringReader(text)) fold (f => throw new IllegalArgumentException(f.toString()), s => s)
+
+  def csvFile(lines: String*): Path = {
+    val file = Files.createTempFile("checkpoint-spec", ".csv")
+    Files.write(file, lines.mkString("", "\n", "\n").getBytes(StandardCharsets.UTF_8))
+    file
+  }
+
+  def checkpointFile(): Path = {
+    val file = Files.createTempFile("checkpoint-spec", ".checkpoint")
+    Files.delete(file)
+    file
+  }
+
+  /**
+    * Collects the failures, and throws on the result of the `interruptAt`th row,
+    * as though the JVM had died whilst validating that row
+    */
+  class Interrupting(interruptAt: Int = -1) extends (ValidatedNel[FailMessage, Any] => Unit) {
+    private var results = 0
+    val failures = mutable.ListBuffer.empty[FailMessage]
+
+    override def apply(result: ValidatedNel[FailMessage, Any]): Unit = {
+      results += 1
+      if(results == interruptAt) throw new IllegalStateException("interrupted")
+      result.fold(f => failures ++= f.toList, _ => ())
+    }
+  }
+
+  def everyRow(file: Path, resume: Boolean = false) = Some(CheckpointSettings(file, Duration.ZERO, resume))
+
+  "Resuming from a checkpoint" should {
+
+    "only validate the rows after the checkpoint, remembering the values seen by unique rules" in {
+      val csv = csvFile("id", "a", "b", "c", "a", "d", "b")
+      val checkpoint = checkpointFile()
+
+      validator().validateCsvFile(TextFile(csv), schema(uniqueSchema), None, new Interrupting(3), everyRow(checkpoint))
+      Files.exists(checkpoint) must beTrue
+
+      val resumed = new Interrupting()
+      val pass = validator().validateCsvFile(TextFile(csv), schema(uniqueSchema), None, resumed, everyRow(checkpoint, resume = true))
+
+      pass must beFalse
+      resumed.failures.map(f => (f.lineNumber, f.message)).toList must beLike {
+        case List((Some(5), first), (Some(7), second)) =>
+          first must endWith("(original at row: 2)")
+          second must endWith("(original at row: 3)")
+      }
+    }
+
+    "give the same result when the file is parsed in chunks" in {
+      val csv = csvFile("id", "a", "b", "c", "a", "d", "b")
+      val checkpoint = checkpointFile()
+
+      validator(parseParallelism = 2).validateCsvFile(TextFile(csv), schema(uniqueSchema), None, new Interrupting(3), everyRow(checkpoint))
+
+      val resumed = new Interrupting()
+      validator(parseParallelism = 2).validateCsvFile(TextFile(csv), schema(uniqueSchema), None, resumed, everyRow(checkpoint, resume = true))
+
+      resumed.failures.flatMap(_.lineNumber).toList mustEqual List(5, 7)
+    }
+
+    "fail when a row before the checkpoint failed" in {
+      val csv = csvFile("id", "a", "a", "b", "c", "d")
+      val checkpoint = checkpointFile()
+
+      validator().validateCsvFile(TextFile(csv), schema(uniqueSchema), None, new Interrupting(4), everyRow(checkpoint))
+
+      val resumed = new Interrupting()
+      validator().validateCsvFile(TextFile(csv), schema(uniqueSchema), None, resumed, everyRow(checkpoint, resume = true)) must beFalse
+      resumed.failures must beEmpty
+    }
+
+    "delete the checkpoint once the CSV file has been validated" in {
+      val csv = csvFile("id", "a", "b", "c")
+      val checkpoint = checkpointFile()
+
+      validator().validateCsvFile(TextFile(csv), schema(uniqueSchema), None, new Interrupting(), everyRow(checkpoint)) must beTrue
+      Files.exists(checkpoint) must beFalse
+    }
+
+    "validate every row when there is no checkpoint" in {
+      val csv = csvFile("id", "a", "b", "a")
+      val results = new Interrupting()
+
+      validator().validateCsvFile(TextFile(csv), schema(uniqueSchema), None, results, everyRow(checkpointFile(), resume = true)) must beFalse
+      results.failures.flatMap(_.lineNumber).toList mustEqual List(4)
+    }
+
+    "refuse a checkpoint which was written for a different CSV file" in {
+      val csv = csvFile("id", "a", "b", "c", "d")
+      val checkpoint = checkpointFile()
+      validator().validateCsvFile(TextFile(csv), schema(uniqueSchema), None, new Interrupting(3), everyRow(checkpoint))
+      Files.write(csv, "e\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND)
+
+      val resumed = new Interrupting()
+      validator().validateCsvFile(TextFile(csv), schema(uniqueSchema), None, resumed, everyRow(checkpoint, resume = true)) must beFalse
+      resumed.failures.map(_.message).toList must beLike {
+        case List(message) => message must startWith(s"The checkpoint $checkpoint was written for a different CSV file or schema")
+      }
+    }
+
+    "refuse a checkpoint which was written for a different schema" in {
+      val csv = csvFile("id", "a", "b", "c", "d")
+      val checkpoint = checkpointFile()
+      validator().validateCsvFile(TextFile(csv), schema(uniqueSchema), None, new Interrupting(3), everyRow(checkpoint))
+
+      val resumed = new Interrupting()
+      val otherSchema = schema(uniqueSchema.replace("unique", "unique notEmpty"))
+      validator().validateCsvFile(TextFile(csv), otherSchema, None, resumed, everyRow(checkpoint, resume = true)) must beFalse
+      resumed.failures must haveSize(1)
+    }
+  }
+
+  "A fingerprint" should {
+
+    "change when the CSV file changes" in {
+      val csv = csvFile("id", "a")
+      val s = schema(uniqueSchema)
+      val before = Fingerprint.of(csv, s)
+
+      Fingerprint.of(csv, s) mustEqual before
+      Files.write(csv, "id\nb\n".getBytes(StandardCharsets.UTF_8))
+      Fingerprint.of(csv, s).csvHash mustNotEqual before.csvHash
+    }
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator
+
+import org.junit.runner.RunWith
+import org.specs2.mutable.Specification
+import org.specs2.runner.JUnitRunner
+
+import java.nio.charset.StandardCharsets
+import java.nio.file.attribute.FileTime
+import java.nio.file.{Files, Path}
+import scala.util.Using
+
+@RunWith(classOf[JUnitRunner])
+class ChecksumEngineSpec extends Specification {
+
+  val helloMd5 = "5d41402abc4b2a76b9719d911017c592"
+  val helloSha256 = "2cf24dba5fb0a30e26e83b2ac5b9e29e1b161e5c1fa7425e73043362938b9824"
+
+  def tempFile(content: String): Path = {
+    val file = Files.createTempFile("checksum-engine-spec", ".txt")
+    file.toFile.deleteOnExit()
+    Files.write(file, content.getBytes(StandardCharsets.UTF_8))
+  }
+
+  def tempCacheFile(): Path = {
+    val file = Files.createTempFile("checksum-engine-spec", ".cache")
+    file.toFile.deleteOnExit()
+    Files.delete(file)
+    file
+  }
+
+  "ChecksumEngine" should {
+
+    "calculate the checksum of a file" in {
+      Using.resource(new ChecksumEngine(ChecksumConfig())) { engine =>
+        engine.checksum(tempFile("hello"), "MD5") mustEqual Right(helloMd5)
+      }
+    }
+
+    "accept the algorithm names allowed by the checksum rule" in {
+      val file = tempFile("hello")
+      Using.resource(new ChecksumEngine(ChecksumConfig())) { engine =>
+        engine.checksum(file, "SHA256") mustEqual Right(helloSha256)
+        engine.checksum(file, "SHA-256") mustEqual Right(helloSha256)
+      }
+    }
+
+    "hash files larger than its buffer" in {
+      val file = Files.createTempFile("checksum-engine-spec", ".bin")
+      file.toFile.deleteOnExit()
+      val content = Array.tabulate[Byte](3 * 1024 * 1024 + 17)(i => (i % 251).toByte)
+      Files.write(file, content)
+
+      val expected = ChecksumEngine.toHex(java.security.MessageDigest.getInstance("SHA-1").digest(content))
+      Using.resource(new ChecksumEngine(ChecksumConfig(threads = 2))) { engine =>
+        engine.checksum(file, "SHA1") mustEqual Right(expected)
+      }
+    }
+
+    "report a file which does not exist" in {
+      Using.resource(new ChecksumEngine(ChecksumConfig())) { engine =>
+        engine.checksum(tempFile("hello").resolveSibling("does-not-exist.txt"), "MD5") must beLeft
+      }
+    }
+
+    "answer from its cache on a later run when the file is unchanged" in {
+      val file = tempFile("hello")
+      val cacheFile = tempCacheFile()
+
+      Using.resource(new ChecksumEngine(ChecksumConfig(cacheFile = Some(cacheFile)))) { engine =>
+        engine.checksum(file, "MD5") mustEqual Right(helloMd5)
+        engine.cacheHits mustEqual 0
+        engine.cacheMisses mustEqual 1
+      }
+
+      Using.resource(new ChecksumEngine(ChecksumConfig(cacheFile = Some(cacheFile)))) { engine =>
+        engine.checksum(file, "MD5") mustEqual Right(helloMd5)
+        engine.cacheHits mustEqual 1
+        engine.cacheMisses mustEqual 0
+      }
+    }
+
+    "hash the file again when its size or last modified time has changed" in {
+      val file = tempFile("hello")
+      val cacheFile = tempCacheFile()
+
+      Using.resource(new ChecksumEngine(ChecksumConfig(cacheFile = Some(cacheFile)))) { engine =>
+        engine.checksum(file, "MD5") mustEqual Right(helloMd5)
+      }
+
+      Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis - 60000))
+      Using.resource(new ChecksumEngine(ChecksumConfig(cacheFile = Some(cacheFile)))) { engine =>
+        engine.checksum(file, "MD5") mustEqual Right(helloMd5)
+        engine.cacheMisses mustEqual 1
+      }
+
+      Files.write(file, "hello!".getBytes(StandardCharsets.UTF_8))
+      Using.resource(new ChecksumEngine(ChecksumConfig(cacheFile = Some(cacheFile)))) { engine =>
+        engine.checksum(file, "MD5") must not(beEqualTo(Right(helloMd5)))
+        engine.cacheMisses mustEqual 1
+      }
+    }
+
+    "hash the file again when forced to reverify" in {
+      val file = tempFile("hello")
+      val cacheFile = tempCacheFile()
+
+      Using.resource(new ChecksumEngine(ChecksumConfig(cacheFile = Some(cacheFile)))) { engine =>
+        engine.checksum(file, "MD5")
+      }
+
+      Using.resource(new ChecksumEngine(ChecksumConfig(cacheFile = Some(cacheFile), forceReverify = true))) { engine =>
+        engine.checksum(file, "MD5") mustEqual Right(helloMd5)
+        engine.cacheHits mustEqual 0
+        engine.cacheMisses mustEqual 1
+      }
+    }
+
+    "calculate the checksum of a prefetched file" in {
+      val file = tempFile("hello")
+      Using.resource(new ChecksumEngine(ChecksumConfig())) { engine =>
+        engine.prefetch(file, "MD5")
+        engine.checksum(file, "MD5") mustEqual Right(helloMd5)
+      }
+    }
+
+    "not give the digest of a prefetched file which has since changed" in {
+      val file = tempFile("hello")
+      Using.resource(new ChecksumEngine(ChecksumConfig())) { engine =>
+        engine.prefetch(file, "MD5")
+        Files.write(file, "hello!".getBytes(StandardCharsets.UTF_8))
+        engine.checksum(file, "MD5") mustEqual Right("5a8dd3ad0756a93ded72b823b19dd877")
+      }
+    }
+
+    "forget the oldest prefetched files which are never asked for" in {
+      val files = (1 to 5).map(i => tempFile(s"hello $i"))
+      Using.resource(new ChecksumEngine(ChecksumConfig(maxPrefetched = 2))) { engine =>
+        files.foreach(engine.prefetch(_, "MD5"))
+        engine.inFlightCount must beLessThanOrEqualTo(2)
+        engine.checksum(files.head, "MD5") mustEqual Right(ChecksumEngine.hashFile(files.head, "MD5"))
+        engine.checksum(files.last, "MD5") mustEqual Right(ChecksumEngine.hashFile(files.last, "MD5"))
+      }
+    }
+  }
+
+  "toHex" should {
+
+    "encode each byte as two lower case hex digits" in {
+      ChecksumEngine.toHex(Array[Byte](0, 1, 15, 16, 127, -128, -1)) mustEqual "00010f107f80ff"
+    }
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator
+
+import cats.data.ValidatedNel
+import com.univocity.parsers.csv.{CsvParser, CsvParserSettings}
+import org.junit.runner.RunWith
+import org.specs2.mutable.Specification
+import org.specs2.runner.JUnitRunner
+import uk.gov.nationalarchives.csv.validator.api.{CsvValidator, TextFile}
+import uk.gov.nationalarchives.csv.validator.schema.{Quoted, Schema}
+
+import java.io.{InputStreamReader, StringReader}
+import java.nio.charset.StandardCharsets
+import java.nio.file.{Files, Path}
+import scala.collection.mutable
+import scala.jdk.CollectionConverters._
+
+@RunWith(classOf[JUnitRunner])
+class ChunkedCsvParserSpec extends Specification {
+
+  val validator = CsvValidator.createValidator(false, Nil, false, false, false, 4096)
+
+  def settings(): CsvParserSettings = validator.createCsvParserSettings(Schema(List(Quoted()), Nil), 4096)
+
+  def withFile[T](csv: String)(f: Path => T): T = {
+    val file = Files.createTempFile("chunked", ".csv")
+    try {
+      Files.write(file, csv.getBytes(StandardCharsets.UTF_8))
+      f(file)
+    } finally {
+      Files.delete(file)
+    }
+  }
+
+  def sequentialRows(csv: String): List[List[String]] =
+    new CsvParser(settings()).parseAll(new StringReader(csv)).asScala.toList.map(_.toList)
+
+  def chunkedRows(file: Path, chunkSize: Long = 64): List[List[String]] = {
+    val parser = ChunkedCsvParser.open(file, StandardCharsets.UTF_8, 3, () => settings(), new InputStreamReader(_, StandardCharsets.UTF_8), chunkSize).get
+    try {
+      Iterator.continually(parser.parseNext()).takeWhile(_ != null).map(_.toList).toList
+    } finally {
+      parser.stopParsing()
+    }
+  }
+
+  def csv(rows: Int, lineSeparator: String): String =
+    (1 to rows).map {
+      case i if i % 7 == 0 => s"""$i,"a value spanning${lineSeparator}two lines",x"""
+      case i if i % 11 == 0 => s"""$i,"a ""quoted"" value, with a comma",y"""
+      case i if i % 13 == 0 => s"# a comment$lineSeparator$i,,z"
+      case i => s"$i,value $i,z"
+    }.mkString("", lineSeparator, lineSeparator)
+
+  "ChunkedCsvParser" should {
+
+    "parse the same rows as a single parser" in {
+      val data = csv(500, "\n")
+      withFile(data) { file =>
+        chunkedRows(file) mustEqual sequentialRows(data)
+      }
+    }
+
+    "parse the same rows as a single parser when records end with CRLF" in {
+      val data = csv(500, "\r\n")
+      withFile(data) { file =>
+        chunkedRows(file) mustEqual sequentialRows(data)
+      }
+    }
+
+    "parse the rest of the file with a single parser once a record boundary can not be proven" in {
+      val data = csv(100, "\n") + "101,a stray \" quote,z\n" + csv(300, "\n")
+      withFile(data) { file =>
+        chunkedRows(file) mustEqual sequentialRows(data)
+      }
+    }
+
+    "not split a file which is no larger than a chunk" in {
+      withFile(csv(10, "\n")) { file =>
+        ChunkedCsvParser.open(file, StandardCharsets.UTF_8, 3, () => settings(), new InputStreamReader(_, StandardCharsets.UTF_8), 1024) must beNone
+      }
+    }
+
+    "not split a file whose records end with CR" in {
+      withFile(csv(500, "\r")) { file =>
+        ChunkedCsvParser.open(file, StandardCharsets.UTF_8, 3, () => settings(), new InputStreamReader(_, StandardCharsets.UTF_8), 64) must beNone
+      }
+    }
+  }
+
+  "Validating a large file on several parsing threads" should {
+
+    val schema =
+      """version 1.1
+        |@totalColumns 3
+        |id: positiveInteger
+        |name: regex("[a-z]+")
+        |padding: notEmpty
+        |""".stripMargin
+
+    def run(parseParallelism: Int, file: Path): (Boolean, List[ValidatedNel[FailMessage, Any]]) = {
+      val validator = CsvValidator.createValidator(false, Nil, false, false, false, 4096, parseParallelismLevel = parseParallelism)
+      val results = mutable.ListBuffer.empty[ValidatedNel[FailMessage, Any]]
+      val parsed = validator.parseSchema(new StringReader(schema)) fold (f => throw new IllegalArgumentException(f.toString()), s => s)
+      val pass = validator.validateCsvFile(TextFile(file), parsed, None, results += _)
+      (pass, results.toList)
+    }
+
+    "report the same errors at the same lines as a single parser" in {
+      val padding = "p" * 100
+      val rows = (ChunkedCsvParser.DefaultChunkSize * 2 / padding.length).toInt
+      val data = (1 to rows).map(i => if(i % 997 == 0) s"$i,NOT-VALID,$padding" else s"$i,name,$padding").mkString("id,name,padding\n", "\n", "\n")
+
+      withFile(data) { file =>
+        val (sequentialPass, sequentialResults) = run(1, file)
+        val (chunkedPass, chunkedResults) = run(4, file)
+
+        sequentialPass must beFalse
+        chunkedPass mustEqual sequentialPass
+        chunkedResults mustEqual sequentialResults
+      }
+    }
+  }
+}
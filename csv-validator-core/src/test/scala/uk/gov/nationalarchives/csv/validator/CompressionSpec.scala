@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator
+
+import org.junit.runner.RunWith
+import org.specs2.mutable.Specification
+import org.specs2.runner.JUnitRunner
+import uk.gov.nationalarchives.csv.validator.api.{CsvValidator, TextFile}
+import uk.gov.nationalarchives.csv.validator.schema.Schema
+
+import java.io.{FileNotFoundException, IOException, StringReader}
+import java.nio.charset.StandardCharsets
+import java.nio.file.{Files, Path}
+import java.util.zip.{GZIPOutputStream, ZipEntry, ZipOutputStream}
+import scala.collection.mutable
+import scala.util.Using
+
+@RunWith(classOf[JUnitRunner])
+class CompressionSpec extends Specification {
+
+  val schemaText =
+    """version 1.1
+      |@totalColumns 2
+      |id: unique
+      |name: notEmpty
+      |""".stripMargin
+
+  val csv: Array[Byte] = "id,name\n1,a\n2,\n1,c\n".getBytes(StandardCharsets.UTF_8)
+
+  def validator(parseParallelism: Int = 1) = CsvValidator.createValidator(false, Nil, false, false, false, 4096, parseParallelismLevel = parseParallelism)
+
+  def schema: Schema = validator().parseSchema(new StringReader(schemaText)) fold (f => throw new IllegalArgumentException(f.toString()), s => s)
+
+  def gzipped(bytes: Array[Byte]): Path = {
+    val file = Files.createTempFile("compression-spec", ".csv.gz")
+    Using.resource(new GZIPOutputStream(Files.newOutputStream(file)))(_.write(bytes))
+    file
+  }
+
+  def zipped(entries: (String, Array[Byte])*): Path = {
+    val file = Files.createTempFile("compression-spec", ".zip")
+    Using.resource(new ZipOutputStream(Files.newOutputStream(file))) { zip =>
+      for((name, bytes) <- entries) {
+        zip.putNextEntry(new ZipEntry(name))
+        zip.write(bytes)
+        zip.closeEntry()
+      }
+    }
+    file
+  }
+
+  def failures(file: TextFile, parseParallelism: Int = 1): List[String] = {
+    val messages = mutable.ListBuffer.empty[String]
+    validator(parseParallelism).validateCsvFile(file, schema, None, _.fold(f => messages ++= f.toList.map(_.message), _ => ()))
+    messages.toList
+  }
+
+  "Validating a compressed CSV file" should {
+
+    "report the same failures for a gzip file as for the uncompressed file" in {
+      val plain = Files.write(Files.createTempFile("compression-spec", ".csv"), csv)
+      val gz = gzipped(csv)
+
+      failures(TextFile(gz)) mustEqual failures(TextFile(plain))
+      failures(TextFile(gz)) must haveSize(2)
+      failures(TextFile(gz), parseParallelism = 2) mustEqual failures(TextFile(plain))
+    }
+
+    "validate the only file of a zip file" in {
+      failures(TextFile(zipped("data.csv" -> csv))) must haveSize(2)
+    }
+
+    "validate the named entry of a zip file" in {
+      val zip = zipped("readme.txt" -> "not a csv".getBytes(StandardCharsets.UTF_8), "data.csv" -> csv, "other.csv" -> "id,name\n1,a\n".getBytes(StandardCharsets.UTF_8))
+
+      failures(TextFile(zip, zipEntry = Some("data.csv"))) must haveSize(2)
+      failures(TextFile(zip, zipEntry = Some("other.csv"))) must beEmpty
+    }
+
+    "refuse a zip file of several files when no entry is named" in {
+      val zip = zipped("a.csv" -> csv, "b.csv" -> csv)
+
+      failures(TextFile(zip)) must throwA[FileNotFoundException](message = "contains 2 files, choose one of: a.csv, b.csv")
+      failures(TextFile(zip, zipEntry = Some("c.csv"))) must throwA[FileNotFoundException](message = "has no entry named c.csv")
+    }
+
+    "refuse an entry of a file which is not a zip file" in {
+      failures(TextFile(gzipped(csv), zipEntry = Some("data.csv"))) must throwA[IOException](message = "is not a zip file")
+    }
+
+    "check the UTF-8 encoding of the decompressed bytes, skipping a byte order mark" in {
+      val bom = Array[Byte](0xEF.toByte, 0xBB.toByte, 0xBF.toByte)
+      val invalid = "id,name\n1,a".getBytes(StandardCharsets.UTF_8) ++ Array[Byte](0xFF.toByte) ++ "\n".getBytes(StandardCharsets.UTF_8)
+
+      failures(TextFile(gzipped(bom ++ "id,name\n1,a\n".getBytes(StandardCharsets.UTF_8)))) must beEmpty
+      failures(TextFile(gzipped(invalid))) must beLike {
+        case List(message) => message must startWith("[UTF-8 Error][@12]")
+      }
+    }
+  }
+
+  "A DecompressingInputStream" should {
+
+    "count the compressed bytes read from the file" in {
+      val gz = gzipped(Array.fill(100000)('a'.toByte))
+
+      Using.resource(DecompressingInputStream.open(gz)) { in =>
+        in.readAllBytes().length mustEqual 100000
+        in.fileBytesRead mustEqual Files.size(gz)
+      }
+    }
+  }
+
+  "Compression" should {
+
+    "be recognised by the first bytes of a file" in {
+      Compression.of(gzipped(csv)) mustEqual Compression.Gzip
+      Compression.of(zipped("data.csv" -> csv)) mustEqual Compression.Zip
+      Compression.of(Files.write(Files.createTempFile("compression-spec", ".gz"), csv)) mustEqual Compression.Uncompressed
+      Compression.of(Files.createTempFile("compression-spec", ".csv")) mustEqual Compression.Uncompressed
+    }
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator
+
+import org.junit.runner.RunWith
+import org.specs2.mutable.Specification
+import org.specs2.runner.JUnitRunner
+import uk.gov.nationalarchives.csv.validator.api.{CsvValidator, TextFile}
+import uk.gov.nationalarchives.csv.validator.schema.Schema
+
+import java.io.{StringReader, StringWriter}
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import scala.collection.mutable
+
+@RunWith(classOf[JUnitRunner])
+class ErrorSinkSpec extends Specification {
+
+  val schemaText =
+    """version 1.1
+      |@totalColumns 2
+      |id: positiveInteger
+      |name: regex("[a-z]+")
+      |""".stripMargin
+
+  def validator(failFast: Boolean = false) = CsvValidator.createValidator(failFast, Nil, false, false, false, 4096)
+
+  def schema(): Schema = validator().parseSchema(new StringReader(schemaText)) fold (f => throw new IllegalArgumentException(f.toString()), s => s)
+
+  // every row has a bad name, and every fifth row a bad id too
+  def csv(rows: Int): String =
+    (1 to rows).map(i => if(i % 5 == 0) s"-$i,NAME$i" else s"$i,NAME$i").mkString("id,name\n", "\n", "\n")
+
+  class Collecting(override val needsMessages: Boolean = true) extends ErrorSink {
+    val failures = mutable.ListBuffer.empty[FailMessage]
+    override def accept(failure: FailMessage): Unit = failures += failure
+  }
+
+  "Capping the errors" should {
+
+    "stop reading the CSV once the limit is reached" in {
+      val collecting = new Collecting()
+      var rowsRead = 0L
+      val progress = new ProgressCallback {
+        override def update(complete: Percentage): Unit = {}
+        override def processed(rows: Long, bytes: Long): Unit = rowsRead = rows
+      }
+
+      val pass = validator().validateReaderToSink(new StringReader(csv(10000)), schema(), 4096, Some(progress), None, ErrorSink.capped(collecting, 5))
+
+      pass must beFalse
+      collecting.failures.count(_.`type` == ValidationError) mustEqual 5
+      rowsRead must beLessThan(100L)
+    }
+
+    "report whether the limit was reached" in {
+      val capped = ErrorSink.capped(new Collecting(), 5)
+      validator().validateReaderToSink(new StringReader(csv(3)), schema(), 4096, None, None, capped)
+      capped.errorCount mustEqual 3
+      capped.limitReached must beFalse
+    }
+
+    "not validate the encoding of the rest of a file" in {
+      val file = Files.createTempFile("errors", ".csv")
+      try {
+        Files.write(file, (csv(10000) + "1,é\n").getBytes(StandardCharsets.ISO_8859_1))
+        val collecting = new Collecting()
+        validator().validateCsvFileToSink(TextFile(file), schema(), None, ErrorSink.capped(collecting, 2)) must beFalse
+        collecting.failures.map(_.message).filter(_.startsWith("[UTF-8 Error]")) must beEmpty
+      } finally {
+        Files.delete(file)
+      }
+    }
+  }
+
+  "An error summary" should {
+
+    "count the failures of each rule of each column, keeping the first lines" in {
+      val summary = new ErrorSummary(samplesPerGroup = 3)
+      validator().validateReaderToSink(new StringReader(csv(20)), schema(), 4096, None, None, summary) must beFalse
+
+      summary.groupedFailures mustEqual List(
+        ErrorSummary.Group(ValidationError, Some(1), """regex("[a-z]+")""", 20, List(2, 3, 4)),
+        ErrorSummary.Group(ValidationError, Some(0), "positiveInteger", 4, List(6, 11, 16))
+      )
+    }
+
+    "group the failures of @totalColumns" in {
+      val summary = new ErrorSummary()
+      validator().validateReaderToSink(new StringReader("id,name\n1,a,x\n2,b,y\n3,c\n"), schema(), 4096, None, None, summary)
+
+      summary.groupedFailures mustEqual List(ErrorSummary.Group(ValidationError, None, "@totalColumns 2 found 3", 2, List(2, 3)))
+    }
+
+    "group the failures of a unique column by the rule, not by the row" in {
+      val uniqueSchema = validator().parseSchema(new StringReader(
+        """version 1.1
+          |@totalColumns 2
+          |id: unique
+          |name: unique($id)
+          |""".stripMargin)) fold (f => throw new IllegalArgumentException(f.toString()), s => s)
+      val summary = new ErrorSummary(samplesPerGroup = 2)
+      validator().validateReaderToSink(new StringReader("id,name\n1,a\n1,a\n2,b\n1,a\n"), uniqueSchema, 4096, None, None, summary) must beFalse
+
+      summary.groupedFailures mustEqual List(
+        ErrorSummary.Group(ValidationError, Some(0), "unique", 2, List(3, 5)),
+        ErrorSummary.Group(ValidationError, Some(1), "unique( $id )", 2, List(3, 5))
+      )
+    }
+
+    "only count the failures beyond the maximum number of groups" in {
+      val summary = new ErrorSummary(maxGroups = 1)
+      validator().validateReaderToSink(new StringReader(csv(10)), schema(), 4096, None, None, summary)
+
+      summary.groupedFailures.map(_.count) mustEqual List(10)
+      summary.ungroupedCount mustEqual 2
+    }
+
+    "describe the groups by the columns of the schema" in {
+      val summary = new ErrorSummary(samplesPerGroup = 1)
+      val s = schema()
+      validator().validateReaderToSink(new StringReader(csv(5)), s, 4096, None, None, summary)
+
+      summary.report(s) mustEqual List(
+        """Error:   regex("[a-z]+") in column: name failed 5 times, first on lines: 2""",
+        "Error:   positiveInteger in column: id failed 1 time, first on lines: 6"
+      )
+    }
+  }
+
+  "The messages of failures" should {
+
+    "be in full when the sink needs them" in {
+      val collecting = new Collecting(needsMessages = true)
+      validator().validateReaderToSink(new StringReader(csv(1)), schema(), 4096, None, None, collecting)
+
+      collecting.failures.toList mustEqual List(FailMessage(ValidationError, """regex("[a-z]+") fails for row: 2, column: name, value: "NAME1"""", Some(2), Some(1)))
+    }
+
+    "only name the rule when the sink does not need them" in {
+      val collecting = new Collecting(needsMessages = false)
+      validator(failFast = true).validateReaderToSink(new StringReader(csv(1)), schema(), 4096, None, None, collecting)
+
+      collecting.failures.toList mustEqual List(FailMessage(ValidationError, """regex("[a-z]+")""", Some(2), Some(1)))
+    }
+
+    "not change the messages of another validation of the same schema" in {
+      val s = schema()
+      val detailed = new Collecting(needsMessages = true)
+      // validates the schema again, in full, whilst the summary is part way through
+      val summary = new Collecting(needsMessages = false) {
+        override def accept(failure: FailMessage): Unit = {
+          if(failures.isEmpty) validator().validateReaderToSink(new StringReader(csv(1)), s, 4096, None, None, detailed)
+          super.accept(failure)
+        }
+      }
+      validator().validateReaderToSink(new StringReader(csv(2)), s, 4096, None, None, summary)
+
+      detailed.failures.map(_.message).toList mustEqual List("""regex("[a-z]+") fails for row: 2, column: name, value: "NAME1"""")
+      summary.failures.map(_.message).toList mustEqual List("""regex("[a-z]+")""", """regex("[a-z]+")""")
+    }
+  }
+
+  "Writing JSON Lines" should {
+
+    "write each failure as a line of JSON" in {
+      val writer = new StringWriter()
+      val sink = new JsonLinesErrorSink(writer)
+      sink.accept(FailMessage(ValidationError, "a \"quoted\" value", Some(3), Some(1)))
+      sink.accept(FailMessage(ValidationWarning, "a warning"))
+
+      writer.toString mustEqual
+        """{"type":"error","line":3,"column":1,"message":"a \"quoted\" value"}""" + "\n" +
+        """{"type":"warning","message":"a warning"}""" + "\n"
+    }
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator
+
+import org.junit.runner.RunWith
+import org.specs2.mutable.Specification
+import org.specs2.runner.JUnitRunner
+import uk.gov.nationalarchives.csv.validator.api.{CsvValidator, TextFile}
+import uk.gov.nationalarchives.csv.validator.metadata.{Cell, Row}
+import uk.gov.nationalarchives.csv.validator.schema._
+import uk.gov.nationalarchives.csv.validator.schema.v1_0.NotEmptyRule
+
+import java.io.StringReader
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.util.concurrent.ConcurrentHashMap
+import scala.collection.mutable
+import scala.jdk.CollectionConverters._
+import scala.util.Using
+
+@RunWith(classOf[JUnitRunner])
+class FilePrefetcherSpec extends Specification {
+
+  class RecordingRule extends Rule("recording") {
+    val prefetched: java.util.Set[Int] = ConcurrentHashMap.newKeySet[Int]()
+
+    override def valid(cellValue: String, columnDefinition: ColumnDefinition, columnIndex: Int, row: Row, schema: Schema, mayBeLast: Option[Boolean] = None): Boolean = true
+    override def cost: Int = RuleCost.FileSystem
+    override def prefetch(columnIndex: Int, row: Row, schema: Schema): Unit = prefetched.add(row.lineNumber)
+  }
+
+  def rows(values: String*): Iterator[Row] = values.iterator.zipWithIndex.map { case (value, i) => Row(List(Cell(value)), i + 2) }
+
+  def waitFor(condition: => Boolean): Boolean = {
+    val deadline = System.currentTimeMillis() + 10000
+    while(!condition && System.currentTimeMillis() < deadline) Thread.sleep(10)
+    condition
+  }
+
+  "A FilePrefetcher" should {
+
+    "give every row in the order that they were read" in {
+      val schema = Schema(Nil, List(ColumnDefinition(NamedColumnIdentifier("file"), List(new RecordingRule))))
+      val values = (1 to 100).map(i => s"file$i")
+
+      Using.resource(new FilePrefetcher(rows(values: _*), schema, PrefetchConfig(window = 8, threads = 2), ValidationProfiler.Disabled)) { prefetcher =>
+        prefetcher.map(_.value(0)).toList mustEqual values.toList
+      }
+    }
+
+    "prefetch the files of the rows read ahead, but not of empty optional cells" in {
+      val rule = new RecordingRule
+      val schema = Schema(Nil, List(ColumnDefinition(NamedColumnIdentifier("file"), List(rule), List(Optional()))))
+
+      Using.resource(new FilePrefetcher(rows("a", "", "c", "d", "e"), schema, PrefetchConfig(window = 3), ValidationProfiler.Disabled)) { prefetcher =>
+        prefetcher.hasNext must beTrue
+        waitFor(rule.prefetched.size == 2) must beTrue
+        rule.prefetched.asScala mustEqual Set(2, 4)
+      }
+    }
+
+    "not prefetch columns without file rules" in {
+      val schema = Schema(Nil, List(ColumnDefinition(NamedColumnIdentifier("a"), List(NotEmptyRule())), ColumnDefinition(NamedColumnIdentifier("b"), List(new RecordingRule))))
+
+      FilePrefetcher.fileColumns(schema).toList mustEqual List(1)
+    }
+
+    "give the rows read before a failure to read, then the failure" in {
+      val failing = rows("a", "b") ++ Iterator.continually[Row](throw new IllegalStateException("unreadable"))
+      val schema = Schema(Nil, List(ColumnDefinition(NamedColumnIdentifier("file"), List(new RecordingRule))))
+
+      Using.resource(new FilePrefetcher(failing, schema, PrefetchConfig(window = 8), ValidationProfiler.Disabled)) { prefetcher =>
+        prefetcher.next().value(0) mustEqual "a"
+        prefetcher.next().value(0) mustEqual "b"
+        prefetcher.next() must throwA[IllegalStateException]
+        prefetcher.hasNext must beFalse
+      }
+    }
+
+    "record the depth of its queue" in {
+      val profiler = ValidationProfiler()
+      val schema = Schema(Nil, List(ColumnDefinition(NamedColumnIdentifier("file"), List(new RecordingRule))))
+
+      Using.resource(new FilePrefetcher(rows("a", "b", "c"), schema, PrefetchConfig(window = 2), profiler)) { prefetcher =>
+        prefetcher.toList must haveSize(3)
+      }
+      profiler.report.maxPrefetchQueueDepth must beBetween(1, 2)
+    }
+  }
+
+  "Validating with prefetching" should {
+
+    "report the same failures as validating without" in {
+      val existing = Files.createTempFile("prefetch-spec", ".txt")
+      val missing = existing.resolveSibling(existing.getFileName.toString + ".missing")
+      val csv = Files.createTempFile("prefetch-spec", ".csv")
+      Files.write(csv, (List("file") ++ List.fill(20)(existing.toString) ++ List(missing.toString, existing.toString)).mkString("", "\n", "\n").getBytes(StandardCharsets.UTF_8))
+      val schemaText =
+        """version 1.1
+          |@totalColumns 1
+          |file: fileExists
+          |""".stripMargin
+
+      def failures(prefetch: PrefetchConfig): List[Option[Int]] = {
+        val validator = CsvValidator.createValidator(false, Nil, false, false, false, 4096, prefetchConfig = prefetch)
+        val schema = validator.parseSchema(new StringReader(schemaText)) fold (f => throw new IllegalArgumentException(f.toString()), s => s)
+        val lines = mutable.ListBuffer.empty[Option[Int]]
+        validator.validateCsvFile(TextFile(csv), schema, None, _.fold(f => lines ++= f.toList.map(_.lineNumber), _ => ()))
+        lines.toList
+      }
+
+      try {
+        failures(PrefetchConfig(window = 4)) mustEqual failures(PrefetchConfig.Disabled)
+        failures(PrefetchConfig(window = 4)) mustEqual List(Some(22))
+      } finally {
+        Files.delete(csv)
+        Files.delete(existing)
+      }
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator
+
+import org.junit.runner.RunWith
+import org.specs2.mutable.Specification
+import org.specs2.runner.JUnitRunner
+import uk.gov.nationalarchives.csv.validator.Util.FileSystem
+import uk.gov.nationalarchives.csv.validator.metadata.{Cell, Row}
+import uk.gov.nationalarchives.csv.validator.schema.{ColumnDefinition, NamedColumnIdentifier, Schema, TotalColumns}
+import uk.gov.nationalarchives.csv.validator.schema.v1_0.FileExistsRule
+
+import java.nio.file.{Files, Path}
+
+@RunWith(classOf[JUnitRunner])
+class FileSystemCacheSpec extends Specification {
+
+  def tempDirectory(files: String*): Path = {
+    val dir = Files.createTempDirectory("file-system-cache-spec")
+    for(file <- files) {
+      val path = dir.resolve(file)
+      Files.createDirectories(path.getParent)
+      Files.createFile(path)
+    }
+    dir
+  }
+
+  "FileSystemCache" should {
+
+    "list each directory once" in {
+      val dir = tempDirectory("a.txt", "b.txt")
+      val cache = new FileSystemCache()
+
+      cache.children(dir).map(_.getFileName.toString).sorted mustEqual Seq("a.txt", "b.txt")
+      Files.createFile(dir.resolve("c.txt"))
+      cache.children(dir).map(_.getFileName.toString).sorted mustEqual Seq("a.txt", "b.txt")
+      cache.cacheHits mustEqual 1
+    }
+
+    "not remember anything when disabled" in {
+      val dir = tempDirectory("a.txt")
+
+      FileSystemCache.Disabled.exists(dir.resolve("b.txt")) must beFalse
+      Files.createFile(dir.resolve("b.txt"))
+      FileSystemCache.Disabled.exists(dir.resolve("b.txt")) must beTrue
+    }
+
+    "evict the least recently used entries beyond its maximum number of paths" in {
+      val dir = tempDirectory("a/1.txt", "a/2.txt", "b/1.txt", "b/2.txt")
+      val cache = new FileSystemCache(maxPaths = 4)
+
+      cache.children(dir.resolve("a"))
+      cache.children(dir.resolve("b"))
+      cache.children(dir.resolve("a"))
+      cache.cacheHits mustEqual 0
+
+      cache.children(dir.resolve("a"))
+      cache.cacheHits mustEqual 1
+    }
+
+    "find the descendants which match a glob pattern" in {
+      val dir = tempDirectory("a/1.txt", "a/b/2.txt", "a/b/3.xml")
+      val cache = new FileSystemCache()
+
+      cache.descendants(dir, "**.txt").map(dir.relativize(_).toString.replace('\\', '/')).sorted mustEqual Seq("a/1.txt", "a/b/2.txt")
+      cache.descendants(dir, "**.xml").map(_.getFileName.toString) mustEqual Seq("3.xml")
+    }
+
+    "check case sensitive paths in the same way as FileSystem" in {
+      val dir = tempDirectory("Folder/File.txt")
+      val cache = new FileSystemCache()
+
+      val paths = Seq("Folder/File.txt", "folder/File.txt", "Folder/file.txt").map(p => dir.resolve(p))
+      paths.map(cache.caseSensitivePathMatchesFs) mustEqual paths.map(FileSystem.caseSensitivePathMatchesFs)
+      paths.map(cache.caseSensitivePathMatchesFs) mustEqual Seq(true, false, false)
+    }
+  }
+
+  "fileExists rule" should {
+
+    "list the directory of the files it checks only once" in {
+      val dir = tempDirectory("1.txt", "2.txt", "3.txt")
+      val cache = new FileSystemCache()
+      val schema = Schema(List(TotalColumns(1)), List(ColumnDefinition(NamedColumnIdentifier("File"))))
+      val rule = FileExistsRule(List.empty, enforceCaseSensitivePathChecks = true).usingFileSystemCache(cache)
+
+      for(i <- 1 to 3) {
+        rule.evaluate(0, Row(Cell(dir.resolve(s"$i.txt").toString) :: Nil, i), schema).isValid must beTrue
+      }
+      rule.evaluate(0, Row(Cell(dir.resolve("4.txt").toString) :: Nil, 4), schema).isValid must beFalse
+
+      // each file is checked for existence, but its ancestor directories are only listed for the first file
+      val ancestors = dir.toAbsolutePath.getNameCount + 1
+      cache.cacheLookups - cache.cacheHits mustEqual 4L + ancestors
+    }
+  }
+}
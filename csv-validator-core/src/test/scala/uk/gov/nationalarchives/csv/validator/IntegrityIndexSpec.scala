@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator
+
+import org.junit.runner.RunWith
+import org.specs2.mutable.Specification
+import org.specs2.runner.JUnitRunner
+
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream, DataInputStream, DataOutputStream, FileNotFoundException}
+import java.nio.file.{Files, Path}
+import scala.jdk.CollectionConverters._
+
+@RunWith(classOf[JUnitRunner])
+class IntegrityIndexSpec extends Specification {
+
+  def contentFolder(files: String*): Path = {
+    val content = Files.createTempDirectory("integrity-index-spec").resolve("content")
+    Files.createDirectories(content)
+    for(file <- files) {
+      val path = content.resolve(file)
+      Files.createDirectories(path.getParent)
+      Files.createFile(path)
+    }
+    content
+  }
+
+  def relative(content: Path, paths: Iterable[Path]): Set[String] =
+    paths.map(content.relativize(_).toString.replace('\\', '/')).toSet
+
+  "IntegrityIndex" should {
+
+    "find the files in nested folders" in {
+      val content = contentFolder("a.txt", "1/b.txt", "1/2/c.txt")
+
+      relative(content, IntegrityIndex.scan(content, includeFolder = false).asScala) mustEqual Set("a.txt", "1/b.txt", "1/2/c.txt")
+      relative(content, IntegrityIndex.scan(content, includeFolder = true).asScala) mustEqual Set("", "a.txt", "1", "1/b.txt", "1/2", "1/2/c.txt")
+    }
+
+    "ignore recycle bins" in {
+      val content = contentFolder("a.txt", "RECYCLER/b.txt", "$RECYCLE.BIN/c.txt")
+
+      relative(content, IntegrityIndex.scan(content, includeFolder = true).asScala) mustEqual Set("", "a.txt")
+    }
+
+    "report the files which have not been listed" in {
+      val content = contentFolder("a.txt", "b.txt", "1/c.txt")
+      val index = new IntegrityIndex(includeFolder = false)
+
+      index.markListed(content.toString, Some(content), Some(content.resolve("a.txt")))
+      index.markListed(content.toString, Some(content), Some(content.resolve("1/c.txt")))
+      index.allListed must beFalse
+      index.unlistedFiles mustEqual Seq(content.resolve("b.txt"))
+
+      index.markListed(content.toString, Some(content), Some(content.resolve("b.txt")))
+      index.allListed must beTrue
+    }
+
+    "report the files which have not been listed from every content folder" in {
+      val content1 = contentFolder("a.txt", "b.txt")
+      val content2 = contentFolder("c.txt", "d.txt")
+      val index = new IntegrityIndex(includeFolder = false)
+
+      index.markListed(content1.toString, Some(content1), Some(content1.resolve("a.txt")))
+      index.markListed(content2.toString, Some(content2), Some(content2.resolve("c.txt")))
+      index.markListed(content2.toString, Some(content2), Some(content2.resolve("d.txt")))
+
+      index.unlistedFiles mustEqual Seq(content1.resolve("b.txt"))
+    }
+
+    "restore the files which had not been listed without scanning again" in {
+      val content = contentFolder("a.txt", "b.txt")
+      val index = new IntegrityIndex(includeFolder = false)
+      index.markListed(content.toString, Some(content), Some(content.resolve("a.txt")))
+
+      val bytes = new ByteArrayOutputStream()
+      val out = new DataOutputStream(bytes)
+      index.save(out)
+      out.flush()
+      Files.delete(content.resolve("b.txt"))
+
+      val restored = new IntegrityIndex(includeFolder = false)
+      restored.restore(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray)))
+      restored.markListed(content.toString, Some(content), None)
+      restored.unlistedFiles mustEqual Seq(content.resolve("b.txt"))
+    }
+
+    "fail when the content folder does not exist" in {
+      val content = contentFolder()
+      val index = new IntegrityIndex(includeFolder = false)
+      val missing = content.resolveSibling("missing")
+
+      index.markListed(missing.toString, Some(missing), Some(missing.resolve("a.txt"))) must throwA[FileNotFoundException]
+    }
+  }
+}
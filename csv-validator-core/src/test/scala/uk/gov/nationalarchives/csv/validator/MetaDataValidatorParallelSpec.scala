@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator
+
+import cats.data.{Validated, ValidatedNel}
+import org.junit.runner.RunWith
+import org.specs2.mutable.Specification
+import org.specs2.runner.JUnitRunner
+import uk.gov.nationalarchives.csv.validator.api.CsvValidator
+import uk.gov.nationalarchives.csv.validator.schema.Schema
+
+import java.io.StringReader
+import scala.collection.mutable
+
+@RunWith(classOf[JUnitRunner])
+class MetaDataValidatorParallelSpec extends Specification {
+
+  def buildValidator(parallelismLevel: Int): CsvValidator = new CsvValidator with AllErrorsMetaDataValidator {
+    val pathSubstitutions = List[(String,String)]()
+    val enforceCaseSensitivePathChecks = false
+    val trace = false
+    val skipFileChecks = false
+    val maxCharsPerCell = 4096
+    override val parallelism = parallelismLevel
+  }
+
+  def parse(schema: String, validator: CsvValidator): Schema = validator.parseSchema(new StringReader(schema)) fold (f => throw new IllegalArgumentException(f.toString()), s => s)
+
+  def run(parallelism: Int, schema: String, csv: String): (Boolean, List[ValidatedNel[FailMessage, Any]]) = {
+    val validator = buildValidator(parallelism)
+    val results = mutable.ListBuffer.empty[ValidatedNel[FailMessage, Any]]
+    val pass = validator.validateReader(new StringReader(csv), parse(schema, validator), 4096, None, results += _)
+    (pass, results.toList)
+  }
+
+  val schema =
+    """version 1.1
+      |@totalColumns 4
+      |id: positiveInteger unique
+      |name: regex("[a-z]+") length(1,10)
+      |date: xDate
+      |code: in("ABCDEF") unique($id)
+      |""".stripMargin
+
+  def csv(rows: Int, everyNthBad: Int): String = {
+    val sb = new StringBuilder("id,name,date,code\n")
+    for (i <- 1 to rows) {
+      val bad = everyNthBad > 0 && i % everyNthBad == 0
+      val id = if (bad) i - 1 else i
+      val name = if (bad) "NOT-VALID" else "name" + ('a' + (i % 26)).toChar
+      val date = if (bad) "2013-02-30" else "2013-01-01"
+      sb.append(s"$id,$name,$date,${if (bad) "Z" else "ABC"}\n")
+    }
+    sb.toString
+  }
+
+  "Parallel validation" should {
+
+    "pass a valid file spanning many batches" in {
+      val (pass, results) = run(4, schema, csv(AllErrorsMetaDataValidator.RowBatchSize * 5 + 3, 0))
+      pass mustEqual true
+      results.forall(_.isValid) mustEqual true
+    }
+
+    "deliver the same results in the same order as sequential validation" in {
+      val data = csv(AllErrorsMetaDataValidator.RowBatchSize * 7 + 11, 13)
+
+      val (sequentialPass, sequentialResults) = run(1, schema, data)
+      val (parallelPass, parallelResults) = run(8, schema, data)
+
+      sequentialPass mustEqual false
+      parallelPass mustEqual sequentialPass
+      parallelResults mustEqual sequentialResults
+    }
+
+    "report duplicates found by stateful rules across batches" in {
+      val data = "id,name,date,code\n" +
+        (1 to AllErrorsMetaDataValidator.RowBatchSize * 3).map(i => s"$i,abc,2013-01-01,A").mkString("\n") +
+        "\n1,abc,2013-01-01,A\n"
+
+      val (pass, results) = run(4, schema, data)
+      val lastLine = AllErrorsMetaDataValidator.RowBatchSize * 3 + 1
+
+      pass mustEqual false
+      results.last must beLike {
+        case Validated.Invalid(failures) =>
+          failures.head.message mustEqual s"""unique fails for row: $lastLine, column: id, value: "1" (original at row: 1)"""
+      }
+    }
+  }
+}
@@ -859,6 +859,26 @@ class MetaDataValidatorSpec extends Specification with TestResources {
       }
     }
 
+    "give the rule which failed with each failure" in {
+
+      val schema =
+        """version 1.0
+           @totalColumns 2 @noHeader
+           Name: unique
+           Age: range(0, 120) or is("unknown")
+        """
+
+      val metaData =
+        """Jim,30
+           Jim,200
+        """
+      val maxCharsPerCell = 4096
+
+      validate(metaData, schema, maxCharsPerCell, None) must beLike {
+        case Validated.Invalid(messages) => messages.toList.map(_.rule) mustEqual List(Some("unique"), Some("""range(0,120) or is("unknown")"""))
+      }
+    }
+
     "succeed for multi-column unique rule" in {
       val schema = """version 1.0
                       @totalColumns 3 @noHeader
@@ -1360,21 +1380,50 @@ class MetaDataValidatorSpec extends Specification with TestResources {
         """
 
       val callback = new ProgressCallback {
-        var processed = -1
-        var total = -2
+        var rows = -1L
+        var chars = -1L
         override def update(complete: Percentage): Unit = ???
 
-        override def update(_total: Int, _processed: Int): Unit = {
-          total = _total
-          processed = _processed
+        override def processed(_rows: Long, _chars: Long): Unit = {
+          rows = _rows
+          chars = _chars
         }
       }
       val maxCharsPerCell = 4096
 
       validate(metaData, schema, maxCharsPerCell, Some(callback) ) must beLike { case Validated.Valid(_) => ok }
 
-      callback.processed must beEqualTo(callback.total)
+      callback.rows must beEqualTo(3)
+      callback.chars must beEqualTo(metaData.replaceAll("\n\\s+", "\n").length)
+
+    }
+
+    "report progress against the expected length without reading ahead" in {
+      val schema =
+        """version 1.0
+          |@totalColumns 1 @noHeader
+          |column1:
+          |""".stripMargin
+
+      val metaData = (1 to 2500).map(i => s"row$i").mkString("", "\n", "\n")
+
+      val progress = scala.collection.mutable.ListBuffer.empty[Float]
+      val processed = scala.collection.mutable.ListBuffer.empty[Long]
+      val callback = new ProgressCallback {
+        override def update(complete: Percentage): Unit = progress += complete
+        override def processed(rows: Long, chars: Long): Unit = processed += rows
+      }
+
+      // a reader which would hold the whole input in memory if it were marked
+      val reader = new java.io.BufferedReader(new StringReader(metaData)) {
+        override def mark(readAheadLimit: Int): Unit = throw new UnsupportedOperationException("mark")
+      }
+
+      val results = scala.collection.mutable.ListBuffer.empty[MetaDataValidation[Any]]
+      validateReader(reader, schema, 4096, Some(callback), Some(metaData.length.toLong), results += _) must beTrue
 
+      progress.last mustEqual 100f
+      processed.toList mustEqual List(1000L, 2000L, 2500L)
     }
 
   }
@@ -21,7 +21,7 @@ object TestHelper {
     def removeCR: FailMessage = {
       fm.copy(
         message = fm.message.removeCR
-      )
+      )(fm.rule)
     }
   }
 }
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator
+
+import org.junit.runner.RunWith
+import org.specs2.mutable.Specification
+import org.specs2.runner.JUnitRunner
+import uk.gov.nationalarchives.utf8.validator.{Utf8Validator, ValidationHandler}
+
+import java.io.{BufferedInputStream, ByteArrayInputStream}
+import scala.collection.mutable
+
+@RunWith(classOf[JUnitRunner])
+class Utf8ValidatingInputStreamSpec extends Specification {
+
+  def expected(bytes: Array[Byte]): List[(Long, String)] = {
+    val errors = mutable.ListBuffer.empty[(Long, String)]
+    new Utf8Validator(new ValidationHandler {
+      override def error(message: String, byteOffset: Long): Unit = errors += ((byteOffset, message))
+    }).validate(new BufferedInputStream(new ByteArrayInputStream(bytes)))
+    errors.toList
+  }
+
+  def actual(bytes: Array[Byte], readSize: Int): List[(Long, String)] = {
+    val is = new Utf8ValidatingInputStream(new ByteArrayInputStream(bytes))
+    val buf = new Array[Byte](readSize)
+    while(is.read(buf, 0, readSize) != -1) {}
+    is.errors
+  }
+
+  def bytes(values: Int*): Array[Byte] = values.map(_.toByte).toArray
+
+  val samples = Map(
+    "ascii" -> "hello,world\n".getBytes("UTF-8"),
+    "multibyte characters" -> "£,€,😀,é\n".getBytes("UTF-8"),
+    "windows-1252 characters" -> "café,£\n".getBytes("windows-1252"),
+    "a lone continuation byte" -> bytes('a', 0x80, 'b'),
+    "an invalid continuation byte" -> bytes('a', 0xE2, 0x82, 'c', 'd'),
+    "a truncated sequence at the end" -> bytes('a', 0xF0, 0x9F),
+    "a lead byte at the end" -> bytes('a', 'b', 0xE2),
+    "a byte order mark" -> bytes(0xEF, 0xBB, 0xBF, 'a')
+  )
+
+  "Utf8ValidatingInputStream" should {
+
+    for((name, sample) <- samples; readSize <- Seq(1, 2, 4096)) {
+      s"report the same errors as Utf8Validator for $name when read $readSize byte(s) at a time" in {
+        actual(sample, readSize) mustEqual expected(sample)
+      }
+    }
+
+    "validate the bytes which were not read when drained" in {
+      val is = new Utf8ValidatingInputStream(new ByteArrayInputStream(bytes('a', 'b', 0x80)))
+      is.read()
+      is.errors must beEmpty
+      is.drain()
+      is.errors mustEqual List((3L, "Invalid single byte UTF-8 character"))
+    }
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator
+
+import org.junit.runner.RunWith
+import org.specs2.mutable.Specification
+import org.specs2.runner.JUnitRunner
+import uk.gov.nationalarchives.csv.validator.api.CsvValidator
+
+import java.io.StringReader
+import java.lang.management.ManagementFactory
+import javax.management.ObjectName
+
+@RunWith(classOf[JUnitRunner])
+class ValidationProfilerSpec extends Specification {
+
+  val schema =
+    """version 1.1
+      |@totalColumns 2
+      |id: positiveInteger unique
+      |name: regex("[a-z]+")
+      |""".stripMargin
+
+  val csv = "id,name\n1,abc\n2,DEF\n3,ghi\n"
+
+  def profile(failFast: Boolean, parallelism: Int = 1): ProfileReport = {
+    val profiler = ValidationProfiler()
+    val validator = CsvValidator.createValidator(failFast, Nil, false, false, false, 4096, parallelism, profile = profiler)
+    val s = validator.parseSchema(new StringReader(schema)).fold(f => throw new IllegalArgumentException(f.toString), identity)
+    validator.validateReader(new StringReader(csv), s, 4096, None, _ => ())
+    profiler.report
+  }
+
+  "ValidationProfiler" should {
+
+    "record every rule of every column when reporting all errors" in {
+      val report = profile(failFast = false)
+
+      report.rowsRead mustEqual 4
+      report.rules.map(r => (r.column, r.rule)).toSet mustEqual Set(("id", "positiveInteger"), ("id", "unique"), ("name", "regex(\"[a-z]+\")"))
+      report.rules.map(_.invocations).distinct mustEqual List(3L)
+      report.rules.find(_.column == "name").map(_.failures) must beSome(1L)
+    }
+
+    "record the rules evaluated when validating rows in parallel" in {
+      val report = profile(failFast = false, parallelism = 2)
+
+      report.rules.map(_.invocations).sum mustEqual 9
+    }
+
+    "record the position of each rule in the schema" in {
+      val report = profile(failFast = false)
+
+      report.rules.find(_.column == "id").map(_.line) must beSome(3)
+      report.rules.find(_.column == "name").map(_.line) must beSome(4)
+    }
+
+    "stop recording a column once fail fast stops" in {
+      val report = profile(failFast = true)
+
+      report.rules.find(_.column == "name").map(_.invocations) must beSome(2L)
+    }
+
+    "record nothing when disabled" in {
+      val validator = CsvValidator.createValidator(false, Nil, false, false, false, 4096)
+
+      validator.profiler must beTheSameAs(ValidationProfiler.Disabled)
+      ValidationProfiler.Disabled.report.rules must beEmpty
+    }
+
+    "write the report as JSON" in {
+      val json = profile(failFast = false).toJson
+
+      json must startWith("""{"rowsRead":4,""")
+      json must contain(""""rule":"regex(\"[a-z]+\")"""")
+    }
+
+    "write the report as a table" in {
+      val table = profile(failFast = false).toTable.linesIterator.toList
+
+      table.head must startWith("Rows read: 4")
+      table(1) must startWith("Column")
+      table must haveSize(5)
+    }
+
+    "be registered with JMX" in {
+      val server = ManagementFactory.getPlatformMBeanServer
+      val name = new ObjectName(s"${ValidationProfiler.MBeanDomain}:type=ValidationProfiler,name=${ObjectName.quote("spec")}")
+      val registration = ValidationProfiler().registerMBean("spec")
+      val rowsRead = try server.getAttribute(name, "RowsRead") finally registration.close()
+
+      rowsRead mustEqual 0L
+      server.isRegistered(name) must beFalse
+    }
+  }
+
+  "LatencyHistogram" should {
+
+    "estimate percentiles to within an eighth" in {
+      val histogram = new LatencyHistogram()
+      (1 to 1000).foreach(i => histogram.record(i * 1000L))
+      val counts = histogram.snapshot
+
+      LatencyHistogram.percentile(counts, 0.5).toDouble must beCloseTo(500000.0, 62500.0)
+      LatencyHistogram.percentile(counts, 0.99).toDouble must beCloseTo(990000.0, 123750.0)
+    }
+
+    "place every latency in a bucket whose bounds contain it" in {
+      val latencies = Seq(0L, 1L, 7L, 8L, 15L, 16L, 17L, 1000L, 123456789L, Long.MaxValue)
+      def inBucket(latency: Long): Boolean = {
+        val bucket = LatencyHistogram.bucketOf(latency)
+        val lower = if (bucket == 0) 0L else LatencyHistogram.upperBound(bucket - 1) + 1
+        lower <= latency && latency <= LatencyHistogram.upperBound(bucket)
+      }
+
+      latencies.filterNot(inBucket) must beEmpty
+    }
+  }
+}
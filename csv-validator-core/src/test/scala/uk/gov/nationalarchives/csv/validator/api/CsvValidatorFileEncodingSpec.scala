@@ -13,10 +13,11 @@ import org.specs2.mutable.Specification
 import org.specs2.runner.JUnitRunner
 import uk.gov.nationalarchives.csv.validator.TestResources
 import cats.data.Validated
-import uk.gov.nationalarchives.csv.validator.AllErrorsMetaDataValidator
+import uk.gov.nationalarchives.csv.validator.{AllErrorsMetaDataValidator, FailMessage, ProgressCallback}
 import uk.gov.nationalarchives.csv.validator.schema.Schema
 
 import java.nio.file.Paths
+import scala.collection.mutable
 
 /**
  * Created by rhubner on 11/12/15.
@@ -42,6 +43,30 @@ class CsvValidatorFileEncodingSpec extends Specification with TestResources {
       }
     }
 
+    "report the same UTF-8 errors as validating the encoding separately" in {
+      val csvFile = TextFile(Paths.get(baseResourcePkgPath).resolve("windows-1252.csv"))
+      val failures = mutable.ListBuffer.empty[FailMessage]
+      app.validateCsvFile(csvFile, parse(baseResourcePkgPath + "/schema.csvs"), None, {
+        case Validated.Invalid(f) => failures ++= f.toList
+        case _ =>
+      }) mustEqual false
+
+      val encodingFailures = app.validateCsvFileEncoding(csvFile).get.fold(_.toList, _ => List.empty)
+      encodingFailures must not be empty
+      failures.filter(_.message.startsWith("[UTF-8 Error]")).toList mustEqual encodingFailures
+    }
+
+    "report progress by the bytes of the file read" in {
+      val progress = mutable.ListBuffer.empty[Float]
+      val callback = new ProgressCallback {
+        override def update(complete: Percentage): Unit = progress += complete
+      }
+      app.validateCsvFile(TextFile(Paths.get(baseResourcePkgPath).resolve("metaData.csv")), parse(baseResourcePkgPath + "/schema.csvs"), Some(callback), _ => ()) mustEqual true
+
+      progress must not be empty
+      progress.last mustEqual 100f
+    }
+
   }
 
 
@@ -17,7 +17,7 @@ import uk.gov.nationalarchives.csv.validator._
 import uk.gov.nationalarchives.csv.validator.schema.Schema
 import uk.gov.nationalarchives.csv.validator.api.CsvValidator.SubstitutePath
 
-import java.nio.file.Paths
+import java.nio.file.{Files, Paths}
 
 @RunWith(classOf[JUnitRunner])
 class CsvValidatorSpec extends Specification with TestResources {
@@ -62,21 +62,44 @@ class CsvValidatorSpec extends Specification with TestResources {
     }
 
     val callback = new ProgressCallback {
-      var processed = -1
-      var total = -2
-      override def update(complete: Percentage): Unit = throw new NotImplementedError()
+      var rows = -1L
+      var bytes = -1L
+      override def update(complete: Percentage): Unit = {}
 
-      override def update(_total: Int, _processed: Int): Unit = {
-        total = _total
-        processed = _processed
+      override def processed(_rows: Long, _bytes: Long): Unit = {
+        rows = _rows
+        bytes = _bytes
       }
     }
 
-    "have a total (of rows) equal to the actual number of rows in the metadata file even if there are multiple line breaks in a cell" in {
-      app.validate(TextFile(Paths.get(baseResourcePkgPath).resolve("metadataMultipleLineBreaksInCell.csv")), parse(baseResourcePkgPath + "/schema.csvs"), Some(callback)) must beLike {
+    "report the rows processed equal to the actual number of rows in the metadata file even if there are multiple line breaks in a cell" in {
+      val file = Paths.get(baseResourcePkgPath).resolve("metadataMultipleLineBreaksInCell.csv")
+      app.validate(TextFile(file), parse(baseResourcePkgPath + "/schema.csvs"), Some(callback)) must beLike {
         case Validated.Valid(_) => ok
       }
-      callback.total must beEqualTo(2)
+      callback.rows must beEqualTo(2)
+      callback.bytes must beEqualTo(java.nio.file.Files.size(file))
+    }
+
+    "see a file created since the schema last validated" in {
+      val dir = Files.createTempDirectory("csv-validator-spec")
+      val file = dir.resolve("created.txt")
+      val schema = app.parseAndValidate(new StringReader(
+        """version 1.0
+          |@totalColumns 1
+          |file: fileExists
+        """.stripMargin)).fold(f => throw new IllegalArgumentException(f.toString), identity)
+
+      def validate(): Boolean = app.validateReader(new StringReader(s"file\n\"$file\"\n"), schema, 4096, None, _ => ())
+
+      try {
+        validate() must beFalse
+        Files.createFile(file)
+        validate() must beTrue
+      } finally {
+        Files.deleteIfExists(file)
+        Files.delete(dir)
+      }
     }
   }
 }
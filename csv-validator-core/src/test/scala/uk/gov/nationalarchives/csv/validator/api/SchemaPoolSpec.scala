@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator.api
+
+import cats.data.Validated
+import org.junit.runner.RunWith
+import org.specs2.mutable.Specification
+import org.specs2.runner.JUnitRunner
+import uk.gov.nationalarchives.csv.validator.AllErrorsMetaDataValidator
+
+import java.io.StringReader
+
+@RunWith(classOf[JUnitRunner])
+class SchemaPoolSpec extends Specification {
+
+  def pool(schema: String): SchemaPool = new SchemaPool(() => {
+    val parser = new CsvValidator with AllErrorsMetaDataValidator { val pathSubstitutions = List[(String,String)](); val enforceCaseSensitivePathChecks = false; val trace = false; val skipFileChecks = false; val maxCharsPerCell = 4096 }
+    parser.parseSchema(new StringReader(schema))
+  })
+
+  val uniqueSchema =
+    """version 1.0
+      |@totalColumns 1
+      |id: unique
+    """.stripMargin
+
+  "SchemaPool" should {
+
+    "lend a copy of the schema to each validation at the same time" in {
+      val copies = pool(uniqueSchema)
+      val first = copies.borrow().toOption.get
+      val second = copies.borrow().toOption.get
+
+      first must not(beTheSameAs(second))
+    }
+
+    "lend a copy which has been given back again" in {
+      val copies = pool(uniqueSchema)
+      val first = copies.borrow().toOption.get
+      copies.giveBack(first)
+
+      copies.borrow().toOption.get must beTheSameAs(first)
+    }
+
+    "give the errors in an invalid schema" in {
+      val copies = pool("version 1.0\n@totalColumns 1\nid: regox(\"A\")\n")
+
+      copies.schemaErrors must not(beEmpty)
+      copies.borrow() must beLike {
+        case Validated.Invalid(errors) => errors.toList mustEqual copies.schemaErrors
+      }
+    }
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator.metadata
+
+import org.junit.runner.RunWith
+import org.specs2.mutable.Specification
+import org.specs2.runner.JUnitRunner
+
+@RunWith(classOf[JUnitRunner])
+class RowSpec extends Specification {
+
+  "Row" should {
+
+    "give the value of each cell" in {
+      val row = Row(List(Cell("a"), Cell("b")), 1)
+
+      row.length mustEqual 2
+      row.value(0) mustEqual "a"
+      row.value(1) mustEqual "b"
+      row.valueOption(1) must beSome("b")
+      row.valueOption(2) must beNone
+      row.valueOption(-1) must beNone
+      row.value(2) must throwAn[IndexOutOfBoundsException]
+    }
+
+    "still provide its cells" in {
+      Row(List(Cell("a"), Cell("b")), 1).cells mustEqual List(Cell("a"), Cell("b"))
+    }
+
+    "hold the parser's values without copying them, replacing nulls with empty values" in {
+      val values = Array("a", null, "c")
+      val row = Row.fromValues(values, 3)
+
+      values mustEqual Array("a", "", "c")
+      row mustEqual Row(List(Cell("a"), Cell(""), Cell("c")), 3)
+    }
+
+    "be equal to a row with the same values and line number" in {
+      val row = Row(List(Cell("a"), Cell("b")), 1)
+
+      row mustEqual Row.fromValues(Array("a", "b"), 1)
+      row.hashCode mustEqual Row.fromValues(Array("a", "b"), 1).hashCode
+      row mustNotEqual Row(List(Cell("a"), Cell("b")), 2)
+      row mustNotEqual Row(List(Cell("a")), 1)
+    }
+
+    "be matched by its cells and line number" in {
+      Row(List(Cell("a")), 5) match {
+        case Row(cells, lineNumber) => (cells.toList, lineNumber) mustEqual ((List(Cell("a")), 5))
+      }
+    }
+  }
+}
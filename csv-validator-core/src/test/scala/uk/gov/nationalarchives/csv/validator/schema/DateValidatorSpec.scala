@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator.schema
+
+import org.joda.time.{DateTimeZone, Interval}
+import org.junit.runner.RunWith
+import org.specs2.mutable.Specification
+import org.specs2.runner.JUnitRunner
+import uk.gov.nationalarchives.csv.validator.metadata.{Cell, Row}
+import uk.gov.nationalarchives.csv.validator.schema.v1_0._
+import uk.gov.nationalarchives.csv.validator.schema.v1_1.XsdDateTimeWithTimeZoneRangeRule
+
+import scala.util.Random
+
+/**
+  * Checks that the single pass date validators accept exactly the values,
+  * and give exactly the instants, of matching the regular expression and
+  * then parsing with Joda; for generated values close to the formats, and
+  * in time zones whose clocks have gone forward at midnight
+  */
+@RunWith(classOf[JUnitRunner])
+class DateValidatorSpec extends Specification {
+
+  sequential
+
+  case class Format(name: String, regex: String, parser: DateParser, generate: Random => String)
+
+  val zones = List("UTC", "Europe/London", "America/Sao_Paulo", "Asia/Kolkata", "Pacific/Apia")
+
+  def pick(random: Random, values: String*): String = values(random.nextInt(values.length))
+
+  def twoDigits(random: Random, max: Int): String = f"${random.nextInt(max + 1)}%02d"
+
+  def year(random: Random): String =
+    pick(random, "", "", "", "-") + pick(random, "0000", "0001", "0004", "0100", "0400", "1582", "1900", "1970", "2000", "2018", "2024", "2100", "9999", f"${random.nextInt(10000)}%04d")
+
+  def date(random: Random): String = s"${year(random)}-${twoDigits(random, 13)}-${twoDigits(random, 32)}"
+
+  def time(random: Random): String =
+    s"${twoDigits(random, 25)}:${twoDigits(random, 60)}:${twoDigits(random, 60)}" + pick(random, "", "", ".000", ".999", s".${random.nextInt(1000)}", ".1")
+
+  def zone(random: Random): String =
+    pick(random, "", "", "Z", s"+${twoDigits(random, 25)}:${twoDigits(random, 60)}", s"-${twoDigits(random, 25)}:${twoDigits(random, 60)}", "+05", "z")
+
+  def ukDate(random: Random): String = s"${twoDigits(random, 32)}/${twoDigits(random, 13)}/" + pick(random, "0000", "0001", "1900", "2000", "2018", "2023", "2024", f"${random.nextInt(10000)}%04d", "-2000", "200")
+
+  /**
+    * Inserts, deletes or replaces a character
+    */
+  def mutate(random: Random, value: String): String = {
+    val chars = "0123456789-:T+Z/. "
+    def char = chars.charAt(random.nextInt(chars.length))
+    if(value.isEmpty) char.toString else {
+      val at = random.nextInt(value.length)
+      random.nextInt(4) match {
+        case 0 => value.patch(at, char.toString, 0)
+        case 1 => value.patch(at, "", 1)
+        case 2 => value.patch(at, char.toString, 1)
+        case _ => value
+      }
+    }
+  }
+
+  val formats = List(
+    Format("xDateTime", XsdDateTimeRegex, IsoDateTimeParser, r => s"${date(r)}T${time(r)}${zone(r)}"),
+    Format("xDateTimeWithTimeZone", XsdDateTimeWithTimeZoneRegex, IsoDateTimeParser, r => s"${date(r)}T${time(r)}${zone(r)}"),
+    Format("xDate", XsdDateRegex, XsdDateParser, r => s"${date(r)}${zone(r)}"),
+    Format("xTime", XsdTimeOptionalTimeZoneRegex, IsoTimeParser, r => s"${time(r)}${zone(r)}"),
+    Format("ukDate", UkDateRegex, UkDateParser, ukDate)
+  )
+
+  def withDefaultZone[T](id: String)(f: => T): T = {
+    val default = DateTimeZone.getDefault
+    DateTimeZone.setDefault(DateTimeZone.forID(id))
+    try f finally DateTimeZone.setDefault(default)
+  }
+
+  def differences(format: Format, values: Iterable[String]): List[String] = {
+    val fast = format.parser.validator(format.regex)
+    val slow = DateValidator.matchThenParse(format.regex, format.parser)
+    values.toList.distinct.flatMap { value =>
+      val (expected, actual) = (slow.toEpochMillis(value), fast.toEpochMillis(value))
+      if(expected == actual) None else Some(s"$value: expected $expected but was $actual")
+    }
+  }
+
+  "The date validators" should {
+
+    "not fall back to matching and parsing for the formats of the rules" in {
+      val matchThenParse = DateValidator.matchThenParse(XsdDateRegex, XsdDateParser).getClass
+      formats.exists(f => f.parser.validator(f.regex).getClass == matchThenParse) must beFalse
+    }
+
+    for(format <- formats; zoneId <- zones) {
+      s"accept and reject the same ${format.name} values as the regular expression and parser in $zoneId" in {
+        val random = new Random(format.name.hashCode + zoneId.hashCode)
+        val generated = Seq.fill(20000)(format.generate(random))
+        val mutated = generated.take(5000).map(mutate(random, _))
+        withDefaultZone(zoneId) {
+          differences(format, generated ++ mutated) must beEmpty
+        }
+      }
+    }
+
+    "reject a date whose midnight was skipped when the clocks went forward, as the parser does" in {
+      withDefaultZone("America/Sao_Paulo") {
+        XsdDateParser.validator(XsdDateRegex).toEpochMillis("2018-11-04") mustEqual DateValidator.Invalid
+        XsdDateParser.validator(XsdDateRegex).toEpochMillis("2018-11-04Z") mustNotEqual DateValidator.Invalid
+        UkDateParser.validator(UkDateRegex).toEpochMillis("04/11/2018") mustEqual DateValidator.Invalid
+      }
+    }
+
+    "reject the 29th of February of a year which is not a leap year" in {
+      val xDate = XsdDateParser.validator(XsdDateRegex)
+      xDate.toEpochMillis("2024-02-29Z") mustNotEqual DateValidator.Invalid
+      xDate.toEpochMillis("2000-02-29Z") mustNotEqual DateValidator.Invalid
+      xDate.toEpochMillis("1900-02-29Z") mustEqual DateValidator.Invalid
+      xDate.toEpochMillis("2023-02-29Z") mustEqual DateValidator.Invalid
+    }
+
+    "reject a ukDate in the year 0" in {
+      UkDateParser.validator(UkDateRegex).toEpochMillis("01/01/0000") mustEqual DateValidator.Invalid
+    }
+  }
+
+  "The date range rules" should {
+
+    val schema = Schema(List(TotalColumns(1)), List(ColumnDefinition(NamedColumnIdentifier("column1"))))
+
+    // the implementation which the rules used to have, with a Joda Interval
+    def previouslyValid(regex: String, parser: DateParser, from: String, to: String, value: String): Boolean =
+      value.matches(regex) && (for {
+        range <- for(frmDt <- parser.parse(from); toDt <- parser.parse(to)) yield new Interval(frmDt, toDt.plusMillis(1))
+        cellDt <- parser.parse(value)
+      } yield range.contains(cellDt)).getOrElse(false)
+
+    val ranges: List[(String, String, DateParser, (String, String) => DateRangeRule, Random => String)] = List(
+      (XsdDateTimeRegex, "xDateTime", IsoDateTimeParser, XsdDateTimeRangeRule(_, _), r => s"${date(r)}T${time(r)}${zone(r)}"),
+      (XsdDateTimeWithTimeZoneRegex, "xDateTimeWithTimeZone", IsoDateTimeParser, XsdDateTimeWithTimeZoneRangeRule(_, _), r => s"${date(r)}T${time(r)}${zone(r)}"),
+      (XsdDateRegex, "xDate", XsdDateParser, XsdDateRangeRule(_, _), r => s"${date(r)}${zone(r)}"),
+      (XsdTimeOptionalTimeZoneRegex, "xTime", IsoTimeParser, XsdTimeRangeRule(_, _), r => s"${time(r)}${zone(r)}"),
+      (UkDateRegex, "ukDate", UkDateParser, UkDateRangeRule(_, _), ukDate)
+    )
+
+    for((regex, name, parser, rule, generate) <- ranges) {
+      s"include the same $name values as the Joda Interval did" in {
+        val random = new Random(name.hashCode)
+        withDefaultZone("Europe/London") {
+          val mismatches = for {
+            _ <- (1 to 50).toList
+            (from, to) = (generate(random), generate(random))
+            r = rule(from, to)
+            value <- Seq.fill(200)(generate(random))
+            expected = previouslyValid(regex, parser, from, to, value)
+            if r.valid(value, schema.columnDefinitions.head, 0, Row(List(Cell(value)), 1), schema) != expected
+          } yield s"$value in ($from, $to): expected $expected"
+          mismatches must beEmpty
+        }
+      }
+    }
+
+    "include a value equal to either bound" in {
+      val rule = XsdDateRangeRule("2020-01-01Z", "2020-12-31Z")
+      rule.valid("2020-01-01Z", schema.columnDefinitions.head, 0, Row(List(Cell("2020-01-01Z")), 1), schema) must beTrue
+      rule.valid("2020-12-31Z", schema.columnDefinitions.head, 0, Row(List(Cell("2020-12-31Z")), 1), schema) must beTrue
+      rule.valid("2021-01-01Z", schema.columnDefinitions.head, 0, Row(List(Cell("2021-01-01Z")), 1), schema) must beFalse
+    }
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator.schema
+
+import org.junit.runner.RunWith
+import org.specs2.mutable.Specification
+import org.specs2.runner.JUnitRunner
+import uk.gov.nationalarchives.csv.validator.metadata.{Cell, Row}
+import uk.gov.nationalarchives.csv.validator.schema.v1_0.{IfRule, IsRule, NotEmptyRule, OrRule, UniqueRule}
+import uk.gov.nationalarchives.csv.validator.schema.v1_1.AnyRule
+
+@RunWith(classOf[JUnitRunner])
+class ExecutionPlanSpec extends Specification {
+
+  "ExecutionPlan" should {
+
+    "resolve column identifiers to their indexes" in {
+      val schema = Schema(Nil, List(
+        ColumnDefinition(NamedColumnIdentifier("a")),
+        ColumnDefinition(NamedColumnIdentifier("b")),
+        ColumnDefinition(NamedColumnIdentifier("a"))
+      ))
+
+      schema.plan.columnIndex(NamedColumnIdentifier("a")) mustEqual 0
+      schema.plan.columnIndex(NamedColumnIdentifier("b")) mustEqual 1
+      schema.plan.columnIndex(NamedColumnIdentifier("c")) mustEqual -1
+    }
+
+    "resolve the global directives" in {
+      val plan = Schema(List(TotalColumns(2), NoHeader(), IgnoreColumnNameCase()), Nil).plan
+
+      plan.totalColumns must beSome(BigInt(2))
+      plan.noHeader must beTrue
+      plan.permitEmpty must beFalse
+      plan.ignoreColumnNameCase must beTrue
+    }
+
+    "know which columns have stateful rules" in {
+      val plan = Schema(Nil, List(
+        ColumnDefinition(NamedColumnIdentifier("a"), List(IsRule(Literal(Some("x"))))),
+        ColumnDefinition(NamedColumnIdentifier("b"), List(IsRule(Literal(Some("x"))), UniqueRule()))
+      )).plan
+
+      plan.columnCount mustEqual 2
+      plan.hasStatefulRule(0) must beFalse
+      plan.hasStatefulRule(1) must beTrue
+    }
+
+    "be compiled once for a schema" in {
+      val schema = Schema(Nil, List(ColumnDefinition(NamedColumnIdentifier("a"))))
+
+      schema.plan must beTheSameAs(schema.plan)
+    }
+
+    "forget the state of its rules when reset" in {
+      val unique = UniqueRule()
+      val schema = Schema(Nil, List(ColumnDefinition(NamedColumnIdentifier("a"), List(OrRule(IsRule(Literal(Some("x"))), unique)))))
+      val row = Row(List(Cell("1")), 1)
+
+      unique.evaluate(0, row, schema).isValid must beTrue
+      unique.evaluate(0, Row(List(Cell("1")), 2), schema).isValid must beFalse
+
+      schema.plan.reset()
+
+      unique.evaluate(0, row, schema).isValid must beTrue
+    }
+
+    "evaluate a condition which is shared by the rules of a row once for the row" in {
+      var evaluations = 0
+      val condition = new Rule("isFile") {
+        override def valid(cellValue: String, columnDefinition: ColumnDefinition, columnIndex: Int, row: Row, schema: Schema, mayBeLast: Option[Boolean] = None): Boolean = {
+          evaluations += 1
+          cellValue == "file"
+        }
+      }
+      condition.explicitColumns += ColumnReference(NamedColumnIdentifier("type"))
+
+      val first = IfRule(condition, List(NotEmptyRule()), None)
+      val second = IfRule(condition, List(NotEmptyRule()), None)
+      val schema = Schema(Nil, List(
+        ColumnDefinition(NamedColumnIdentifier("type")),
+        ColumnDefinition(NamedColumnIdentifier("a"), List(first)),
+        ColumnDefinition(NamedColumnIdentifier("b"), List(second))
+      ))
+      schema.plan
+
+      val row = Row(List(Cell("file"), Cell("x"), Cell("")), 1)
+      first.evaluate(1, row, schema).isValid must beTrue
+      second.evaluate(2, row, schema).isValid must beFalse
+      evaluations mustEqual 1
+
+      second.evaluate(2, Row(List(Cell("folder"), Cell("x"), Cell("")), 2), schema).isValid must beTrue
+      evaluations mustEqual 2
+    }
+  }
+
+  "ColumnReference" should {
+
+    "give the value of the referenced column" in {
+      val schema = Schema(Nil, List(ColumnDefinition(NamedColumnIdentifier("a")), ColumnDefinition(NamedColumnIdentifier("b"))))
+      val row = Row(List(Cell("1"), Cell("2")), 1)
+
+      ColumnReference(NamedColumnIdentifier("b")).referenceValue(0, row, schema) must beSome("2")
+      ColumnReference(NamedColumnIdentifier("c")).referenceValue(0, row, schema) must beNone
+    }
+  }
+
+  "ColumnDefinition" should {
+
+    "have a flag for each column directive" in {
+      val columnDefinition = ColumnDefinition(NamedColumnIdentifier("a"), Nil, List(Optional(), IgnoreCase()))
+
+      columnDefinition.isOptional must beTrue
+      columnDefinition.isIgnoreCase must beTrue
+      columnDefinition.isWarning must beFalse
+    }
+  }
+
+  "AnyRule compiled with literal values" should {
+
+    "match the values with and without @ignoreCase" in {
+      val rule = AnyRule(List(Literal(Some("Hello")), Literal(Some("World"))))
+      val schema = Schema(Nil, List(ColumnDefinition(NamedColumnIdentifier("a"), List(rule))))
+      val ignoreCase = Schema(Nil, List(ColumnDefinition(NamedColumnIdentifier("a"), List(rule), List(IgnoreCase()))))
+      schema.plan
+
+      rule.evaluate(0, Row(List(Cell("World")), 1), schema).isValid must beTrue
+      rule.evaluate(0, Row(List(Cell("world")), 1), schema).isValid must beFalse
+      rule.evaluate(0, Row(List(Cell("world")), 1), ignoreCase).isValid must beTrue
+    }
+  }
+}
@@ -9,6 +9,7 @@
 package uk.gov.nationalarchives.csv.validator.schema
 
 import org.specs2.mutable.Specification
+import uk.gov.nationalarchives.csv.validator.metadata.Row
 import uk.gov.nationalarchives.csv.validator.schema.v1_0.NotEmptyRule
 
 
@@ -30,4 +31,20 @@ trait SchemaSpecBase extends Specification {
   def nonEmptyColumn(name: String): ColumnDefinition =
     ColumnDefinition(NamedColumnIdentifier(name), List(NotEmptyRule()), List())
 
+  /**
+    * A rule of the given cost and result, which
+    * counts its evaluations and its prefetches
+    */
+  class CountingRule(result: Boolean, override val cost: Int) extends Rule("counting") {
+    var evaluations = 0
+    var prefetches = 0
+
+    override def valid(cellValue: String, columnDefinition: ColumnDefinition, columnIndex: Int, row: Row, schema: Schema, mayBeLast: Option[Boolean] = None): Boolean = {
+      evaluations += 1
+      result
+    }
+
+    override def prefetch(columnIndex: Int, row: Row, schema: Schema): Unit = prefetches += 1
+  }
+
 }
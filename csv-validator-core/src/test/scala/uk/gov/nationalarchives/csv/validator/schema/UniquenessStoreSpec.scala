@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator.schema
+
+import cats.data.Validated
+import org.junit.runner.RunWith
+import org.specs2.mutable.Specification
+import org.specs2.runner.JUnitRunner
+import uk.gov.nationalarchives.csv.validator.metadata.{Cell, Row}
+import uk.gov.nationalarchives.csv.validator.schema.v1_0.UniqueRule
+
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream, DataInputStream, DataOutputStream}
+import java.nio.file.Files
+
+@RunWith(classOf[JUnitRunner])
+class UniquenessStoreSpec extends Specification {
+
+  // the smallest table holds 1024 slots, so this forces a spill every 768 values
+  val tinyMemoryLimit = 1L
+
+  def saveAndRestore(from: UniquenessStore, to: UniquenessStore): UniquenessStore = {
+    val bytes = new ByteArrayOutputStream()
+    val out = new DataOutputStream(bytes)
+    from.save(out)
+    out.flush()
+    to.restore(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray)))
+    to
+  }
+
+  "CompactUniquenessStore" should {
+
+    "record values and report the line at which they were first seen" in {
+      val store = new CompactUniquenessStore(1024 * 1024, None)
+
+      store.putIfAbsent("Jim", 1) must beNone
+      store.putIfAbsent("Ben", 2) must beNone
+      store.putIfAbsent("Jim", 3) must beSome(1)
+      store.putIfAbsent("Ben", 4) must beSome(2)
+      store.size mustEqual 2
+    }
+
+    "report the original line of values which have been spilled to disk" in {
+      val spillDirectory = Files.createTempDirectory("unique-spec")
+      val store = new CompactUniquenessStore(tinyMemoryLimit, Some(spillDirectory))
+
+      val values = 10000
+      for(i <- 1 to values) {
+        store.putIfAbsent(s"value-$i", i) must beNone
+      }
+
+      store.spilledRuns must beGreaterThan(0)
+      store.size mustEqual values
+
+      for(i <- 1 to values) {
+        store.putIfAbsent(s"value-$i", values + i) must beSome(i)
+      }
+      store.putIfAbsent("value-0", values * 2 + 1) must beNone
+
+      store.close()
+      success
+    }
+
+    "merge its runs once it has spilled more than a few times" in {
+      val store = new CompactUniquenessStore(tinyMemoryLimit, None)
+
+      val values = 50000
+      var maxRuns = 0
+      for(i <- 1 to values) {
+        store.putIfAbsent(s"value-$i", i)
+        maxRuns = Math.max(maxRuns, store.spilledRuns)
+      }
+
+      maxRuns must beLessThanOrEqualTo(CompactUniquenessStore.MaxSpilledRuns)
+      store.size mustEqual values
+      (1 to values).forall(i => store.putIfAbsent(s"value-$i", values + i).contains(i)) must beTrue
+      store.putIfAbsent("value-0", values * 2 + 1) must beNone
+
+      store.close()
+      success
+    }
+
+    "use a fraction of the memory needed to keep the values" in {
+      val compact = new CompactUniquenessStore(64L * 1024, None)
+      val inMemory = new InMemoryUniquenessStore()
+
+      for(i <- 1 to 100000) {
+        compact.putIfAbsent(i.toString, i)
+        inMemory.putIfAbsent(i.toString, i)
+      }
+
+      compact.spilledRuns must beGreaterThan(0)
+      compact.memoryUsed must beLessThan(inMemory.memoryUsed / 10)
+      compact.close()
+      success
+    }
+
+    "restore the values that it saved, including those spilled to disk" in {
+      val store = new CompactUniquenessStore(tinyMemoryLimit, None)
+      for(i <- 1 to 2000) {
+        store.putIfAbsent(s"value-$i", i)
+      }
+      store.spilledRuns must beGreaterThan(0)
+
+      val restored = saveAndRestore(store, new CompactUniquenessStore(tinyMemoryLimit, None))
+
+      restored.size mustEqual 2000
+      (1 to 2000).forall(i => restored.putIfAbsent(s"value-$i", 2000 + i).contains(i)) must beTrue
+      restored.putIfAbsent("value-0", 4001) must beNone
+      store.close()
+      restored.close()
+      success
+    }
+  }
+
+  "InMemoryUniquenessStore" should {
+
+    "record values and report the line at which they were first seen" in {
+      val store = new InMemoryUniquenessStore()
+
+      store.putIfAbsent("Jim", 1) must beNone
+      store.putIfAbsent("Jim", 2) must beSome(1)
+      store.size mustEqual 1
+      store.memoryUsed must beGreaterThan(0L)
+    }
+
+    "restore the values that it saved" in {
+      val store = new InMemoryUniquenessStore()
+      store.putIfAbsent("Jim", 1)
+      store.putIfAbsent("Ben", 2)
+
+      val restored = saveAndRestore(store, new InMemoryUniquenessStore())
+
+      restored.putIfAbsent("Ben", 3) must beSome(2)
+      restored.putIfAbsent("Jim", 4) must beSome(1)
+      restored.putIfAbsent("Tom", 5) must beNone
+    }
+  }
+
+  "unique rule" should {
+
+    "report duplicates with a compact uniqueness store" in {
+      val schema = Schema(List(TotalColumns(1)), List(ColumnDefinition(NamedColumnIdentifier("Name"))))
+      val rule = UniqueRule().usingUniquenessStore(UniquenessStoreConfig(Some(tinyMemoryLimit)))
+
+      for(i <- 1 to 2000) {
+        rule.evaluate(0, Row(Cell(s"name-$i") :: Nil, i), schema)
+      }
+
+      rule.evaluate(0, Row(Cell("name-5") :: Nil, 2001), schema) must beLike {
+        case Validated.Invalid(msgs) => msgs.toList mustEqual List("unique fails for row: 2001, column: Name, value: \"name-5\" (original at row: 5)")
+      }
+    }
+  }
+}
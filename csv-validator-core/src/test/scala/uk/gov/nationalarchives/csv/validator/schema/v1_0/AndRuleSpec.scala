@@ -9,7 +9,6 @@
 package uk.gov.nationalarchives.csv.validator.schema.v1_0
 
 import org.junit.runner.RunWith
-import org.specs2.mutable.Specification
 import org.specs2.runner.JUnitRunner
 import uk.gov.nationalarchives.csv.validator.metadata.{Cell, Row}
 import uk.gov.nationalarchives.csv.validator.schema._
@@ -17,7 +16,7 @@ import uk.gov.nationalarchives.csv.validator.schema._
 import cats.data.Validated
 
 @RunWith(classOf[JUnitRunner])
-class AndRuleSpec extends Specification {
+class AndRuleSpec extends SchemaSpecBase {
 
   "AndRule" should {
     "fail when left rule only validates" in {
@@ -105,5 +104,44 @@ class AndRuleSpec extends Specification {
         case Validated.Invalid(messages) => messages.toList mustEqual List("""is("UK") and (is("UK") is("UK1")) fails for row: 1, column: Country, value: "SomethingElse"""")
       }
     }
+
+    "evaluate the cheaper rule first, and not the other when it fails, with the same message" in {
+      val schema = Schema(List(TotalColumns(1)), List(ColumnDefinition(NamedColumnIdentifier("Checksum"))))
+
+      val expensive = new CountingRule(true, RuleCost.ReadFile)
+      val cheap = new CountingRule(false, RuleCost.Parse)
+
+      AndRule(expensive, cheap).evaluate(0, Row(List(Cell("abc")), 1), schema) must beLike {
+        case Validated.Invalid(messages) => messages.toList mustEqual List("""counting and counting fails for row: 1, column: Checksum, value: "abc"""")
+      }
+      expensive.evaluations mustEqual 0
+      cheap.evaluations mustEqual 1
+    }
+
+    "evaluate a stateful rule in schema order" in {
+      val schema = Schema(List(TotalColumns(1)), List(ColumnDefinition(NamedColumnIdentifier("Id"))))
+
+      val unique = UniqueRule()
+      val cheap = new CountingRule(false, RuleCost.Compare)
+
+      AndRule(unique, cheap).evaluate(0, Row(List(Cell("abc")), 1), schema).isValid must beFalse
+      AndRule(unique, cheap).evaluate(0, Row(List(Cell("abc")), 2), schema).isValid must beFalse
+      cheap.evaluations mustEqual 1
+    }
+
+    "prefetch the rule evaluated second only when the cheaper rule passes" in {
+      val schema = Schema(List(TotalColumns(1)), List(ColumnDefinition(NamedColumnIdentifier("Checksum"))))
+
+      val expensive = new CountingRule(true, RuleCost.ReadFile)
+      val failing = new CountingRule(false, RuleCost.Parse)
+      AndRule(expensive, failing).prefetch(0, Row(List(Cell("abc")), 1), schema)
+      failing.prefetches mustEqual 1
+      expensive.prefetches mustEqual 0
+
+      val passing = new CountingRule(true, RuleCost.Parse)
+      AndRule(expensive, passing).prefetch(0, Row(List(Cell("abc")), 1), schema)
+      passing.prefetches mustEqual 1
+      expensive.prefetches mustEqual 1
+    }
   }
-}
\ No newline at end of file
+}
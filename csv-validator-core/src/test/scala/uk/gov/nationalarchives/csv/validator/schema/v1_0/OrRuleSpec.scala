@@ -9,7 +9,6 @@
 package uk.gov.nationalarchives.csv.validator.schema.v1_0
 
 import org.junit.runner.RunWith
-import org.specs2.mutable.Specification
 import org.specs2.runner.JUnitRunner
 import uk.gov.nationalarchives.csv.validator.metadata.{Cell, Row}
 import uk.gov.nationalarchives.csv.validator.schema._
@@ -17,7 +16,7 @@ import uk.gov.nationalarchives.csv.validator.schema._
 import cats.data.Validated
 
 @RunWith(classOf[JUnitRunner])
-class OrRuleSpec extends Specification {
+class OrRuleSpec extends SchemaSpecBase {
 
   "OrRule" should {
     "succeed when left rule validates" in {
@@ -112,5 +111,53 @@ class OrRuleSpec extends Specification {
         case Validated.Invalid(messages) => messages.toList mustEqual List("""in("left") or in("middle") or in("right") fails for row: 1, column: Direction, value: "up"""")
       }
     }
+
+    "evaluate the cheaper rule first, and not the other when it validates" in {
+      val schema = Schema(List(TotalColumns(1)), List(ColumnDefinition(NamedColumnIdentifier("Checksum"))))
+
+      val expensive = new CountingRule(true, RuleCost.ReadFile)
+      val cheap = new CountingRule(true, RuleCost.Parse)
+
+      OrRule(expensive, cheap).evaluate(0, Row(List(Cell("abc")), 1), schema).isValid must beTrue
+      expensive.evaluations mustEqual 0
+      cheap.evaluations mustEqual 1
+    }
+
+    "evaluate the rules in schema order for a row which is missing columns" in {
+      val schema = Schema(List(TotalColumns(2)), List(ColumnDefinition(NamedColumnIdentifier("Checksum")), ColumnDefinition(NamedColumnIdentifier("File"))))
+
+      val expensive = new CountingRule(true, RuleCost.ReadFile)
+      val cheap = new CountingRule(true, RuleCost.Parse)
+
+      OrRule(expensive, cheap).evaluate(0, Row(List(Cell("abc")), 1), schema).isValid must beTrue
+      expensive.evaluations mustEqual 1
+      cheap.evaluations mustEqual 0
+    }
+
+    "prefetch the rule evaluated second only when the cheaper rule fails" in {
+      val schema = Schema(List(TotalColumns(1)), List(ColumnDefinition(NamedColumnIdentifier("Checksum"))))
+
+      val expensive = new CountingRule(true, RuleCost.ReadFile)
+      val passing = new CountingRule(true, RuleCost.Parse)
+      OrRule(expensive, passing).prefetch(0, Row(List(Cell("abc")), 1), schema)
+      passing.prefetches mustEqual 1
+      expensive.prefetches mustEqual 0
+
+      val failing = new CountingRule(false, RuleCost.Parse)
+      OrRule(expensive, failing).prefetch(0, Row(List(Cell("abc")), 1), schema)
+      failing.prefetches mustEqual 1
+      expensive.prefetches mustEqual 1
+    }
+
+    "only prefetch the rule evaluated first when it looks at the file system" in {
+      val schema = Schema(List(TotalColumns(1)), List(ColumnDefinition(NamedColumnIdentifier("Checksum"))))
+
+      val first = new CountingRule(false, RuleCost.ReadFile)
+      val second = new CountingRule(true, RuleCost.ReadFile)
+      OrRule(first, second).prefetch(0, Row(List(Cell("abc")), 1), schema)
+      first.prefetches mustEqual 1
+      first.evaluations mustEqual 0
+      second.prefetches mustEqual 0
+    }
   }
-}
\ No newline at end of file
+}
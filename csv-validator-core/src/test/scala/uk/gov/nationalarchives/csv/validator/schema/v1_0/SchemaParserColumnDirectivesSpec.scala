@@ -95,5 +95,21 @@ class SchemaParserColumnDirectivesSpec extends SchemaSpecBase {
 
       parse(new StringReader(schema)) must beLike { case Success(Schema(_, List(ColumnDefinition(NamedColumnIdentifier("column1"), _, IgnoreCase() :: Optional() :: Nil)), _), _) => ok }
     }
+
+    "allow any ordering of all of the column directives" in {
+      val schema = """version 1.0
+                      |@totalColumns 1
+                      |column1: @warning @ignoreCase @matchIsFalse @optional""".stripMargin
+
+      parse(new StringReader(schema)) must beLike { case Success(Schema(_, List(ColumnDefinition(NamedColumnIdentifier("column1"), _, Warning() :: IgnoreCase() :: MatchIsFalse() :: Optional() :: Nil)), _), _) => ok }
+    }
+
+    "allow column directives in a different order on every column of a large schema" in {
+      val orders = List("@optional @ignoreCase @warning", "@warning @optional", "@ignoreCase @matchIsFalse @warning @optional", "")
+      val columns = (1 to 400).map(i => s"column$i: ${orders(i % orders.length)}")
+      val schema = ("version 1.0" +: "@totalColumns 400" +: columns).mkString("\n")
+
+      parseAndValidate(new StringReader(schema)) must beLike { case Validated.Valid(s) => s.columnDefinitions.map(_.directives.length).sum mustEqual 100 * (3 + 2 + 4) }
+    }
   }
 }
@@ -8,10 +8,17 @@
  */
 package uk.gov.nationalarchives.csv.validator.api.java;
 
+import java.io.IOException;
 import java.io.Reader;
+import java.io.StringWriter;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import uk.gov.nationalarchives.csv.validator.CheckpointSettings;
+import uk.gov.nationalarchives.csv.validator.ChecksumEngine;
+
 import static uk.gov.nationalarchives.csv.validator.api.CsvValidator$.MODULE$;
 
 /**
@@ -29,6 +36,11 @@ import static uk.gov.nationalarchives.csv.validator.api.CsvValidator$.MODULE$;
  *  ProgressCallback progress; // default is null
  *  boolean skipFileChecks = true; // default is false
  *  int maxCharsPerCell = 8096; // default is 4096
+ *  int parallelism = 4; // default is 1
+ *  long uniqueMemoryLimit = 256 * 1024 * 1024; // default is to keep all unique values in memory
+ *  int checksumThreads = 2; // default is the number of processors, up to 4
+ *  String checksumCache = "/home/xxx/checksums.cache"; // default is null, i.e. checksums are not cached between runs
+ *  boolean profile = true; // default is false
  *
  *  //add a substitution path
  *  pathSubstitutions.add(new Substitution("file://something", "/home/xxx"));
@@ -46,15 +58,22 @@ import static uk.gov.nationalarchives.csv.validator.api.CsvValidator$.MODULE$;
  *  )
  *
  *  List<FailMessage> messages = validateWithStringNames
- *    .csvEncoding()
- *    .csvSchemaEncoding()
- *    .failFast(failFast)
- *    .pathSubstitutions(pathSubstitutions)
- *    .enforceCaseSensitivePathChecks(enforceCaseSensitivePathChecks)
- *    .trace(trace)
- *    .progress(progress)
- *    .skipFileChecks(skipFileChecks)
- *    .maxCharsPerCell(maxCharsPerCell)
+ *    .usingCsvEncoding(csvEncoding, true)
+ *    .usingCsvSchemaEncoding(csvSchemaEncoding)
+ *    .usingFailFast(failFast)
+ *    .usingPathSubstitutions(pathSubstitutions)
+ *    .usingEnforceCaseSensitivePathChecks(enforceCaseSensitivePathChecks)
+ *    .usingTrace(trace)
+ *    .usingProgress(progress)
+ *    .usingSkipFileChecks(skipFileChecks)
+ *    .usingMaxCharsPerCell(maxCharsPerCell)
+ *    .usingParallelism(parallelism)
+ *    .usingUniqueMemoryLimit(uniqueMemoryLimit)
+ *    .usingChecksumThreads(checksumThreads)
+ *    .usingChecksumCache(checksumCache)
+ *    .usingProfile(profile)
+ *    .runValidation()
+ *    .getErrors();
  *
  *  if(messages.isEmpty()) {
  *    System.out.println("All worked OK");
@@ -210,6 +229,19 @@ public class CsvValidator {
         private ProgressCallback progress;
         private boolean skipFileChecks = false;
         private int maxCharsPerCell = 4096;
+        private int parallelism = 1;
+        private long uniqueMemoryLimit = 0;
+        private String uniqueSpillDirectory;
+        private int checksumThreads = ChecksumEngine.DefaultThreads();
+        private String checksumCacheFile;
+        private boolean forceChecksumReverify = false;
+        private boolean profile = false;
+        private long expectedLength = -1;
+        private long maxErrors = 0;
+        private String checkpointFile;
+        private long checkpointInterval = CheckpointSettings.DefaultInterval().getSeconds();
+        private boolean resume = false;
+        private int prefetchWindow = 0;
 
         private boolean textFileValidation = false;
 
@@ -274,13 +306,328 @@ public class CsvValidator {
             return this;
         }
 
+        /**
+         * @param parallelism The number of threads used to validate rows,
+         *                    only used when not failing fast
+         */
+        public ValidatorBuilder usingParallelism(int parallelism) {
+            if(parallelism < 1) {
+                throw new IllegalArgumentException("'parallelism' must be at least 1, but was " + parallelism);
+            }
+            this.parallelism = parallelism;
+            return this;
+        }
+
+        /**
+         * @param uniqueMemoryLimit The maximum number of bytes used to track the values of each unique rule,
+         *                          values are hashed and spilled to disk beyond this limit.
+         *                          Each value spilled to disk adds about 1.3 bytes more.
+         *                          By default all values are kept in memory.
+         */
+        public ValidatorBuilder usingUniqueMemoryLimit(long uniqueMemoryLimit) {
+            if(uniqueMemoryLimit < 1) {
+                throw new IllegalArgumentException("'uniqueMemoryLimit' must be at least 1, but was " + uniqueMemoryLimit);
+            }
+            this.uniqueMemoryLimit = uniqueMemoryLimit;
+            return this;
+        }
+
+        /**
+         * @param uniqueSpillDirectory The directory used when the values of a unique rule are spilled to disk,
+         *                             by default the temporary directory is used
+         */
+        public ValidatorBuilder usingUniqueSpillDirectory(String uniqueSpillDirectory) {
+            this.uniqueSpillDirectory = uniqueSpillDirectory;
+            return this;
+        }
+
+        /**
+         * @param checksumThreads The maximum number of files hashed at the same time by checksum rules
+         */
+        public ValidatorBuilder usingChecksumThreads(int checksumThreads) {
+            if(checksumThreads < 1) {
+                throw new IllegalArgumentException("'checksumThreads' must be at least 1, but was " + checksumThreads);
+            }
+            this.checksumThreads = checksumThreads;
+            return this;
+        }
+
+        /**
+         * @param checksumCacheFile A file in which the checksums of files are cached between runs,
+         *                          files whose size and last modified time are unchanged are not hashed again.
+         *                          By default checksums are not cached.
+         */
+        public ValidatorBuilder usingChecksumCache(String checksumCacheFile) {
+            this.checksumCacheFile = checksumCacheFile;
+            return this;
+        }
+
+        /**
+         * @param forceChecksumReverify Hash every file even when the checksum cache holds a checksum for it
+         */
+        public ValidatorBuilder usingForceChecksumReverify(boolean forceChecksumReverify) {
+            this.forceChecksumReverify = forceChecksumReverify;
+            return this;
+        }
+
+        /**
+         * @param profile Record the time spent parsing the CSV and evaluating each rule of the schema,
+         *                see {@link Result#getProfile()}. Whilst validating, the statistics may also
+         *                be watched through JMX.
+         */
+        public ValidatorBuilder usingProfile(boolean profile) {
+            this.profile = profile;
+            return this;
+        }
+
+        /**
+         * @param expectedLength The number of characters expected from the csvReader, if known, so that
+         *                       progress can be reported as a percentage. The reader is validated as it is
+         *                       read and is never read ahead to count its rows, so without an expected length
+         *                       progress is only reported by {@link ProgressCallback#processed(long, long)}.
+         *                       Not used when validating a file, whose size is known.
+         */
+        public ValidatorBuilder usingExpectedLength(long expectedLength) {
+            if(expectedLength < 0) {
+                throw new IllegalArgumentException("'expectedLength' must not be negative, but was " + expectedLength);
+            }
+            this.expectedLength = expectedLength;
+            return this;
+        }
+
+        /**
+         * @param maxErrors Stop validating once this many errors have been found, so that the errors of
+         *                  a badly broken CSV file do not exhaust the memory. The rest of the CSV file is
+         *                  not read. 0 (the default) means that there is no limit.
+         */
+        public ValidatorBuilder usingMaxErrors(long maxErrors) {
+            if(maxErrors < 0) {
+                throw new IllegalArgumentException("'maxErrors' must not be negative, but was " + maxErrors);
+            }
+            this.maxErrors = maxErrors;
+            return this;
+        }
+
+        /**
+         * @param checkpointFile The file to which the state of the validation is saved periodically, so that
+         *                       it may be resumed should it be interrupted. The file is deleted once the CSV
+         *                       file has been validated. Only used when validating a file.
+         * @param resume Resume the validation from the checkpoint file, if there is one, provided that neither
+         *               the CSV file nor the CSV Schema have changed. The errors of the rows before the checkpoint
+         *               are not reported again.
+         */
+        public ValidatorBuilder usingCheckpoint(String checkpointFile, boolean resume) {
+            this.checkpointFile = checkpointFile;
+            this.resume = resume;
+            return this;
+        }
+
+        /**
+         * @param checkpointInterval The number of seconds between checkpoints, see {@link #usingCheckpoint(String, boolean)}
+         */
+        public ValidatorBuilder usingCheckpointInterval(long checkpointInterval) {
+            if(checkpointInterval < 1) {
+                throw new IllegalArgumentException("'checkpointInterval' must be at least 1, but was " + checkpointInterval);
+            }
+            this.checkpointInterval = checkpointInterval;
+            return this;
+        }
+
+        /**
+         * @param prefetchWindow The number of rows read ahead of their validation, so that the files of their
+         *                       fileExists, checksum and fileCount rules are looked at in the background.
+         *                       Worthwhile when the files are on a slow (e.g. network) file system.
+         *                       0 (the default) means that files are not prefetched.
+         */
+        public ValidatorBuilder usingPrefetch(int prefetchWindow) {
+            if(prefetchWindow < 0) {
+                throw new IllegalArgumentException("'prefetchWindow' must not be negative, but was " + prefetchWindow);
+            }
+            this.prefetchWindow = prefetchWindow;
+            return this;
+        }
+
         public Result runValidation() {
             if(textFileValidation) {
-                return CsvValidatorJavaBridge.validate(new CsvValidatorJavaBridge.ValidationRequest(this.csvFileName, this.csvEncoding, this.validateUtf8Encoding, this.csvSchemaFilename, this.csvSchemaEncoding, true,  this.failFast, this.pathSubstitutions, this.enforceCaseSensitivePathChecks, this.trace, this.progress, this.skipFileChecks, this.maxCharsPerCell));
+                return CsvValidatorJavaBridge.validate(new CsvValidatorJavaBridge.ValidationRequest(this.csvFileName, this.csvEncoding, this.validateUtf8Encoding, this.csvSchemaFilename, this.csvSchemaEncoding, true,  this.failFast, this.pathSubstitutions, this.enforceCaseSensitivePathChecks, this.trace, this.progress, this.skipFileChecks, this.maxCharsPerCell, this.parallelism, this.uniqueMemoryLimit, this.uniqueSpillDirectory, this.checksumThreads, this.checksumCacheFile, this.forceChecksumReverify, this.profile, this.maxErrors, this.checkpointFile, this.checkpointInterval, this.resume, this.prefetchWindow));
             } else {
-                return CsvValidatorJavaBridge.validate(new CsvValidatorJavaBridge.ReaderValidationRequest(this.csvReader, this.csvSchemaReader, this.failFast, this.pathSubstitutions, this.enforceCaseSensitivePathChecks, this.trace, this.progress, this.skipFileChecks, this.maxCharsPerCell));
+                return CsvValidatorJavaBridge.validate(new CsvValidatorJavaBridge.ReaderValidationRequest(this.csvReader, this.csvSchemaReader, this.failFast, this.pathSubstitutions, this.enforceCaseSensitivePathChecks, this.trace, this.progress, this.skipFileChecks, this.maxCharsPerCell, this.parallelism, this.uniqueMemoryLimit, this.uniqueSpillDirectory, this.checksumThreads, this.checksumCacheFile, this.forceChecksumReverify, this.profile, this.expectedLength, this.maxErrors, this.prefetchWindow));
             }
          }
     }
-}
 
+    /**
+     * Compiles a CSV Schema once, so that many CSV files may be
+     * validated against it, from many threads at the same time.
+     *
+     * <blockquote><pre>{@code
+     *  try(CompiledValidator validator = new CsvValidator.CompilerBuilder()
+     *      .usingFailFast(true)
+     *      .compile("/home/dev/data-schema.csvs")) {
+     *
+     *    List<FailMessage> messages = validator.validate("/home/dev/data.csv").getErrors();
+     *  }
+     * }</pre></blockquote>
+     *
+     * When the schemas are not known in advance, a {@link SchemaCache}
+     * keeps the most recently used compiled schemas:
+     *
+     * <blockquote><pre>{@code
+     *  SchemaCache cache = new SchemaCache(16);
+     *  CsvValidator.CompilerBuilder compiler = new CsvValidator.CompilerBuilder();
+     *  Result result = cache.validate(compiler.settings(), "/home/dev/data-schema.csvs", "/home/dev/data.csv", null);
+     * }</pre></blockquote>
+     */
+    public static class CompilerBuilder {
+        private Charset csvEncoding = MODULE$.DEFAULT_ENCODING();
+        private boolean validateUtf8Encoding = csvEncoding.name().equals("UTF-8");
+        private Charset csvSchemaEncoding = MODULE$.DEFAULT_ENCODING();
+        private boolean failFast = false;
+        private List<Substitution> pathSubstitutions = new ArrayList<>();
+        private boolean enforceCaseSensitivePathChecks = false;
+        private boolean skipFileChecks = false;
+        private int maxCharsPerCell = 4096;
+        private int parallelism = 1;
+        private long uniqueMemoryLimit = 0;
+        private String uniqueSpillDirectory;
+        private int checksumThreads = ChecksumEngine.DefaultThreads();
+        private String checksumCacheFile;
+        private boolean forceChecksumReverify = false;
+        private boolean profile = false;
+
+        public CompilerBuilder usingCsvEncoding(Charset encoding, boolean validateUtf8Encoding) throws Exception {
+            if(!encoding.name().equals("UTF-8") && validateUtf8Encoding){
+                throw new Exception("'validateUtf8Encoding' is set to 'true' but " + encoding.name() + " charset was passed in");
+            }
+
+            this.csvEncoding = encoding;
+            this.validateUtf8Encoding = validateUtf8Encoding;
+            return this;
+        }
+
+        public CompilerBuilder usingCsvSchemaEncoding(Charset schemaEncoding) {
+            this.csvSchemaEncoding = schemaEncoding;
+            return this;
+        }
+
+        public CompilerBuilder usingFailFast(boolean failFast) {
+            this.failFast = failFast;
+            return this;
+        }
+
+        public CompilerBuilder usingPathSubstitutions(List<Substitution> pathSubstitutions) {
+            this.pathSubstitutions = pathSubstitutions;
+            return this;
+        }
+
+        public CompilerBuilder usingEnforceCaseSensitivePathChecks(boolean enforceCaseSensitivePathChecks) {
+            this.enforceCaseSensitivePathChecks = enforceCaseSensitivePathChecks;
+            return this;
+        }
+
+        public CompilerBuilder usingSkipFileChecks(boolean skipFileChecks) {
+            this.skipFileChecks = skipFileChecks;
+            return this;
+        }
+
+        public CompilerBuilder usingMaxCharsPerCell(int maxCharsPerCell) {
+            this.maxCharsPerCell = maxCharsPerCell;
+            return this;
+        }
+
+        /**
+         * @see ValidatorBuilder#usingParallelism(int)
+         */
+        public CompilerBuilder usingParallelism(int parallelism) {
+            if(parallelism < 1) {
+                throw new IllegalArgumentException("'parallelism' must be at least 1, but was " + parallelism);
+            }
+            this.parallelism = parallelism;
+            return this;
+        }
+
+        /**
+         * @see ValidatorBuilder#usingUniqueMemoryLimit(long)
+         */
+        public CompilerBuilder usingUniqueMemoryLimit(long uniqueMemoryLimit) {
+            if(uniqueMemoryLimit < 1) {
+                throw new IllegalArgumentException("'uniqueMemoryLimit' must be at least 1, but was " + uniqueMemoryLimit);
+            }
+            this.uniqueMemoryLimit = uniqueMemoryLimit;
+            return this;
+        }
+
+        /**
+         * @see ValidatorBuilder#usingUniqueSpillDirectory(String)
+         */
+        public CompilerBuilder usingUniqueSpillDirectory(String uniqueSpillDirectory) {
+            this.uniqueSpillDirectory = uniqueSpillDirectory;
+            return this;
+        }
+
+        /**
+         * @param checksumThreads The maximum number of files hashed at the same time by checksum rules,
+         *                        shared by all of the validations against the compiled schema
+         */
+        public CompilerBuilder usingChecksumThreads(int checksumThreads) {
+            if(checksumThreads < 1) {
+                throw new IllegalArgumentException("'checksumThreads' must be at least 1, but was " + checksumThreads);
+            }
+            this.checksumThreads = checksumThreads;
+            return this;
+        }
+
+        /**
+         * @see ValidatorBuilder#usingChecksumCache(String)
+         */
+        public CompilerBuilder usingChecksumCache(String checksumCacheFile) {
+            this.checksumCacheFile = checksumCacheFile;
+            return this;
+        }
+
+        /**
+         * @see ValidatorBuilder#usingForceChecksumReverify(boolean)
+         */
+        public CompilerBuilder usingForceChecksumReverify(boolean forceChecksumReverify) {
+            this.forceChecksumReverify = forceChecksumReverify;
+            return this;
+        }
+
+        /**
+         * @param profile Profile each validation, see {@link Result#getProfile()}
+         */
+        public CompilerBuilder usingProfile(boolean profile) {
+            this.profile = profile;
+            return this;
+        }
+
+        /**
+         * @return the settings to compile schemas with, e.g. for a {@link SchemaCache}
+         */
+        public CompiledValidator.Settings settings() {
+            return CsvValidatorJavaBridge.compilerSettings(this.csvEncoding, this.validateUtf8Encoding, this.csvSchemaEncoding, this.failFast, this.pathSubstitutions, this.enforceCaseSensitivePathChecks, this.skipFileChecks, this.maxCharsPerCell, this.parallelism, this.uniqueMemoryLimit, this.uniqueSpillDirectory, this.checksumThreads, this.checksumCacheFile, this.forceChecksumReverify, this.profile);
+        }
+
+        /**
+         * @param csvSchemaFilename Filename of the CSV schema file
+         *
+         * @return the compiled schema, if the schema is not valid then
+         *         validating reports the errors in the schema
+         */
+        public CompiledValidator compile(String csvSchemaFilename) throws IOException {
+            return CompiledValidator.compile(Files.readString(Paths.get(csvSchemaFilename), this.csvSchemaEncoding), settings());
+        }
+
+        /**
+         * @param csvSchema CSV schema, which is read but not closed
+         *
+         * @return the compiled schema, if the schema is not valid then
+         *         validating reports the errors in the schema
+         */
+        public CompiledValidator compile(Reader csvSchema) throws IOException {
+            final StringWriter schema = new StringWriter();
+            csvSchema.transferTo(schema);
+            return CompiledValidator.compile(schema.toString(), settings());
+        }
+    }
+}
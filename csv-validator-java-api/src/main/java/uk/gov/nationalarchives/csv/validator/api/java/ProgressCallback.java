@@ -14,4 +14,15 @@ package uk.gov.nationalarchives.csv.validator.api.java;
 public interface ProgressCallback {
 
     public void update(float complete);
+
+    /**
+     * Receives the number of rows read so far, and the number of bytes
+     * consumed (or characters, when validating a {@link java.io.Reader}),
+     * or -1 if unknown. Called every thousand rows, and once the last row has been read.
+     *
+     * Unlike {@link #update(float)}, this is called even when the
+     * length of the CSV is not known in advance.
+     */
+    default void processed(long rows, long bytes) {
+    }
 }
@@ -9,7 +9,16 @@
 package uk.gov.nationalarchives.csv.validator.api.java;
 
 import java.util.List;
+import uk.gov.nationalarchives.csv.validator.ProfileReport;
 
 public interface Result {
     List<FailMessage> getErrors();
+
+    /**
+     * @return the time spent parsing the CSV and evaluating each rule of the schema,
+     *         or null if profiling was not requested
+     */
+    default ProfileReport getProfile() {
+        return null;
+    }
 }
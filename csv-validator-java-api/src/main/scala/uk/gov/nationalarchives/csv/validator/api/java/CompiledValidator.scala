@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator.api.java
+
+import cats.data.{Validated, ValidatedNel}
+import uk.gov.nationalarchives.csv.validator.Util._
+import uk.gov.nationalarchives.csv.validator.api.CsvValidator.createValidator
+import uk.gov.nationalarchives.csv.validator.api.{SchemaPool, TextFile, CsvValidator => SCsvValidator}
+import uk.gov.nationalarchives.csv.validator.schema.{Schema, UniquenessStoreConfig}
+import uk.gov.nationalarchives.csv.validator.{ChecksumEngine, MetaDataValidator, ProfileReport, ValidationProfiler, FailMessage => SFailMessage, ProgressCallback => SProgressCallback}
+
+import java.io.{StringReader, Reader => JReader}
+import java.nio.charset.Charset
+import java.nio.file.Paths
+import java.util.{List => JList}
+import scala.collection.mutable
+import scala.jdk.CollectionConverters._
+import scala.util.control.NonFatal
+
+/**
+ * A CSV Schema which has been parsed and compiled once, and which
+ * may then be used to validate any number of CSV files, from any
+ * number of threads at the same time.
+ *
+ * Rules remember what they have seen whilst validating (e.g. the values
+ * seen by `unique`), so each validation borrows a copy of the compiled
+ * schema for itself from a {@link SchemaPool}.
+ *
+ * Obtain one from {@link CsvValidator.CompilerBuilder}, or let a
+ * {@link SchemaCache} manage them. Closing the validator releases its
+ * resources once any validations which are running have finished.
+ */
+final class CompiledValidator private(schemaText: String, val settings: CompiledValidator.Settings) extends AutoCloseable {
+  import CompiledValidator._
+
+  private val checksumEngine = new ChecksumEngine(CsvValidatorJavaBridge.checksumConfig(settings.checksumThreads, settings.checksumCacheFile, settings.forceChecksumReverify))
+
+  // each copy is parsed by its own validator, so that the copies do not share a file system cache
+  private val copies = new SchemaPool(() => newValidator(ValidationProfiler.Disabled).parseSchema(new StringReader(schemaText)))
+
+  // guarded by this
+  private var running = 0
+  private var closed = false
+
+  // the checksum engine holds threads, which are released if the schema cannot be parsed
+  private val schemaErrors: List[SFailMessage] =
+    try {
+      copies.schemaErrors
+    } catch {
+      case NonFatal(e) =>
+        checksumEngine.close()
+        throw e
+    }
+
+  /**
+   * @return true if the schema is valid, otherwise
+   *         validating returns the errors in the schema
+   */
+  def isSchemaValid: Boolean = schemaErrors.isEmpty
+
+  def getSchemaErrors: JList[FailMessage] = schemaErrors.map(CsvValidatorJavaBridge.asJavaMessage).asJava
+
+  /**
+   * @throws IllegalStateException if the validator has been closed
+   */
+  def validate(csvFile: String): Result = validate(csvFile, null)
+
+  /**
+   * @param progress may be null
+   * @throws IllegalStateException if the validator has been closed
+   */
+  def validate(csvFile: String, progress: ProgressCallback): Result = {
+    retain()
+    try validateRetained(csvFile, progress) finally release()
+  }
+
+  /**
+   * @throws IllegalStateException if the validator has been closed
+   */
+  def validate(csvData: JReader): Result = validate(csvData, null)
+
+  /**
+   * @param progress may be null
+   * @throws IllegalStateException if the validator has been closed
+   */
+  def validate(csvData: JReader, progress: ProgressCallback): Result = {
+    retain()
+    try validateRetained(csvData, progress) finally release()
+  }
+
+  private[java] def validateRetained(csvFile: String, progress: ProgressCallback): Result = {
+    val textFile = TextFile(Paths.get(csvFile), settings.csvEncoding, settings.validateCsvEncoding)
+    checkFilesReadable(textFile.file :: Nil) match {
+      case Validated.Invalid(errors) =>
+        CompiledValidationResult(errors.toList.map(CsvValidatorJavaBridge.asJavaMessage).asJava)
+      case Validated.Valid(_) =>
+        run(progress) { (validator, schema, sProgress, rowCallback) =>
+          validator.validateCsvFile(textFile, schema, sProgress, rowCallback)
+        }
+    }
+  }
+
+  private[java] def validateRetained(csvData: JReader, progress: ProgressCallback): Result =
+    run(progress) { (validator, schema, sProgress, rowCallback) =>
+      validator.validateReader(csvData, schema, settings.maxCharsPerCell, sProgress, rowCallback)
+    }
+
+  private def run(progress: ProgressCallback)(validateWith: (Validator, Schema, Option[SProgressCallback], ValidatedNel[SFailMessage, Any] => Unit) => Unit): Result = {
+    if(!isSchemaValid) {
+      CompiledValidationResult(getSchemaErrors)
+    } else {
+      val compiled = copies.borrow().fold(
+        errors => throw new IllegalStateException(s"The schema was valid but is no longer: ${errors.toList.map(_.message).mkString(", ")}"),
+        identity
+      )
+      val profiler = CsvValidatorJavaBridge.newProfiler(settings.profile)
+      val failures = mutable.ListBuffer.empty[SFailMessage]
+      val sProgress = Option(progress).map(CsvValidatorJavaBridge.asScalaProgress)
+
+      try {
+        CsvValidatorJavaBridge.withProfilerMBean(profiler, "compiled") {
+          validateWith(newValidator(profiler), compiled, sProgress, {
+            case Validated.Invalid(f) => failures ++= f.toList
+            case _ =>
+          })
+        }
+      } catch {
+        case NonFatal(e) =>
+          // the copy may be part way through a row, so it is not kept
+          copies.discard(compiled)
+          throw e
+      }
+
+      copies.giveBack(compiled)
+
+      CompiledValidationResult(failures.toList.map(CsvValidatorJavaBridge.asJavaMessage).asJava, CsvValidatorJavaBridge.profileReport(profiler))
+    }
+  }
+
+  private def newValidator(profiler: ValidationProfiler): Validator =
+    createValidator(settings.failFast, settings.pathSubstitutions, settings.enforceCaseSensitivePathChecks, false, settings.skipFileChecks, settings.maxCharsPerCell, settings.parallelism, settings.uniquenessStoreConfig, checksumEngine, profiler)
+
+  /**
+   * @throws IllegalStateException if the validator has been closed
+   */
+  private[java] def retain(): Unit = synchronized {
+    if(closed) {
+      throw new IllegalStateException("The compiled validator has been closed")
+    }
+    running += 1
+  }
+
+  private[java] def release(): Unit = {
+    val shutdownNow = synchronized {
+      running -= 1
+      closed && running == 0
+    }
+    if(shutdownNow) shutdown()
+  }
+
+  /**
+   * Stops any further validations, the resources of the validator
+   * are released once the validations which are running have finished
+   */
+  override def close(): Unit = {
+    val shutdownNow = synchronized {
+      val wasOpen = !closed
+      closed = true
+      wasOpen && running == 0
+    }
+    if(shutdownNow) shutdown()
+  }
+
+  private def shutdown(): Unit = {
+    checksumEngine.close()
+    copies.close()
+  }
+}
+
+object CompiledValidator {
+
+  private type Validator = SCsvValidator with MetaDataValidator
+
+  /**
+   * Compiles the schema
+   *
+   * @param csvSchema the text of the CSV Schema
+   */
+  def compile(csvSchema: String, settings: Settings): CompiledValidator = new CompiledValidator(csvSchema, settings)
+
+  /**
+   * The settings which a schema is compiled with,
+   * see {@link CsvValidator.CompilerBuilder}
+   *
+   * @param uniqueMemoryLimit a limit of zero or less means that all values are kept in memory
+   * @param uniqueSpillDirectory may be null to use the temporary directory
+   * @param checksumCacheFile may be null to not cache checksums between runs
+   */
+  case class Settings(csvEncoding: Charset, validateCsvEncoding: Boolean, csvSchemaEncoding: Charset, failFast: Boolean, pathSubstitutions: List[(String, String)], enforceCaseSensitivePathChecks: Boolean, skipFileChecks: Boolean, maxCharsPerCell: Int, parallelism: Int, uniqueMemoryLimit: Long, uniqueSpillDirectory: String, checksumThreads: Int, checksumCacheFile: String, forceChecksumReverify: Boolean, profile: Boolean) {
+
+    def uniquenessStoreConfig: UniquenessStoreConfig =
+      CsvValidatorJavaBridge.uniquenessStoreConfig(uniqueMemoryLimit, uniqueSpillDirectory)
+  }
+
+  case class CompiledValidationResult(errors: JList[FailMessage], profile: ProfileReport = null) extends Result {
+    override def getErrors: JList[FailMessage] = errors
+    override def getProfile: ProfileReport = profile
+  }
+}
@@ -10,15 +10,19 @@ package uk.gov.nationalarchives.csv.validator.api.java
 
 import java.util.{ArrayList => JArrayList, List => JList}
 import cats.data.Validated
-import uk.gov.nationalarchives.csv.validator.{SchemaDefinitionError, ValidationError, ValidationWarning, FailMessage => SFailMessage, ProgressCallback => SProgressCallback}
+import uk.gov.nationalarchives.csv.validator.{CheckpointSettings, ChecksumConfig, ChecksumEngine, ErrorSink, PrefetchConfig, ProfileReport, SchemaDefinitionError, ValidationProfiler, ValidationError, ValidationWarning, FailMessage => SFailMessage, ProgressCallback => SProgressCallback}
 import uk.gov.nationalarchives.csv.validator.Util._
 import uk.gov.nationalarchives.csv.validator.api.CsvValidator.createValidator
 
 import java.io.{Reader => JReader}
 import uk.gov.nationalarchives.csv.validator.api.TextFile
+import uk.gov.nationalarchives.csv.validator.schema.UniquenessStoreConfig
 
 import java.nio.charset.Charset
 import java.nio.file.Paths
+import java.time.Duration
+import java.util.concurrent.atomic.AtomicInteger
+import scala.util.Using
 
 /**
  * Simple bridge from Java API to Scala API
@@ -33,9 +37,7 @@ object CsvValidatorJavaBridge {
 
   @deprecated
   def validate(csvFile: String, csvEncoding: Charset, csvSchemaFile: String, csvSchemaEncoding: Charset, failFast: Boolean, pathSubstitutionsList: JList[Substitution], enforceCaseSensitivePathChecks: Boolean, trace: Boolean, progress: ProgressCallback): JList[FailMessage] = {
-    val sProgressCallback = new SProgressCallback {
-      override def update(complete: this.type#Percentage) = progress.update(complete)
-    }
+    val sProgressCallback = asScalaProgress(progress)
     validateTextFile(csvFile, csvEncoding, true, csvSchemaFile, csvSchemaEncoding, false, failFast, pathSubstitutionsList, enforceCaseSensitivePathChecks, trace, Some(sProgressCallback))
   }
 
@@ -45,23 +47,20 @@ object CsvValidatorJavaBridge {
 
   @deprecated("use latest validate")
   def validate(csvFile: String, csvEncoding: Charset, validateCsvEncoding: Boolean, csvSchemaFile: String, csvSchemaEncoding: Charset, validateCsvSchemaEncoding: Boolean, failFast: Boolean, pathSubstitutionsList: JList[Substitution], enforceCaseSensitivePathChecks: Boolean, trace: Boolean, progress: ProgressCallback): JList[FailMessage] = {
-    val sProgressCallback = new SProgressCallback {
-      override def update(complete: this.type#Percentage) = progress.update(complete)
-    }
+    val sProgressCallback = asScalaProgress(progress)
     validateTextFile(csvFile, csvEncoding, validateCsvEncoding, csvSchemaFile, csvSchemaEncoding, validateCsvSchemaEncoding, failFast, pathSubstitutionsList, enforceCaseSensitivePathChecks, trace, Some(sProgressCallback))
   }
 
   def validate(validationRequest: ValidationRequest): ValidationResult = {
     val request = validationRequest
-    val potentialSProgressCallback = Option(request.progress).map(progress => new SProgressCallback {
-      override def update(complete: this.type#Percentage) = progress.update(complete)
-    })
+    val potentialSProgressCallback = Option(request.progress).map(asScalaProgress)
 
-    val errors: JList[FailMessage] = validateTextFile(request.csvFile, request.csvEncoding, request.validateCsvEncoding, request.csvSchemaFile, request.csvSchemaEncoding, request.validateCsvSchemaEncoding, request.failFast, request.pathSubstitutionsList, request.enforceCaseSensitivePathChecks, request.trace, potentialSProgressCallback, request.skipFileChecks, request.maxCharsPerCellLimit)
-    ValidationResult(errors, validationRequest)
+    val profiler = newProfiler(request.profile)
+    val errors: JList[FailMessage] = validateTextFile(request.csvFile, request.csvEncoding, request.validateCsvEncoding, request.csvSchemaFile, request.csvSchemaEncoding, request.validateCsvSchemaEncoding, request.failFast, request.pathSubstitutionsList, request.enforceCaseSensitivePathChecks, request.trace, potentialSProgressCallback, request.skipFileChecks, request.maxCharsPerCellLimit, request.parallelism, uniquenessStoreConfig(request.uniqueMemoryLimit, request.uniqueSpillDirectory), checksumConfig(request.checksumThreads, request.checksumCacheFile, request.forceChecksumReverify), profiler, request.maxErrors, checkpointSettings(request.checkpointFile, request.checkpointIntervalSeconds, request.resume), PrefetchConfig(request.prefetchWindow))
+    ValidationResult(errors, validationRequest, profileReport(profiler))
   }
 
-  private def validateTextFile(csvFile: String, csvEncoding: Charset, validateCsvEncoding: Boolean, csvSchemaFile: String, csvSchemaEncoding: Charset, validateCsvSchemaEncoding: Boolean, failFast: Boolean, pathSubstitutionsList: JList[Substitution], enforceCaseSensitivePathChecks: Boolean, trace: Boolean, progress: Option[SProgressCallback], skipFileChecks: Boolean=false, maxCharsPerCellLimit: Int=4096): JList[FailMessage] = {
+  private def validateTextFile(csvFile: String, csvEncoding: Charset, validateCsvEncoding: Boolean, csvSchemaFile: String, csvSchemaEncoding: Charset, validateCsvSchemaEncoding: Boolean, failFast: Boolean, pathSubstitutionsList: JList[Substitution], enforceCaseSensitivePathChecks: Boolean, trace: Boolean, progress: Option[SProgressCallback], skipFileChecks: Boolean=false, maxCharsPerCellLimit: Int=4096, parallelism: Int=1, uniquenessStore: UniquenessStoreConfig = UniquenessStoreConfig(), checksums: ChecksumConfig = ChecksumConfig(), profiler: ValidationProfiler = ValidationProfiler.Disabled, maxErrors: Long = 0, checkpoints: Option[CheckpointSettings] = None, prefetch: PrefetchConfig = PrefetchConfig.Disabled): JList[FailMessage] = {
 
     import scala.jdk.CollectionConverters._
 
@@ -75,17 +74,20 @@ object CsvValidatorJavaBridge {
         errors.map{ asJavaMessage(_) }.toList.asJava
 
       case Validated.Valid(_) =>
-        val validator = createValidator(failFast, pathSubs, enforceCaseSensitivePathChecks, trace, skipFileChecks, maxCharsPerCellLimit)
-        validator.parseSchema(csvSchemaTextFile) match {
-
-          case Validated.Invalid(errors) =>
-            errors.map(asJavaMessage(_)).toList.asJava
-
-          case Validated.Valid(schema) =>
-            validator.validate(csvTextFile, schema, progress) match {
-              case Validated.Invalid(errors) => errors.map(asJavaMessage(_)).toList.asJava
-              case Validated.Valid(_) => new JArrayList[FailMessage]
-            }
+        Using.resource(new ChecksumEngine(checksums)) { checksumEngine =>
+          val validator = createValidator(failFast, pathSubs, enforceCaseSensitivePathChecks, trace, skipFileChecks, maxCharsPerCellLimit, parallelism, uniquenessStore, checksumEngine, profiler, prefetchConfig = prefetch)
+          validator.parseSchema(csvSchemaTextFile) match {
+
+            case Validated.Invalid(errors) =>
+              errors.map(asJavaMessage(_)).toList.asJava
+
+            case Validated.Valid(schema) =>
+              val errors = new JArrayList[FailMessage]
+              withProfilerMBean(profiler, csvFile) {
+                validator.validateCsvFileToSink(csvTextFile, schema, progress, collectingSink(errors, maxErrors), checkpoints)
+              }
+              errors
+          }
         }
     }
   }
@@ -96,54 +98,114 @@ object CsvValidatorJavaBridge {
 
   @deprecated("use latest validate")
   def validate(csvData: JReader, csvSchema: JReader, failFast: Boolean, pathSubstitutionsList: JList[Substitution], enforceCaseSensitivePathChecks: Boolean, trace: Boolean, progress: ProgressCallback): JList[FailMessage] = {
-    val sProgressCallback = new SProgressCallback {
-      override def update(complete: this.type#Percentage) = progress.update(complete)
-    }
+    val sProgressCallback = asScalaProgress(progress)
     validateReader(csvData, csvSchema, failFast, pathSubstitutionsList, enforceCaseSensitivePathChecks, trace, Some(sProgressCallback))
   }
 
   def validate(validationRequest: ReaderValidationRequest): ReaderValidationResult = {
     val request = validationRequest
-    val potentialSProgressCallback = if(request.progress == null) None else Some(new SProgressCallback {
-      override def update(complete: this.type#Percentage) = request.progress.update(complete)
-    })
-    val errors = validateReader(request.csvReader, request.csvSchemaReader, request.failFast, request.pathSubstitutionsList, request.enforceCaseSensitivePathChecks, request.trace, potentialSProgressCallback, request.skipFileChecks, request.maxCharsPerCellLimit)
-    ReaderValidationResult(errors, validationRequest)
+    val potentialSProgressCallback = Option(request.progress).map(asScalaProgress)
+    val profiler = newProfiler(request.profile)
+    val errors = validateReader(request.csvReader, request.csvSchemaReader, request.failFast, request.pathSubstitutionsList, request.enforceCaseSensitivePathChecks, request.trace, potentialSProgressCallback, request.skipFileChecks, request.maxCharsPerCellLimit, request.parallelism, uniquenessStoreConfig(request.uniqueMemoryLimit, request.uniqueSpillDirectory), checksumConfig(request.checksumThreads, request.checksumCacheFile, request.forceChecksumReverify), profiler, Some(request.expectedLength).filter(_ >= 0), request.maxErrors, PrefetchConfig(request.prefetchWindow))
+    ReaderValidationResult(errors, validationRequest, profileReport(profiler))
   }
 
-  private def validateReader(csvData: JReader, csvSchema: JReader, failFast: Boolean, pathSubstitutionsList: JList[Substitution], enforceCaseSensitivePathChecks: Boolean, trace: Boolean, progress: Option[SProgressCallback], skipFileChecks: Boolean = false, maxCharsPerCell: Int = 4096): JList[FailMessage] = {
+  private def validateReader(csvData: JReader, csvSchema: JReader, failFast: Boolean, pathSubstitutionsList: JList[Substitution], enforceCaseSensitivePathChecks: Boolean, trace: Boolean, progress: Option[SProgressCallback], skipFileChecks: Boolean = false, maxCharsPerCell: Int = 4096, parallelism: Int = 1, uniquenessStore: UniquenessStoreConfig = UniquenessStoreConfig(), checksums: ChecksumConfig = ChecksumConfig(), profiler: ValidationProfiler = ValidationProfiler.Disabled, expectedLength: Option[Long] = None, maxErrors: Long = 0, prefetch: PrefetchConfig = PrefetchConfig.Disabled): JList[FailMessage] = {
 
     import scala.jdk.CollectionConverters._
 
     val pathSubs: List[(String,String)] = pathSubstitutionsList.asScala.map( x => (x.getFrom, x.getTo)).toList
     
-    val validator = createValidator(failFast, pathSubs, enforceCaseSensitivePathChecks, trace, skipFileChecks, maxCharsPerCell)
-    validator.parseSchema(csvSchema) match {
+    Using.resource(new ChecksumEngine(checksums)) { checksumEngine =>
+      val validator = createValidator(failFast, pathSubs, enforceCaseSensitivePathChecks, trace, skipFileChecks, maxCharsPerCell, parallelism, uniquenessStore, checksumEngine, profiler, prefetchConfig = prefetch)
+      validator.parseSchema(csvSchema) match {
+
+        case Validated.Invalid(errors) =>
+          errors.map(asJavaMessage(_)).toList.asJava
+
+        case Validated.Valid(schema) =>
+          // the reader is validated as it is read, it is never read ahead to count its rows
+          val errors = new JArrayList[FailMessage]
+          withProfilerMBean(profiler, "reader") {
+            validator.validateReaderToSink(csvData, schema, maxCharsPerCell, progress, expectedLength, collectingSink(errors, maxErrors))
+          }
+          errors
+      }
+    }
+  }
 
-      case Validated.Invalid(errors) =>
-        errors.map(asJavaMessage(_)).toList.asJava
+  /**
+    * Creates the settings for compiling a schema,
+    * see [[CompiledValidator]]
+    */
+  def compilerSettings(csvEncoding: Charset, validateCsvEncoding: Boolean, csvSchemaEncoding: Charset, failFast: Boolean, pathSubstitutionsList: JList[Substitution], enforceCaseSensitivePathChecks: Boolean, skipFileChecks: Boolean, maxCharsPerCell: Int, parallelism: Int, uniqueMemoryLimit: Long, uniqueSpillDirectory: String, checksumThreads: Int, checksumCacheFile: String, forceChecksumReverify: Boolean, profile: Boolean): CompiledValidator.Settings = {
+    import scala.jdk.CollectionConverters._
+    val pathSubs: List[(String,String)] = pathSubstitutionsList.asScala.map( x => (x.getFrom, x.getTo)).toList
+    CompiledValidator.Settings(csvEncoding, validateCsvEncoding, csvSchemaEncoding, failFast, pathSubs, enforceCaseSensitivePathChecks, skipFileChecks, maxCharsPerCell, parallelism, uniqueMemoryLimit, uniqueSpillDirectory, checksumThreads, checksumCacheFile, forceChecksumReverify, profile)
+  }
 
-      case Validated.Valid(schema) =>
-        validator.validate(csvData, schema, maxCharsPerCell, progress) match {
-          case Validated.Invalid(errors) => errors.map(asJavaMessage(_)).toList.asJava
-          case Validated.Valid(_) => new JArrayList[FailMessage]
-        }
-    }
+  /**
+    * @param uniqueMemoryLimit a limit of zero or less means that all values are kept in memory
+    * @param uniqueSpillDirectory may be null to use the temporary directory
+    */
+  private[java] def uniquenessStoreConfig(uniqueMemoryLimit: Long, uniqueSpillDirectory: String): UniquenessStoreConfig =
+    UniquenessStoreConfig(Some(uniqueMemoryLimit).filter(_ > 0), Option(uniqueSpillDirectory).map(Paths.get(_)))
+
+  /**
+    * @param checksumCacheFile may be null to not cache checksums between runs
+    */
+  private[java] def checksumConfig(checksumThreads: Int, checksumCacheFile: String, forceChecksumReverify: Boolean): ChecksumConfig =
+    ChecksumConfig(checksumThreads, Option(checksumCacheFile).map(Paths.get(_)), forceChecksumReverify)
+
+  private[java] def newProfiler(profile: Boolean): ValidationProfiler =
+    if(profile) ValidationProfiler() else ValidationProfiler.Disabled
+
+  /**
+    * @return null when not profiling
+    */
+  private[java] def profileReport(profiler: ValidationProfiler): ProfileReport =
+    if(profiler.enabled) profiler.report else null
+
+  private val profilerCount = new AtomicInteger()
+
+  /**
+    * Whilst validating, the profiler may be watched through JMX
+    */
+  private[java] def withProfilerMBean[T](profiler: ValidationProfiler, name: String)(f: => T): T =
+    if(profiler.enabled) Using.resource(profiler.registerMBean(s"$name-${profilerCount.incrementAndGet()}"))(_ => f) else f
+
+  /**
+    * Collects the failures into the list, stopping
+    * after `maxErrors` errors unless it is 0
+    */
+  private[java] def collectingSink(errors: JList[FailMessage], maxErrors: Long): ErrorSink = {
+    val collect: ErrorSink = failure => errors.add(asJavaMessage(failure))
+    if(maxErrors > 0) ErrorSink.capped(collect, maxErrors) else collect
+  }
+
+  private[java] def checkpointSettings(checkpointFile: String, checkpointIntervalSeconds: Long, resume: Boolean): Option[CheckpointSettings] =
+    Option(checkpointFile).map(file => CheckpointSettings(Paths.get(file), Duration.ofSeconds(checkpointIntervalSeconds), resume))
+
+  private[java] def asScalaProgress(progress: ProgressCallback): SProgressCallback = new SProgressCallback {
+    override def update(complete: this.type#Percentage): Unit = progress.update(complete)
+    override def processed(rows: Long, bytes: Long): Unit = progress.processed(rows, bytes)
   }
 
-  private def asJavaMessage(f: SFailMessage): FailMessage = f match {
+  private[java] def asJavaMessage(f: SFailMessage): FailMessage = f match {
     case SFailMessage(ValidationWarning, msg, lineNr, columnIdx) => new WarningMessage(msg, lineNr.getOrElse(-1), columnIdx.getOrElse(-1)).asInstanceOf[FailMessage]
     case SFailMessage(ValidationError, msg, lineNr, columnIdx) => new ErrorMessage(msg, lineNr.getOrElse(-1), columnIdx.getOrElse(-1)).asInstanceOf[FailMessage]
     case SFailMessage(SchemaDefinitionError, msg, lineNr, columnIdx) => new ErrorMessage(msg, lineNr.getOrElse(-1), columnIdx.getOrElse(-1)).asInstanceOf[FailMessage]
   }
 
-   case class ValidationResult(errors: JList[FailMessage], validatorRequest: ValidationRequest) extends Result {
+   case class ValidationResult(errors: JList[FailMessage], validatorRequest: ValidationRequest, profile: ProfileReport = null) extends Result {
      override def getErrors: JList[FailMessage] = errors
+     override def getProfile: ProfileReport = profile
    }
-   case class ValidationRequest(csvFile: String, csvEncoding: Charset, validateCsvEncoding: Boolean, csvSchemaFile: String, csvSchemaEncoding: Charset, validateCsvSchemaEncoding: Boolean, failFast: Boolean, pathSubstitutionsList: JList[Substitution], enforceCaseSensitivePathChecks: Boolean, trace: Boolean, progress: ProgressCallback, skipFileChecks: Boolean, maxCharsPerCellLimit: Int)
+   case class ValidationRequest(csvFile: String, csvEncoding: Charset, validateCsvEncoding: Boolean, csvSchemaFile: String, csvSchemaEncoding: Charset, validateCsvSchemaEncoding: Boolean, failFast: Boolean, pathSubstitutionsList: JList[Substitution], enforceCaseSensitivePathChecks: Boolean, trace: Boolean, progress: ProgressCallback, skipFileChecks: Boolean, maxCharsPerCellLimit: Int, parallelism: Int, uniqueMemoryLimit: Long, uniqueSpillDirectory: String, checksumThreads: Int, checksumCacheFile: String, forceChecksumReverify: Boolean, profile: Boolean, maxErrors: Long = 0, checkpointFile: String = null, checkpointIntervalSeconds: Long = CheckpointSettings.DefaultInterval.getSeconds, resume: Boolean = false, prefetchWindow: Int = 0)
 
-   case class ReaderValidationResult(errors: JList[FailMessage], validatorRequest: ReaderValidationRequest) extends Result {
+   case class ReaderValidationResult(errors: JList[FailMessage], validatorRequest: ReaderValidationRequest, profile: ProfileReport = null) extends Result {
      override def getErrors: JList[FailMessage] = errors
+     override def getProfile: ProfileReport = profile
    }
-   case class ReaderValidationRequest(csvReader: JReader, csvSchemaReader: JReader, failFast: Boolean, pathSubstitutionsList: JList[Substitution], enforceCaseSensitivePathChecks: Boolean, trace: Boolean, progress: ProgressCallback, skipFileChecks: Boolean, maxCharsPerCellLimit: Int)
+   case class ReaderValidationRequest(csvReader: JReader, csvSchemaReader: JReader, failFast: Boolean, pathSubstitutionsList: JList[Substitution], enforceCaseSensitivePathChecks: Boolean, trace: Boolean, progress: ProgressCallback, skipFileChecks: Boolean, maxCharsPerCellLimit: Int, parallelism: Int, uniqueMemoryLimit: Long, uniqueSpillDirectory: String, checksumThreads: Int, checksumCacheFile: String, forceChecksumReverify: Boolean, profile: Boolean, expectedLength: Long = -1, maxErrors: Long = 0, prefetchWindow: Int = 0)
 }
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator.api.java
+
+import java.io.{Reader => JReader}
+import java.nio.charset.StandardCharsets
+import java.nio.file.{Files, Paths}
+import java.security.MessageDigest
+import java.util.concurrent.{CompletableFuture, CompletionException}
+import java.util.{HexFormat, LinkedHashMap => JLinkedHashMap, Map => JMap}
+import scala.annotation.tailrec
+
+/**
+ * Keeps the most recently used compiled schemas, so that
+ * validating many CSV files against the same few schemas
+ * only parses each schema once.
+ *
+ * Schemas are identified by a hash of their content along with the
+ * settings they are compiled with, so a schema file which changes
+ * is compiled again. The cache may be used from many threads, a
+ * schema is compiled without holding the lock, so that validations
+ * of other schemas need not wait, and only once, as validations of
+ * the same schema wait for it to be compiled.
+ *
+ * @param maxSchemas the number of compiled schemas to keep, when
+ *                   more are compiled the least recently used is closed
+ */
+final class SchemaCache(val maxSchemas: Int) extends AutoCloseable {
+  import SchemaCache._
+
+  require(maxSchemas > 0, "maxSchemas must be greater than zero")
+
+  // guarded by itself
+  private val compiled = new JLinkedHashMap[Key, Cached](16, 0.75f, true) {
+    override def removeEldestEntry(eldest: JMap.Entry[Key, Cached]): Boolean = {
+      val evict = size() > maxSchemas
+      if(evict) {
+        // closed once any validations which are using it have finished
+        eldest.getValue.close()
+      }
+      evict
+    }
+  }
+
+  private var hits = 0L
+  private var misses = 0L
+  private var closed = false
+
+  /**
+   * Validates the CSV file against the schema file
+   *
+   * @param progress may be null
+   * @throws IllegalStateException if the cache has been closed
+   */
+  def validate(settings: CompiledValidator.Settings, csvSchemaFile: String, csvFile: String, progress: ProgressCallback): Result = {
+    val validator = retain(settings, new String(Files.readAllBytes(Paths.get(csvSchemaFile)), settings.csvSchemaEncoding))
+    try validator.validateRetained(csvFile, progress) finally validator.release()
+  }
+
+  /**
+   * Validates the CSV data against the schema
+   *
+   * @param csvSchema the text of the CSV Schema
+   * @param progress may be null
+   * @throws IllegalStateException if the cache has been closed
+   */
+  def validate(settings: CompiledValidator.Settings, csvSchema: String, csvData: JReader, progress: ProgressCallback): Result = {
+    val validator = retain(settings, csvSchema)
+    try validator.validateRetained(csvData, progress) finally validator.release()
+  }
+
+  private def retain(settings: CompiledValidator.Settings, csvSchema: String): CompiledValidator =
+    retain(Key(sha256(csvSchema), settings), csvSchema)
+
+  /**
+   * Finds, or compiles, the schema and then retains it
+   * whilst holding the lock, so that it can not be
+   * closed by an eviction before it is used. If it was
+   * evicted whilst being compiled, it is compiled again
+   */
+  @tailrec
+  private def retain(key: Key, csvSchema: String): CompiledValidator = {
+    val (entry, compiler) = compiled.synchronized {
+      checkOpen()
+      val existing = compiled.get(key)
+      if(existing != null) {
+        hits += 1
+        (existing, false)
+      } else {
+        misses += 1
+        val created = new Cached()
+        compiled.put(key, created)
+        (created, true)
+      }
+    }
+
+    if(compiler) {
+      entry.compile(csvSchema, key.settings, () => compiled.synchronized(compiled.remove(key, entry)))
+    }
+    val validator = entry.await()
+
+    val retained = compiled.synchronized {
+      checkOpen()
+      val current = compiled.get(key) eq entry
+      if(current) {
+        validator.retain()
+      }
+      current
+    }
+    if(retained) validator else retain(key, csvSchema)
+  }
+
+  // guarded by compiled
+  private def checkOpen(): Unit =
+    if(closed) {
+      throw new IllegalStateException("The schema cache has been closed")
+    }
+
+  def size: Int = compiled.synchronized(compiled.size())
+
+  /**
+   * @return the number of validations which reused a compiled schema
+   */
+  def hitCount: Long = compiled.synchronized(hits)
+
+  /**
+   * @return the number of validations which had to compile a schema
+   */
+  def missCount: Long = compiled.synchronized(misses)
+
+  /**
+   * Closes all of the compiled schemas, those
+   * which are in use are closed once they have finished
+   */
+  override def close(): Unit = compiled.synchronized {
+    closed = true
+    compiled.values().forEach(_.close())
+    compiled.clear()
+  }
+}
+
+object SchemaCache {
+
+  private case class Key(schemaHash: String, settings: CompiledValidator.Settings)
+
+  /**
+   * A schema in the cache, which may still be being compiled
+   */
+  private final class Cached {
+    private val validator = new CompletableFuture[CompiledValidator]()
+
+    /**
+     * @param forget removes the entry from the cache if the schema cannot be compiled
+     */
+    def compile(csvSchema: String, settings: CompiledValidator.Settings, forget: () => Unit): Unit =
+      try {
+        validator.complete(CompiledValidator.compile(csvSchema, settings))
+      } catch {
+        case t: Throwable =>
+          forget()
+          validator.completeExceptionally(t)
+          throw t
+      }
+
+    /**
+     * Waits for the schema to be compiled
+     */
+    def await(): CompiledValidator =
+      try {
+        validator.join()
+      } catch {
+        case e: CompletionException => throw e.getCause
+      }
+
+    /**
+     * Closes the compiled schema, once it has been compiled
+     */
+    def close(): Unit = {
+      validator.thenAccept((compiled: CompiledValidator) => compiled.close())
+      ()
+    }
+  }
+
+  private def sha256(text: String): String =
+    HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8)))
+}
@@ -13,7 +13,13 @@ import org.junit.Test;
 
 import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.Assert.assertThrows;
 
@@ -36,6 +42,15 @@ public class CsvValidatorTest {
         Assert.assertNull(validationRequest.progress());
         Assert.assertFalse(validationRequest.skipFileChecks());
         Assert.assertEquals(4096, validationRequest.maxCharsPerCellLimit());
+        Assert.assertEquals(1, validationRequest.parallelism());
+        Assert.assertEquals(0, validationRequest.uniqueMemoryLimit());
+        Assert.assertNull(validationRequest.uniqueSpillDirectory());
+        Assert.assertTrue(validationRequest.checksumThreads() >= 1);
+        Assert.assertNull(validationRequest.checksumCacheFile());
+        Assert.assertFalse(validationRequest.forceChecksumReverify());
+        Assert.assertFalse(validationRequest.profile());
+        Assert.assertNull(validationRequest.checkpointFile());
+        Assert.assertFalse(validationRequest.resume());
     }
 
     @Test
@@ -51,6 +66,15 @@ public class CsvValidatorTest {
         Assert.assertNull(validationRequest.progress());
         Assert.assertFalse(validationRequest.skipFileChecks());
         Assert.assertEquals(4096, validationRequest.maxCharsPerCellLimit());
+        Assert.assertEquals(1, validationRequest.parallelism());
+        Assert.assertEquals(0, validationRequest.uniqueMemoryLimit());
+        Assert.assertNull(validationRequest.uniqueSpillDirectory());
+        Assert.assertTrue(validationRequest.checksumThreads() >= 1);
+        Assert.assertNull(validationRequest.checksumCacheFile());
+        Assert.assertFalse(validationRequest.forceChecksumReverify());
+        Assert.assertFalse(validationRequest.profile());
+        Assert.assertEquals(-1, validationRequest.expectedLength());
+        Assert.assertEquals(0, validationRequest.maxErrors());
     }
 
     @Test
@@ -78,6 +102,7 @@ public class CsvValidatorTest {
                 .usingProgress(progressCallback)
                 .usingSkipFileChecks(true)
                 .usingMaxCharsPerCell(8096)
+                .usingParallelism(4)
                 .runValidation();
         CsvValidatorJavaBridge.ValidationRequest validationRequest = ((CsvValidatorJavaBridge.ValidationResult) result).validatorRequest();
         Assert.assertEquals("csvFile", validationRequest.csvFile());
@@ -92,6 +117,7 @@ public class CsvValidatorTest {
         Assert.assertEquals(progressCallback, validationRequest.progress());
         Assert.assertTrue(validationRequest.skipFileChecks());
         Assert.assertEquals(8096, validationRequest.maxCharsPerCellLimit());
+        Assert.assertEquals(4, validationRequest.parallelism());
     }
 
     @Test
@@ -107,6 +133,7 @@ public class CsvValidatorTest {
                 .usingProgress(progressCallback)
                 .usingSkipFileChecks(true)
                 .usingMaxCharsPerCell(16096)
+                .usingParallelism(2)
                 .runValidation();
 
         CsvValidatorJavaBridge.ReaderValidationRequest validationRequest = ((CsvValidatorJavaBridge.ReaderValidationResult) result).validatorRequest();
@@ -120,6 +147,244 @@ public class CsvValidatorTest {
         Assert.assertEquals(progressCallback, validationRequest.progress());
         Assert.assertTrue(validationRequest.skipFileChecks());
         Assert.assertEquals(16096, validationRequest.maxCharsPerCellLimit());
+        Assert.assertEquals(2, validationRequest.parallelism());
+    }
+
+    @Test
+    public void exceptionIsThrownIfParallelismIsLessThanOne() {
+        assertThrows(
+                IllegalArgumentException.class, () ->
+                new CsvValidator.ValidatorBuilder("csvFile", "csvSchema")
+                    .usingParallelism(0)
+        );
+    }
+
+    @Test
+    public void uniqueMemoryLimitAndSpillDirectoryArePassedOn() {
+        Result result = new CsvValidator.ValidatorBuilder("csvFile", "csvSchema")
+                .usingUniqueMemoryLimit(1024 * 1024)
+                .usingUniqueSpillDirectory("/tmp/spill")
+                .runValidation();
+        CsvValidatorJavaBridge.ValidationRequest validationRequest = ((CsvValidatorJavaBridge.ValidationResult) result).validatorRequest();
+        Assert.assertEquals(1024 * 1024, validationRequest.uniqueMemoryLimit());
+        Assert.assertEquals("/tmp/spill", validationRequest.uniqueSpillDirectory());
+    }
+
+    @Test
+    public void exceptionIsThrownIfUniqueMemoryLimitIsLessThanOne() {
+        assertThrows(
+                IllegalArgumentException.class, () ->
+                new CsvValidator.ValidatorBuilder("csvFile", "csvSchema")
+                    .usingUniqueMemoryLimit(0)
+        );
+    }
+
+    @Test
+    public void checksumSettingsArePassedOn() {
+        Result result = new CsvValidator.ValidatorBuilder("csvFile", "csvSchema")
+                .usingChecksumThreads(2)
+                .usingChecksumCache("/tmp/checksums.cache")
+                .usingForceChecksumReverify(true)
+                .runValidation();
+        CsvValidatorJavaBridge.ValidationRequest validationRequest = ((CsvValidatorJavaBridge.ValidationResult) result).validatorRequest();
+        Assert.assertEquals(2, validationRequest.checksumThreads());
+        Assert.assertEquals("/tmp/checksums.cache", validationRequest.checksumCacheFile());
+        Assert.assertTrue(validationRequest.forceChecksumReverify());
+    }
+
+    @Test
+    public void exceptionIsThrownIfChecksumThreadsIsLessThanOne() {
+        assertThrows(
+                IllegalArgumentException.class, () ->
+                new CsvValidator.ValidatorBuilder("csvFile", "csvSchema")
+                    .usingChecksumThreads(0)
+        );
+    }
+
+    @Test
+    public void profileIsOnlyReportedWhenRequested() {
+        String schema = "version 1.0\n@totalColumns 1\nname: regex(\"[a-z]+\")\n";
+        String csv = "name\nfoo\nbar\n";
+
+        Result unprofiled = new CsvValidator.ValidatorBuilder(new StringReader(csv), new StringReader(schema)).runValidation();
+        Assert.assertNull(unprofiled.getProfile());
+
+        Result profiled = new CsvValidator.ValidatorBuilder(new StringReader(csv), new StringReader(schema))
+                .usingProfile(true)
+                .runValidation();
+        Assert.assertTrue(profiled.getErrors().isEmpty());
+        Assert.assertEquals(3, profiled.getProfile().rowsRead());
+        Assert.assertEquals(1, profiled.getProfile().rules().size());
+        Assert.assertEquals(2, profiled.getProfile().rules().head().invocations());
+    }
+
+    @Test
+    public void progressOfAReaderIsReportedAsItIsRead() {
+        String schema = "version 1.0\n@totalColumns 1\nname: regex(\"[a-z]+\")\n";
+        String csv = "name\nfoo\nbar\n";
+        final List<Float> percentages = new ArrayList<>();
+        final long[] processed = {-1, -1};
+        ProgressCallback progress = new ProgressCallback() {
+            @Override
+            public void update(float complete) {
+                percentages.add(complete);
+            }
+
+            @Override
+            public void processed(long rows, long bytes) {
+                processed[0] = rows;
+                processed[1] = bytes;
+            }
+        };
+
+        // a reader which can not be read ahead
+        StringReader reader = new StringReader(csv) {
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+        };
+
+        Result result = new CsvValidator.ValidatorBuilder(reader, new StringReader(schema))
+                .usingProgress(progress)
+                .usingExpectedLength(csv.length())
+                .runValidation();
+
+        Assert.assertTrue(result.getErrors().isEmpty());
+        Assert.assertEquals(csv.length(), ((CsvValidatorJavaBridge.ReaderValidationResult) result).validatorRequest().expectedLength());
+        Assert.assertEquals(3, processed[0]);
+        Assert.assertEquals(csv.length(), processed[1]);
+        Assert.assertEquals(100f, percentages.get(percentages.size() - 1), 0f);
+    }
+
+    @Test
+    public void exceptionIsThrownIfExpectedLengthIsNegative() {
+        assertThrows(
+                IllegalArgumentException.class, () ->
+                        new CsvValidator.ValidatorBuilder(csvFileReader, csvSchemaReader).usingExpectedLength(-1)
+        );
+    }
+
+    @Test
+    public void validationStopsOnceTheMaximumNumberOfErrorsIsFound() {
+        String schema = "version 1.1\n@totalColumns 1\nid: positiveInteger\n";
+        StringBuilder csv = new StringBuilder("id\n");
+        for(int i = 0; i < 1000; i++) {
+            csv.append("x").append(i).append('\n');
+        }
+
+        Result result = new CsvValidator.ValidatorBuilder(new StringReader(csv.toString()), new StringReader(schema))
+                .usingMaxErrors(10)
+                .runValidation();
+
+        Assert.assertEquals(10, result.getErrors().size());
+    }
+
+    @Test
+    public void exceptionIsThrownIfMaxErrorsIsNegative() {
+        assertThrows(
+                IllegalArgumentException.class, () ->
+                        new CsvValidator.ValidatorBuilder(csvFileReader, csvSchemaReader).usingMaxErrors(-1)
+        );
+    }
+
+    @Test
+    public void checkpointIsDeletedOnceTheCsvFileHasBeenValidated() throws Exception {
+        Path dir = Files.createTempDirectory("checkpoint");
+        Path csvFile = Files.write(dir.resolve("data.csv"), "id\na\nb\na\n".getBytes(StandardCharsets.UTF_8));
+        Path schemaFile = Files.write(dir.resolve("data.csvs"), UNIQUE_SCHEMA.getBytes(StandardCharsets.UTF_8));
+        Path checkpoint = dir.resolve("data.checkpoint");
+        try {
+            Result result = new CsvValidator.ValidatorBuilder(csvFile.toString(), schemaFile.toString())
+                    .usingCheckpoint(checkpoint.toString(), true)
+                    .runValidation();
+
+            Assert.assertEquals(1, result.getErrors().size());
+            Assert.assertFalse(Files.exists(checkpoint));
+        } finally {
+            Files.delete(csvFile);
+            Files.delete(schemaFile);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void exceptionIsThrownIfCheckpointIntervalIsLessThanOne() {
+        assertThrows(
+                IllegalArgumentException.class, () ->
+                        new CsvValidator.ValidatorBuilder("csvFile", "csvSchema").usingCheckpointInterval(0)
+        );
+    }
+
+    private static final String UNIQUE_SCHEMA = "version 1.1\n@totalColumns 1\nid: unique\n";
+
+    @Test
+    public void compiledValidatorForgetsUniqueValuesBetweenValidations() throws Exception {
+        try(CompiledValidator validator = new CsvValidator.CompilerBuilder().compile(new StringReader(UNIQUE_SCHEMA))) {
+            Assert.assertTrue(validator.isSchemaValid());
+            Assert.assertTrue(validator.validate(new StringReader("id\na\nb\n")).getErrors().isEmpty());
+            Assert.assertTrue(validator.validate(new StringReader("id\na\nb\n")).getErrors().isEmpty());
+            Assert.assertEquals(1, validator.validate(new StringReader("id\na\na\n")).getErrors().size());
+        }
+    }
+
+    @Test
+    public void compiledValidatorReportsSchemaErrors() throws Exception {
+        try(CompiledValidator validator = new CsvValidator.CompilerBuilder().compile(new StringReader("version 1.1\n@totalColumns 1\nid: nonsense\n"))) {
+            Assert.assertFalse(validator.isSchemaValid());
+            Assert.assertFalse(validator.getSchemaErrors().isEmpty());
+            Assert.assertEquals(validator.getSchemaErrors().size(), validator.validate(new StringReader("id\na\n")).getErrors().size());
+        }
     }
-}
 
+    @Test
+    public void compiledValidatorIsolatesConcurrentValidations() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try(CompiledValidator validator = new CsvValidator.CompilerBuilder().compile(new StringReader(UNIQUE_SCHEMA))) {
+            final List<Future<Integer>> errors = new ArrayList<>();
+            for(int i = 0; i < 64; i++) {
+                final boolean duplicate = i % 2 == 0;
+                errors.add(executor.submit(() -> {
+                    final StringBuilder csv = new StringBuilder("id\n");
+                    for(int row = 0; row < 200; row++) {
+                        csv.append(row).append('\n');
+                    }
+                    if(duplicate) {
+                        csv.append("0\n");
+                    }
+                    return validator.validate(new StringReader(csv.toString())).getErrors().size();
+                }));
+            }
+            for(int i = 0; i < errors.size(); i++) {
+                Assert.assertEquals(i % 2 == 0 ? 1 : 0, errors.get(i).get().intValue());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void closedCompiledValidatorCanNotBeUsed() throws Exception {
+        final CompiledValidator validator = new CsvValidator.CompilerBuilder().compile(new StringReader(UNIQUE_SCHEMA));
+        validator.close();
+        assertThrows(IllegalStateException.class, () -> validator.validate(new StringReader("id\na\n")));
+    }
+
+    @Test
+    public void schemaCacheReusesCompiledSchemasAndEvictsTheLeastRecentlyUsed() {
+        final CompiledValidator.Settings settings = new CsvValidator.CompilerBuilder().settings();
+        final String otherSchema = "version 1.1\n@totalColumns 1\nid: regex(\"[0-9]+\")\n";
+        try(SchemaCache cache = new SchemaCache(1)) {
+            Assert.assertTrue(cache.validate(settings, UNIQUE_SCHEMA, new StringReader("id\na\n"), null).getErrors().isEmpty());
+            Assert.assertTrue(cache.validate(settings, UNIQUE_SCHEMA, new StringReader("id\na\n"), null).getErrors().isEmpty());
+            Assert.assertEquals(1, cache.hitCount());
+            Assert.assertEquals(1, cache.missCount());
+
+            Assert.assertEquals(1, cache.validate(settings, otherSchema, new StringReader("id\na\n"), null).getErrors().size());
+            Assert.assertEquals(1, cache.size());
+
+            cache.validate(settings, UNIQUE_SCHEMA, new StringReader("id\na\n"), null);
+            Assert.assertEquals(3, cache.missCount());
+        }
+    }
+}
@@ -8,14 +8,13 @@
  */
 package uk.gov.nationalarchives.csv.validator.ui
 
-import cats.data.Validated.Invalid
-import cats.data.ValidatedNel
+import cats.data.Validated
 import net.java.dev.designgridlayout._
-import uk.gov.nationalarchives.csv.validator.api.TextFile
-import uk.gov.nationalarchives.csv.validator.cmd.{CsvValidatorCmdApp, SystemExitCodes}
+import uk.gov.nationalarchives.csv.validator.api.{CsvValidator, TextFile}
+import uk.gov.nationalarchives.csv.validator.cmd.CsvValidatorCmdApp
 import uk.gov.nationalarchives.csv.validator.ui.DesignGridImplicits._
 import uk.gov.nationalarchives.csv.validator.ui.ScalaSwingHelpers._
-import uk.gov.nationalarchives.csv.validator.{EOL, FailMessage, ProgressCallback}
+import uk.gov.nationalarchives.csv.validator.{EOL, ProgressCallback}
 
 import java.awt.Cursor
 import java.awt.datatransfer.DataFlavor
@@ -31,7 +30,7 @@ import java.util.jar.{Attributes, Manifest}
 import javax.swing.SpringLayout.Constraints
 import javax.swing._
 import javax.swing.filechooser.FileNameExtensionFilter
-import javax.swing.table.DefaultTableModel
+import javax.swing.table.{DefaultTableCellRenderer, DefaultTableModel}
 import scala.jdk.CollectionConverters.CollectionHasAsScala
 import scala.language.reflectiveCalls
 import scala.swing.FileChooser.SelectionMode
@@ -114,24 +113,18 @@ object CsvValidatorUi extends SimpleSwingApplication {
     }
   }
 
-  private def displayWait(suspendUi: => Unit, action: (String => Unit) => Unit, output: String => Unit, resumeUi: => Unit) : Unit = {
-    import scala.concurrent.ExecutionContext.Implicits.global
-    import scala.concurrent.Future
-    import scala.util.{Failure, Success}
-
+  private def displayWait(suspendUi: => Unit, run: ValidationRun, action: ValidationRun => String, output: String => Unit, resumeUi: => Unit) : Unit = {
     suspendUi
-    val fAction: Future[Unit] = Future {
-      action(output)
-    }
+    run.start(action) {
+      case Success(status) =>
+        Swing.onEDT { resumeUi; output(status) }
 
-    fAction.onComplete {
-      case Success(_) =>
-        Swing.onEDT { resumeUi }
+      case Failure(_) if run.cancelled =>
+        Swing.onEDT { resumeUi; output("Validation cancelled") }
 
       case Failure(t) =>
         t.printStackTrace()
-        output(t.toString)
-        Swing.onEDT {resumeUi }
+        Swing.onEDT { resumeUi; output(t.toString) }
     }
   }
 
@@ -146,49 +139,20 @@ object CsvValidatorUi extends SimpleSwingApplication {
   private def validate(csvFilePath: String, csvEncoding: Charset, csvSchemaFilePath: String, csvSchemaEncoding: Charset,
                        maxCharsPerCell: Int, failOnFirstError: Boolean, pathSubstitutions: List[(String, String)],
                        enforceCaseSensitivePathChecks: Boolean, progress: Option[ProgressCallback], validateEncoding: Boolean,
-                       maxNumOfLines: Int, skipFileChecks: Boolean, outputTextSuffix: String)(output: String => Unit) : Unit = {
-
-    def toConsole(msg: String): Unit = Swing.onEDT {
-      output(msg)
-    }
-
-    var badLines = 0
-    var truncated = false
-
-    def logRowCallback(maxBadLines: Int)(row: ValidatedNel[FailMessage, Any]): Unit = row match {
-      case Invalid(failures) =>
-        if (badLines >= maxBadLines) {
-          if (!truncated) {
-            toConsole(
-              s"...\n\nNote: Number of errors to display has reached the set limit of $maxBadLines; " +
-                "increase this limit and re-run in order to display more errors."
-            )
-            truncated = true
-          }
-        } else toConsole(CsvValidatorCmdApp.prettyPrint(failures))
-
-        badLines += failures.size
-
-      case _ =>
+                       skipFileChecks: Boolean, outputTextSuffix: String)(run: ValidationRun) : String = {
+
+    val validator = CsvValidator.createValidator(failOnFirstError, pathSubstitutions, enforceCaseSensitivePathChecks, false, skipFileChecks, maxCharsPerCell)
+    validator.parseSchema(TextFile(Paths.get(csvSchemaFilePath), csvSchemaEncoding)) match {
+      case Validated.Invalid(errors) =>
+        errors.toList.foreach(run.accept)
+        "FAIL (Invalid Schema)"
+
+      case Validated.Valid(schema) =>
+        val pass = validator.validateCsvFileToSink(TextFile(Paths.get(csvFilePath), csvEncoding, validateEncoding), schema, progress, run.sinkFor(schema))
+        if(run.cancelled) "Validation cancelled"
+        else if(pass) s"PASS$outputTextSuffix"
+        else "FAIL"
     }
-
-      val (status, cliExitCode) = CsvValidatorCmdApp.validate(
-        TextFile(Paths.get(csvFilePath), csvEncoding, validateEncoding),
-        TextFile(Paths.get(csvSchemaFilePath), csvSchemaEncoding),
-        failOnFirstError,
-        pathSubstitutions,
-        enforceCaseSensitivePathChecks,
-        trace = false,
-        maxCharsPerCell,
-        progress,
-        skipFileChecks,
-        logRowCallback(maxNumOfLines)
-      )
-
-      cliExitCode match {
-        case SystemExitCodes.ValidCsv => toConsole(s"PASS$outputTextSuffix")
-        case _ => toConsole(status)
-      }
   }
 
   /**
@@ -234,9 +198,6 @@ object CsvValidatorUi extends SimpleSwingApplication {
     }.map(Some(_)).getOrElse(None)
   }
 
-  private val txtArReport = new TextArea()
-  txtArReport.lineWrap = true
-
   /**
    * The main UI of the application
    *
@@ -338,10 +299,61 @@ object CsvValidatorUi extends SimpleSwingApplication {
 
     private val separator1 = new Separator
 
+    private val reportModel = new ReportTableModel
+    private val tblReport = new Table {
+      model = reportModel
+      peer.setFillsViewportHeight(true)
+      peer.setAutoResizeMode(JTable.AUTO_RESIZE_LAST_COLUMN)
+    }
+    tblReport.peer.setTransferHandler(fileHandler)
+    private val reportColumns = tblReport.peer.getColumnModel
+    List(70, 60, 110, 160).zipWithIndex.foreach { case (width, idx) => reportColumns.getColumn(idx).setPreferredWidth(width) }
+    reportColumns.getColumn(ReportTableModel.MessageColumn).setPreferredWidth(500)
+    reportColumns.getColumn(ReportTableModel.MessageColumn).setCellRenderer(new DefaultTableCellRenderer {
+      override def setValue(value: AnyRef): Unit = {
+        super.setValue(value)
+        setToolTipText(Option(value).map(_.toString).orNull)
+      }
+    })
+
     private val scrollPane = new ScrollPane
-    txtArReport.peer.setTransferHandler(fileHandler)
-    scrollPane.preferredSize = new Dimension(300, 70)  // for some reason, line wrap only works if this is here so this will have to stay
-    scrollPane.viewportView = txtArReport
+    scrollPane.preferredSize = new Dimension(600, 200)
+    scrollPane.viewportView = tblReport
+
+    private val AllSeverities = "All severities"
+    private val AllColumns = "All columns"
+    private val AllRules = "All rules"
+    private val cmbSeverity = new JComboBox[String](Array(AllSeverities, ReportEntry.Error, ReportEntry.Warning, ReportEntry.Schema))
+    private val cmbColumn = new JComboBox[String](new DefaultComboBoxModel[String](Array(AllColumns)))
+    private val cmbRule = new JComboBox[String](new DefaultComboBoxModel[String](Array(AllRules)))
+    cmbRule.setPrototypeDisplayValue("regex(\"[A-Za-z0-9]+\")")
+
+    private def selectedFilter(combo: JComboBox[String], all: String): Option[String] =
+      Option(combo.getSelectedItem).map(_.toString).filter(_ != all)
+
+    private def applyFilters(): Unit =
+      reportModel.filter(selectedFilter(cmbSeverity, AllSeverities), selectedFilter(cmbColumn, AllColumns), selectedFilter(cmbRule, AllRules))
+
+    List(cmbSeverity, cmbColumn, cmbRule).foreach(_.addActionListener(_ => applyFilters()))
+
+    /**
+     * Adds the columns and rules which have failed since the last batch to the filters
+     */
+    private def updateFilterChoices(): Unit = {
+      def addNew(combo: JComboBox[String], values: Seq[String]): Unit =
+        values.drop(combo.getItemCount - 1).foreach(combo.addItem)
+
+      addNew(cmbColumn, reportModel.columns)
+      addNew(cmbRule, reportModel.rules)
+    }
+
+    private def resetReport(): Unit = {
+      List(cmbSeverity, cmbColumn, cmbRule).foreach(_.setSelectedIndex(0))
+      List(cmbColumn, cmbRule).foreach(combo => while(combo.getItemCount > 1) combo.removeItemAt(1))
+      reportModel.clear()
+    }
+
+    private val lblFilter = new Label("Show:")
 
     private val btnValidate = new Button("Validate")
       btnValidate.tooltip = "Full metadata and file validation"
@@ -352,29 +364,42 @@ object CsvValidatorUi extends SimpleSwingApplication {
     progressBar.visible = false
     progressBar.labelPainted = true
     progressBar.label = ""
-    private val progress = new ProgressCallback {
+    private val lblStatus = new Label(" ")
+    lblStatus.horizontalAlignment = Alignment.Left
+
+    private def showStatus(status: String) : Unit =
+      Swing.onEDT {
+        lblStatus.text = status
+      }
+
+    private class ValidationProgress extends ProgressCallback {
+      private val rate = new ValidationRate()
+      @volatile private var percentage = 0f
+
       override def update(complete: this.type#Percentage) : Unit = {
+        percentage = complete
         Swing.onEDT {
           progressBar.label = null
+          progressBar.max = 100
           progressBar.value = complete.toInt
         }
       }
 
-      override def update(total: Int, processed: Int) : Unit = {
-        Swing.onEDT {
-          progressBar.max = total
-          progressBar.value = processed
-          progressBar.label = s"Row $processed of $total"
-        }
-      }
+      override def processed(rows: Long, bytes: Long) : Unit =
+        showStatus(rate.describe(rows, percentage))
     }
 
-    def outputToReport(clearOutput: Boolean=false)(data: String) : Unit =
-      Swing.onEDT {
-        if(clearOutput) txtArReport.text = "" else ()
-        txtArReport.append(data + EOL)
+    private val btnCancel = new Button("Cancel")
+    btnCancel.tooltip = "Stop the validation, keeping the results so far"
+    btnCancel.enabled = false
+    private var currentRun: Option[ValidationRun] = None
+    btnCancel.reactions += onClick {
+      currentRun.foreach { run =>
+        run.cancel()
+        btnCancel.enabled = false
+        showStatus("Cancelling...")
       }
-
+    }
 
     btnValidate.reactions += onClick(validateOnClick(false))
     btnValidateMetadataOnly.reactions += onClick(validateOnClick(true))
@@ -384,40 +409,53 @@ object CsvValidatorUi extends SimpleSwingApplication {
       val csvSchemaFilePath = txtCsvSchemaFile.getText
       val fileBoxesAreFilled = csvFilePath.nonEmpty && csvSchemaFilePath.nonEmpty
 
-      lazy val maxCharsPerCell = convertTextboxValueToInt(settingsPanel.maxCharsPerCell, "characters per column", outputToReport(clearOutput = true))
-      lazy val maxNumOfLines = convertTextboxValueToInt(settingsPanel.numOfLinesToDisplay, "errors to display", outputToReport(clearOutput = true))
+      lazy val maxCharsPerCell = convertTextboxValueToInt(settingsPanel.maxCharsPerCell, "characters per column", showStatus)
+      lazy val maxNumOfLines = convertTextboxValueToInt(settingsPanel.numOfLinesToDisplay, "errors to display", showStatus)
 
       if(fileBoxesAreFilled && maxCharsPerCell > 0 && maxNumOfLines > 0){
         val suffix = if(skipFileChecks) " (Metadata Only)" else ""
+        val feed = new ReportFeed(reportModel, maxNumOfLines, () => updateFilterChoices())
+        val run = new ValidationRun(feed)
+
+        def withTruncation(status: String): String =
+          if(feed.truncated) {
+            s"$status. Showing the first $maxNumOfLines of ${feed.receivedCount} errors; " +
+              "increase the maximum number of errors to display and re-run in order to display more."
+          } else status
+
         displayWait(
           suspendUi = {
             btnValidate.enabled = false
             btnValidateMetadataOnly.enabled = false
+            currentRun = Some(run)
+            btnCancel.enabled = true
             this.peer.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR))
             this.progressBar.value = 0
             this.progressBar.visible = true
-
-          },
-          action = {
-            txtArReport.text = ""
-            CsvValidatorUi.this.validate(
-              csvFilePath,
-              settingsPanel.csvEncoding,
-              csvSchemaFilePath,
-              settingsPanel.csvSchemaEncoding,
-              maxCharsPerCell,
-              settingsPanel.failOnFirstError,
-              settingsPanel.pathSubstitutions,
-              settingsPanel.enforceCaseSensitivePathChecks,
-              Some(progress),
-              settingsPanel.validateUtf8,
-              maxNumOfLines,
-              skipFileChecks,
-              suffix
-            )
+            resetReport()
+            lblStatus.text = " "
+            feed.start()
           },
-          output = outputToReport(),
+          run = run,
+          action = CsvValidatorUi.this.validate(
+            csvFilePath,
+            settingsPanel.csvEncoding,
+            csvSchemaFilePath,
+            settingsPanel.csvSchemaEncoding,
+            maxCharsPerCell,
+            settingsPanel.failOnFirstError,
+            settingsPanel.pathSubstitutions,
+            settingsPanel.enforceCaseSensitivePathChecks,
+            Some(new ValidationProgress),
+            settingsPanel.validateUtf8,
+            skipFileChecks,
+            suffix
+          ),
+          output = status => showStatus(withTruncation(status)),
           resumeUi = {
+            feed.stop()
+            currentRun = None
+            btnCancel.enabled = false
             btnValidate.enabled = true
             btnValidateMetadataOnly.enabled = true
             this.peer.setCursor(Cursor.getDefaultCursor)
@@ -446,7 +484,7 @@ object CsvValidatorUi extends SimpleSwingApplication {
     val dateFormat = new SimpleDateFormat("dd-mm-yy_HH-mm-ss")
     btnSave.reactions += onClick {
       reportFileChooser.selectedFile = Paths.get(lastReportPath.toString, s"csv_validator_report_${dateFormat.format(new Date())}.txt").toFile
-      saveFile(reportFileChooser, saveToFile(txtArReport.text, _), btnSave, btnSave.text)
+      saveFile(reportFileChooser, saveToFile(reportModel.toText + EOL + lblStatus.text + EOL, _), btnSave, btnSave.text)
       updateLastPath(reportFileChooser, path => loadSettings match {
         case Some(s) => s.copy(lastReportPath = path)
         case None => Settings(path, path, path)
@@ -467,9 +505,12 @@ object CsvValidatorUi extends SimpleSwingApplication {
 
     layout.row.center.fill.add(btnValidate)
     layout.row.center.fill.add(btnValidateMetadataOnly)
+    layout.row.center.fill.add(btnCancel)
     layout.row.center.fill.add(progressBar)
+    layout.row.center.fill.add(lblStatus)
 
     layout.row.center.fill.add(separator1)
+    layout.row.grid(lblFilter).add(cmbSeverity).add(cmbColumn).add(cmbRule, 2)
     layout.row.center.fill.add(scrollPane)
     layout.row.center.fill.add(separator2)
 
@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2013, The National Archives <digitalpreservation@nationalarchives.gov.uk>
+ * https://www.nationalarchives.gov.uk
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package uk.gov.nationalarchives.csv.validator.ui
+
+import uk.gov.nationalarchives.csv.validator.schema.Schema
+import uk.gov.nationalarchives.csv.validator.{EOL, ErrorSink, FailMessage, SchemaDefinitionError, ValidationError, ValidationWarning}
+
+import java.util.concurrent.{ArrayBlockingQueue, TimeUnit}
+import javax.swing.table.AbstractTableModel
+import scala.collection.mutable
+import scala.collection.mutable.ArrayBuffer
+import scala.jdk.CollectionConverters._
+import scala.util.Try
+
+/**
+ * A failure of the validation, as a row of the report
+ *
+ * @param column the column of the schema, or empty when the failure is not of a column
+ * @param rule the rule which failed, or empty when the failure is not of a rule (e.g. `@totalColumns`)
+ */
+case class ReportEntry(severity: String, line: Option[Int], column: String, rule: String, message: String) {
+
+  /**
+   * @return the entry as it is written to a saved report
+   */
+  def toText: String = severity match {
+    case ReportEntry.Warning => "Warning: " + message
+    case ReportEntry.Error => "Error:   " + message
+    case _ => message
+  }
+}
+
+object ReportEntry {
+  val Error = "Error"
+  val Warning = "Warning"
+  val Schema = "Schema"
+
+  def apply(failure: FailMessage, columnName: Int => String): ReportEntry = {
+    val severity = failure.`type` match {
+      case ValidationError => Error
+      case ValidationWarning => Warning
+      case SchemaDefinitionError => Schema
+    }
+    ReportEntry(severity, failure.lineNumber, failure.columnIndex.map(columnName).getOrElse(""), failure.rule.getOrElse(""), failure.message)
+  }
+}
+
+/**
+ * The rows of the report, of which only those matching the filters are shown.
+ *
+ * Must only be used from the Event Dispatch Thread.
+ */
+class ReportTableModel extends AbstractTableModel {
+  import ReportTableModel._
+
+  private val entries = ArrayBuffer.empty[ReportEntry]
+  private val shown = ArrayBuffer.empty[Int]
+
+  private val columnsSeen = mutable.LinkedHashSet.empty[String]
+  private val rulesSeen = mutable.LinkedHashSet.empty[String]
+
+  private var severityFilter: Option[String] = None
+  private var columnFilter: Option[String] = None
+  private var ruleFilter: Option[String] = None
+
+  override def getRowCount: Int = shown.size
+  override def getColumnCount: Int = Headings.size
+  override def getColumnName(column: Int): String = Headings(column)
+  override def getColumnClass(column: Int): Class[_] = if(column == LineColumn) classOf[Integer] else classOf[String]
+
+  override def getValueAt(row: Int, column: Int): AnyRef = {
+    val entry = entries(shown(row))
+    column match {
+      case 0 => entry.severity
+      case LineColumn => entry.line.map(Int.box).orNull
+      case 2 => entry.column
+      case 3 => entry.rule
+      case _ => entry.message
+    }
+  }
+
+  def append(batch: Iterable[ReportEntry]): Unit = {
+    val firstRow = shown.size
+    for(entry <- batch) {
+      if(entry.column.nonEmpty) columnsSeen += entry.column
+      if(entry.rule.nonEmpty) rulesSeen += entry.rule
+      entries += entry
+      if(matches(entry)) shown += entries.size - 1
+    }
+    if(shown.size > firstRow) {
+      fireTableRowsInserted(firstRow, shown.size - 1)
+    }
+  }
+
+  def clear(): Unit = {
+    entries.clear()
+    shown.clear()
+    columnsSeen.clear()
+    rulesSeen.clear()
+    fireTableDataChanged()
+  }
+
+  /**
+   * Shows only the entries of the severity, column and rule, where given
+   */
+  def filter(severity: Option[String], column: Option[String], rule: Option[String]): Unit = {
+    severityFilter = severity
+    columnFilter = column
+    ruleFilter = rule
+    shown.clear()
+    for(i <- entries.indices if matches(entries(i))) shown += i
+    fireTableDataChanged()
+  }
+
+  private def matches(entry: ReportEntry): Boolean =
+    severityFilter.forall(_ == entry.severity) && columnFilter.forall(_ == entry.column) && ruleFilter.forall(_ == entry.rule)
+
+  /**
+   * @return the columns which have failed, in the order of their first failure
+   */
+  def columns: Seq[String] = columnsSeen.toSeq
+
+  /**
+   * @return the rules which have failed, in the order of their first failure
+   */
+  def rules: Seq[String] = rulesSeen.toSeq
+
+  def size: Int = entries.size
+
+  /**
+   * @return every entry, whether shown or not
+   */
+  def toText: String = entries.iterator.map(_.toText).mkString(EOL)
+}
+
+object ReportTableModel {
+  val Headings: IndexedSeq[String] = IndexedSeq("Severity", "Line", "Column", "Rule", "Message")
+  val LineColumn = 1
+  val MessageColumn = 4
+}
+
+/**
+ * Passes the entries of the report from the validating thread to the
+ * table in batches, through a bounded queue, so that a validation with many
+ * failures neither floods the Event Dispatch Thread with an update per failure,
+ * nor gets more than `capacity` entries ahead of the table.
+ *
+ * Only the first `maxEntries` entries are shown, the rest are just counted.
+ */
+class ReportFeed(model: ReportTableModel, maxEntries: Int, onBatch: () => Unit, capacity: Int = 10000, intervalMillis: Int = 100) {
+  private val queue = new ArrayBlockingQueue[ReportEntry](capacity)
+  private val timer = new javax.swing.Timer(intervalMillis, _ => drain())
+  @volatile private var received = 0L
+
+  /**
+   * Called from the validating thread, waits whilst the queue
+   * is full, unless the validation has been cancelled
+   */
+  def put(entry: ReportEntry, cancelled: () => Boolean): Unit = {
+    received += 1
+    if(received <= maxEntries) {
+      while(!cancelled() && !queue.offer(entry, intervalMillis, TimeUnit.MILLISECONDS)) {}
+    }
+  }
+
+  def receivedCount: Long = received
+
+  /**
+   * @return true if there were more entries than could be shown
+   */
+  def truncated: Boolean = received > maxEntries
+
+  /**
+   * Starts moving entries to the table, from the Event Dispatch Thread
+   */
+  def start(): Unit = timer.start()
+
+  /**
+   * Stops moving entries to the table, from the Event Dispatch Thread,
+   * once those still queued have been moved
+   */
+  def stop(): Unit = {
+    timer.stop()
+    drain()
+  }
+
+  private def drain(): Unit = {
+    val batch = new java.util.ArrayList[ReportEntry](queue.size)
+    queue.drainTo(batch)
+    if(!batch.isEmpty) {
+      model.append(batch.asScala)
+      onBatch()
+    }
+  }
+}
+
+/**
+ * A validation started from the UI, which runs on a thread of its own
+ * so that it may be cancelled, its failures being fed to the report
+ */
+final class ValidationRun(feed: ReportFeed) {
+  @volatile private var cancelRequested = false
+  @volatile private var thread: Option[Thread] = None
+
+  def cancelled: Boolean = cancelRequested
+
+  /**
+   * Stops the validation reading any more rows, and interrupts its
+   * thread, which may be waiting on the file system, e.g. for a checksum
+   */
+  def cancel(): Unit = {
+    cancelRequested = true
+    thread.foreach(_.interrupt())
+  }
+
+  /**
+   * Runs the validation, which gives its status, then calls `done` from the validating thread
+   */
+  def start(validate: ValidationRun => String)(done: Try[String] => Unit): Unit = {
+    val t = new Thread(() => done(Try(validate(this))), "csv-validator-ui-validation")
+    t.setDaemon(true)
+    thread = Some(t)
+    t.start()
+  }
+
+  def accept(failure: FailMessage): Unit =
+    feed.put(ReportEntry(failure, _.toString), () => cancelRequested)
+
+  /**
+   * @return a sink which names the columns of failures from the schema,
+   *         and which stops the validation once it has been cancelled
+   */
+  def sinkFor(schema: Schema): ErrorSink = new ErrorSink {
+    private val plan = schema.plan
+
+    override def accept(failure: FailMessage): Unit =
+      feed.put(ReportEntry(failure, i => if(i < plan.columnCount) plan.columnDefinition(i).id.toString else i.toString), () => cancelRequested)
+
+    override def isSaturated: Boolean = cancelRequested
+  }
+}
+
+/**
+ * The rows validated per second, and the time remaining
+ * estimated from the percentage of the CSV file read so far
+ */
+final class ValidationRate(startNanos: Long = System.nanoTime()) {
+
+  def describe(rows: Long, percentage: Float, now: Long = System.nanoTime()): String = {
+    val elapsedSeconds = (now - startNanos) / 1e9
+    val rate = if(elapsedSeconds > 0) f", ${(rows / elapsedSeconds).toLong}%,d rows/s" else ""
+    val remaining = if(percentage > 0 && percentage < 100) {
+      s", about ${ValidationRate.duration((elapsedSeconds * (100 - percentage) / percentage).toLong)} remaining"
+    } else {
+      ""
+    }
+    f"$rows%,d rows$rate$remaining"
+  }
+}
+
+object ValidationRate {
+  def duration(seconds: Long): String =
+    if(seconds >= 3600) f"${seconds / 3600}h ${seconds % 3600 / 60}%02dm"
+    else if(seconds >= 60) f"${seconds / 60}m ${seconds % 60}%02ds"
+    else s"${seconds}s"
+}